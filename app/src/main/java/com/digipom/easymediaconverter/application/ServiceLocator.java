@@ -25,17 +25,39 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 
 import com.digipom.easymediaconverter.ffmpeg.FFMpegController;
+import com.digipom.easymediaconverter.ffmpeg.FallbackMetrics;
+import com.digipom.easymediaconverter.ffmpeg.LoudnormMeasurementCache;
+import com.digipom.easymediaconverter.ffmpeg.MediaProbe;
+import com.digipom.easymediaconverter.ffmpeg.ResultCache;
+import com.digipom.easymediaconverter.media.BulkMediaItemResolver;
+import com.digipom.easymediaconverter.media.MediaMetadataCache;
 import com.digipom.easymediaconverter.notifications.NotificationsController;
 import com.digipom.easymediaconverter.prefs.AppPreferences;
+import com.digipom.easymediaconverter.utils.DurationLoader;
+import com.digipom.easymediaconverter.utils.LoadableDurationCache;
 
 public class ServiceLocator {
     private final AppPreferences appPreferences;
     private final NotificationsController notificationsController;
+    private final MediaProbe mediaProbe;
+    private final MediaMetadataCache mediaMetadataCache;
+    private final LoudnormMeasurementCache loudnormMeasurementCache;
+    private final ResultCache resultCache;
+    private final FallbackMetrics fallbackMetrics;
+    private final BulkMediaItemResolver bulkMediaItemResolver;
+    private final LoadableDurationCache loadableDurationCache;
     private final FFMpegController ffMpegController;
 
     ServiceLocator(@NonNull Context context) {
         appPreferences = new AppPreferences(context);
         notificationsController = new NotificationsController(context);
+        mediaProbe = new MediaProbe();
+        mediaMetadataCache = new MediaMetadataCache(context);
+        loudnormMeasurementCache = new LoudnormMeasurementCache(context);
+        resultCache = new ResultCache(context);
+        fallbackMetrics = new FallbackMetrics(context);
+        bulkMediaItemResolver = new BulkMediaItemResolver(context);
+        loadableDurationCache = new LoadableDurationCache(new DurationLoader(context, mediaMetadataCache));
         ffMpegController = new FFMpegController(context, appPreferences, notificationsController);
     }
 
@@ -49,6 +71,41 @@ public class ServiceLocator {
         return notificationsController;
     }
 
+    @NonNull
+    public MediaProbe getMediaProbe() {
+        return mediaProbe;
+    }
+
+    @NonNull
+    public MediaMetadataCache getMediaMetadataCache() {
+        return mediaMetadataCache;
+    }
+
+    @NonNull
+    public LoudnormMeasurementCache getLoudnormMeasurementCache() {
+        return loudnormMeasurementCache;
+    }
+
+    @NonNull
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    @NonNull
+    public FallbackMetrics getFallbackMetrics() {
+        return fallbackMetrics;
+    }
+
+    @NonNull
+    public BulkMediaItemResolver getBulkMediaItemResolver() {
+        return bulkMediaItemResolver;
+    }
+
+    @NonNull
+    public LoadableDurationCache getLoadableDurationCache() {
+        return loadableDurationCache;
+    }
+
     @NonNull
     public FFMpegController getFFMpegController() {
         return ffMpegController;
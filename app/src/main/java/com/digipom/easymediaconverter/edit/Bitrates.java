@@ -28,7 +28,10 @@ import java.util.HashMap;
 
 public abstract class Bitrates {
     public enum BitrateType {
-        CBR, VBR, ABR
+        CBR, VBR, ABR,
+        // The value is the size in megabytes that the output should fit in, and the bitrate is
+        // worked out from the duration of the input.
+        TARGET_SIZE
     }
 
     public static abstract class BitrateRange {
@@ -205,6 +208,7 @@ public abstract class Bitrates {
                 new AbrBitrateRange(8, 320, 192, 8));
         map.put(BitrateType.VBR,
                 new VbrBitrateRange(9, 0, 2, -1));
+        map.put(BitrateType.TARGET_SIZE, newTargetSizeRange());
         return map;
     }
 
@@ -227,6 +231,23 @@ public abstract class Bitrates {
         }
 
         map.put(BitrateType.CBR, new CbrBitrateRange(cbrRates, 128));
+        map.put(BitrateType.TARGET_SIZE, newTargetSizeRange());
         return map;
     }
+
+    // For the formats that don't offer any bitrate options of their own.
+    @NonNull
+    public static HashMap<BitrateType, BitrateRange> getTargetSizeOnlySpecs() {
+        final HashMap<BitrateType, BitrateRange> map = new HashMap<>();
+        map.put(BitrateType.TARGET_SIZE, newTargetSizeRange());
+        return map;
+    }
+
+    @NonNull
+    private static BitrateRange newTargetSizeRange() {
+        // Common attachment limits of messaging apps and email, in megabytes.
+        return new CbrBitrateRange(
+                new int[]{1, 2, 3, 4, 5, 8, 10, 15, 16, 20, 25, 50, 100},
+                8);
+    }
 }
\ No newline at end of file
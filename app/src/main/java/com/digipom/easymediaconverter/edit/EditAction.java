@@ -26,7 +26,9 @@ import com.digipom.easymediaconverter.R;
 
 public enum EditAction {
     CONVERT, CONVERT_TO_VIDEO, EXTRACT_AUDIO, TRIM, CUT, ADJUST_SPEED, ADJUST_VOLUME, ADD_SILENCE, NORMALIZE,
-    SPLIT, COMBINE, SET_AS_RINGTONE;
+    SPLIT, COMBINE, SET_AS_RINGTONE,
+    // Several of the edits above, applied in one go.
+    CHAINED_EDIT;
 
     @StringRes
     public int descriptionForOngoingTaskType() {
@@ -55,6 +57,8 @@ public enum EditAction {
                 return R.string.combining;
             case SET_AS_RINGTONE:
                 return R.string.setting_ringtone;
+            case CHAINED_EDIT:
+                return R.string.editing;
             default:
                 throw new UnsupportedOperationException();
         }
@@ -87,6 +91,8 @@ public enum EditAction {
                 return R.string.combined;
             case SET_AS_RINGTONE:
                 return R.string.was_set_as_ringtone;
+            case CHAINED_EDIT:
+                return R.string.edited;
             default:
                 throw new UnsupportedOperationException();
         }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.edit;
+
+// How loudness normalization is applied.
+public enum NormalizeMode {
+    // Measures the whole input first, then applies a single gain in a second pass. This keeps the
+    // dynamics of the original intact, but the input has to be decoded twice.
+    LINEAR_TWO_PASS,
+    // Adjusts the gain on the fly in a single pass. Much quicker for long recordings, at the cost of
+    // some compression of the dynamics; fine for speech, less so for music.
+    DYNAMIC_SINGLE_PASS
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.edit;
+
+// How the video stream should be retimed when adjusting the speed. Audio is always retimed with
+// atempo.
+public enum SpeedAdjustmentMode {
+    // Interpolates new frames by blending neighbouring frames. This is the smoothest, but it's also
+    // very slow; longer videos can take more than real time to process.
+    BLEND,
+    // Retimes the existing frames, dropping or duplicating them as needed.
+    FAST,
+    // Scales the timestamps of the video stream and copies it as-is, so the video never gets
+    // decoded. Best for videos where only the audio matters.
+    RETIME_ONLY
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.digipom.easymediaconverter.edit.Bitrates.BitrateWithValue;
+import com.digipom.easymediaconverter.edit.OutputFormatType;
+
+// One of the outputs of a multi-target conversion.
+public class ConversionTarget {
+    @NonNull
+    public final Uri targetUri;
+    @NonNull
+    public final String targetFileName;
+    @NonNull
+    public final OutputFormatType outputFormatType;
+    @Nullable
+    public final BitrateWithValue selectedBitrate;
+
+    public ConversionTarget(@NonNull Uri targetUri, @NonNull String targetFileName,
+                            @NonNull OutputFormatType outputFormatType,
+                            @Nullable BitrateWithValue selectedBitrate) {
+        this.targetUri = targetUri;
+        this.targetFileName = targetFileName;
+        this.outputFormatType = outputFormatType;
+        this.selectedBitrate = selectedBitrate;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ConversionTarget{" +
+                "targetUri=" + targetUri +
+                ", targetFileName='" + targetFileName + '\'' +
+                ", outputFormatType=" + outputFormatType +
+                (selectedBitrate != null ? ", selectedBitrate=" + selectedBitrate.type + " " + selectedBitrate.value : "") +
+                '}';
+    }
+}
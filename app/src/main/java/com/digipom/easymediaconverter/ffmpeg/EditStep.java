@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+
+import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
+
+// One step of a chained edit. Each step applies to the output of the step before it, so for
+// example a trim after a speed adjustment is in the timeline of the adjusted output.
+public class EditStep {
+    @NonNull
+    public final EditAction action;
+    // For TRIM; the end is exclusive.
+    public final long startMs;
+    public final long endMs;
+    // For ADJUST_VOLUME.
+    public final float db;
+    // For ADJUST_SPEED.
+    public final float relativeSpeed;
+    @NonNull
+    public final SpeedAdjustmentMode speedAdjustmentMode;
+
+    private EditStep(@NonNull EditAction action, long startMs, long endMs, float db, float relativeSpeed,
+                     @NonNull SpeedAdjustmentMode speedAdjustmentMode) {
+        this.action = action;
+        this.startMs = startMs;
+        this.endMs = endMs;
+        this.db = db;
+        this.relativeSpeed = relativeSpeed;
+        this.speedAdjustmentMode = speedAdjustmentMode;
+    }
+
+    @NonNull
+    public static EditStep trim(long startMs, long endMs) {
+        if (startMs < 0 || endMs <= startMs) {
+            throw new IllegalArgumentException("Invalid trim range " + startMs + " to " + endMs);
+        }
+        return new EditStep(EditAction.TRIM, startMs, endMs, 0, 1, SpeedAdjustmentMode.FAST);
+    }
+
+    @NonNull
+    public static EditStep adjustVolume(float db) {
+        return new EditStep(EditAction.ADJUST_VOLUME, 0, 0, db, 1, SpeedAdjustmentMode.FAST);
+    }
+
+    @NonNull
+    public static EditStep adjustSpeed(float relativeSpeed, @NonNull SpeedAdjustmentMode mode) {
+        if (relativeSpeed <= 0) {
+            throw new IllegalArgumentException("Invalid relative speed " + relativeSpeed);
+        }
+        return new EditStep(EditAction.ADJUST_SPEED, 0, 0, 0, relativeSpeed, mode);
+    }
+
+    // Always the dynamic, single-pass mode, since a measurement pass would need the output of
+    // the steps before it.
+    @NonNull
+    public static EditStep normalize() {
+        return new EditStep(EditAction.NORMALIZE, 0, 0, 0, 1, SpeedAdjustmentMode.FAST);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        switch (action) {
+            case TRIM:
+                return "EditStep{TRIM " + startMs + "ms to " + endMs + "ms}";
+            case ADJUST_VOLUME:
+                return "EditStep{ADJUST_VOLUME " + db + "dB}";
+            case ADJUST_SPEED:
+                return "EditStep{ADJUST_SPEED " + relativeSpeed + "x, " + speedAdjustmentMode + "}";
+            default:
+                return "EditStep{" + action + "}";
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.digipom.easymediaconverter.edit.EncodingSpeedProfile;
+import com.digipom.easymediaconverter.edit.OutputFormatType;
+
+import java.io.File;
+import java.util.List;
+
+import static com.digipom.easymediaconverter.utils.FilenameUtils.getCanonicalExtension;
+
+// Adds the speed settings of the selected profile to an FFMPEG command line, for whichever encoders
+// the command will end up using.
+//
+// Actions don't usually name their encoders, so when there's no -c:v / -c:a the encoder is the one
+// that FFMPEG picks for the output extension. Streams that are copied or disabled are left alone,
+// and so are any settings that the action has already chosen itself.
+final class EncoderSpeedSettings {
+    static void apply(@NonNull EncodingSpeedProfile profile, @NonNull List<String> commands) {
+        if (commands.isEmpty()) {
+            return;
+        }
+
+        // Output options come after the last input, and the output itself is the last argument.
+        final int outputIndex = commands.size() - 1;
+        final int firstOutputOption = commands.lastIndexOf("-i") + 2;
+        if (firstOutputOption < 2 || firstOutputOption > outputIndex) {
+            return;
+        }
+
+        applyToOutput(profile, commands.subList(firstOutputOption, outputIndex), commands.get(outputIndex));
+    }
+
+    // For commands with more than one output, where apply() only sees the last one. Once each
+    // output has its settings, apply() on the whole command doesn't add anything more.
+    static void applyToOutput(@NonNull EncodingSpeedProfile profile, @NonNull List<String> outputOptions,
+                              @NonNull String output) {
+        final OutputFormatType outputType = OutputFormatType.getMatchingOutputType(
+                getCanonicalExtension(new File(output).getName()));
+        String videoEncoder = outputType != null ? defaultVideoEncoder(outputType) : null;
+        String audioEncoder = outputType != null ? defaultAudioEncoder(outputType) : null;
+        for (int i = 0; i < outputOptions.size(); i++) {
+            final String option = outputOptions.get(i);
+            final String value = i + 1 < outputOptions.size() ? outputOptions.get(i + 1) : null;
+            switch (option) {
+                case "-c":
+                case "-codec":
+                    videoEncoder = value;
+                    audioEncoder = value;
+                    break;
+                case "-c:v":
+                case "-codec:v":
+                case "-vcodec":
+                    videoEncoder = value;
+                    break;
+                case "-c:a":
+                case "-codec:a":
+                case "-acodec":
+                    audioEncoder = value;
+                    break;
+                case "-vn":
+                    videoEncoder = null;
+                    break;
+                case "-an":
+                    audioEncoder = null;
+                    break;
+            }
+        }
+
+        if (videoEncoder != null) {
+            addVideoSettings(profile, videoEncoder, outputOptions);
+        }
+        if (audioEncoder != null) {
+            addAudioSettings(profile, audioEncoder, outputOptions);
+        }
+    }
+
+    @Nullable
+    private static String defaultVideoEncoder(@NonNull OutputFormatType type) {
+        switch (type) {
+            case MP4:
+            case MKV:
+            case MOV:
+                return "libx264";
+            case WEBM:
+                return "libvpx-vp9";
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static String defaultAudioEncoder(@NonNull OutputFormatType type) {
+        switch (type) {
+            case MP3:
+                return "libmp3lame";
+            case M4A:
+            case AAC:
+            case MP4:
+            case MOV:
+                return "aac";
+            case OGG:
+            case MKV:
+                return "libvorbis";
+            case OPUS:
+            case WEBM:
+                return "libopus";
+            case FLAC:
+                return "flac";
+            default:
+                return null;
+        }
+    }
+
+    private static void addVideoSettings(@NonNull EncodingSpeedProfile profile, @NonNull String encoder,
+                                         @NonNull List<String> options) {
+        switch (encoder) {
+            case "libx264":
+            case "libx265":
+                addIfAbsent(options, "-preset", "v", pick(profile, "ultrafast", "veryfast", "slow"));
+                break;
+            case "libvpx":
+            case "libvpx-vp9":
+                // The default "good" deadline at cpu-used 1 is what makes WEBM crawl on phones.
+                addIfAbsent(options, "-deadline", "v", pick(profile, "realtime", "good", "good"));
+                addIfAbsent(options, "-cpu-used", "v", pick(profile, "8", "4", "1"));
+                if (encoder.equals("libvpx-vp9")) {
+                    addIfAbsent(options, "-row-mt", "v", "1");
+                }
+                break;
+        }
+    }
+
+    private static void addAudioSettings(@NonNull EncodingSpeedProfile profile, @NonNull String encoder,
+                                         @NonNull List<String> options) {
+        switch (encoder) {
+            case "libmp3lame":
+                // 0 is the slowest and best, 9 the fastest.
+                addIfAbsent(options, "-compression_level", "a", pick(profile, "7", "5", "2"));
+                break;
+            case "libopus":
+                // 10 is the slowest and best.
+                addIfAbsent(options, "-compression_level", "a", pick(profile, "3", "8", "10"));
+                break;
+            case "flac":
+                // 12 is the slowest and smallest.
+                addIfAbsent(options, "-compression_level", "a", pick(profile, "0", "5", "8"));
+                break;
+            case "aac":
+                addIfAbsent(options, "-aac_coder", "a", pick(profile, "fast", "fast", "twoloop"));
+                break;
+        }
+    }
+
+    @NonNull
+    private static String pick(@NonNull EncodingSpeedProfile profile,
+                               @NonNull String fastest, @NonNull String balanced, @NonNull String smallest) {
+        switch (profile) {
+            case FASTEST:
+                return fastest;
+            case SMALLEST:
+                return smallest;
+            case BALANCED:
+            default:
+                return balanced;
+        }
+    }
+
+    // Scoped to the stream type, since some options (like -compression_level) are shared by the
+    // audio and video encoders.
+    private static void addIfAbsent(@NonNull List<String> options, @NonNull String option,
+                                    @NonNull String streamType, @NonNull String value) {
+        final String scopedOption = option + ':' + streamType;
+        if (!options.contains(option) && !options.contains(scopedOption)) {
+            options.add(scopedOption);
+            options.add(value);
+        }
+    }
+
+    private EncoderSpeedSettings() {
+    }
+}
@@ -23,6 +23,7 @@ package com.digipom.easymediaconverter.ffmpeg;
 import android.content.Context;
 import android.net.Uri;
 import android.os.StatFs;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 
 import androidx.annotation.MainThread;
@@ -33,10 +34,26 @@ import androidx.arch.core.util.Function;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Transformations;
 
+import com.arthenica.mobileffmpeg.Config;
+import com.digipom.easymediaconverter.application.BaseApplication;
+import com.digipom.easymediaconverter.application.ServiceLocator;
 import com.digipom.easymediaconverter.edit.Bitrates.BitrateWithValue;
+import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.edit.EncodingSpeedProfile;
 import com.digipom.easymediaconverter.edit.OutputFormatType;
 import com.digipom.easymediaconverter.edit.RingtoneType;
+import com.digipom.easymediaconverter.edit.NormalizeMode;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegTaskWrapper.FFMpegFailedException;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegTaskWrapper.FFMpegStalledException;
+import com.digipom.easymediaconverter.ffmpeg.MediaProbe.MediaInfo;
+import com.digipom.easymediaconverter.media.ContainerHeaderParser;
+import com.digipom.easymediaconverter.media.ContentFingerprint;
+import com.digipom.easymediaconverter.media.LoudnessHistogram;
+import com.digipom.easymediaconverter.media.LoudnessMeter;
 import com.digipom.easymediaconverter.media.MediaItem;
+import com.digipom.easymediaconverter.media.MediaMetadata;
+import com.digipom.easymediaconverter.media.MediaMetadataCache;
 import com.digipom.easymediaconverter.utils.FileUtils;
 import com.digipom.easymediaconverter.utils.FilenameUtils;
 import com.digipom.easymediaconverter.utils.RingtoneUtils;
@@ -44,7 +61,6 @@ import com.digipom.easymediaconverter.utils.UriUtils;
 import com.digipom.easymediaconverter.utils.logger.Logger;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -58,33 +74,61 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.CBR;
+import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.TARGET_SIZE;
 import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_AAC;
-import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_M4A;
-import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_MP3;
+import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_MKV;
+import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_MOV;
 import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_MP4;
-import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_OGG;
-import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_WAVE;
+import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_WEBM;
 import static com.digipom.easymediaconverter.utils.FileTypeExtensions.isFileTypeForAacAudio;
-import static com.digipom.easymediaconverter.utils.FileTypeExtensions.isFileTypeForMp4Video;
 import static com.digipom.easymediaconverter.utils.FilenameUtils.getCanonicalExtension;
 
 class FFMpegActions {
+    private static final long END_OF_INPUT = -1;
+    private static final int STILL_IMAGE_FRAME_RATE = 1;
+    private static final int STILL_IMAGE_KEYFRAME_INTERVAL_SECONDS = 10;
+
+    // One attempt at an action with a given stream plan; see FFMpegAction.runWithFallbacks().
+    interface PlanAttempt {
+        @WorkerThread
+        void run(@NonNull StreamCopyPlanner.Plan plan) throws IOException, InterruptedException, JSONException;
+    }
+
     static abstract class FFMpegAction {
+        // Loudness measurements of anything shorter are done in a single pass.
+        private static final long MIN_SEGMENTED_LOUDNESS_DURATION_MS = 5 * 60 * 1000;
+        private static final long MIN_LOUDNESS_SEGMENT_MS = 60 * 1000;
+
         private final AtomicBoolean isCancelled = new AtomicBoolean(false);
         private final Context context;
         private final FFMpegTaskWrapper ffMpegTask;
+        private final MediaProbe mediaProbe;
+        private final MediaMetadataCache mediaMetadataCache;
+        private final LoudnormMeasurementCache loudnormMeasurementCache;
+        private final ResultCache resultCache;
+        private final FallbackMetrics fallbackMetrics;
+        // Taken when the action is created, so a queued action isn't affected by later changes.
+        private final EncodingSpeedProfile encodingSpeedProfile;
 
         private final LiveData<Float> progress;
 
         FFMpegAction(@NonNull Context context) {
             this.context = context;
-            ffMpegTask = new FFMpegTaskWrapper();
+            final ServiceLocator serviceLocator = ((BaseApplication) context.getApplicationContext()).getServiceLocator();
+            ffMpegTask = new FFMpegTaskWrapper(serviceLocator.getAppPreferences().getStallTimeoutMs());
+            mediaProbe = serviceLocator.getMediaProbe();
+            mediaMetadataCache = serviceLocator.getMediaMetadataCache();
+            loudnormMeasurementCache = serviceLocator.getLoudnormMeasurementCache();
+            resultCache = serviceLocator.getResultCache();
+            fallbackMetrics = serviceLocator.getFallbackMetrics();
+            encodingSpeedProfile = serviceLocator.getAppPreferences().getEncodingSpeedProfile();
             progress = Transformations.map(ffMpegTask.progressMs(), new Function<Long, Float>() {
                 @Override
                 public Float apply(Long progressMs) {
@@ -113,6 +157,13 @@ class FFMpegActions {
         @WorkerThread
         abstract void execute() throws IOException, InterruptedException, JSONException;
 
+        // Actions that can reuse an earlier output from the result cache override this; the rest
+        // always run.
+        @WorkerThread
+        void executeOrReuseCachedResult(@NonNull EditAction editAction) throws IOException, InterruptedException, JSONException {
+            execute();
+        }
+
         @WorkerThread
         @NonNull
         abstract Uri[] getTargets();
@@ -141,7 +192,271 @@ class FFMpegActions {
         @NonNull
         String doFFMpegTask(@NonNull List<String> commands, boolean throwOnFailure) throws InterruptedException {
             checkCancelState();
-            return ffMpegTask.runTask(commands, throwOnFailure);
+            final List<String> commandsWithSpeedSettings = new ArrayList<>(commands);
+            EncoderSpeedSettings.apply(encodingSpeedProfile, commandsWithSpeedSettings);
+            return ffMpegTask.runTask(commandsWithSpeedSettings, throwOnFailure);
+        }
+
+        // For commands that can't just be run again after a stall, such as those that write to a
+        // pipe; the caller has to set up a new one for the retry.
+        @WorkerThread
+        @NonNull
+        String doFFMpegTaskWithoutStallRetry(@NonNull List<String> commands) throws InterruptedException {
+            checkCancelState();
+            final List<String> commandsWithSpeedSettings = new ArrayList<>(commands);
+            EncoderSpeedSettings.apply(encodingSpeedProfile, commandsWithSpeedSettings);
+            return ffMpegTask.runTaskWithoutStallRetry(commandsWithSpeedSettings, true);
+        }
+
+        // Runs the commands at the same time, for actions that split the work into independent
+        // parts of the input.
+        @WorkerThread
+        @NonNull
+        List<String> doFFMpegTasksInParallel(@NonNull List<List<String>> commandLists) throws InterruptedException {
+            checkCancelState();
+            final List<List<String>> commandListsWithSpeedSettings = new ArrayList<>();
+            for (List<String> commands : commandLists) {
+                final List<String> commandsWithSpeedSettings = new ArrayList<>(commands);
+                EncoderSpeedSettings.apply(encodingSpeedProfile, commandsWithSpeedSettings);
+                commandListsWithSpeedSettings.add(commandsWithSpeedSettings);
+            }
+            return ffMpegTask.runTasksInParallel(commandListsWithSpeedSettings, true);
+        }
+
+        // The parallel version of doFFMpegTaskWithoutStallRetry().
+        @WorkerThread
+        @NonNull
+        List<String> doFFMpegTasksInParallelWithoutStallRetry(@NonNull List<List<String>> commandLists) throws InterruptedException {
+            checkCancelState();
+            final List<List<String>> commandListsWithSpeedSettings = new ArrayList<>();
+            for (List<String> commands : commandLists) {
+                final List<String> commandsWithSpeedSettings = new ArrayList<>(commands);
+                EncoderSpeedSettings.apply(encodingSpeedProfile, commandsWithSpeedSettings);
+                commandListsWithSpeedSettings.add(commandsWithSpeedSettings);
+            }
+            return ffMpegTask.runTasksInParallelWithoutStallRetry(commandListsWithSpeedSettings, true);
+        }
+
+        // Runs the attempt with the cheapest plan first. If FFMPEG fails in a way that a more
+        // expensive plan might get past, the attempt is run again with the next one: stream copy,
+        // then encoding the audio, then encoding everything. Each attempt reuses the staged input.
+        // Pass false for allowPartialReencode if the attempt can't mix copied and encoded streams.
+        @WorkerThread
+        void runWithFallbacks(@NonNull StreamCopyPlanner.Plan plan, boolean allowPartialReencode,
+                              @NonNull PlanAttempt attempt) throws IOException, InterruptedException, JSONException {
+            StreamCopyPlanner.Plan currentPlan = plan;
+            if (!allowPartialReencode && plan.getStrategy() == StreamCopyPlanner.Strategy.PARTIAL_REENCODE) {
+                currentPlan = Objects.requireNonNull(plan.getFullReencodeFallback());
+            }
+
+            while (true) {
+                try {
+                    attempt.run(currentPlan);
+                    return;
+                } catch (FFMpegFailedException e) {
+                    checkCancelState();
+                    final FFMpegFailureKind failureKind = e.getFailureKind();
+                    final StreamCopyPlanner.Plan nextPlan = allowPartialReencode
+                            ? currentPlan.getFallback() : currentPlan.getFullReencodeFallback();
+                    if (nextPlan == null || !failureKind.isWorthRetryingWithAnotherPlan) {
+                        throw e;
+                    }
+
+                    Logger.w("Plan " + currentPlan + " failed with " + failureKind + "; falling back to " + nextPlan, e);
+                    fallbackMetrics.recordFallback(getClass().getSimpleName(),
+                            currentPlan.getStrategy(), nextPlan.getStrategy(), failureKind);
+                    currentPlan = nextPlan;
+                }
+            }
+        }
+
+        // For commands with more than one output; doFFMpegTask() only adds the speed settings for
+        // the last one.
+        void addEncoderSpeedSettings(@NonNull List<String> outputCommands, @NonNull File output) {
+            EncoderSpeedSettings.applyToOutput(encodingSpeedProfile, outputCommands, output.getAbsolutePath());
+        }
+
+        @WorkerThread
+        void setPass(int passIndex, int passCount) {
+            ffMpegTask.setPass(passIndex, passCount);
+        }
+
+        @WorkerThread
+        @NonNull
+        MediaInfo probe(@NonNull File file) throws InterruptedException, JSONException {
+            checkCancelState();
+            return mediaProbe.probe(file);
+        }
+
+        // Returns the metadata for the source, from the persistent cache if we've seen this file
+        // before. Otherwise, the staged copy is probed and the result is remembered.
+        @WorkerThread
+        @NonNull
+        MediaMetadata loadMetadata(@NonNull Uri sourceUri, @NonNull File stagedInput) throws InterruptedException, JSONException {
+            final long size = stagedInput.length();
+            final long lastModifiedDate = MediaItem.queryLastModifiedDate(context, sourceUri);
+            final MediaMetadata cachedMetadata = mediaMetadataCache.get(sourceUri, size, lastModifiedDate);
+            if (cachedMetadata != null && cachedMetadata.isProbed) {
+                Logger.v("Using cached metadata for " + sourceUri + ": " + cachedMetadata);
+                return cachedMetadata;
+            }
+
+            // Only start FFPROBE for the formats that we can't read the headers of ourselves.
+            MediaMetadata metadata = ContainerHeaderParser.parse(stagedInput);
+            if (metadata == null) {
+                metadata = toMediaMetadata(probe(stagedInput));
+            }
+            mediaMetadataCache.put(sourceUri, size, lastModifiedDate, metadata);
+            return metadata;
+        }
+
+        // Decodes the audio of the input to a pipe and meters it as it arrives, rather than running
+        // it through FFMPEG's loudnorm and scraping the measurement from the log.
+        @WorkerThread
+        @NonNull
+        LoudnessHistogram measureLoudness(@NonNull File input, @NonNull MediaMetadata metadata) throws IOException, InterruptedException {
+            // The meter works in 100 ms hops, so odd rates are resampled.
+            final int sampleRate = metadata.sampleRate > 0 && metadata.sampleRate % 10 == 0 ? metadata.sampleRate : 48000;
+            // Wider layouts are downmixed; the meter only knows how to weight up to 5.1.
+            final int channels = metadata.channels >= 1 && metadata.channels <= 6 ? metadata.channels : 2;
+            // A stalled run has already fed part of the input to its meter, so a retry starts over
+            // with a new pipe and meter rather than running the same command again.
+            for (int retry = 0; ; ++retry) {
+                try {
+                    return measureLoudness(input, sampleRate, channels, metadata.durationMs);
+                } catch (FFMpegStalledException e) {
+                    if (!e.wasStopped() || retry >= FFMpegTaskWrapper.MAX_STALL_RETRIES) {
+                        throw e;
+                    }
+                    Logger.w("Measuring the loudness of " + input + " again", e);
+                }
+            }
+        }
+
+        // Long inputs are split into segments that are decoded and metered at the same time. Each
+        // meter starts a few seconds before its segment, so that the blocks that straddle a
+        // boundary come out the same as in a single pass, and the histograms are merged at the end.
+        @WorkerThread
+        @NonNull
+        private LoudnessHistogram measureLoudness(@NonNull File input, int sampleRate, int channels,
+                                                  long durationMs) throws IOException, InterruptedException {
+            final int segmentCount = durationMs == MediaMetadata.UNKNOWN || durationMs < MIN_SEGMENTED_LOUDNESS_DURATION_MS
+                    ? 1 : (int) Math.min(Runtime.getRuntime().availableProcessors(), durationMs / MIN_LOUDNESS_SEGMENT_MS);
+            // The boundaries have to be at a 100 ms hop, in both the time and the sample count.
+            final long segmentMs = segmentCount > 1 ? durationMs / segmentCount / 100 * 100 : 0;
+            final long leadInMs = ((long) Math.ceil(LoudnessMeter.SEGMENT_LEAD_IN_SECONDS * 10)) * 100;
+
+            final List<LoudnessMeter> meters = new ArrayList<>();
+            final List<List<String>> commandLists = new ArrayList<>();
+            final List<String> pipes = new ArrayList<>();
+            final List<PcmPipeReader> readers = new ArrayList<>();
+            try {
+                for (int i = 0; i < segmentCount; i++) {
+                    final long measureFromMs = i * segmentMs;
+                    final long startMs = Math.max(0, measureFromMs - leadInMs);
+                    final long endMs = i == segmentCount - 1 ? END_OF_INPUT : (i + 1) * segmentMs;
+                    final LoudnessMeter meter = new LoudnessMeter(sampleRate, channels,
+                            startMs * sampleRate / 1000, measureFromMs * sampleRate / 1000);
+                    meters.add(meter);
+
+                    final String pipe = Config.registerNewFFmpegPipe(context);
+                    pipes.add(pipe);
+                    final List<String> commands = new ArrayList<>();
+                    addSegmentInputCommands(input, startMs, endMs, commands);
+                    addPcmOutputCommands(sampleRate, channels, pipe, commands);
+                    commandLists.add(commands);
+                }
+
+                for (int i = 0; i < segmentCount; i++) {
+                    final LoudnessMeter meter = meters.get(i);
+                    readers.add(PcmPipeReader.start(pipes.get(i), channels, new PcmPipeReader.SampleHandler() {
+                        @Override
+                        public void onSamples(@NonNull float[] samples, int frameCount) {
+                            meter.process(samples, 0, frameCount);
+                        }
+                    }));
+                }
+                try {
+                    if (segmentCount == 1) {
+                        doFFMpegTaskWithoutStallRetry(commandLists.get(0));
+                    } else {
+                        doFFMpegTasksInParallelWithoutStallRetry(commandLists);
+                    }
+                } finally {
+                    for (PcmPipeReader reader : readers) {
+                        reader.close();
+                    }
+                }
+                for (PcmPipeReader reader : readers) {
+                    reader.throwIfFailed();
+                }
+            } finally {
+                for (String pipe : pipes) {
+                    Config.closeFFmpegPipe(pipe);
+                }
+            }
+
+            final LoudnessHistogram histogram = new LoudnessHistogram();
+            for (LoudnessMeter meter : meters) {
+                histogram.add(meter.getHistogram());
+            }
+            Logger.d("Measured loudness of " + input + " in " + segmentCount + " segment(s): " + histogram);
+            return histogram;
+        }
+
+        private static void addPcmOutputCommands(int sampleRate, int channels, @NonNull String pipe,
+                                                 @NonNull List<String> commands) {
+            commands.add("-map");
+            commands.add("0:a:0");
+            commands.add("-ac");
+            commands.add(String.valueOf(channels));
+            commands.add("-ar");
+            commands.add(String.valueOf(sampleRate));
+            commands.add("-c:a");
+            commands.add("pcm_f32le");
+            commands.add("-f");
+            commands.add("f32le");
+            commands.add(pipe);
+        }
+
+        @WorkerThread
+        @NonNull
+        LoudnormMeasurementCache getLoudnormMeasurementCache() {
+            return loudnormMeasurementCache;
+        }
+
+        @WorkerThread
+        @NonNull
+        ResultCache getResultCache() {
+            return resultCache;
+        }
+
+        // Returns null if the input can't be fingerprinted without staging it, in which case the
+        // result isn't cached.
+        @WorkerThread
+        @Nullable
+        String getResultCacheKey(@NonNull Uri inputUri, @NonNull EditAction editAction,
+                                 @NonNull String parameters, @NonNull String extension) {
+            try {
+                final String fingerprint = ContentFingerprint.of(context, inputUri);
+                if (fingerprint == null) {
+                    Logger.d("Can't fingerprint " + inputUri + " in place, so won't use the result cache");
+                    return null;
+                }
+                // The speed profile changes the encoder settings, so it's part of the parameters.
+                return ResultCache.toKey(fingerprint, editAction,
+                        parameters + ";speed=" + encodingSpeedProfile, extension);
+            } catch (IOException e) {
+                Logger.w("Couldn't fingerprint " + inputUri, e);
+                return null;
+            }
+        }
+
+        @WorkerThread
+        @NonNull
+        long[] probeKeyframesUs(@NonNull File file, long fromUs, long toUs) throws InterruptedException {
+            checkCancelState();
+            return mediaProbe.keyframesUs(file, fromUs, toUs);
         }
 
         void checkCancelState() throws RequestCancelledException {
@@ -159,13 +474,13 @@ class FFMpegActions {
             return cacheDir;
         }
 
-        void copyInputToTemp(@NonNull Uri inputUri, @NonNull File output) throws IOException {
+        void copyInputToTemp(@NonNull Uri inputUri, @NonNull File output) throws IOException, InterruptedException {
             Logger.d("Copying " + inputUri + " to " + output);
             // We have to copy the input so that FFMPEG can process it.
             try (InputStream is = new BufferedInputStream(
                     Objects.requireNonNull(context.getContentResolver().openInputStream(inputUri)))) {
                 try (OutputStream os = new BufferedOutputStream(new FileOutputStream(output))) {
-                    copyStreams(is, os);
+                    copyStreamsUnlessCancelled(is, os);
                 }
             }
         }
@@ -217,6 +532,20 @@ class FFMpegActions {
             UriUtils.deleteResource(context, uri);
         }
 
+        // Inputs can be large, so a cancelled request stops partway through instead of finishing
+        // the copy first.
+        private void copyStreamsUnlessCancelled(@NonNull InputStream is, @NonNull OutputStream os) throws IOException, InterruptedException {
+            final byte[] buffer = new byte[8192];
+            int len;
+            long totalWritten = 0;
+            while ((len = is.read(buffer)) > 0) {
+                checkCancelState();
+                os.write(buffer, 0, len);
+                totalWritten += len;
+            }
+            Logger.d("Wrote " + totalWritten + " bytes");
+        }
+
         private static void copyStreams(@NonNull InputStream is, @NonNull OutputStream os) throws IOException {
             final byte[] buffer = new byte[8192];
             int len;
@@ -243,6 +572,57 @@ class FFMpegActions {
             this.inputFileName = inputFileName;
         }
 
+        // Describes everything besides the input and the target format that the output depends
+        // on, for the result cache. Actions that return null always run.
+        @Nullable
+        String getResultCacheParameters() {
+            return null;
+        }
+
+        @Override
+        void executeOrReuseCachedResult(@NonNull EditAction editAction) throws IOException, InterruptedException, JSONException {
+            final String parameters = getResultCacheParameters();
+            final String key = parameters == null ? null
+                    : getResultCacheKey(inputUri, editAction, parameters, getCanonicalExtension(targetFileName));
+            if (key != null) {
+                final File cachedOutput = getResultCache().get(key);
+                if (cachedOutput != null) {
+                    Logger.d("Reusing cached output " + cachedOutput + " for " + this);
+                    copyTempToOutputAndUpdateTargetUri(cachedOutput);
+                    return;
+                }
+            }
+
+            execute();
+
+            if (key != null) {
+                checkCancelState();
+                getResultCache().put(key, targetUri);
+            }
+        }
+
+        @NonNull
+        static String describeBitrate(@Nullable BitrateWithValue bitrate) {
+            return bitrate == null ? "default" : bitrate.type + ":" + bitrate.value;
+        }
+
+        // Works out which streams of the staged input can be copied straight into the target.
+        @WorkerThread
+        @NonNull
+        StreamCopyPlanner.Plan planStreams(@NonNull File tempInput, boolean forceAudioReencode) throws InterruptedException, JSONException {
+            return planStreams(tempInput, targetFileName, forceAudioReencode);
+        }
+
+        @WorkerThread
+        @NonNull
+        StreamCopyPlanner.Plan planStreams(@NonNull File tempInput, @NonNull String targetFileName,
+                                           boolean forceAudioReencode) throws InterruptedException, JSONException {
+            final StreamCopyPlanner.Plan plan = StreamCopyPlanner.plan(loadMetadata(inputUri, tempInput),
+                    getCanonicalExtension(targetFileName), forceAudioReencode);
+            Logger.d("Stream plan for " + inputFileName + " to " + targetFileName + ": " + plan);
+            return plan;
+        }
+
         @NonNull
         @Override
         public String toString() {
@@ -278,20 +658,32 @@ class FFMpegActions {
 
         void doStandardFFMpegTaskAndUpdateTargetUri(@NonNull Uri inputUri, @NonNull String inputFileName,
                                                     @NonNull List<String> taskCommands) throws IOException, InterruptedException {
+            doStandardFFMpegTaskAndUpdateTargetUri(inputUri, inputFileName, 0, END_OF_INPUT, taskCommands);
+        }
+
+        void doStandardFFMpegTaskAndUpdateTargetUri(@NonNull Uri inputUri, @NonNull String inputFileName,
+                                                    long segmentStartMs, long segmentEndMs,
+                                                    @NonNull List<String> taskCommands) throws IOException, InterruptedException {
             checkCancelState();
 
             // The setup is always the same. First, we process the input:
-            final List<String> commands = new ArrayList<>();
             final File cacheDir = setupCacheDir();
             final File tempInput = createTempFileForInput(cacheDir, inputFileName);
             final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
 
-            addInputCommands(tempInput, commands);
+            copyInputToTemp(inputUri, tempInput);
+            doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(tempInput, tempOutput,
+                    segmentStartMs, segmentEndMs, taskCommands);
+        }
+
+        void doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(@NonNull File tempInput, @NonNull File tempOutput,
+                                                               long segmentStartMs, long segmentEndMs,
+                                                               @NonNull List<String> taskCommands) throws IOException, InterruptedException {
+            final List<String> commands = new ArrayList<>();
+            addSegmentInputCommands(tempInput, segmentStartMs, segmentEndMs, commands);
             commands.addAll(taskCommands);
             addOutputCommands(tempOutput, commands);
 
-            copyInputToTemp(inputUri, tempInput);
-
             doFFMpegTask(commands);
             checkCancelState();
             targetUri = copyTempToOutputAndUpdateExtensionIfNecessary(tempOutput, targetUri, getCanonicalExtension(targetFileName));
@@ -327,74 +719,98 @@ class FFMpegActions {
             this.optionalSelectedBitrate = selectedBitrate;
         }
 
+        @Nullable
         @Override
-        void execute() throws IOException, InterruptedException {
-            final List<String> taskCommands = new ArrayList<>();
-            final String inputExtension = getCanonicalExtension(inputFileName);
-            final boolean sourceIsAac = !outputFormatType.isVideoOutputType() && isFileTypeForAacAudio(inputExtension);
+        String getResultCacheParameters() {
+            return "type=" + outputFormatType + ";bitrate=" + describeBitrate(optionalSelectedBitrate);
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
+            copyInputToTemp(inputUri, tempInput);
 
-            if (!outputFormatType.isVideoOutputType()) {
-                // Strip any input video.
-                taskCommands.add("-vn");
+            if (optionalSelectedBitrate != null && optionalSelectedBitrate.type == TARGET_SIZE) {
+                convertToTargetSize(cacheDir, tempInput, tempOutput, optionalSelectedBitrate.value);
+                return;
             }
 
-            // It appears that FFMPEG will automatically select the container type based on the
-            // output file extension.
-            switch (outputFormatType) {
-                // Audio formats
-                case MP3:
-                    if (optionalSelectedBitrate != null) {
-                        switch (optionalSelectedBitrate.type) {
-                            case ABR:
-                                taskCommands.add("-abr");
-                                taskCommands.add("1");
-                            case CBR:
-                                taskCommands.add("-b:a");
-                                taskCommands.add(optionalSelectedBitrate.value + "k");
-                                break;
-                            case VBR:
-                                taskCommands.add("-qscale:a");
-                                taskCommands.add(String.valueOf(optionalSelectedBitrate.value));
-                        }
-                    }
-                    break;
-                case M4A:
-                case AAC:
-                    if (optionalSelectedBitrate != null
-                            && optionalSelectedBitrate.type == CBR) {
-                        taskCommands.add("-b:a");
-                        taskCommands.add(optionalSelectedBitrate.value + "k");
-                    } else if (sourceIsAac) {
-                        Logger.d("Copying audio streams for AAC");
-                        // Just copy over the stream.
-                        taskCommands.add("-codec:a");
-                        taskCommands.add("copy");
+            // A bitrate can only be honoured by encoding again.
+            runWithFallbacks(planStreams(tempInput, optionalSelectedBitrate != null), true, new PlanAttempt() {
+                @Override
+                public void run(@NonNull StreamCopyPlanner.Plan plan) throws IOException, InterruptedException, JSONException {
+                    final List<String> taskCommands = new ArrayList<>();
+                    addConversionCommands(outputFormatType, optionalSelectedBitrate, plan, taskCommands);
+
+                    if (SegmentedAudioConversion.tryConvert(ConversionAction.this, cacheDir, tempInput, tempOutput,
+                            outputFormatType, loadMetadata(inputUri, tempInput), plan, taskCommands)) {
+                        checkCancelState();
+                        copyTempToOutputAndUpdateTargetUri(tempOutput);
+                        return;
                     }
-                    break;
-                case WAVE_PCM:
-                    taskCommands.add("-codec:a");
-                    taskCommands.add("pcm_s16le");
-                    // Defaults for the rest
-                    break;
-                // For all of the other audio formats, we just use defaults.
 
-                // Video formats
-                case MKV:
-                    // For all of the other formats, just do stream copy.
-                    taskCommands.add("-c");
-                    taskCommands.add("copy");
-                    break;
+                    doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(tempInput, tempOutput, 0, END_OF_INPUT, taskCommands);
+                }
+            });
+        }
 
-                case MOV:
-                    if (inputExtension.equals(FILETYPE_MP4)) {
-                        // Stream-copy
-                        taskCommands.add("-c");
-                        taskCommands.add("copy");
-                    }
-                    break;
+        // Video is encoded in two passes, so that the encoder can spread the bits over the whole
+        // input. If the output still comes out over the target, it's encoded once more with the
+        // budget scaled down by how far it was off.
+        private void convertToTargetSize(@NonNull File cacheDir, @NonNull File tempInput, @NonNull File tempOutput,
+                                         int megabytes) throws IOException, InterruptedException, JSONException {
+            final MediaMetadata metadata = loadMetadata(inputUri, tempInput);
+            if (metadata.durationMs == MediaMetadata.UNKNOWN || metadata.durationMs <= 0) {
+                throw new IOException("Can't fit " + inputFileName + " in a target size without knowing its duration");
+            }
+
+            final boolean hasVideo = outputFormatType.isVideoOutputType() && !metadata.videoCodec.isEmpty();
+            final boolean hasAudio = !metadata.audioCodec.isEmpty();
+            final long targetBytes = TargetSizeEncoding.targetBytes(megabytes);
+            final File passLogPrefix = new File(cacheDir, "target-size-pass");
+            TargetSizeEncoding.Budget budget = TargetSizeEncoding.forTarget(outputFormatType, targetBytes,
+                    metadata.durationMs, hasVideo, hasAudio);
+            Logger.d("Encoding " + inputFileName + " to fit in " + targetBytes + " bytes with " + budget);
+
+            if (hasVideo) {
+                Logger.d("Target size: analysis pass");
+                setPass(0, 2);
+                final List<String> commands = new ArrayList<>();
+                addInputCommands(tempInput, commands);
+                addTargetSizeCommands(outputFormatType, budget, true, hasAudio, 1, passLogPrefix, commands);
+                // Only the statistics of the first pass are needed.
+                commands.add("-f");
+                commands.add("null");
+                commands.add("-");
+                doFFMpegTask(commands);
+                setPass(1, 2);
+            }
+
+            final int pass = hasVideo ? 2 : 0;
+            encodeToTargetSize(tempInput, tempOutput, budget, hasVideo, hasAudio, pass, passLogPrefix);
+            if (tempOutput.length() > targetBytes) {
+                budget = TargetSizeEncoding.rescale(outputFormatType, budget, targetBytes, tempOutput.length(), hasVideo, hasAudio);
+                Logger.d("Output came out at " + tempOutput.length() + " bytes; encoding again with " + budget);
+                encodeToTargetSize(tempInput, tempOutput, budget, hasVideo, hasAudio, pass, passLogPrefix);
+                if (tempOutput.length() > targetBytes) {
+                    Logger.w("Output is still " + tempOutput.length() + " bytes, over the target of " + targetBytes);
+                }
             }
 
-            doStandardFFMpegTaskAndUpdateTargetUri(inputUri, inputFileName, taskCommands);
+            checkCancelState();
+            copyTempToOutputAndUpdateTargetUri(tempOutput);
+        }
+
+        private void encodeToTargetSize(@NonNull File tempInput, @NonNull File tempOutput,
+                                        @NonNull TargetSizeEncoding.Budget budget, boolean hasVideo, boolean hasAudio,
+                                        int pass, @NonNull File passLogPrefix) throws InterruptedException {
+            final List<String> commands = new ArrayList<>();
+            addInputCommands(tempInput, commands);
+            addTargetSizeCommands(outputFormatType, budget, hasVideo, hasAudio, pass, passLogPrefix, commands);
+            addOutputCommands(tempOutput, commands);
+            doFFMpegTask(commands);
         }
 
         @NonNull
@@ -406,6 +822,98 @@ class FFMpegActions {
         }
     }
 
+    // Converts the input to several outputs at once. FFMPEG decodes the input a single time, and
+    // feeds each output's encoders from that.
+    static class MultiConversionAction extends ActionWithSingleInput {
+        @NonNull
+        final ConversionTarget[] conversionTargets;
+        // The targets after the first, which is kept in targetUri.
+        @NonNull
+        final Uri[] additionalTargetUris;
+
+        MultiConversionAction(@NonNull Context context,
+                              @NonNull Uri inputUri, @NonNull String inputFileName,
+                              @NonNull ConversionTarget[] conversionTargets) {
+            super(context, inputUri, inputFileName, conversionTargets[0].targetUri, conversionTargets[0].targetFileName);
+            this.conversionTargets = conversionTargets;
+            this.additionalTargetUris = new Uri[conversionTargets.length - 1];
+            for (int i = 1; i < conversionTargets.length; i++) {
+                additionalTargetUris[i - 1] = conversionTargets[i].targetUri;
+            }
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            copyInputToTemp(inputUri, tempInput);
+
+            final List<String> commands = new ArrayList<>();
+            addInputCommands(tempInput, commands);
+            final File[] tempOutputs = new File[conversionTargets.length];
+            for (int i = 0; i < conversionTargets.length; i++) {
+                final ConversionTarget target = conversionTargets[i];
+                tempOutputs[i] = createTempFileForOutput(cacheDir, target.targetFileName);
+
+                final List<String> outputCommands = new ArrayList<>();
+                if (target.selectedBitrate != null && target.selectedBitrate.type == TARGET_SIZE) {
+                    // All of the outputs share the decode, so these only get a single pass, and
+                    // land less precisely than a conversion to just the one target.
+                    final MediaMetadata metadata = loadMetadata(inputUri, tempInput);
+                    if (metadata.durationMs == MediaMetadata.UNKNOWN || metadata.durationMs <= 0) {
+                        throw new IOException("Can't fit " + inputFileName + " in a target size without knowing its duration");
+                    }
+                    final boolean hasVideo = target.outputFormatType.isVideoOutputType() && !metadata.videoCodec.isEmpty();
+                    final boolean hasAudio = !metadata.audioCodec.isEmpty();
+                    final TargetSizeEncoding.Budget budget = TargetSizeEncoding.forTarget(target.outputFormatType,
+                            TargetSizeEncoding.targetBytes(target.selectedBitrate.value),
+                            metadata.durationMs, hasVideo, hasAudio);
+                    addTargetSizeCommands(target.outputFormatType, budget, hasVideo, hasAudio, 0, cacheDir, outputCommands);
+                } else {
+                    // Each output gets its own plan, since what can be copied depends on the container.
+                    final StreamCopyPlanner.Plan plan = planStreams(tempInput, target.targetFileName, target.selectedBitrate != null);
+                    addConversionCommands(target.outputFormatType, target.selectedBitrate, plan, outputCommands);
+                }
+                addEncoderSpeedSettings(outputCommands, tempOutputs[i]);
+                commands.addAll(outputCommands);
+                addOutputCommands(tempOutputs[i], commands);
+            }
+
+            doFFMpegTask(commands);
+            checkCancelState();
+
+            copyTempToOutputAndUpdateTargetUri(tempOutputs[0]);
+            for (int i = 1; i < conversionTargets.length; i++) {
+                additionalTargetUris[i - 1] = copyTempToOutputAndUpdateExtensionIfNecessary(tempOutputs[i],
+                        additionalTargetUris[i - 1], getCanonicalExtension(conversionTargets[i].targetFileName));
+            }
+        }
+
+        @NonNull
+        @Override
+        Uri[] getTargets() {
+            final List<Uri> targets = new ArrayList<>(Arrays.asList(super.getTargets()));
+            targets.addAll(Arrays.asList(additionalTargetUris));
+            return targets.toArray(new Uri[0]);
+        }
+
+        @Override
+        void deleteTargets() {
+            super.deleteTargets();
+            for (Uri additionalTargetUri : additionalTargetUris) {
+                deleteDocument(additionalTargetUri);
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "MultiConversionAction{" +
+                    "conversionTargets=" + Arrays.toString(conversionTargets) +
+                    "} " + super.toString();
+        }
+    }
+
     static class MakeVideoAction extends ActionWithSingleInput {
         @Nullable
         final Uri customCoverImageUri;
@@ -422,10 +930,8 @@ class FFMpegActions {
         }
 
         @Override
-        void execute() throws IOException, InterruptedException {
-            final String extension = getCanonicalExtension(inputFileName);
+        void execute() throws IOException, InterruptedException, JSONException {
             final File cacheDir = setupCacheDir();
-            final List<String> commands = new ArrayList<>();
 
             final File tempImageInput = createTempFileWithName(cacheDir, "easy-audio-converter.png");
             @Nullable final File tempCustomCoverInput;
@@ -441,73 +947,203 @@ class FFMpegActions {
             }
 
             final File tempAudioInput = createTempFileForInput(cacheDir, inputFileName);
+            final File tempCoverFrame = createTempFileWithName(cacheDir, "cover-frame.png");
             final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
 
-            commands.add("-loop");
-            commands.add("1");
-            addInputCommands(tempImageInput, commands);
+            copyAssetToFile("easy-audio-converter.png", tempImageInput);
+
             if (customCoverImageUri != null) {
-                commands.add("-loop");
-                commands.add("1");
-                addInputCommands(tempCustomCoverInput, commands);
+                copyInputToTemp(customCoverImageUri, tempCustomCoverInput);
             }
-            addInputCommands(tempAudioInput, commands);
 
-            if (customCoverImageUri != null) {
-                commands.add("-filter_complex");
-                commands.add("[1:v]scale='min(1920,iw)':'min(1080,ih)':force_original_aspect_ratio=decrease,pad='min(1920,iw)':'min(1080,ih)':(ow-iw)/2:(oh-ih)/2[video-in];\n"
-                        + "[0:v]colorchannelmixer=aa=0.7[logo-in];\n"
-                        + "[logo-in][video-in]scale2ref=w=oh*mdar:h=ih/4[logo-out][video-out];\n"
-                        + "[video-out][logo-out]overlay=x=main_w-overlay_w-10:y=main_h-overlay_h-10[final-video-out]");
-                commands.add("-map");
-                commands.add("[final-video-out]:v");
+            // The cover never changes, so composite it once up front instead of running the
+            // filters on every frame of the video.
+            renderCoverFrame(this, tempImageInput, tempCustomCoverInput, tempCoverFrame);
 
-                commands.add("-map");
-                commands.add("2:a");
-            } else {
-                // Although this command shouldn't be used with video input, if it is, ensure that our
-                // video is used.
-                commands.add("-map");
-                commands.add("0:v");
+            copyInputToTemp(inputUri, tempAudioInput);
 
-                commands.add("-map");
-                commands.add("1:a");
-            }
+            // Put the audio first so that its duration is the one used for progress.
+            final List<String> commands = new ArrayList<>();
+            addInputCommands(tempAudioInput, commands);
+            addStillImageInputCommands(tempCoverFrame, commands);
+
+            // Although this command shouldn't be used with video input, if it is, ensure that our
+            // video is used.
+            commands.add("-map");
+            commands.add("1:v");
+
+            commands.add("-map");
+            commands.add("0:a");
 
             commands.add("-acodec");
 
-            if (isFileTypeForAacAudio(extension)) {
+            if (planStreams(tempAudioInput, false).canCopyAudio()) {
                 commands.add("copy");
             } else {
-                // If the input is not AAC, then we should convert the audio to AAC first.
+                // If the input can't go into the output as it is, then we should convert the audio
+                // to AAC first.
                 commands.add(FILETYPE_AAC);
             }
 
-            commands.add("-vcodec");
-            commands.add("libx264");
-            commands.add("-tune");
-            commands.add("stillimage");
-            commands.add("-pix_fmt");
-            commands.add("yuv420p");
-            commands.add("-shortest");
+            addStillImageVideoEncoderCommands(commands);
+            addAudioLengthOutputCommands(loadMetadata(inputUri, tempAudioInput), commands);
 
             addOutputCommands(tempOutput, commands);
+            doFFMpegTask(commands);
+            copyTempToOutputAndUpdateTargetUri(tempOutput);
+        }
 
-            copyAssetToFile("easy-audio-converter.png", tempImageInput);
+        @NonNull
+        @Override
+        public String toString() {
+            return "MakeVideoAction{} " + super.toString();
+        }
+    }
+
+    // Makes a video for each of several audio files, all sharing the same cover. The cover is
+    // encoded only once, into a short segment that's exactly one closed GOP long. Each episode's
+    // video track is then made by looping that segment with stream copy until the audio ends, so
+    // the cost of video encoding is paid once per batch rather than once per episode.
+    static class BatchMakeVideoAction extends FFMpegAction {
+        @NonNull
+        private final MediaItem[] episodes;
+        @NonNull
+        private final Uri[] targetUris;
+        @NonNull
+        private final String[] targetFileNames;
+        @Nullable
+        private final Uri customCoverImageUri;
+        @Nullable
+        private final String customCoverImageFileName;
 
+        BatchMakeVideoAction(@NonNull Context context,
+                             @NonNull MediaItem[] episodes,
+                             @NonNull Uri[] targetUris, @NonNull String[] targetFileNames,
+                             @Nullable Uri customCoverImageUri, @Nullable String customCoverImageFileName) {
+            super(context);
+            if (episodes.length != targetUris.length || episodes.length != targetFileNames.length) {
+                throw new IllegalArgumentException("Need exactly one target for each episode");
+            }
+            this.episodes = episodes;
+            this.targetUris = targetUris;
+            this.targetFileNames = targetFileNames;
+            this.customCoverImageUri = customCoverImageUri;
+            this.customCoverImageFileName = customCoverImageFileName;
+        }
+
+        @NonNull
+        @Override
+        Uri[] getTargets() {
+            return targetUris.clone();
+        }
+
+        @Override
+        void deleteTargets() {
+            for (Uri targetUri : targetUris) {
+                deleteDocument(targetUri);
+            }
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+
+            final File tempImageInput = createTempFileWithName(cacheDir, "easy-audio-converter.png");
+            @Nullable final File tempCustomCoverInput;
             if (customCoverImageUri != null) {
+                tempCustomCoverInput = createTempFileForInput(cacheDir,
+                        customCoverImageFileName != null ? customCoverImageFileName : "custom-cover-image");
                 copyInputToTemp(customCoverImageUri, tempCustomCoverInput);
+            } else {
+                tempCustomCoverInput = null;
             }
+            copyAssetToFile("easy-audio-converter.png", tempImageInput);
 
-            copyInputToTemp(inputUri, tempAudioInput);
+            final File tempCoverFrame = createTempFileWithName(cacheDir, "cover-frame.png");
+            renderCoverFrame(this, tempImageInput, tempCustomCoverInput, tempCoverFrame);
+
+            Logger.d("Batch making videos: encoding the cover segment");
+            final File tempCoverSegment = createTempFileWithName(cacheDir, "cover-segment." + FILETYPE_MP4);
+            encodeCoverSegment(tempCoverFrame, tempCoverSegment);
+
+            for (int i = 0; i < episodes.length; ++i) {
+                checkCancelState();
+                Logger.d("Batch making videos: muxing episode " + (i + 1) + " of " + episodes.length);
+                final MediaItem episode = episodes[i];
+                final File tempAudioInput = createTempFileForInput(cacheDir, episode.getFilename());
+                final File tempOutput = createTempFileForOutput(cacheDir, targetFileNames[i]);
+
+                copyInputToTemp(episode.getUri(), tempAudioInput);
+                final MediaMetadata audioMetadata = loadMetadata(episode.getUri(), tempAudioInput);
+                final StreamCopyPlanner.Plan plan = StreamCopyPlanner.plan(
+                        audioMetadata, getCanonicalExtension(targetFileNames[i]));
+                muxEpisode(tempAudioInput, audioMetadata, plan, tempCoverSegment, tempOutput);
+                targetUris[i] = copyTempToOutputAndUpdateExtensionIfNecessary(tempOutput, targetUris[i],
+                        getCanonicalExtension(targetFileNames[i]));
+
+                // Episodes can be large, so don't let them pile up in the cache.
+                if (!tempAudioInput.delete()) {
+                    Logger.w("Couldn't delete temporary input " + tempAudioInput + " for episode " + episode);
+                }
+                if (!tempOutput.delete()) {
+                    Logger.w("Couldn't delete temporary output " + tempOutput + " for episode " + episode);
+                }
+            }
+        }
+
+        private void encodeCoverSegment(@NonNull File coverFrame, @NonNull File output) throws InterruptedException {
+            final List<String> commands = new ArrayList<>();
+            addStillImageInputCommands(coverFrame, commands);
+            addStillImageVideoEncoderCommands(commands);
+            // One keyframe interval long, so that the segment is a single closed GOP that can be
+            // joined to itself.
+            commands.add("-t");
+            commands.add(String.valueOf(STILL_IMAGE_KEYFRAME_INTERVAL_SECONDS));
+            addOutputCommands(output, commands);
+            doFFMpegTask(commands);
+        }
+
+        private void muxEpisode(@NonNull File audioInput, @NonNull MediaMetadata audioMetadata,
+                                @NonNull StreamCopyPlanner.Plan audioPlan,
+                                @NonNull File coverSegment, @NonNull File output) throws InterruptedException {
+            // Put the audio first so that its duration is the one used for progress.
+            final List<String> commands = new ArrayList<>();
+            addInputCommands(audioInput, commands);
+            commands.add("-stream_loop");
+            commands.add("-1");
+            addInputCommands(coverSegment, commands);
+
+            commands.add("-map");
+            commands.add("1:v");
+            commands.add("-map");
+            commands.add("0:a");
+
+            commands.add("-vcodec");
+            commands.add("copy");
+            commands.add("-acodec");
+            if (audioPlan.canCopyAudio()) {
+                commands.add("copy");
+            } else {
+                // If the input can't go into the output as it is, then we should convert the audio
+                // to AAC first.
+                commands.add(FILETYPE_AAC);
+            }
+            // The cover segment loops forever, so this is what ends the video.
+            addAudioLengthOutputCommands(audioMetadata, commands);
+
+            addOutputCommands(output, commands);
             doFFMpegTask(commands);
-            copyTempToOutputAndUpdateTargetUri(tempOutput);
         }
 
         @NonNull
         @Override
         public String toString() {
-            return "MakeVideoAction{} " + super.toString();
+            return "BatchMakeVideoAction{" +
+                    "episodes=" + Arrays.toString(episodes) +
+                    ", targetUris=" + Arrays.toString(targetUris) +
+                    ", targetFileNames=" + Arrays.toString(targetFileNames) +
+                    ", customCoverImageUri=" + customCoverImageUri +
+                    "} " + super.toString();
         }
     }
 
@@ -523,37 +1159,36 @@ class FFMpegActions {
             this.outputFormatType = outputFormatType;
         }
 
+        @Nullable
         @Override
-        void execute() throws IOException, InterruptedException {
+        String getResultCacheParameters() {
+            return "type=" + outputFormatType;
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
+            copyInputToTemp(inputUri, tempInput);
+
+            final StreamCopyPlanner.Plan plan = planStreams(tempInput, false);
             final List<String> taskCommands = new ArrayList<>();
-            final String inputExtension = getCanonicalExtension(inputFileName);
-            final boolean sourceIsMP4 = outputFormatType.isVideoOutputType() && isFileTypeForMp4Video(inputExtension);
 
             // Strip any input video.
             taskCommands.add("-vn");
+            // Copy the audio track over whenever the output container can hold it.
+            plan.addAudioCodecCommands(taskCommands);
 
             // It appears that FFMPEG will automatically select the container type based on the
             // output file extension.
-            switch (outputFormatType) {
-                // Audio formats
-                case M4A:
-                case AAC:
-                    if (sourceIsMP4) {
-                        Logger.d("Copying audio streams for AAC");
-                        // Just copy over the stream.
-                        taskCommands.add("-codec:a");
-                        taskCommands.add("copy");
-                    }
-                    break;
-                case WAVE_PCM:
-                    taskCommands.add("-codec:a");
-                    taskCommands.add("pcm_s16le");
-                    // Defaults for the rest
-                    break;
-                // For all of the other audio formats, we just use defaults.
+            if (outputFormatType == OutputFormatType.WAVE_PCM && !plan.canCopyAudio()) {
+                taskCommands.add("-codec:a");
+                taskCommands.add("pcm_s16le");
             }
+            // For all of the other audio formats, we just use defaults.
 
-            doStandardFFMpegTaskAndUpdateTargetUri(inputUri, inputFileName, taskCommands);
+            doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(tempInput, tempOutput, 0, END_OF_INPUT, taskCommands);
         }
 
         @NonNull
@@ -578,32 +1213,41 @@ class FFMpegActions {
             this.trimAfterMs = trimAfterMs;
         }
 
+        @Nullable
         @Override
-        void execute() throws IOException, InterruptedException {
-            final List<String> commands = new ArrayList<>();
-
-            final String inputExtension = getCanonicalExtension(inputFileName);
-            final boolean trimWithoutReencode = shouldBeAbleToTrimWithoutReencode(inputExtension);
+        String getResultCacheParameters() {
+            return "before=" + trimBeforeMs + ";after=" + trimAfterMs;
+        }
 
-            if (trimWithoutReencode) {
-                // Copy audio data
-                commands.add("-codec:a");
-                commands.add("copy");
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
+            copyInputToTemp(inputUri, tempInput);
 
-                // Copy video data
-                commands.add("-codec:v");
-                commands.add("copy");
+            final StreamCopyPlanner.Plan plan = planStreams(tempInput, false);
+            if (plan.video != StreamCopyPlanner.StreamHandling.NONE
+                    && shouldTrySmartVideoCut(getCanonicalExtension(targetFileName))
+                    && SmartVideoCut.tryCut(this, cacheDir, tempInput, tempOutput,
+                    Collections.singletonList(new KeptRange(trimBeforeMs, trimAfterMs + 1)))) {
+                copyTempToOutputAndUpdateTargetUri(tempOutput);
+                return;
             }
 
-            // Start time
-            commands.add("-ss");
-            commands.add(convertMsToFFMpegTime(trimBeforeMs));
-            // End time (via copy duration)
-            final long copyDurationMs = trimAfterMs - trimBeforeMs + 1;
-            commands.add("-t");
-            commands.add(convertMsToFFMpegTime(copyDurationMs));
+            runWithFallbacks(plan, false, new PlanAttempt() {
+                @Override
+                public void run(@NonNull StreamCopyPlanner.Plan attemptPlan) throws IOException, InterruptedException {
+                    final List<String> commands = new ArrayList<>();
+                    if (attemptPlan.canCopyAllStreams()) {
+                        attemptPlan.addCodecCommands(commands);
+                    }
 
-            doStandardFFMpegTaskAndUpdateTargetUri(inputUri, inputFileName, commands);
+                    // Only read the part of the input that we're keeping. The end point is inclusive.
+                    doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(tempInput, tempOutput,
+                            trimBeforeMs, trimAfterMs + 1, commands);
+                }
+            });
         }
 
         @NonNull
@@ -616,11 +1260,68 @@ class FFMpegActions {
         }
     }
 
-    private static boolean shouldBeAbleToTrimWithoutReencode(@NonNull String fileType) {
-        return fileType.equals(FILETYPE_MP3) || fileType.equals(FILETYPE_MP4) || fileType.equals(FILETYPE_M4A)
-                || fileType.equals(FILETYPE_AAC) || fileType.equals(FILETYPE_OGG) || fileType.equals(FILETYPE_WAVE);
-        // TODO haven't tested OPUS
-        // TODO more video types?
+    // Composites the cover image and the watermark into a single frame. When there's no custom
+    // cover, the frame is just the watermark. The frame is scaled to even dimensions, as required
+    // by yuv420p.
+    @WorkerThread
+    private static void renderCoverFrame(@NonNull FFMpegAction action, @NonNull File watermarkImage,
+                                         @Nullable File customCoverImage,
+                                         @NonNull File output) throws InterruptedException {
+        final List<String> commands = new ArrayList<>();
+        addInputCommands(watermarkImage, commands);
+        if (customCoverImage != null) {
+            addInputCommands(customCoverImage, commands);
+            commands.add("-filter_complex");
+            commands.add("[1:v]scale='min(1920,iw)':'min(1080,ih)':force_original_aspect_ratio=decrease,pad='min(1920,iw)':'min(1080,ih)':(ow-iw)/2:(oh-ih)/2[video-in];\n"
+                    + "[0:v]colorchannelmixer=aa=0.7[logo-in];\n"
+                    + "[logo-in][video-in]scale2ref=w=oh*mdar:h=ih/4[logo-out][video-out];\n"
+                    + "[video-out][logo-out]overlay=x=main_w-overlay_w-10:y=main_h-overlay_h-10,scale=trunc(iw/2)*2:trunc(ih/2)*2[final-video-out]");
+        } else {
+            commands.add("-filter_complex");
+            commands.add("[0:v]scale=trunc(iw/2)*2:trunc(ih/2)*2[final-video-out]");
+        }
+        commands.add("-map");
+        commands.add("[final-video-out]");
+        commands.add("-frames:v");
+        commands.add("1");
+        addOutputCommands(output, commands);
+        action.doFFMpegTask(commands);
+    }
+
+    // Loops a still image at one frame per second. Each frame is identical, so there's no point in
+    // asking the encoder to produce more of them.
+    private static void addStillImageInputCommands(@NonNull File image, @NonNull List<String> commands) {
+        commands.add("-loop");
+        commands.add("1");
+        commands.add("-framerate");
+        commands.add(String.valueOf(STILL_IMAGE_FRAME_RATE));
+        addInputCommands(image, commands);
+    }
+
+    private static void addStillImageVideoEncoderCommands(@NonNull List<String> commands) {
+        commands.add("-vcodec");
+        commands.add("libx264");
+        commands.add("-tune");
+        commands.add("stillimage");
+        commands.add("-pix_fmt");
+        commands.add("yuv420p");
+        commands.add("-r");
+        commands.add(String.valueOf(STILL_IMAGE_FRAME_RATE));
+        // Keep the keyframes close enough together that seeking in players stays snappy.
+        commands.add("-g");
+        commands.add(String.valueOf(STILL_IMAGE_FRAME_RATE * STILL_IMAGE_KEYFRAME_INTERVAL_SECONDS));
+    }
+
+    // The cover is a slow still image stream, so -shortest would end the output on a whole video
+    // frame and can drop up to a second of the audio. Stop at the end of the audio instead, and only
+    // fall back to -shortest when we don't know where that is.
+    private static void addAudioLengthOutputCommands(@NonNull MediaMetadata audioMetadata, @NonNull List<String> commands) {
+        if (audioMetadata.durationMs != MediaMetadata.UNKNOWN && audioMetadata.durationMs > 0) {
+            commands.add("-t");
+            commands.add(convertMsToFFMpegTime(audioMetadata.durationMs));
+        } else {
+            commands.add("-shortest");
+        }
     }
 
     static class CutAction extends ActionWithSingleInput {
@@ -636,188 +1337,1021 @@ class FFMpegActions {
             this.cutEndMs = cutEndMs;
         }
 
+        @Nullable
         @Override
-        void execute() throws IOException, InterruptedException {
-            final File cacheDir = setupCacheDir();
+        String getResultCacheParameters() {
+            return "start=" + cutStartMs + ";end=" + cutEndMs;
+        }
 
-            if (shouldBeAbleToCutWithoutReencode(getCanonicalExtension(inputFileName))) {
-                final File tempInput = createTempFileForInput(cacheDir, inputFileName);
-                final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
-                copyInputToTemp(inputUri, tempInput);
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
+            copyInputToTemp(inputUri, tempInput);
 
-                Logger.d("Will cut by using the concatenate demuxer (no re-encoding)");
-                final File listingFile = new File(cacheDir, "listing.txt");
-                try (BufferedWriter listingWriter = new BufferedWriter(new FileWriter(listingFile))) {
-                    final String extension = FilenameUtils.getCanonicalExtension(inputFileName);
-                    Logger.d("Cutting: extracting first part");
-                    copySectionToTemporaryFile(cacheDir, 0, cutStartMs, tempInput, "temp1." + extension, listingWriter);
+            final StreamCopyPlanner.Plan plan = planStreams(tempInput, false);
+            if (plan.video != StreamCopyPlanner.StreamHandling.NONE
+                    && shouldTrySmartVideoCut(getCanonicalExtension(targetFileName))
+                    && SmartVideoCut.tryCut(this, cacheDir, tempInput, tempOutput, Arrays.asList(
+                    new KeptRange(0, cutStartMs), new KeptRange(cutEndMs, END_OF_INPUT)))) {
+                copyTempToOutputAndUpdateTargetUri(tempOutput);
+                return;
+            }
 
-                    Logger.d("Cutting: extracting second part");
-                    copySectionToTemporaryFile(cacheDir, cutEndMs, Integer.MAX_VALUE, tempInput, "temp2." + extension, listingWriter);
+            runWithFallbacks(plan, false, new PlanAttempt() {
+                @Override
+                public void run(@NonNull StreamCopyPlanner.Plan attemptPlan) throws IOException, InterruptedException, JSONException {
+                    if (attemptPlan.canCopyAllStreams()) {
+                        cutWithConcatDemuxer(cacheDir, tempInput, tempOutput);
+                    } else {
+                        cutWithConcatFilter(tempInput, tempOutput);
+                    }
                 }
+            });
+        }
 
-                Logger.d("Cutting: Concatenating");
-                executeConcat(listingFile, tempOutput);
-                copyTempToOutputAndUpdateTargetUri(tempOutput);
-            } else {
-                Logger.d("Will cut by using the concatenate filter");
+        private void cutWithConcatDemuxer(@NonNull File cacheDir, @NonNull File tempInput,
+                                          @NonNull File tempOutput) throws IOException, InterruptedException {
+            Logger.d("Will cut by using the concatenate demuxer (no re-encoding)");
+            final File listingFile = new File(cacheDir, "listing.txt");
+            try (BufferedWriter listingWriter = new BufferedWriter(new FileWriter(listingFile))) {
+                final String extension = FilenameUtils.getCanonicalExtension(inputFileName);
+                Logger.d("Cutting: extracting first part");
+                copySectionToTemporaryFile(cacheDir, 0, cutStartMs, tempInput, "temp1." + extension, listingWriter);
 
-                // First, identify what streams the input has
-                final File tempInput = createTempFileForInput(cacheDir, inputFileName);
-                final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
-                copyInputToTemp(inputUri, tempInput);
+                Logger.d("Cutting: extracting second part");
+                copySectionToTemporaryFile(cacheDir, cutEndMs, END_OF_INPUT, tempInput, "temp2." + extension, listingWriter);
+            }
 
-                final StreamInfo streamInfo = StreamInfo.evaluate(this, tempInput);
-                final boolean containsAudio = streamInfo.containsAudio;
-                final boolean containsVideo = streamInfo.containsVideo;
+            Logger.d("Cutting: Concatenating");
+            executeConcat(listingFile, tempOutput);
+            copyTempToOutputAndUpdateTargetUri(tempOutput);
+        }
 
-                final StringBuilder filter = new StringBuilder();
-                if (containsVideo) {
-                    filter.append("[0:v]trim=end=").append(convertMsToFFMpegSeconds(cutStartMs)).append(",setpts=N/FRAME_RATE/TB[v0];\n");
-                }
-                if (containsAudio) {
-                    filter.append("[0:a]atrim=end=").append(convertMsToFFMpegSeconds(cutStartMs)).append(",asetpts=N/SR/TB[a0];\n");
-                }
-                if (containsVideo) {
-                    filter.append("[0:v]trim=start=").append(convertMsToFFMpegSeconds(cutEndMs)).append(",setpts=N/FRAME_RATE/TB[v1];\n");
-                }
-                if (containsAudio) {
-                    filter.append("[0:a]atrim=start=").append(convertMsToFFMpegSeconds(cutEndMs)).append(",asetpts=N/SR/TB[a1];\n");
-                }
-                if (containsVideo) {
-                    filter.append("[v0]");
-                }
-                if (containsAudio) {
-                    filter.append("[a0]");
-                }
-                if (containsVideo) {
-                    filter.append("[v1]");
-                }
-                if (containsAudio) {
-                    filter.append("[a1]");
-                }
+        private void cutWithConcatFilter(@NonNull File tempInput, @NonNull File tempOutput) throws IOException, InterruptedException, JSONException {
+            Logger.d("Will cut by using the concatenate filter");
 
-                filter.append("concat=n=2:v=");
-                filter.append(containsVideo ? "1" : "0");
-                filter.append(":a=");
-                filter.append(containsAudio ? "1" : "0");
+            // First, identify what streams the input has
+            final MediaMetadata metadata = loadMetadata(inputUri, tempInput);
+            final boolean containsAudio = metadata.containsAudio();
+            final boolean containsVideo = metadata.containsVideo();
 
+            // The two parts we're keeping are read as two separate seeking inputs, so that
+            // FFMPEG doesn't have to decode the part that's being cut out.
+            final StringBuilder filter = new StringBuilder();
+            for (int i = 0; i < 2; ++i) {
                 if (containsVideo) {
-                    filter.append("[v]");
+                    filter.append('[').append(i).append(":v]");
                 }
                 if (containsAudio) {
-                    filter.append("[a]");
+                    filter.append('[').append(i).append(":a]");
                 }
+            }
 
-                final List<String> commands = new ArrayList<>();
-                addInputCommands(tempInput, commands);
-                commands.add("-filter_complex");
-                commands.add(filter.toString());
+            filter.append("concat=n=2:v=");
+            filter.append(containsVideo ? "1" : "0");
+            filter.append(":a=");
+            filter.append(containsAudio ? "1" : "0");
 
-                if (containsVideo) {
-                    commands.add("-map");
-                    commands.add("[v]");
-                }
-                if (containsAudio) {
-                    commands.add("-map");
-                    commands.add("[a]");
-                }
+            if (containsVideo) {
+                filter.append("[v]");
+            }
+            if (containsAudio) {
+                filter.append("[a]");
+            }
 
-                addOutputCommands(tempOutput, commands);
-                doFFMpegTask(commands);
-                copyTempToOutputAndUpdateTargetUri(tempOutput);
+            final List<String> commands = new ArrayList<>();
+            addSegmentInputCommands(tempInput, 0, cutStartMs, commands);
+            addSegmentInputCommands(tempInput, cutEndMs, END_OF_INPUT, commands);
+            commands.add("-filter_complex");
+            commands.add(filter.toString());
+
+            if (containsVideo) {
+                commands.add("-map");
+                commands.add("[v]");
             }
+            if (containsAudio) {
+                commands.add("-map");
+                commands.add("[a]");
+            }
+
+            addOutputCommands(tempOutput, commands);
+            doFFMpegTask(commands);
+            copyTempToOutputAndUpdateTargetUri(tempOutput);
         }
 
         private void copySectionToTemporaryFile(@NonNull File cacheDir, long startTime, long endTime,
                                                 @NonNull File input, @NonNull String outputName,
                                                 @NonNull BufferedWriter listingWriter) throws IOException, InterruptedException {
             final List<String> commands = new ArrayList<>();
-            addInputCommands(input, commands);
-            // Copy video data up until the cut begin point.
+            addSegmentInputCommands(input, startTime, endTime, commands);
+            // Copy video data for this section.
             commands.add("-codec:v");
             commands.add("copy");
-            // Copy audio data up until the cut begin point.
+            // Copy audio data for this section.
             commands.add("-codec:a");
             commands.add("copy");
-            // Start time
-            commands.add("-ss");
-            commands.add(convertMsToFFMpegTime(startTime));
-            // End time (end of the file)
-            commands.add("-t");
-            commands.add(convertMsToFFMpegTime(endTime));
+            // Keep the timestamps of each section starting from zero so that they can be
+            // concatenated.
+            commands.add("-avoid_negative_ts");
+            commands.add("make_zero");
             commands.add(cacheDir.getAbsolutePath() + "/" + outputName);
             addLineToListing(listingWriter, outputName);
             doFFMpegTask(commands);
         }
 
-        private void executeConcat(@NonNull File listingFile, @NonNull File tempOutput) throws InterruptedException {
+        private void executeConcat(@NonNull File listingFile, @NonNull File tempOutput) throws InterruptedException {
+            final List<String> commands = new ArrayList<>();
+            commands.add("-y");
+            commands.add("-f");
+            commands.add("concat");
+            commands.add("-safe");
+            commands.add("0");
+
+            addInputCommands(listingFile, commands);
+            // Concatenate by copying data
+            commands.add("-c");
+            commands.add("copy");
+            addOutputCommands(tempOutput, commands);
+            doFFMpegTask(commands);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "CutAction{" +
+                    "cutStartMs=" + cutStartMs +
+                    ", cutEndMs=" + cutEndMs +
+                    "} " + super.toString();
+        }
+    }
+
+    // A section of the input to keep, from startMs up to endMs. END_OF_INPUT can be used as the end.
+    private static class KeptRange {
+        final long startMs;
+        final long endMs;
+
+        KeptRange(long startMs, long endMs) {
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "KeptRange{" +
+                    "startMs=" + startMs +
+                    ", endMs=" + endMs +
+                    '}';
+        }
+    }
+
+    // Frame-accurate trimming and cutting for video, without re-encoding the whole video. Stream
+    // copying can only start on a keyframe, so for every kept range only the partial GOPs at the
+    // edges are re-encoded, with the same codec and parameters as the source. The section between
+    // the first and the last keyframe of the range is stream copied, and all of the pieces are
+    // then joined back together with the concat demuxer. The cost of an edit is then proportional
+    // to the GOP size, instead of the length of the video.
+    private static class SmartVideoCut {
+        // How far around a cut point to look for keyframes. If the GOP is longer than this, we
+        // fall back to re-encoding the whole range.
+        private static final long KEYFRAME_SEARCH_WINDOW_US = 30 * 1000000L;
+        // Seeking with stream copy snaps back to the keyframe at or before the seek point, so seek
+        // just past the keyframe to make sure rounding doesn't land us on the previous one.
+        private static final long KEYFRAME_SEEK_OFFSET_US = 1000;
+        // How much of the joined output to decode on each side of a join when checking it.
+        private static final long JOIN_CHECK_MARGIN_US = 1000000;
+
+        private final FFMpegAction action;
+        private final File cacheDir;
+        private final File input;
+        private final String videoCodec;
+        private final String videoEncoder;
+        @Nullable
+        private final String encoderProfile;
+        private final int videoLevel;
+        private final String pixelFormat;
+        private final int rotation;
+        private final boolean containsAudio;
+        private final long durationUs;
+        private final String intermediateExtension;
+        // Where each piece after the first one starts, in the joined output.
+        private final List<Long> pieceJoinsUs = new ArrayList<>();
+
+        private int pieceCount;
+        private long joinedDurationUs;
+
+        private SmartVideoCut(@NonNull FFMpegAction action, @NonNull File cacheDir, @NonNull File input,
+                              @NonNull String videoCodec, @NonNull String videoEncoder,
+                              @Nullable String encoderProfile, int videoLevel,
+                              @NonNull String pixelFormat, int rotation, boolean containsAudio,
+                              long durationUs) {
+            this.action = action;
+            this.cacheDir = cacheDir;
+            this.input = input;
+            this.videoCodec = videoCodec;
+            this.videoEncoder = videoEncoder;
+            this.encoderProfile = encoderProfile;
+            this.videoLevel = videoLevel;
+            this.pixelFormat = pixelFormat;
+            this.rotation = rotation;
+            this.containsAudio = containsAudio;
+            this.durationUs = durationUs;
+            // MPEG-TS handles joining H.264 and HEVC pieces with differing parameters the best; the
+            // other codecs are kept in Matroska.
+            this.intermediateExtension = videoCodec.equals("h264") || videoCodec.equals("hevc") ? "ts" : FILETYPE_MKV;
+        }
+
+        // Returns true if the output was written, or false if the caller should fall back to its
+        // regular handling.
+        @WorkerThread
+        static boolean tryCut(@NonNull FFMpegAction action, @NonNull File cacheDir, @NonNull File input,
+                              @NonNull File output, @NonNull List<KeptRange> ranges) throws IOException, InterruptedException {
+            try {
+                final SmartVideoCut smartVideoCut = create(action, cacheDir, input);
+                if (smartVideoCut == null) {
+                    return false;
+                }
+                smartVideoCut.cut(ranges, output);
+                return true;
+            } catch (FFMpegFailedException | JSONException e) {
+                Logger.w("Couldn't do a smart cut for " + input + "; will fall back to the regular cut.", e);
+                return false;
+            }
+        }
+
+        @Nullable
+        private static SmartVideoCut create(@NonNull FFMpegAction action, @NonNull File cacheDir,
+                                            @NonNull File input) throws JSONException, InterruptedException {
+            final MediaInfo mediaInfo = action.probe(input);
+            final MediaProbe.StreamInfo videoStream = mediaInfo.getFirstVideoStream();
+            if (videoStream == null || mediaInfo.durationUs == MediaProbe.UNKNOWN) {
+                Logger.d("No video stream or duration found in " + input);
+                return null;
+            }
+
+            final String videoCodec = videoStream.codecName;
+            final String videoEncoder = getMatchingEncoder(videoCodec);
+            final String pixelFormat = videoStream.pixelFormat;
+            if (videoEncoder == null || pixelFormat.isEmpty()) {
+                Logger.d("Can't re-encode video codec " + videoCodec + " with pixel format " + pixelFormat);
+                return null;
+            }
+
+            // The joined output only keeps one set of codec parameters in its header, so the
+            // re-encoded pieces have to declare the same profile as the copied ones.
+            final String encoderProfile = getMatchingEncoderProfile(videoCodec, videoStream.profile);
+            if (encoderProfile == null && (videoCodec.equals("h264") || videoCodec.equals("hevc"))) {
+                Logger.d("Can't re-encode video codec " + videoCodec + " with profile " + videoStream.profile);
+                return null;
+            }
+
+            final int rotation = videoStream.rotation;
+            final boolean containsAudio = mediaInfo.containsAudio();
+            final long durationUs = mediaInfo.durationUs;
+
+            return new SmartVideoCut(action, cacheDir, input, videoCodec, videoEncoder, encoderProfile,
+                    videoStream.level, pixelFormat, rotation, containsAudio, durationUs);
+        }
+
+        @Nullable
+        private static String getMatchingEncoder(@NonNull String codec) {
+            switch (codec) {
+                case "h264":
+                    return "libx264";
+                case "hevc":
+                    return "libx265";
+                case "vp8":
+                    return "libvpx";
+                case "vp9":
+                    return "libvpx-vp9";
+                case "mpeg4":
+                    return "mpeg4";
+                default:
+                    return null;
+            }
+        }
+
+        // Maps the profile names that FFPROBE reports to the ones libx264 and libx265 take.
+        @Nullable
+        private static String getMatchingEncoderProfile(@NonNull String codec, @NonNull String profile) {
+            if (codec.equals("h264")) {
+                switch (profile) {
+                    case "Baseline":
+                    case "Constrained Baseline":
+                        return "baseline";
+                    case "Main":
+                        return "main";
+                    case "High":
+                        return "high";
+                    case "High 10":
+                        return "high10";
+                    case "High 4:2:2":
+                        return "high422";
+                    case "High 4:4:4 Predictive":
+                        return "high444";
+                    default:
+                        return null;
+                }
+            } else if (codec.equals("hevc")) {
+                switch (profile) {
+                    case "Main":
+                        return "main";
+                    case "Main 10":
+                        return "main10";
+                    default:
+                        return null;
+                }
+            }
+            return null;
+        }
+
+        private void cut(@NonNull List<KeptRange> ranges, @NonNull File output) throws IOException, InterruptedException {
+            Logger.d("Smart cutting " + input + " keeping " + ranges + "; codec: " + videoCodec);
+            final File videoListing = new File(cacheDir, "smartcut-video.txt");
+            final File audioListing = new File(cacheDir, "smartcut-audio.txt");
+
+            try (BufferedWriter videoWriter = new BufferedWriter(new FileWriter(videoListing));
+                 BufferedWriter audioWriter = new BufferedWriter(new FileWriter(audioListing))) {
+                for (KeptRange range : ranges) {
+                    final long startUs = range.startMs * 1000;
+                    final long endUs = range.endMs == END_OF_INPUT ? durationUs : Math.min(durationUs, range.endMs * 1000);
+                    if (endUs <= startUs) {
+                        continue;
+                    }
+
+                    addVideoPieces(startUs, endUs, videoWriter);
+                    if (containsAudio) {
+                        addLineToListing(audioWriter, copyAudioPiece(startUs, endUs).getAbsolutePath());
+                    }
+                }
+            }
+
+            action.checkCancelState();
+            Logger.d("Smart cutting: joining pieces");
+            final List<String> commands = new ArrayList<>();
+            addConcatListingInputCommands(videoListing, commands);
+            if (containsAudio) {
+                addConcatListingInputCommands(audioListing, commands);
+            }
+            commands.add("-map");
+            commands.add("0:v:0");
+            if (containsAudio) {
+                commands.add("-map");
+                commands.add("1:a:0");
+            }
+            commands.add("-c");
+            commands.add("copy");
+            if (rotation != 0) {
+                // The intermediate pieces don't carry the display rotation, so restore it here.
+                commands.add("-metadata:s:v:0");
+                commands.add("rotate=" + rotation);
+            }
+            commands.add("-avoid_negative_ts");
+            commands.add("make_zero");
+            addOutputCommands(output, commands);
+            action.doFFMpegTask(commands);
+            verifyJoins(output);
+        }
+
+        // Decodes the joined output around each join, failing on the first decoding error instead
+        // of concealing it, so that pieces that don't fit together make us fall back to the regular
+        // cut. Only a little around each join is decoded, to keep the cost proportional to the GOP
+        // size. FFMPEG's decoder is more forgiving than most hardware ones, so this is a backstop
+        // for the matching profile and level, not a replacement.
+        private void verifyJoins(@NonNull File output) throws InterruptedException {
+            for (long joinUs : pieceJoinsUs) {
+                action.checkCancelState();
+                Logger.d("Smart cutting: checking the join at " + joinUs + "us");
+                final long fromUs = Math.max(0, joinUs - JOIN_CHECK_MARGIN_US);
+                final List<String> commands = new ArrayList<>();
+                commands.add("-xerror");
+                commands.add("-err_detect");
+                commands.add("explode");
+                if (fromUs > 0) {
+                    commands.add("-ss");
+                    commands.add(convertUsToFFMpegSeconds(fromUs));
+                }
+                commands.add("-t");
+                commands.add(convertUsToFFMpegSeconds(joinUs + JOIN_CHECK_MARGIN_US - fromUs));
+                addInputCommands(output, commands);
+                commands.add("-map");
+                commands.add("0:v:0");
+                commands.add("-f");
+                commands.add("null");
+                commands.add("-");
+                action.doFFMpegTask(commands);
+            }
+        }
+
+        private void addVideoPieces(long startUs, long endUs, @NonNull BufferedWriter listingWriter) throws IOException, InterruptedException {
+            // The copied section has to start and end on a keyframe.
+            final long copyStartUs;
+            if (startUs == 0) {
+                copyStartUs = 0;
+            } else {
+                final long[] keyframes = probeKeyframesUs(startUs, Math.min(endUs, startUs + KEYFRAME_SEARCH_WINDOW_US));
+                copyStartUs = firstAtOrAfter(keyframes, startUs);
+            }
+
+            final long copyEndUs;
+            if (endUs >= durationUs) {
+                copyEndUs = durationUs;
+            } else {
+                final long[] keyframes = probeKeyframesUs(Math.max(startUs, endUs - KEYFRAME_SEARCH_WINDOW_US), endUs);
+                copyEndUs = lastAtOrBefore(keyframes, endUs);
+            }
+
+            if (copyStartUs == -1 || copyEndUs == -1 || copyEndUs <= copyStartUs) {
+                Logger.d("No usable keyframes between " + startUs + "us and " + endUs + "us; re-encoding the range.");
+                addVideoPiece(listingWriter, encodeVideoPiece(startUs, endUs), endUs - startUs);
+                return;
+            }
+
+            Logger.d("Smart cutting: re-encoding " + startUs + "us to " + copyStartUs + "us, copying to "
+                    + copyEndUs + "us, re-encoding to " + endUs + "us");
+            if (copyStartUs > startUs) {
+                addVideoPiece(listingWriter, encodeVideoPiece(startUs, copyStartUs), copyStartUs - startUs);
+            }
+            addVideoPiece(listingWriter, copyVideoPiece(copyStartUs, copyEndUs), copyEndUs - copyStartUs);
+            if (endUs > copyEndUs) {
+                addVideoPiece(listingWriter, encodeVideoPiece(copyEndUs, endUs), endUs - copyEndUs);
+            }
+        }
+
+        private void addVideoPiece(@NonNull BufferedWriter listingWriter, @NonNull File piece,
+                                   long pieceDurationUs) throws IOException {
+            if (joinedDurationUs > 0) {
+                pieceJoinsUs.add(joinedDurationUs);
+            }
+            addLineToListing(listingWriter, piece.getAbsolutePath());
+            joinedDurationUs += pieceDurationUs;
+        }
+
+        @NonNull
+        private long[] probeKeyframesUs(long fromUs, long toUs) throws InterruptedException {
+            // Only read the packets around the cut point, rather than indexing the whole file.
+            return action.probeKeyframesUs(input, fromUs, toUs);
+        }
+
+        private static long firstAtOrAfter(@NonNull long[] sortedValues, long value) {
+            for (long candidate : sortedValues) {
+                if (candidate >= value) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+
+        private static long lastAtOrBefore(@NonNull long[] sortedValues, long value) {
+            for (int i = sortedValues.length - 1; i >= 0; --i) {
+                if (sortedValues[i] <= value) {
+                    return sortedValues[i];
+                }
+            }
+            return -1;
+        }
+
+        @NonNull
+        private File encodeVideoPiece(long startUs, long endUs) throws IOException, InterruptedException {
+            final File piece = nextPieceFile(intermediateExtension);
+            final List<String> commands = new ArrayList<>();
+            // Rotation is restored when joining, so the pieces must keep the stored orientation.
+            commands.add("-noautorotate");
+            addMicrosecondSegmentInputCommands(startUs, endUs, commands);
+            commands.add("-map");
+            commands.add("0:v:0");
+            commands.add("-an");
+            commands.add("-c:v");
+            commands.add(videoEncoder);
+            commands.add("-pix_fmt");
+            commands.add(pixelFormat);
+            // These pieces are only a GOP or two long, so favour quality over size. The preset comes
+            // from the encoding speed profile, like for the other actions.
+            switch (videoEncoder) {
+                case "libx264":
+                case "libx265":
+                    commands.add("-crf");
+                    commands.add("18");
+                    addMatchingParameterSetCommands(commands);
+                    break;
+                case "libvpx":
+                case "libvpx-vp9":
+                    commands.add("-crf");
+                    commands.add("10");
+                    commands.add("-b:v");
+                    commands.add("0");
+                    break;
+                default:
+                    commands.add("-q:v");
+                    commands.add("2");
+                    break;
+            }
+            addOutputCommands(piece, commands);
+            action.doFFMpegTask(commands);
+            return piece;
+        }
+
+        // Declares the same profile and level as the source, which strict decoders need since the
+        // joined MP4 has a single avcC / hvcC for all of the pieces. The parameter sets are also
+        // repeated before every keyframe, so they stay in-band for decoders that pick up changes.
+        private void addMatchingParameterSetCommands(@NonNull List<String> commands) {
+            if (encoderProfile != null) {
+                commands.add("-profile:v");
+                commands.add(encoderProfile);
+            }
+            if (videoEncoder.equals("libx264")) {
+                if (videoLevel != MediaProbe.UNKNOWN) {
+                    // FFPROBE reports H.264 levels times ten, e.g. 41 for 4.1.
+                    commands.add("-level");
+                    commands.add(String.format(Locale.US, "%d.%d", videoLevel / 10, videoLevel % 10));
+                }
+                commands.add("-x264-params");
+                commands.add("repeat-headers=1");
+            } else {
+                String params = "repeat-headers=1";
+                if (videoLevel != MediaProbe.UNKNOWN) {
+                    // FFPROBE reports HEVC levels times thirty, e.g. 123 for 4.1.
+                    params += ":level-idc=" + String.format(Locale.US, "%.1f", videoLevel / 30.0);
+                }
+                commands.add("-x265-params");
+                commands.add(params);
+            }
+        }
+
+        @NonNull
+        private File copyVideoPiece(long startUs, long endUs) throws IOException, InterruptedException {
+            final File piece = nextPieceFile(intermediateExtension);
+            final List<String> commands = new ArrayList<>();
+            addMicrosecondSegmentInputCommands(startUs > 0 ? startUs + KEYFRAME_SEEK_OFFSET_US : 0, endUs, commands);
+            commands.add("-map");
+            commands.add("0:v:0");
+            commands.add("-an");
+            commands.add("-c:v");
+            commands.add("copy");
+            if (videoCodec.equals("h264")) {
+                commands.add("-bsf:v");
+                commands.add("h264_mp4toannexb");
+            } else if (videoCodec.equals("hevc")) {
+                commands.add("-bsf:v");
+                commands.add("hevc_mp4toannexb");
+            }
+            addOutputCommands(piece, commands);
+            action.doFFMpegTask(commands);
+            return piece;
+        }
+
+        @NonNull
+        private File copyAudioPiece(long startUs, long endUs) throws IOException, InterruptedException {
+            final File piece = nextPieceFile("mka");
+            final List<String> commands = new ArrayList<>();
+            addMicrosecondSegmentInputCommands(startUs, endUs, commands);
+            commands.add("-map");
+            commands.add("0:a:0");
+            commands.add("-vn");
+            commands.add("-c:a");
+            commands.add("copy");
+            addOutputCommands(piece, commands);
+            action.doFFMpegTask(commands);
+            return piece;
+        }
+
+        private void addMicrosecondSegmentInputCommands(long startUs, long endUs, @NonNull List<String> commands) {
+            if (startUs > 0) {
+                commands.add("-ss");
+                commands.add(convertUsToFFMpegSeconds(startUs));
+            }
+            commands.add("-t");
+            commands.add(convertUsToFFMpegSeconds(endUs - startUs));
+            addInputCommands(input, commands);
+        }
+
+        @NonNull
+        private File nextPieceFile(@NonNull String extension) throws IOException {
+            return createTempFileWithName(cacheDir, "smartcut" + (pieceCount++) + "." + extension);
+        }
+
+        private static void addConcatListingInputCommands(@NonNull File listingFile, @NonNull List<String> commands) {
+            commands.add("-f");
+            commands.add("concat");
+            commands.add("-safe");
+            commands.add("0");
+            addInputCommands(listingFile, commands);
+        }
+    }
+
+    // Transcodes long audio by cutting the input into segments, encoding them as concurrent FFMPEG
+    // executions, and joining the encoded segments back together with a stream copy. The audio
+    // encoders only use one core, so a single execution leaves most of the device idle.
+    //
+    // Every segment is encoded with some of the audio on either side, so that the encoder has
+    // warmed up by the time that it reaches the part that's kept, and so that its delay and end
+    // padding fall outside of it. All of the cuts are made on the encoder's frame grid, which is
+    // the same in every segment, so the kept packets meet exactly and the join is gapless. Video
+    // isn't handled here, since the video encoders are already multi-threaded.
+    //
+    // The first segment keeps the encoder's priming at the start, and the last one its padding at
+    // the end, just like a single pass. A single pass also records those in the container so that
+    // players skip them, but the muxer of the join never saw the encoder, so they're written into
+    // the output afterwards. If that can't be done, we fall back to the regular conversion.
+    private static class SegmentedAudioConversion {
+        // Not worth the extra passes over the output for anything shorter.
+        private static final long MIN_DURATION_US = 10 * 60 * 1000000L;
+        private static final long MIN_SEGMENT_US = 60 * 1000000L;
+        private static final long LEAD_IN_US = 2 * 1000000L;
+        private static final int[] MP3_SAMPLE_RATES = {8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000};
+        private static final int[] AAC_SAMPLE_RATES = {8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000, 64000, 88200, 96000};
+
+        private final FFMpegAction action;
+        private final File cacheDir;
+        private final File input;
+        private final OutputFormatType outputFormatType;
+        private final String intermediateExtension;
+        private final int sampleRate;
+        private final long durationUs;
+        // The duration of one encoded packet.
+        private final double frameUs;
+        // The shortest whole number of packets that is also a whole number of microseconds, so
+        // that the cut points can be passed to FFMPEG exactly. All of the cuts are multiples of it.
+        private final long stepUs;
+
+        private SegmentedAudioConversion(@NonNull FFMpegAction action, @NonNull File cacheDir, @NonNull File input,
+                                         @NonNull OutputFormatType outputFormatType, int sampleRate,
+                                         int frameSamples, long durationUs) {
+            this.action = action;
+            this.cacheDir = cacheDir;
+            this.input = input;
+            this.outputFormatType = outputFormatType;
+            // MP4 pieces would each get an edit list that skips their first packet, so AAC is kept
+            // in ADTS until the end.
+            this.intermediateExtension = outputFormatType == OutputFormatType.M4A
+                    ? FILETYPE_AAC : outputFormatType.getExtensionForOutputType();
+            this.sampleRate = sampleRate;
+            this.durationUs = durationUs;
+            this.frameUs = frameSamples * 1000000.0 / sampleRate;
+            final long frameSamplesUs = frameSamples * 1000000L;
+            final long framesPerStep = sampleRate / greatestCommonDivisor(frameSamplesUs, sampleRate);
+            this.stepUs = framesPerStep * frameSamplesUs / sampleRate;
+        }
+
+        // Returns true if the output was written, or false if the caller should fall back to its
+        // regular handling.
+        @WorkerThread
+        static boolean tryConvert(@NonNull FFMpegAction action, @NonNull File cacheDir, @NonNull File input,
+                                  @NonNull File output, @NonNull OutputFormatType outputFormatType,
+                                  @NonNull MediaMetadata metadata, @NonNull StreamCopyPlanner.Plan plan,
+                                  @NonNull List<String> taskCommands) throws IOException, InterruptedException {
+            final SegmentedAudioConversion conversion = create(action, cacheDir, input, outputFormatType, metadata, plan);
+            if (conversion == null) {
+                return false;
+            }
+
+            try {
+                return conversion.convert(taskCommands, output);
+            } catch (FFMpegFailedException e) {
+                Logger.w("Couldn't do a segmented conversion of " + input + "; will fall back to the regular conversion.", e);
+                return false;
+            }
+        }
+
+        @Nullable
+        private static SegmentedAudioConversion create(@NonNull FFMpegAction action, @NonNull File cacheDir,
+                                                       @NonNull File input, @NonNull OutputFormatType outputFormatType,
+                                                       @NonNull MediaMetadata metadata, @NonNull StreamCopyPlanner.Plan plan) {
+            if (outputFormatType.isVideoOutputType() || plan.canCopyAudio()
+                    || metadata.durationMs == MediaMetadata.UNKNOWN || metadata.sampleRate <= 0
+                    || metadata.durationMs * 1000 < MIN_DURATION_US
+                    || Runtime.getRuntime().availableProcessors() < 2) {
+                return null;
+            }
+
+            // The output rate is set explicitly, so that we know the length of a packet.
+            final int sampleRate;
+            final int frameSamples;
+            switch (outputFormatType) {
+                case MP3:
+                    sampleRate = contains(MP3_SAMPLE_RATES, metadata.sampleRate) ? metadata.sampleRate : 44100;
+                    frameSamples = sampleRate >= 32000 ? 1152 : 576;
+                    break;
+                case M4A:
+                case AAC:
+                    sampleRate = contains(AAC_SAMPLE_RATES, metadata.sampleRate) ? metadata.sampleRate : 48000;
+                    frameSamples = 1024;
+                    break;
+                default:
+                    // Vorbis and FLAC put per-file setup data in their headers, so their pieces
+                    // can't be joined with a stream copy. Opus has a pre-skip in its header that
+                    // the joined pieces would have to agree with. WAVE doesn't need encoding.
+                    return null;
+            }
+
+            return new SegmentedAudioConversion(action, cacheDir, input, outputFormatType, sampleRate,
+                    frameSamples, metadata.durationMs * 1000);
+        }
+
+        // Returns false if the output was joined, but its gapless info couldn't be written.
+        private boolean convert(@NonNull List<String> taskCommands, @NonNull File output) throws IOException, InterruptedException {
+            final int segmentCount = (int) Math.min(Runtime.getRuntime().availableProcessors(), durationUs / MIN_SEGMENT_US);
+            final long segmentUs = durationUs / segmentCount / stepUs * stepUs;
+            final long leadInUs = (LEAD_IN_US + stepUs - 1) / stepUs * stepUs;
+            Logger.d("Segmented conversion of " + input + " into " + segmentCount + " segments of "
+                    + segmentUs + "us; packet: " + frameUs + "us, step: " + stepUs + "us");
+
+            final List<List<String>> encodeCommands = new ArrayList<>();
+            final List<List<String>> trimCommands = new ArrayList<>();
+            final List<File> trimmedSegments = new ArrayList<>();
+            for (int i = 0; i < segmentCount; i++) {
+                final boolean isFirst = i == 0;
+                final boolean isLast = i == segmentCount - 1;
+                final long keepStartUs = i * segmentUs;
+                final long keepEndUs = (i + 1) * segmentUs;
+                final long encodeStartUs = isFirst ? 0 : keepStartUs - leadInUs;
+                final long encodeEndUs = isLast ? END_OF_INPUT : keepEndUs + leadInUs;
+
+                final File encodedSegment = createTempFileWithName(cacheDir, "segment" + i + "." + intermediateExtension);
+                encodeCommands.add(createEncodeCommands(encodeStartUs, encodeEndUs, taskCommands, encodedSegment));
+
+                // Cut half a packet before each kept boundary, so that rounding can't move the
+                // cut onto the wrong packet.
+                final File trimmedSegment = createTempFileWithName(cacheDir, "segment" + i + "-trimmed." + intermediateExtension);
+                final List<String> commands = new ArrayList<>();
+                addInputCommands(encodedSegment, commands);
+                commands.add("-map");
+                commands.add("0:a:0");
+                commands.add("-c");
+                commands.add("copy");
+                if (!isFirst) {
+                    commands.add("-ss");
+                    commands.add(convertUsToFFMpegSeconds(Math.round(keepStartUs - encodeStartUs - frameUs / 2)));
+                }
+                if (!isLast) {
+                    commands.add("-to");
+                    commands.add(convertUsToFFMpegSeconds(Math.round(keepEndUs - encodeStartUs - frameUs / 2)));
+                }
+                addIntermediateMuxerCommands(commands);
+                addOutputCommands(trimmedSegment, commands);
+                trimCommands.add(commands);
+                trimmedSegments.add(trimmedSegment);
+            }
+
+            action.doFFMpegTasksInParallel(encodeCommands);
+            Logger.d("Segmented conversion: trimming segments");
+            action.doFFMpegTasksInParallel(trimCommands);
+
+            Logger.d("Segmented conversion: joining segments");
+            final File listing = new File(cacheDir, "segments.txt");
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(listing))) {
+                for (File trimmedSegment : trimmedSegments) {
+                    addLineToListing(writer, trimmedSegment.getAbsolutePath());
+                }
+            }
+
             final List<String> commands = new ArrayList<>();
-            commands.add("-y");
             commands.add("-f");
             commands.add("concat");
             commands.add("-safe");
             commands.add("0");
-
-            addInputCommands(listingFile, commands);
-            // Concatenate by copying data
+            addInputCommands(listing, commands);
+            // The pieces don't carry the tags of the input, so take them from there.
+            addInputCommands(input, commands);
+            commands.add("-map");
+            commands.add("0:a:0");
+            commands.add("-map_metadata");
+            commands.add("1");
             commands.add("-c");
             commands.add("copy");
-            addOutputCommands(tempOutput, commands);
-            doFFMpegTask(commands);
+            if (outputFormatType == OutputFormatType.M4A) {
+                commands.add("-bsf:a");
+                commands.add("aac_adtstoasc");
+            }
+            addOutputCommands(output, commands);
+            action.doFFMpegTask(commands);
+
+            // The duration is only known to the millisecond, so the end padding can be off by
+            // that much; the start, which is what would be heard, is exact.
+            final long validSamples = Math.round(durationUs * (double) sampleRate / 1000000.0);
+            try {
+                if (outputFormatType == OutputFormatType.MP3) {
+                    GaplessInfo.writeMp3(output, validSamples);
+                } else if (outputFormatType == OutputFormatType.M4A) {
+                    GaplessInfo.writeMp4(output, sampleRate, GaplessInfo.AAC_PRIMING_SAMPLES, validSamples);
+                }
+                return true;
+            } catch (IOException e) {
+                Logger.w("Couldn't write the gapless info of " + output, e);
+                return false;
+            }
         }
 
         @NonNull
-        @Override
-        public String toString() {
-            return "CutAction{" +
-                    "cutStartMs=" + cutStartMs +
-                    ", cutEndMs=" + cutEndMs +
-                    "} " + super.toString();
+        private List<String> createEncodeCommands(long startUs, long endUs, @NonNull List<String> taskCommands,
+                                                  @NonNull File output) {
+            final List<String> commands = new ArrayList<>();
+            if (startUs > 0) {
+                commands.add("-ss");
+                commands.add(convertUsToFFMpegSeconds(startUs));
+            }
+            if (endUs != END_OF_INPUT) {
+                commands.add("-t");
+                commands.add(convertUsToFFMpegSeconds(endUs - startUs));
+            }
+            addInputCommands(input, commands);
+            commands.addAll(taskCommands);
+            commands.add("-ar");
+            commands.add(String.valueOf(sampleRate));
+            if (outputFormatType == OutputFormatType.MP3) {
+                // With the bit reservoir, a frame can borrow bits from the frames before it, which
+                // would be missing after the join.
+                commands.add("-reservoir");
+                commands.add("0");
+            }
+            addIntermediateMuxerCommands(commands);
+            addOutputCommands(output, commands);
+            return commands;
+        }
+
+        private void addIntermediateMuxerCommands(@NonNull List<String> commands) {
+            if (outputFormatType == OutputFormatType.MP3) {
+                // Otherwise the encoder delay is noted in each piece, and skipped when reading it
+                // back, which would move it off the frame grid.
+                commands.add("-write_xing");
+                commands.add("0");
+            }
+        }
+
+        private static boolean contains(@NonNull int[] values, int value) {
+            for (int candidate : values) {
+                if (candidate == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static long greatestCommonDivisor(long a, long b) {
+            while (b != 0) {
+                final long remainder = a % b;
+                a = b;
+                b = remainder;
+            }
+            return a;
         }
     }
 
-    private static class StreamInfo {
-        final boolean containsAudio;
-        final boolean containsVideo;
+    // The options for converting to the given output type, for an input that has been planned with
+    // planStreams(). The same options are used for every output of a multi-target conversion.
+    private static void addConversionCommands(@NonNull OutputFormatType outputFormatType,
+                                              @Nullable BitrateWithValue selectedBitrate,
+                                              @NonNull StreamCopyPlanner.Plan plan,
+                                              @NonNull List<String> commands) {
+        plan.addCodecCommands(commands);
 
-        static StreamInfo evaluate(@NonNull FFMpegAction action, @NonNull File tempInput) throws InterruptedException {
-            Logger.d("Looking up stream info for " + tempInput + ". We're not outputting anything at the moment.");
-            final List<String> commands = new ArrayList<>();
-            addInputCommands(tempInput, commands);
-            final String output = action.doFFMpegTask(commands, false);
-            boolean containsAudio = output.contains(" Audio:");
-            boolean containsVideo = output.contains(" Video:");
-            return new StreamInfo(containsAudio, containsVideo);
+        if (!outputFormatType.isVideoOutputType()) {
+            // Strip any input video.
+            commands.add("-vn");
         }
 
-        private StreamInfo(boolean containsAudio, boolean containsVideo) {
-            this.containsAudio = containsAudio;
-            this.containsVideo = containsVideo;
+        addOutputFormatCommands(outputFormatType, selectedBitrate, plan, commands);
+    }
+
+    // The bitrate and codec options for the output type, after the streams have been planned.
+    private static void addOutputFormatCommands(@NonNull OutputFormatType outputFormatType,
+                                                @Nullable BitrateWithValue selectedBitrate,
+                                                @NonNull StreamCopyPlanner.Plan plan,
+                                                @NonNull List<String> commands) {
+        // It appears that FFMPEG will automatically select the container type based on the
+        // output file extension.
+        switch (outputFormatType) {
+            // Audio formats
+            case MP3:
+                if (selectedBitrate != null) {
+                    switch (selectedBitrate.type) {
+                        case ABR:
+                            commands.add("-abr");
+                            commands.add("1");
+                        case CBR:
+                            commands.add("-b:a");
+                            commands.add(selectedBitrate.value + "k");
+                            break;
+                        case VBR:
+                            commands.add("-qscale:a");
+                            commands.add(String.valueOf(selectedBitrate.value));
+                    }
+                }
+                break;
+            case M4A:
+            case AAC:
+                if (selectedBitrate != null
+                        && selectedBitrate.type == CBR) {
+                    commands.add("-b:a");
+                    commands.add(selectedBitrate.value + "k");
+                }
+                break;
+            case WAVE_PCM:
+                if (!plan.canCopyAudio()) {
+                    commands.add("-codec:a");
+                    commands.add("pcm_s16le");
+                }
+                // Defaults for the rest
+                break;
+            // For all of the other audio formats, we just use defaults.
+
+            // Video formats
+            case MKV:
+                // Matroska can hold any subtitle stream, too.
+                commands.add("-codec:s");
+                commands.add("copy");
+                break;
+            // For the other video formats, the plan already copies whatever it can.
+        }
+    }
+
+    // The output options for a target size budget. Pass 1 and 2 are the passes of a two-pass video
+    // encode, sharing the statistics at passLogPrefix, and pass 0 is a single-pass encode.
+    private static void addTargetSizeCommands(@NonNull OutputFormatType outputFormatType,
+                                              @NonNull TargetSizeEncoding.Budget budget,
+                                              boolean hasVideo, boolean hasAudio, int pass,
+                                              @NonNull File passLogPrefix, @NonNull List<String> commands) {
+        if (hasVideo) {
+            commands.add("-c:v");
+            commands.add(outputFormatType == OutputFormatType.WEBM ? "libvpx-vp9" : "libx264");
+            commands.add("-b:v");
+            commands.add(budget.videoKbps + "k");
+            if (outputFormatType == OutputFormatType.WEBM) {
+                // libvpx can't do two passes with the realtime deadline of the fastest profile.
+                commands.add("-deadline:v");
+                commands.add("good");
+            }
+            if (pass > 0) {
+                commands.add("-pass");
+                commands.add(String.valueOf(pass));
+                commands.add("-passlogfile");
+                commands.add(passLogPrefix.getAbsolutePath());
+            }
+        } else {
+            commands.add("-vn");
+        }
+
+        if (pass == 1 || !hasAudio) {
+            commands.add("-an");
+            return;
+        }
+
+        commands.add("-b:a");
+        commands.add(budget.audioKbps + "k");
+        if (outputFormatType == OutputFormatType.MP3 && budget.audioKbps < 32) {
+            // The lowest bitrates are only available at the MPEG-2 sample rates.
+            commands.add("-ar");
+            commands.add("22050");
+        } else if (outputFormatType == OutputFormatType.OPUS || outputFormatType == OutputFormatType.WEBM) {
+            // Keeps Opus close to the average bitrate, rather than letting it follow the content.
+            commands.add("-vbr");
+            commands.add("constrained");
         }
     }
 
-    private static boolean shouldBeAbleToCutWithoutReencode(@NonNull String fileType) {
-        return fileType.equals(FILETYPE_MP3) || fileType.equals(FILETYPE_MP4) || fileType.equals(FILETYPE_M4A)
-                || fileType.equals(FILETYPE_AAC) || fileType.equals(FILETYPE_OGG);
-        // TODO haven't tested OPUS
-        // Note: It doesn't hurt to re-encode FLAC and WAVE, and by doing so we avoid temporary files.
-        // TODO video types?
+    @NonNull
+    private static MediaMetadata toMediaMetadata(@NonNull MediaInfo mediaInfo) {
+        final MediaProbe.StreamInfo audioStream = mediaInfo.getFirstAudioStream();
+        final MediaProbe.StreamInfo videoStream = mediaInfo.getFirstVideoStream();
+        return new MediaMetadata(
+                mediaInfo.durationUs != MediaProbe.UNKNOWN ? mediaInfo.durationUs / 1000 : MediaMetadata.UNKNOWN,
+                mediaInfo.formatName,
+                audioStream != null ? audioStream.codecName : "",
+                videoStream != null ? videoStream.codecName : "",
+                audioStream != null ? audioStream.sampleRate : (int) MediaMetadata.UNKNOWN,
+                audioStream != null ? audioStream.channels : (int) MediaMetadata.UNKNOWN,
+                mediaInfo.bitRate,
+                true);
+    }
+
+    private static boolean shouldTrySmartVideoCut(@NonNull String fileType) {
+        return fileType.equals(FILETYPE_MP4) || fileType.equals(FILETYPE_MKV)
+                || fileType.equals(FILETYPE_MOV) || fileType.equals(FILETYPE_WEBM);
     }
 
     static class AdjustSpeedAction extends ActionWithSingleInput {
         private final float relativeSpeed;
+        private final SpeedAdjustmentMode mode;
 
         AdjustSpeedAction(@NonNull Context context,
                           @NonNull Uri inputUri, @NonNull String inputFileName,
                           @NonNull Uri targetUri, @NonNull String targetFileName,
-                          float relativeSpeed) {
+                          float relativeSpeed, @NonNull SpeedAdjustmentMode mode) {
             super(context, inputUri, inputFileName, targetUri, targetFileName);
             this.relativeSpeed = relativeSpeed;
+            this.mode = mode;
         }
 
+        @Nullable
         @Override
-        void execute() throws IOException, InterruptedException {
+        String getResultCacheParameters() {
+            return "speed=" + relativeSpeed + ";mode=" + mode;
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
             final File cacheDir = setupCacheDir();
 
             // First, identify what streams the input has
@@ -825,14 +2359,23 @@ class FFMpegActions {
             final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
             copyInputToTemp(inputUri, tempInput);
 
-            final StreamInfo streamInfo = StreamInfo.evaluate(this, tempInput);
-            final boolean containsAudio = streamInfo.containsAudio;
-            final boolean containsVideo = streamInfo.containsVideo;
+            final MediaMetadata metadata = loadMetadata(inputUri, tempInput);
+            final boolean containsAudio = metadata.containsAudio();
+            final boolean containsVideo = metadata.containsVideo();
             final float inverseSpeed = 1 / relativeSpeed;
 
+            if (containsVideo && mode == SpeedAdjustmentMode.RETIME_ONLY) {
+                adjustSpeedWithoutDecodingVideo(tempInput, tempOutput, containsAudio, inverseSpeed);
+                return;
+            }
+
             final StringBuilder filter = new StringBuilder();
             if (containsVideo) {
-                filter.append("[0:v]setpts=").append(inverseSpeed).append("*PTS,minterpolate='mi_mode=blend'[v]");
+                filter.append("[0:v]setpts=").append(inverseSpeed).append("*PTS");
+                if (mode == SpeedAdjustmentMode.BLEND) {
+                    filter.append(",minterpolate='mi_mode=blend'");
+                }
+                filter.append("[v]");
                 if (containsAudio) {
                     filter.append(';');
                 }
@@ -860,11 +2403,42 @@ class FFMpegActions {
             copyTempToOutputAndUpdateTargetUri(tempOutput);
         }
 
+        private void adjustSpeedWithoutDecodingVideo(@NonNull File tempInput, @NonNull File tempOutput,
+                                                     boolean containsAudio,
+                                                     float inverseSpeed) throws IOException, InterruptedException {
+            Logger.d("Adjusting speed by rescaling the video timestamps");
+            final List<String> commands = new ArrayList<>();
+            // The first input only supplies the video, with its timestamps scaled on the way in.
+            commands.add("-itsscale");
+            commands.add(String.valueOf(inverseSpeed));
+            addInputCommands(tempInput, commands);
+            if (containsAudio) {
+                // The second input supplies the audio, which still has to go through atempo.
+                addInputCommands(tempInput, commands);
+            }
+
+            commands.add("-map");
+            commands.add("0:v:0");
+            commands.add("-c:v");
+            commands.add("copy");
+            if (containsAudio) {
+                commands.add("-map");
+                commands.add("1:a:0");
+                commands.add("-filter:a");
+                commands.add("atempo=" + relativeSpeed);
+            }
+
+            addOutputCommands(tempOutput, commands);
+            doFFMpegTask(commands);
+            copyTempToOutputAndUpdateTargetUri(tempOutput);
+        }
+
         @NonNull
         @Override
         public String toString() {
             return "AdjustSpeedAction{" +
                     "relativeSpeed=" + relativeSpeed +
+                    ", mode=" + mode +
                     "} " + super.toString();
         }
     }
@@ -879,12 +2453,25 @@ class FFMpegActions {
             this.db = db;
         }
 
+        @Nullable
         @Override
-        void execute() throws IOException, InterruptedException {
+        String getResultCacheParameters() {
+            return "db=" + db;
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
+            copyInputToTemp(inputUri, tempInput);
+
             final List<String> commands = new ArrayList<>();
             commands.add("-af");
             commands.add("volume=" + db + "dB");
-            doStandardFFMpegTaskAndUpdateTargetUri(inputUri, inputFileName, commands);
+            // Only the audio is changed, so the video can usually be copied through.
+            planStreams(tempInput, true).addVideoCodecCommands(commands);
+            doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(tempInput, tempOutput, 0, END_OF_INPUT, commands);
         }
 
         @NonNull
@@ -900,8 +2487,6 @@ class FFMpegActions {
         private final long silenceInsertionPointMs;
         private final long silenceDurationMs;
 
-        // NOTE: As a possible enhancement, this could work like trim or cut, but right now it
-        // re-encodes everything.
         AddSilenceAction(@NonNull Context context,
                          @NonNull Uri inputUri, @NonNull String inputFileName,
                          @NonNull Uri targetUri, @NonNull String targetFileName,
@@ -911,6 +2496,12 @@ class FFMpegActions {
             this.silenceDurationMs = silenceDurationMs;
         }
 
+        @Nullable
+        @Override
+        String getResultCacheParameters() {
+            return "at=" + silenceInsertionPointMs + ";duration=" + silenceDurationMs;
+        }
+
         @Override
         void execute() throws IOException, InterruptedException {
             final File cacheDir = setupCacheDir();
@@ -931,17 +2522,20 @@ class FFMpegActions {
             commands.add(convertMsToFFMpegSeconds(silenceDurationMs));
             commands.add("-i");
             commands.add("anullsrc");
-            // Add the input
-            addInputCommands(tempInput, commands);
-            // Chain the silence using a complex filter
+
+            // Add the portions before and after the silence as separate seeking inputs, and chain
+            // the silence in between them using a complex filter.
+            final String filter;
+            if (silenceInsertionPointMs > 0) {
+                addSegmentInputCommands(tempInput, 0, silenceInsertionPointMs, commands);
+                addSegmentInputCommands(tempInput, silenceInsertionPointMs, END_OF_INPUT, commands);
+                filter = "[1:a][0][2:a]concat=n=3:v=0:a=1";
+            } else {
+                addSegmentInputCommands(tempInput, 0, END_OF_INPUT, commands);
+                filter = "[0][1:a]concat=n=2:v=0:a=1";
+            }
             commands.add("-filter_complex");
-            commands.add(
-                    // Portion before silence
-                    "[1:a]atrim=end=" + convertMsToFFMpegSeconds(silenceInsertionPointMs) + ",asetpts=N/SR/TB[a0];"
-                            // Portion after silence
-                            + "[1:a]atrim=start=" + convertMsToFFMpegSeconds(silenceInsertionPointMs) + ",asetpts=N/SR/TB[a1];"
-                            + "[a0][0][a1]concat=n=3:v=0:a=1"
-            );
+            commands.add(filter);
             addOutputCommands(tempOutput, commands);
             copyInputToTemp(inputUri, tempInput);
             doFFMpegTask(commands);
@@ -958,13 +2552,267 @@ class FFMpegActions {
         }
     }
 
+    // Applies a list of edits in one go. The steps become a single audio filter chain and a single
+    // video filter chain, so the input is decoded and encoded once, rather than once per edit with
+    // a loss of quality each time. The output type comes from the target's extension.
+    static class ChainedEditAction extends ActionWithSingleInput {
+        @NonNull
+        final List<EditStep> steps;
+        @Nullable
+        final BitrateWithValue optionalSelectedBitrate;
+
+        ChainedEditAction(@NonNull Context context,
+                          @NonNull Uri inputUri, @NonNull String inputFileName,
+                          @NonNull Uri targetUri, @NonNull String targetFileName,
+                          @NonNull List<EditStep> steps, @Nullable BitrateWithValue selectedBitrate) {
+            super(context, inputUri, inputFileName, targetUri, targetFileName);
+            if (selectedBitrate != null && selectedBitrate.type == TARGET_SIZE) {
+                // The output duration isn't known until the steps have run.
+                throw new IllegalArgumentException("A chained edit can't have a target size");
+            }
+            this.steps = new ArrayList<>(steps);
+            this.optionalSelectedBitrate = selectedBitrate;
+        }
+
+        @Nullable
+        @Override
+        String getResultCacheParameters() {
+            return "steps=" + steps + ";bitrate=" + describeBitrate(optionalSelectedBitrate);
+        }
+
+        @Override
+        void execute() throws IOException, InterruptedException, JSONException {
+            final File cacheDir = setupCacheDir();
+            final File tempInput = stageInput(cacheDir);
+            final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
+
+            final MediaMetadata metadata = loadMetadata(inputUri, tempInput);
+            final OutputFormatType outputFormatType = OutputFormatType.getMatchingOutputType(getCanonicalExtension(targetFileName));
+            final boolean containsAudio = metadata.containsAudio();
+            final boolean keepsVideo = metadata.containsVideo()
+                    && (outputFormatType == null || outputFormatType.isVideoOutputType());
+
+            // Trims at the start of the chain are done by seeking in the input instead, so that only
+            // the part that's kept gets decoded.
+            long segmentStartMs = 0;
+            long segmentEndMs = END_OF_INPUT;
+            int firstFilteredStep = 0;
+            while (firstFilteredStep < steps.size() && steps.get(firstFilteredStep).action == EditAction.TRIM) {
+                final EditStep trim = steps.get(firstFilteredStep++);
+                final long endMs = segmentStartMs + trim.endMs;
+                segmentEndMs = segmentEndMs == END_OF_INPUT ? endMs : Math.min(segmentEndMs, endMs);
+                segmentStartMs = Math.min(segmentStartMs + trim.startMs, segmentEndMs);
+            }
+
+            final List<String> audioFilters = new ArrayList<>();
+            final List<String> videoFilters = new ArrayList<>();
+            boolean resetsSampleRate = false;
+            for (EditStep step : steps.subList(firstFilteredStep, steps.size())) {
+                switch (step.action) {
+                    case TRIM:
+                        final String range = "start=" + convertMsToFFMpegSeconds(step.startMs)
+                                + ":end=" + convertMsToFFMpegSeconds(step.endMs);
+                        audioFilters.add("atrim=" + range + ",asetpts=PTS-STARTPTS");
+                        videoFilters.add("trim=" + range + ",setpts=PTS-STARTPTS");
+                        break;
+                    case ADJUST_VOLUME:
+                        audioFilters.add("volume=" + step.db + "dB");
+                        break;
+                    case ADJUST_SPEED:
+                        audioFilters.add("atempo=" + step.relativeSpeed);
+                        // The video is decoded for the graph anyway, so RETIME_ONLY is the same
+                        // as FAST here.
+                        videoFilters.add("setpts=" + (1 / step.relativeSpeed) + "*PTS"
+                                + (step.speedAdjustmentMode == SpeedAdjustmentMode.BLEND ? ",minterpolate='mi_mode=blend'" : ""));
+                        break;
+                    case NORMALIZE:
+                        audioFilters.add("loudnorm=" + NormalizeAction.LOUDNORM_TARGETS + ":print_format=summary");
+                        resetsSampleRate = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Can't chain " + step);
+                }
+            }
+
+            final boolean filtersAudio = containsAudio && !audioFilters.isEmpty();
+            final boolean filtersVideo = keepsVideo && !videoFilters.isEmpty();
+            final StreamCopyPlanner.Plan plan = planStreams(tempInput, filtersAudio || optionalSelectedBitrate != null);
+            final List<String> commands = new ArrayList<>();
+            if (filtersAudio) {
+                commands.add("-af");
+                commands.add(TextUtils.join(",", audioFilters));
+                if (resetsSampleRate && metadata.sampleRate > 0) {
+                    // loudnorm upsamples to 192 kHz internally.
+                    commands.add("-ar");
+                    commands.add(String.valueOf(metadata.sampleRate));
+                }
+            } else if (optionalSelectedBitrate == null) {
+                plan.addAudioCodecCommands(commands);
+            }
+            if (filtersVideo) {
+                commands.add("-vf");
+                commands.add(TextUtils.join(",", videoFilters));
+            } else if (keepsVideo) {
+                plan.addVideoCodecCommands(commands);
+            } else {
+                commands.add("-vn");
+            }
+            if (outputFormatType != null) {
+                addOutputFormatCommands(outputFormatType, optionalSelectedBitrate, plan, commands);
+            }
+
+            Logger.d("Chained edit of " + inputFileName + ": " + steps);
+            doStandardFFMpegTaskOnTempInputAndUpdateTargetUri(tempInput, tempOutput, segmentStartMs, segmentEndMs, commands);
+        }
+
+        @NonNull
+        File stageInput(@NonNull File cacheDir) throws IOException, InterruptedException {
+            final File tempInput = createTempFileForInput(cacheDir, inputFileName);
+            copyInputToTemp(inputUri, tempInput);
+            return tempInput;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "ChainedEditAction{" +
+                    "steps=" + steps +
+                    "} " + super.toString();
+        }
+    }
+
+    // Renders a few seconds of the input with the given steps applied, so that the user can hear
+    // the result before starting the full job. Only the audio is rendered, and to PCM, so there's
+    // no encoder to wait on. The leading trim becomes input seeking, so only the window itself is
+    // decoded.
+    //
+    // Previews run alongside the queue, which clears the cache dir before every request, so this
+    // works in its own dir instead and moves the result straight to the output file.
+    //
+    // A preview only decodes a few seconds, but copying the input costs as much as for the full
+    // job. The input is staged once in stagingDir instead, and reused by the following previews of
+    // the same version of the same document.
+    static class PreviewAction extends ChainedEditAction {
+        @NonNull
+        private final File workDir;
+        @NonNull
+        private final File output;
+        @NonNull
+        private final File stagingDir;
+        @NonNull
+        private final String stagingKey;
+
+        PreviewAction(@NonNull Context context,
+                      @NonNull Uri inputUri, @NonNull String inputFileName,
+                      @NonNull File workDir, @NonNull File output,
+                      @NonNull File stagingDir, @NonNull String stagingKey,
+                      long startMs, long endMs, @NonNull List<EditStep> steps) {
+            super(context, inputUri, inputFileName, Uri.fromFile(output), output.getName(),
+                    withLeadingTrim(startMs, endMs, steps), null);
+            this.workDir = workDir;
+            this.output = output;
+            this.stagingDir = stagingDir;
+            this.stagingKey = stagingKey;
+        }
+
+        @NonNull
+        private static List<EditStep> withLeadingTrim(long startMs, long endMs, @NonNull List<EditStep> steps) {
+            final List<EditStep> stepsWithTrim = new ArrayList<>();
+            stepsWithTrim.add(EditStep.trim(startMs, endMs));
+            stepsWithTrim.addAll(steps);
+            return stepsWithTrim;
+        }
+
+        // A preview is thrown away as soon as the next one is rendered.
+        @Nullable
+        @Override
+        String getResultCacheParameters() {
+            return null;
+        }
+
+        @NonNull
+        @Override
+        File setupCacheDir() {
+            if (!workDir.mkdirs()) {
+                Logger.d("Did not create preview dir " + workDir);
+            }
+            return workDir;
+        }
+
+        @NonNull
+        @Override
+        File stageInput(@NonNull File cacheDir) throws IOException, InterruptedException {
+            final File stagedInput = new File(stagingDir, "input-" + Integer.toHexString(stagingKey.hashCode())
+                    + "." + getCanonicalExtension(inputFileName));
+            if (stagedInput.exists()) {
+                Logger.d("Reusing staged input " + stagedInput + " for " + inputUri);
+                return stagedInput;
+            }
+
+            // Only the latest input is kept. The copy goes to a partial file first, so that a
+            // cancelled preview doesn't leave a truncated input behind for the next one.
+            FileUtils.deleteChildren(stagingDir);
+            if (!stagingDir.mkdirs()) {
+                Logger.d("Did not create staging dir " + stagingDir);
+            }
+            final File partialInput = new File(stagingDir, stagedInput.getName() + ".partial");
+            copyInputToTemp(inputUri, partialInput);
+            if (!partialInput.renameTo(stagedInput)) {
+                throw new IOException("Could not move " + partialInput + " to " + stagedInput);
+            }
+            return stagedInput;
+        }
+
+        @NonNull
+        @Override
+        Uri copyTempToOutputAndUpdateExtensionIfNecessary(@NonNull File tempOutputFile,
+                                                          @NonNull Uri targetUri,
+                                                          @NonNull String expectedExtension) throws IOException {
+            if (!tempOutputFile.renameTo(output)) {
+                throw new IOException("Could not move " + tempOutputFile + " to " + output);
+            }
+            return Uri.fromFile(output);
+        }
+
+        @Override
+        void deleteTargets() {
+            if (output.exists() && !output.delete()) {
+                Logger.v("Could not delete " + output);
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "PreviewAction{" +
+                    "workDir=" + workDir +
+                    ", output=" + output +
+                    ", stagingDir=" + stagingDir +
+                    ", stagingKey='" + stagingKey + '\'' +
+                    "} " + super.toString();
+        }
+    }
+
     // TODO Normalization seems to fail for some files (i.e. scanning returns -inf or +inf for some
     // values. Should probably return an appropriate failure?
     static class NormalizeAction extends ActionWithSingleInput {
+        static final String LOUDNORM_TARGETS = "I=-16:TP=-1.5:LRA=11";
+
+        @NonNull
+        private final NormalizeMode mode;
+
         NormalizeAction(@NonNull Context context,
                         @NonNull Uri inputUri, @NonNull String inputFileName,
-                        @NonNull Uri targetUri, @NonNull String targetFileName) {
+                        @NonNull Uri targetUri, @NonNull String targetFileName,
+                        @NonNull NormalizeMode mode) {
             super(context, inputUri, inputFileName, targetUri, targetFileName);
+            this.mode = mode;
+        }
+
+        @Nullable
+        @Override
+        String getResultCacheParameters() {
+            return "mode=" + mode + ";targets=" + LOUDNORM_TARGETS;
         }
 
         @Override
@@ -975,58 +2823,67 @@ class FFMpegActions {
             final File tempInput = createTempFileForInput(cacheDir, inputFileName);
             final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
 
-            // First pass
-            addInputCommands(tempInput, commands);
-            commands.add("-af");
-            commands.add("loudnorm=print_format=json");
-            commands.add("-f");
-            commands.add("null");
-            commands.add("/dev/null");
-
             copyInputToTemp(inputUri, tempInput);
-            final String output = doFFMpegTask(commands);
-            final int loudnormIndex = output.lastIndexOf("Parsed_loudnorm");
-            if (loudnormIndex == -1) {
-                throw new RuntimeException("Parsed_loudnorm block not found.");
-            }
-            final int jsonBlockBegin = output.indexOf('{', loudnormIndex);
-            if (jsonBlockBegin == -1) {
-                throw new RuntimeException("Parsed_loudnorm JSON block not found.");
-            }
-            final String jsonBlock = output.substring(jsonBlockBegin);
-            final JSONObject json = new JSONObject(jsonBlock);
-
-            final String measuredI = (String) json.get("input_i");
-            final String measuredTp = (String) json.get("input_tp");
-            final String measuredLra = (String) json.get("input_lra");
-            final String measuredThresh = (String) json.get("input_thresh");
-            final String targetOffset = (String) json.get("target_offset");
-
-            final String[] tokens = output.split(" ");
-            int sampleRateHzIndex = sequentialSearch(tokens, "Hz,");
-            if (sampleRateHzIndex == -1) {
+
+            // loudnorm upsamples to 192 kHz internally, so set the output back to the input rate.
+            final MediaMetadata metadata = loadMetadata(inputUri, tempInput);
+            if (metadata.sampleRate <= 0) {
                 throw new RuntimeException("Couldn't find input sample rate in Hz");
             }
-            final String inputSampleRate = tokens[sampleRateHzIndex - 1];
+            final String inputSampleRate = String.valueOf(metadata.sampleRate);
+
+            final String loudnormFilter;
+            if (mode == NormalizeMode.DYNAMIC_SINGLE_PASS) {
+                // Without measured values, loudnorm works out the gain as it goes.
+                loudnormFilter = "loudnorm=" + LOUDNORM_TARGETS + ":print_format=summary";
+            } else {
+                final LoudnormMeasurementCache.Measurement measurement = measure(tempInput, metadata);
+                loudnormFilter = "loudnorm=" + LOUDNORM_TARGETS + ":measured_I=" + measurement.inputI
+                        + ":measured_TP=" + measurement.inputTp + ":measured_LRA=" + measurement.inputLra
+                        + ":measured_thresh=" + measurement.inputThresh + ":offset=" + measurement.targetOffset
+                        + ":linear=true:print_format=summary";
+            }
 
-            // Second pass
-            commands.clear();
             addInputCommands(tempInput, commands);
             commands.add("-af");
-            commands.add("loudnorm=I=-16:TP=-1.5:LRA=11:measured_I=" + measuredI + ":measured_TP="
-                    + measuredTp + ":measured_LRA=" + measuredLra + ":measured_thresh=" + measuredThresh
-                    + ":offset=" + targetOffset + ":linear=true:print_format=summary");
+            commands.add(loudnormFilter);
             commands.add("-ar");
             commands.add(inputSampleRate);
+            // Only the audio is changed, so the video can usually be copied through.
+            planStreams(tempInput, true).addVideoCodecCommands(commands);
             addOutputCommands(tempOutput, commands);
             doFFMpegTask(commands);
             copyTempToOutputAndUpdateTargetUri(tempOutput);
         }
 
+        // The first pass only analyses the input, so its results can be reused for as long as the
+        // content is the same. Leaves the progress set up for the pass that follows.
+        @NonNull
+        private LoudnormMeasurementCache.Measurement measure(@NonNull File tempInput, @NonNull MediaMetadata metadata) throws IOException, InterruptedException {
+            final String fingerprint = ContentFingerprint.of(tempInput);
+            final LoudnormMeasurementCache cache = getLoudnormMeasurementCache();
+            final LoudnormMeasurementCache.Measurement cachedMeasurement = cache.get(fingerprint, LOUDNORM_TARGETS);
+            if (cachedMeasurement != null) {
+                Logger.d("Using cached loudnorm measurement for " + inputUri + ": " + cachedMeasurement);
+                return cachedMeasurement;
+            }
+
+            setPass(0, 2);
+            final LoudnessHistogram histogram = measureLoudness(tempInput, metadata);
+            setPass(1, 2);
+
+            final LoudnormMeasurementCache.Measurement measurement =
+                    LoudnormMeasurementCache.Measurement.fromHistogram(histogram);
+            cache.put(fingerprint, LOUDNORM_TARGETS, measurement);
+            return measurement;
+        }
+
         @NonNull
         @Override
         public String toString() {
-            return "NormalizeAction{} " + super.toString();
+            return "NormalizeAction{" +
+                    "mode=" + mode +
+                    "} " + super.toString();
         }
     }
 
@@ -1049,53 +2906,46 @@ class FFMpegActions {
         }
 
         @Override
-        void execute() throws IOException, InterruptedException {
+        void execute() throws IOException, InterruptedException, JSONException {
             final File cacheDir = setupCacheDir();
             final File tempInput = createTempFileForInput(cacheDir, inputFileName);
             final File tempOutput = createTempFileForOutput(cacheDir, targetFileName);
 
             copyInputToTemp(inputUri, tempInput);
+            final StreamCopyPlanner.Plan plan = planStreams(tempInput, false);
 
             Logger.d("Splitting: extracting first part");
-            executeFirstSplit(tempInput, tempOutput);
+            executeFirstSplit(tempInput, tempOutput, plan);
             copyTempToOutputAndUpdateTargetUri(tempOutput);
 
             Logger.d("Splitting: extracting second part");
-            executeSecondSplit(tempInput, tempOutput);
+            executeSecondSplit(tempInput, tempOutput, plan);
             secondTargetUri = copyTempToOutputAndUpdateExtensionIfNecessary(tempOutput, secondTargetUri, getCanonicalExtension(targetFileName));
         }
 
-        private void executeFirstSplit(@NonNull File tempInput, @NonNull File tempOutput) throws InterruptedException {
+        private void executeFirstSplit(@NonNull File tempInput, @NonNull File tempOutput,
+                                       @NonNull StreamCopyPlanner.Plan plan) throws InterruptedException {
             final List<String> commands = new ArrayList<>();
-            addInputCommands(tempInput, commands);
             // Pretty much the same as a trim command.
+            addSegmentInputCommands(tempInput, 0, splitAtMs, commands);
             // Copy data
-            commands.add("-codec");
-            commands.add("copy");
-            // Start time
-            commands.add("-ss");
-            commands.add(convertMsToFFMpegTime(0));
-            // End time
-            commands.add("-t");
-            commands.add(convertMsToFFMpegTime(splitAtMs));
+            if (plan.canCopyAllStreams()) {
+                plan.addCodecCommands(commands);
+            }
 
             addOutputCommands(tempOutput, commands);
             doFFMpegTask(commands);
         }
 
-        private void executeSecondSplit(@NonNull File tempInput, @NonNull File tempOutput) throws InterruptedException {
+        private void executeSecondSplit(@NonNull File tempInput, @NonNull File tempOutput,
+                                        @NonNull StreamCopyPlanner.Plan plan) throws InterruptedException {
             final List<String> commands = new ArrayList<>();
-            addInputCommands(tempInput, commands);
             // Pretty much the same as a trim command.
+            addSegmentInputCommands(tempInput, splitAtMs, END_OF_INPUT, commands);
             // Copy data
-            commands.add("-codec");
-            commands.add("copy");
-            // Start time
-            commands.add("-ss");
-            commands.add(convertMsToFFMpegTime(splitAtMs));
-            // End time
-            commands.add("-t");
-            commands.add(convertMsToFFMpegTime(Integer.MAX_VALUE));
+            if (plan.canCopyAllStreams()) {
+                plan.addCodecCommands(commands);
+            }
 
             addOutputCommands(tempOutput, commands);
             doFFMpegTask(commands);
@@ -1326,6 +3176,12 @@ class FFMpegActions {
         return String.format(Locale.US, "%d.%03d", seconds, ms_part);
     }
 
+    @NonNull
+    private static String convertUsToFFMpegSeconds(long us) {
+        // We want to format this as ss.xxxxxx
+        return String.format(Locale.US, "%d.%06d", us / 1000000, us % 1000000);
+    }
+
     @NonNull
     private static String convertMsToFFMpegTime(long ms) {
         // We want to format this as hh:mm:ss[.xxx]
@@ -1338,16 +3194,6 @@ class FFMpegActions {
     }
 
     @SuppressWarnings("SameParameterValue")
-    private static int sequentialSearch(@NonNull String[] arr, @NonNull String key) {
-        for (int i = 0; i < arr.length; ++i) {
-            if (arr[i].equals(key)) {
-                return i;
-            }
-        }
-
-        return -1;
-    }
-
     @NonNull
     private static File chooseCacheDir(@NonNull Context context) {
         // Choose whichever of the internal and external has more space.
@@ -1407,6 +3253,23 @@ class FFMpegActions {
         commands.add(input);
     }
 
+    // Adds a segment of the input, from startMs up to endMs, as an input to FFMPEG. The -ss and -t
+    // options are placed before -i so that FFMPEG seeks in the input instead of decoding everything
+    // before the segment just to throw it away; a segment deep inside a long file then only costs
+    // its own length. Pass END_OF_INPUT as the end to read until the end of the input.
+    private static void addSegmentInputCommands(@NonNull File input, long startMs, long endMs,
+                                                @NonNull List<String> commands) {
+        if (startMs > 0) {
+            commands.add("-ss");
+            commands.add(convertMsToFFMpegTime(startMs));
+        }
+        if (endMs != END_OF_INPUT) {
+            commands.add("-t");
+            commands.add(convertMsToFFMpegTime(Math.max(0, endMs - startMs)));
+        }
+        addInputCommands(input, commands);
+    }
+
     private static void addOutputCommands(@NonNull File output, @NonNull List<String> commands) {
         commands.add(output.getAbsolutePath());
     }
@@ -37,15 +37,21 @@ import com.digipom.easymediaconverter.edit.Bitrates.BitrateWithValue;
 import com.digipom.easymediaconverter.edit.EditAction;
 import com.digipom.easymediaconverter.edit.OutputFormatType;
 import com.digipom.easymediaconverter.edit.RingtoneType;
+import com.digipom.easymediaconverter.edit.NormalizeMode;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.AddSilenceAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.AdjustSpeedAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.AdjustVolumeAction;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.BatchMakeVideoAction;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.ChainedEditAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.CombineAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.ConversionAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.CutAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.ExtractAudioAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.MakeVideoAction;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.MultiConversionAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.NormalizeAction;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.PreviewAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.SetAsRingtoneAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.SplitAction;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegActions.TrimAction;
@@ -67,13 +73,36 @@ import java.util.NoSuchElementException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_WAVE;
+
 public class FFMpegController {
+    // Renders a preview, and plays it back.
+    public interface PreviewListener {
+        @MainThread
+        void onPreviewReady(@NonNull Uri previewUri);
+
+        @MainThread
+        void onPreviewFailed(@NonNull Exception e);
+    }
+
+    private static final String PREVIEW_DIR_NAME = "preview";
+    private static final String PREVIEW_INPUT_DIR_NAME = "preview-input";
+    private static final long PREVIEW_LENGTH_MS = 10 * 1000;
+    // The preview starts a little before the playhead, so that the user hears the change against
+    // what they were just listening to.
+    private static final long PREVIEW_LEAD_IN_MS = 2 * 1000;
+
     private final Context context;
     private final Executor backgroundExecutor = ExecutorUtils.newSingleThreadExecutorWithTimeout();
+    // Previews don't wait behind the queue; they run next to whatever it's doing.
+    private final Executor previewExecutor = ExecutorUtils.newSingleThreadExecutorWithTimeout();
     private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
     private final RequestsTracker requestsTracker = new RequestsTracker();
     private final AppPreferences appPreferences;
     private final NotificationsController notificationsController;
+    private int nextPreviewId;
+    @Nullable
+    private PreviewAction currentPreview;
 
     // An observeable that can be used to observe the requests state from the outside world.
     private final MutableLiveData<RequestsState> requestsState = new MutableLiveData<>();
@@ -109,6 +138,20 @@ public class FFMpegController {
         processPendingRequests();
     }
 
+    @MainThread
+    public void submitMultiConversionRequest(@NonNull MediaItem input,
+                                             @NonNull ConversionTarget[] targets) {
+        if (targets.length == 0) {
+            throw new IllegalArgumentException("A conversion needs at least one target");
+        }
+        Logger.v("Adding multi-target conversion request for input " + input
+                + ", outputs {" + TextUtils.join(", ", targets) + "}");
+        addRequest(
+                new CancellableRequest(getNextRequestId(), EditAction.CONVERT, input,
+                        new MultiConversionAction(context, input.getUri(), input.getFilename(), targets)));
+        processPendingRequests();
+    }
+
     @MainThread
     public void submitMakeVideoRequest(@NonNull MediaItem input,
                                        @NonNull Uri targetUri,
@@ -127,6 +170,23 @@ public class FFMpegController {
         processPendingRequests();
     }
 
+    @MainThread
+    public void submitBatchMakeVideoRequest(@NonNull MediaItem[] inputs,
+                                            @NonNull Uri[] targetUris,
+                                            @NonNull String[] targetFileNames,
+                                            @Nullable Uri customCoverImageUri,
+                                            @Nullable String customCoverImageFileName) {
+        Logger.v("Adding batch make video request for inputs {" + TextUtils.join(", ", inputs)
+                + "}, outputs {" + TextUtils.join(", ", targetUris) + "}"
+                + (customCoverImageUri != null ? ", custom image uri: " + customCoverImageUri : "")
+                + (customCoverImageFileName != null ? ", custom image name: " + customCoverImageFileName : ""));
+        addRequest(
+                new CancellableRequest(getNextRequestId(), EditAction.CONVERT_TO_VIDEO, inputs,
+                        new BatchMakeVideoAction(context, inputs, targetUris, targetFileNames,
+                                customCoverImageUri, customCoverImageFileName)));
+        processPendingRequests();
+    }
+
     public void submitExtractAudioRequest(@NonNull MediaItem input,
                                           @NonNull Uri targetUri,
                                           @NonNull String targetFileName,
@@ -192,14 +252,15 @@ public class FFMpegController {
     public void submitSpeedAdjustmentRequest(@NonNull MediaItem input,
                                              @NonNull Uri targetUri,
                                              @NonNull String targetFileName,
-                                             float relativeSpeed) {
+                                             float relativeSpeed,
+                                             @NonNull SpeedAdjustmentMode mode) {
         Logger.v("Adding speed adjustment request for input " + input
                 + ", output " + targetUri + " with name " + targetFileName
-                + " with speed adjustment: " + relativeSpeed + "x");
+                + " with speed adjustment: " + relativeSpeed + "x, mode: " + mode);
         addRequest(
                 new CancellableRequest(getNextRequestId(), EditAction.ADJUST_SPEED, input,
                         new AdjustSpeedAction(context, input.getUri(), input.getFilename(),
-                                targetUri, targetFileName, relativeSpeed)));
+                                targetUri, targetFileName, relativeSpeed, mode)));
         processPendingRequests();
     }
 
@@ -237,13 +298,14 @@ public class FFMpegController {
     @MainThread
     public void submitNormalizeRequest(@NonNull MediaItem input,
                                        @NonNull Uri targetUri,
-                                       @NonNull String targetFileName) {
+                                       @NonNull String targetFileName,
+                                       @NonNull NormalizeMode mode) {
         Logger.v("Adding normalize request for input " + input
-                + ", output " + targetUri + " with name " + targetFileName);
+                + ", output " + targetUri + " with name " + targetFileName + ", mode: " + mode);
         addRequest(
                 new CancellableRequest(getNextRequestId(), EditAction.NORMALIZE, input,
                         new NormalizeAction(context, input.getUri(), input.getFilename(),
-                                targetUri, targetFileName)));
+                                targetUri, targetFileName, mode)));
         processPendingRequests();
     }
 
@@ -264,6 +326,25 @@ public class FFMpegController {
         processPendingRequests();
     }
 
+    @MainThread
+    public void submitChainedEditRequest(@NonNull MediaItem input,
+                                         @NonNull Uri targetUri,
+                                         @NonNull String targetFileName,
+                                         @NonNull List<EditStep> steps,
+                                         @Nullable BitrateWithValue selectedBitrate) {
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("A chained edit needs at least one step");
+        }
+        Logger.v("Adding chained edit request for input " + input
+                + ", output " + targetUri + " with name " + targetFileName
+                + " and steps {" + TextUtils.join(", ", steps) + "}");
+        addRequest(
+                new CancellableRequest(getNextRequestId(), EditAction.CHAINED_EDIT, input,
+                        new ChainedEditAction(context, input.getUri(), input.getFilename(), targetUri,
+                                targetFileName, steps, selectedBitrate)));
+        processPendingRequests();
+    }
+
     @MainThread
     public void submitCombineRequest(@NonNull MediaItem[] inputs,
                                      @NonNull Uri targetUri,
@@ -292,6 +373,100 @@ public class FFMpegController {
         processPendingRequests();
     }
 
+    // Renders a short window of the input around aroundMs with the steps applied. The listener is
+    // only called back for the latest preview; submitting a new one cancels the one before it.
+    @MainThread
+    public void submitPreviewRequest(@NonNull MediaItem input,
+                                     long aroundMs,
+                                     long durationMs,
+                                     @NonNull List<EditStep> steps,
+                                     @NonNull final PreviewListener listener) {
+        cancelPreviewRequest();
+
+        long startMs = Math.max(0, aroundMs - PREVIEW_LEAD_IN_MS);
+        long endMs = startMs + PREVIEW_LENGTH_MS;
+        if (durationMs > 0 && endMs > durationMs) {
+            // Near the end, preview the last few seconds instead of a shorter window.
+            endMs = durationMs;
+            startMs = Math.max(0, endMs - PREVIEW_LENGTH_MS);
+        }
+
+        final int previewId = nextPreviewId++;
+        final File previewDir = new File(context.getNoBackupFilesDir(), PREVIEW_DIR_NAME);
+        final File workDir = new File(previewDir, "work-" + previewId);
+        final File output = new File(previewDir, "preview-" + previewId + "." + FILETYPE_WAVE);
+        // The staged input is reused until the document changes.
+        final File stagingDir = new File(context.getNoBackupFilesDir(), PREVIEW_INPUT_DIR_NAME);
+        final String stagingKey = input.getUri() + ";size=" + input.getSize()
+                + ";lastModified=" + input.getOptionalLastModifiedDate();
+        final PreviewAction action = new PreviewAction(context, input.getUri(), input.getFilename(),
+                workDir, output, stagingDir, stagingKey, startMs, endMs, steps);
+        Logger.v("Adding preview request for input " + input + " from " + startMs + "ms to " + endMs
+                + "ms with steps {" + TextUtils.join(", ", steps) + "}");
+        currentPreview = action;
+
+        previewExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Earlier previews are no longer needed. One that's still playing keeps its
+                    // file open, so deleting it here doesn't cut it off.
+                    FileUtils.deleteChildren(previewDir);
+                    action.execute();
+                    notifyPreviewReady(action, listener, Uri.fromFile(output));
+                } catch (RequestCancelledException e) {
+                    Logger.d("Preview " + action + " was cancelled", e);
+                    action.deleteTargets();
+                } catch (Exception e) {
+                    Logger.w("Preview " + action + " failed", e);
+                    action.deleteTargets();
+                    notifyPreviewFailed(action, listener, e);
+                } finally {
+                    FileUtils.deleteChildren(workDir);
+                    if (!workDir.delete()) {
+                        Logger.v("Could not delete " + workDir);
+                    }
+                }
+            }
+        });
+    }
+
+    @MainThread
+    public void cancelPreviewRequest() {
+        if (currentPreview != null) {
+            currentPreview.requestCancellation();
+            currentPreview = null;
+        }
+    }
+
+    @WorkerThread
+    private void notifyPreviewReady(@NonNull final PreviewAction action, @NonNull final PreviewListener listener,
+                                    @NonNull final Uri previewUri) {
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (currentPreview == action) {
+                    currentPreview = null;
+                    listener.onPreviewReady(previewUri);
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    private void notifyPreviewFailed(@NonNull final PreviewAction action, @NonNull final PreviewListener listener,
+                                     @NonNull final Exception e) {
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (currentPreview == action) {
+                    currentPreview = null;
+                    listener.onPreviewFailed(e);
+                }
+            }
+        });
+    }
+
     private int getNextRequestId() {
         return requestsTracker.getNextRequestId();
     }
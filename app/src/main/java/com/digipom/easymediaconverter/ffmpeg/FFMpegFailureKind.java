@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+// Sorts a failed FFMPEG run by its output, so that actions can tell a stream copy that the output
+// container didn't accept from a failure that another plan wouldn't get past either.
+enum FFMpegFailureKind {
+    // The packets couldn't be copied as they are: bad timestamps, missing codec parameters, or a
+    // codec the muxer wouldn't take. Encoding the stream again usually gets past these.
+    STREAM_COPY(true),
+    // The input itself couldn't be read, so a different output plan would fail the same way.
+    UNREADABLE_INPUT(false),
+    // Out of space or memory, or no access to a file.
+    ENVIRONMENT(false),
+    // The execution stopped making progress and was cancelled by the watchdog, after it had
+    // already been given a second run, or after it didn't stop and couldn't safely be run again.
+    STALLED(false),
+    // Nothing we recognise. Another plan might still work, so it's worth the retry.
+    UNKNOWN(true);
+
+    private static final String[] STREAM_COPY_PATTERNS = {
+            "non-monotonous dts",
+            "non monotonically increasing dts",
+            "timestamps are unset",
+            "could not write header",
+            "incorrect codec parameters",
+            "not currently supported in container",
+            "could not find tag for codec",
+            "incompatible with output codec",
+            "malformed aac bitstream",
+            "aac bitstream not in adts format",
+            "error applying bitstream filters",
+            "error initializing bitstream filter",
+    };
+
+    private static final String[] UNREADABLE_INPUT_PATTERNS = {
+            "invalid data found when processing input",
+            "moov atom not found",
+    };
+
+    // FFMPEG also prints "End of file" for truncated pipes and for muxer and bitstream filter
+    // errors, so it's only taken to mean an unreadable input when it's the whole reason an input
+    // couldn't be opened: "<input>: End of file", with no error prefix or function name in front.
+    private static final String INPUT_END_OF_FILE_SUFFIX = ": end of file";
+
+    private static final String[] ENVIRONMENT_PATTERNS = {
+            "no space left on device",
+            "permission denied",
+            "cannot allocate memory",
+            "out of memory",
+    };
+
+    final boolean isWorthRetryingWithAnotherPlan;
+
+    FFMpegFailureKind(boolean isWorthRetryingWithAnotherPlan) {
+        this.isWorthRetryingWithAnotherPlan = isWorthRetryingWithAnotherPlan;
+    }
+
+    // The environment is checked first, since running out of space while writing the header
+    // would otherwise look like a muxer problem.
+    @NonNull
+    static FFMpegFailureKind of(@NonNull String output) {
+        final String lowerCaseOutput = output.toLowerCase(Locale.US);
+        if (containsAny(lowerCaseOutput, ENVIRONMENT_PATTERNS)) {
+            return ENVIRONMENT;
+        } else if (containsAny(lowerCaseOutput, UNREADABLE_INPUT_PATTERNS)) {
+            return UNREADABLE_INPUT;
+        } else if (containsAny(lowerCaseOutput, STREAM_COPY_PATTERNS)) {
+            return STREAM_COPY;
+        } else if (containsInputEndOfFile(lowerCaseOutput)) {
+            return UNREADABLE_INPUT;
+        } else {
+            return UNKNOWN;
+        }
+    }
+
+    private static boolean containsInputEndOfFile(@NonNull String output) {
+        for (String line : output.split("\n")) {
+            final String trimmedLine = line.trim();
+            if (trimmedLine.endsWith(INPUT_END_OF_FILE_SUFFIX)
+                    && !trimmedLine.startsWith("[")
+                    && !trimmedLine.contains("error")
+                    && !trimmedLine.contains("()")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsAny(@NonNull String output, @NonNull String[] patterns) {
+        for (String pattern : patterns) {
+            if (output.contains(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
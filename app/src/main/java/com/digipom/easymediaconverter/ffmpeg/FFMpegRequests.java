@@ -81,7 +81,7 @@ public class FFMpegRequests {
         @WorkerThread
         void execute() throws InterruptedException, JSONException, IOException {
             try {
-                ffMpegAction.execute();
+                ffMpegAction.executeOrReuseCachedResult(editAction);
                 if (isCancelled.get()) {
                     throw new RequestCancelledException("isCancelled is set to true");
                 }
@@ -20,6 +20,8 @@
  */
 package com.digipom.easymediaconverter.ffmpeg;
 
+import android.os.SystemClock;
+
 import androidx.annotation.AnyThread;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
@@ -36,16 +38,32 @@ import com.arthenica.mobileffmpeg.LogCallback;
 import com.arthenica.mobileffmpeg.LogMessage;
 import com.arthenica.mobileffmpeg.Statistics;
 import com.arthenica.mobileffmpeg.StatisticsCallback;
+import com.digipom.easymediaconverter.utils.ExecutorUtils;
 import com.digipom.easymediaconverter.utils.ObjectUtils;
 import com.digipom.easymediaconverter.utils.logger.Logger;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -54,17 +72,34 @@ import static com.arthenica.mobileffmpeg.Config.RETURN_CODE_SUCCESS;
 
 class FFMpegTaskWrapper {
     private static final TaskTracker TASK_TRACKER = new TaskTracker();
+    private static final ThreadBudget THREAD_BUDGET = new ThreadBudget(Runtime.getRuntime().availableProcessors());
+    // Waits on the executions of runTasksInParallel(); the FFMPEG work itself happens on
+    // mobile-ffmpeg's own threads.
+    private static final ExecutorService PARALLEL_EXECUTOR =
+            ExecutorUtils.newFixedThreadPoolWithTimeout(Runtime.getRuntime().availableProcessors());
+    // How often a running execution is checked for progress.
+    private static final long WATCHDOG_INTERVAL_MS = 1000;
+    // How long to wait for a stalled execution to stop after cancelling it. An execution that's
+    // blocked in a read might never check for the cancellation, so after this we stop waiting.
+    private static final long STALLED_EXECUTION_GRACE_PERIOD_MS = 10 * 1000;
+    // A stalled execution is run once more before giving up, since a stuck read is often a
+    // one-off. Only executions that actually stopped are run again.
+    static final int MAX_STALL_RETRIES = 1;
+    // Kept for the diagnostic of a stalled execution.
+    private static final int MAX_RECENT_LOG_LINES = 10;
+    // Log fragments are delivered on mobile-ffmpeg's own callback thread, so the last of them can
+    // arrive after the execution has completed. We wait until the log has been quiet for this
+    // long, up to the maximum, before taking the output.
+    private static final long LOG_QUIET_PERIOD_MS = 50;
+    private static final long MAX_LOG_WAIT_MS = 500;
+    // Synchronous executions, such as those of FFPROBE, all log under this id.
+    private static final long SYNC_EXECUTION_ID = 0;
 
     static {
         Config.enableLogCallback(new LogCallback() {
             @Override
             public void apply(final LogMessage logMessage) {
-                TASK_TRACKER.doForTask(logMessage.getExecutionId(), new TaskTracker.TaskCommand() {
-                    @Override
-                    public void run(@NonNull FFMpegTaskWrapper task) {
-                        task.handleLogFragment(logMessage.getText());
-                    }
-                });
+                TASK_TRACKER.handleLogFragment(logMessage.getExecutionId(), logMessage.getText());
             }
         });
         Config.enableStatisticsCallback(new StatisticsCallback() {
@@ -80,20 +115,43 @@ class FFMpegTaskWrapper {
         });
     }
 
-    private final AtomicReference<Long> executionId = new AtomicReference<>(null);
+    private final Set<Long> executionIds = Collections.synchronizedSet(new HashSet<Long>());
+    // Progress and speed of each execution since the last task, or group of parallel tasks, was
+    // started. Finished executions keep their time, but no longer count towards the speed.
+    private final Map<Long, Integer> executionTimesMs = new ConcurrentHashMap<>();
+    private final Map<Long, Double> executionSpeeds = new ConcurrentHashMap<>();
+    // When each execution last logged anything or reported statistics, in elapsed realtime.
+    private final Map<Long, Long> executionActivityTimesMs = new ConcurrentHashMap<>();
+    // Stalled executions that the watchdog cancelled. These are never cleared, since an abandoned
+    // execution can still complete long after we stopped waiting for it.
+    private final Set<Long> stalledExecutionIds = Collections.synchronizedSet(new HashSet<Long>());
+    // The log of each execution that's still being waited on. Parallel executions log at the same
+    // time, and Config.getLastCommandOutput() is shared by all of them, so each execution's output
+    // comes from its own log instead.
+    private final Map<Long, LogHelper> executionLogs = new ConcurrentHashMap<>();
+    private final long stallTimeoutMs;
     private final AtomicBoolean isCancelled = new AtomicBoolean(false);
     private final AtomicLong durationMs = new AtomicLong(-1L);
     private final AtomicLong estimatedTimeRemainingMs = new AtomicLong(-1L);
+    private final AtomicInteger passIndex = new AtomicInteger(0);
+    private final AtomicInteger passCount = new AtomicInteger(1);
     private final MutableLiveData<Long> progressMs = new MutableLiveData<>();
-    private final LogHelper logHelper = new LogHelper(new LogHelper.LineHandler() {
+    private final LogHelper.LineHandler lineHandler = new LogHelper.LineHandler() {
         @Override
         public void onLogLine(@NonNull String line) {
             handleLogLine(line);
         }
-    });
+    };
 
+    FFMpegTaskWrapper(long stallTimeoutMs) {
+        this.stallTimeoutMs = stallTimeoutMs;
+    }
+
+    // Covers all of the passes over the input, so that the progress of a multi-pass action doesn't
+    // start over for each pass.
     long durationMs() {
-        return durationMs.get();
+        final long duration = durationMs.get();
+        return duration > 0 ? duration * passCount.get() : duration;
     }
 
     long estimatedTimeRemainingMs() {
@@ -105,55 +163,360 @@ class FFMpegTaskWrapper {
         return progressMs;
     }
 
+    // For actions that decode the whole input more than once, such as the two passes of loudnorm.
+    // Tasks started after this are reported as the (zero-based) passIndex of passCount passes.
+    @WorkerThread
+    void setPass(int passIndex, int passCount) {
+        this.passCount.set(Math.max(1, passCount));
+        this.passIndex.set(Math.max(0, Math.min(passIndex, passCount - 1)));
+    }
+
     @WorkerThread
     @NonNull
     String runTask(@NonNull List<String> commands, boolean throwOnFailure) throws InterruptedException {
-        final String[] cmd = commands.toArray(new String[0]);
-        final Semaphore blocker = new Semaphore(0, true);
-        Logger.v("Starting FFMPEG with command line: " + Arrays.toString(cmd));
-        final AtomicReference<String> atomicString = new AtomicReference<>("");
-        final AtomicBoolean didFail = new AtomicBoolean(false);
         // If we were cancelled before we started the task, make sure we don't start
         // executing it.
         checkCancellationState();
+        resetExecutionProgress();
+        return runTaskWithThreadBudget(commands, throwOnFailure, true);
+    }
+
+    // For commands that the caller has to set up again before they can be rerun, such as those
+    // that write to a pipe. A stall is thrown straight away, and the caller may retry itself if the
+    // stalled execution was stopped.
+    @WorkerThread
+    @NonNull
+    String runTaskWithoutStallRetry(@NonNull List<String> commands, boolean throwOnFailure) throws InterruptedException {
+        checkCancellationState();
+        resetExecutionProgress();
+        return runTaskWithThreadBudget(commands, throwOnFailure, false);
+    }
+
+    // Runs the commands as concurrent FFMPEG executions, and returns their outputs in the same
+    // order. Progress is reported as the sum of the executions, so this suits commands that each
+    // process a different part of the same input. If any of them fails, the others are still
+    // allowed to finish before the first failure is thrown.
+    @WorkerThread
+    @NonNull
+    List<String> runTasksInParallel(@NonNull List<List<String>> commandLists, boolean throwOnFailure) throws InterruptedException {
+        return runTasksInParallel(commandLists, throwOnFailure, true);
+    }
+
+    // Like runTaskWithoutStallRetry(), for commands that each write to their own pipe.
+    @WorkerThread
+    @NonNull
+    List<String> runTasksInParallelWithoutStallRetry(@NonNull List<List<String>> commandLists, boolean throwOnFailure) throws InterruptedException {
+        return runTasksInParallel(commandLists, throwOnFailure, false);
+    }
+
+    @WorkerThread
+    @NonNull
+    private List<String> runTasksInParallel(@NonNull List<List<String>> commandLists, final boolean throwOnFailure,
+                                            final boolean retryOnStall) throws InterruptedException {
+        checkCancellationState();
+        resetExecutionProgress();
+
+        // The whole group shares the cores from the start.
+        final List<ThreadBudget.Lease> leases = THREAD_BUDGET.acquire(commandLists.size());
+        final List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < commandLists.size(); i++) {
+            final List<String> commands = commandLists.get(i);
+            final ThreadBudget.Lease lease = leases.get(i);
+            futures.add(PARALLEL_EXECUTOR.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    try {
+                        checkCancellationState();
+                        return runTaskWithLease(commands, lease, throwOnFailure, retryOnStall);
+                    } finally {
+                        THREAD_BUDGET.release(lease);
+                    }
+                }
+            }));
+        }
+
+        final List<String> outputs = new ArrayList<>();
+        RuntimeException firstFailure = null;
+        for (Future<String> future : futures) {
+            try {
+                outputs.add(future.get());
+            } catch (ExecutionException e) {
+                outputs.add("");
+                if (firstFailure == null) {
+                    firstFailure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            }
+        }
+
+        checkCancellationState();
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+        return outputs;
+    }
+
+    @WorkerThread
+    @NonNull
+    private String runTaskWithThreadBudget(@NonNull List<String> commands, boolean throwOnFailure,
+                                           boolean retryOnStall) throws InterruptedException {
+        final ThreadBudget.Lease lease = THREAD_BUDGET.acquire();
+        try {
+            return runTaskWithLease(commands, lease, throwOnFailure, retryOnStall);
+        } finally {
+            THREAD_BUDGET.release(lease);
+        }
+    }
+
+    // A stalled execution is only run again once it has actually stopped. One that didn't stop
+    // could still be writing its output, so that's a failure. The retry also writes to fresh
+    // files, which are only moved over the original outputs once it has succeeded.
+    @WorkerThread
+    @NonNull
+    private String runTaskWithLease(@NonNull List<String> commands, @NonNull ThreadBudget.Lease lease,
+                                    boolean throwOnFailure, boolean retryOnStall) throws InterruptedException {
+        for (int retry = 0; ; ++retry) {
+            final Map<File, File> retryOutputs = new HashMap<>();
+            final List<String> attemptCommands = retry == 0
+                    ? new ArrayList<>(commands) : withRetryOutputs(commands, retry, retryOutputs);
+            ThreadBudget.addThreadCommands(lease, attemptCommands);
+            try {
+                final String output = runTask(attemptCommands.toArray(new String[0]), throwOnFailure);
+                moveRetryOutputsIntoPlace(retryOutputs);
+                return output;
+            } catch (FFMpegStalledException e) {
+                deleteRetryOutputs(retryOutputs);
+                if (!retryOnStall || !e.wasStopped() || retry >= MAX_STALL_RETRIES) {
+                    throw e;
+                }
+                Logger.w("Running the stalled FFMPEG task again", e);
+                checkCancellationState();
+            } catch (RuntimeException e) {
+                deleteRetryOutputs(retryOutputs);
+                throw e;
+            }
+        }
+    }
+
+    // Points each file output of the commands at a fresh file next to it, and records which
+    // original output each one stands in for.
+    @NonNull
+    private static List<String> withRetryOutputs(@NonNull List<String> commands, int retry,
+                                                 @NonNull Map<File, File> retryOutputs) {
+        final List<String> retryCommands = new ArrayList<>(commands);
+        for (int outputIndex : ThreadBudget.findOutputIndices(retryCommands)) {
+            final String output = retryCommands.get(outputIndex);
+            if (output.equals("-")) {
+                continue;
+            }
+            final File originalOutput = new File(output);
+            final File retryOutput = new File(originalOutput.getParentFile(), "retry" + retry + "-" + originalOutput.getName());
+            retryOutputs.put(retryOutput, originalOutput);
+            retryCommands.set(outputIndex, retryOutput.getAbsolutePath());
+        }
+        return retryCommands;
+    }
+
+    private static void moveRetryOutputsIntoPlace(@NonNull Map<File, File> retryOutputs) {
+        for (Map.Entry<File, File> entry : retryOutputs.entrySet()) {
+            final File retryOutput = entry.getKey();
+            final File originalOutput = entry.getValue();
+            if (!retryOutput.exists()) {
+                continue;
+            }
+            if (originalOutput.exists() && !originalOutput.delete()) {
+                Logger.w("Couldn't delete " + originalOutput + " before replacing it");
+            }
+            if (!retryOutput.renameTo(originalOutput)) {
+                throw new FFMpegFailedException("Could not move " + retryOutput + " to " + originalOutput);
+            }
+        }
+    }
+
+    private static void deleteRetryOutputs(@NonNull Map<File, File> retryOutputs) {
+        for (File retryOutput : retryOutputs.keySet()) {
+            if (retryOutput.exists() && !retryOutput.delete()) {
+                Logger.v("Could not delete " + retryOutput);
+            }
+        }
+    }
+
+    @WorkerThread
+    @NonNull
+    private String runTask(@NonNull String[] cmd, boolean throwOnFailure) throws InterruptedException {
+        final Semaphore blocker = new Semaphore(0, true);
+        Logger.v("Starting FFMPEG with command line: " + Arrays.toString(cmd));
+        final AtomicBoolean didFail = new AtomicBoolean(false);
+        final AtomicBoolean didComplete = new AtomicBoolean(false);
+        // Held on behalf of an abandoned execution until it does complete, since it's still using
+        // its share of the cores.
+        final AtomicReference<ThreadBudget.Lease> abandonedLease = new AtomicReference<>();
 
         final long executionId = FFmpeg.executeAsync(cmd, new ExecuteCallback() {
             @Override
             public void apply(final long executionId, final int returnCode) {
                 if (returnCode == RETURN_CODE_SUCCESS) {
                     Logger.v("Result code: successful");
-                    atomicString.set(Config.getLastCommandOutput());
                 } else if (returnCode == RETURN_CODE_CANCEL) {
-                    Logger.v("Result code: cancelled");
-                    isCancelled.set(true);
+                    if (stalledExecutionIds.contains(executionId)) {
+                        Logger.v("Result code: cancelled by the watchdog");
+                    } else {
+                        Logger.v("Result code: cancelled");
+                        isCancelled.set(true);
+                    }
                 } else {
                     Logger.v("Result code: failed; code: " + returnCode);
-                    atomicString.set(Config.getLastCommandOutput());
                     didFail.set(true);
                 }
 
                 Logger.v("FFMPEG execution completed for execution id " + executionId);
+                didComplete.set(true);
+                final ThreadBudget.Lease lease = abandonedLease.getAndSet(null);
+                if (lease != null) {
+                    Logger.d("Abandoned FFMPEG execution " + executionId + " completed");
+                    THREAD_BUDGET.release(lease);
+                }
                 blocker.release();
             }
         });
         Logger.d("Started FFMPEG task with execution id " + executionId);
-        this.executionId.set(executionId);
+        executionIds.add(executionId);
+        executionActivityTimesMs.put(executionId, SystemClock.elapsedRealtime());
+        final LogHelper log = new LogHelper(lineHandler);
+        executionLogs.put(executionId, log);
 
         TASK_TRACKER.addTask(executionId, this);
         // Wait for the task to complete.
-        blocker.acquire();
-        TASK_TRACKER.removeTask(executionId);
+        final Stall stall;
+        try {
+            stall = awaitExecution(executionId, blocker);
+            if (stall == null) {
+                awaitRemainingLog(log);
+            } else if (!stall.wasStopped) {
+                final ThreadBudget.Lease lease = THREAD_BUDGET.acquire();
+                abandonedLease.set(lease);
+                // It might have completed in the meantime.
+                if (didComplete.get() && abandonedLease.compareAndSet(lease, null)) {
+                    THREAD_BUDGET.release(lease);
+                }
+            }
+        } finally {
+            TASK_TRACKER.removeTask(executionId);
+            executionIds.remove(executionId);
+            executionSpeeds.remove(executionId);
+            executionActivityTimesMs.remove(executionId);
+            executionLogs.remove(executionId);
+        }
         // If we were stopped, then signal that.
         checkCancellationState();
+        if (stall != null) {
+            // A retry starts its progress over.
+            executionTimesMs.remove(executionId);
+            throw new FFMpegStalledException(buildStallDiagnostic(executionId, stall, cmd, log), stall.wasStopped);
+        }
+        final String output = log.getOutput();
         if (didFail.get() && throwOnFailure) {
-            throw new FFMpegFailedException(atomicString.get());
+            throw new FFMpegFailedException(output);
         }
-        return atomicString.get();
+        return output;
+    }
+
+    // Starts keeping the log of a synchronous execution, such as one of FFPROBE, so that its output
+    // doesn't have to come from Config.getLastCommandOutput(), which asynchronous executions write
+    // to as well. These all log under the same id, so only one may be run at a time.
+    @WorkerThread
+    void beginSyncExecution() {
+        executionLogs.put(SYNC_EXECUTION_ID, new LogHelper(lineHandler));
+        TASK_TRACKER.discardPendingLog(SYNC_EXECUTION_ID);
+        TASK_TRACKER.addTask(SYNC_EXECUTION_ID, this);
+    }
+
+    // Returns the output of the synchronous execution that completed since beginSyncExecution().
+    @WorkerThread
+    @NonNull
+    String endSyncExecution() throws InterruptedException {
+        final LogHelper log = Objects.requireNonNull(executionLogs.get(SYNC_EXECUTION_ID));
+        try {
+            awaitRemainingLog(log);
+            return log.getOutput();
+        } finally {
+            TASK_TRACKER.removeTask(SYNC_EXECUTION_ID);
+            executionLogs.remove(SYNC_EXECUTION_ID);
+        }
+    }
+
+    @WorkerThread
+    private static void awaitRemainingLog(@NonNull LogHelper log) throws InterruptedException {
+        final long deadlineMs = SystemClock.elapsedRealtime() + MAX_LOG_WAIT_MS;
+        while (SystemClock.elapsedRealtime() - log.getLastFragmentTimeMs() < LOG_QUIET_PERIOD_MS
+                && SystemClock.elapsedRealtime() < deadlineMs) {
+            Thread.sleep(LOG_QUIET_PERIOD_MS / 5);
+        }
+    }
+
+    private static final class Stall {
+        final long idleMs;
+        // False if the execution was abandoned because it didn't stop after being cancelled.
+        final boolean wasStopped;
+
+        Stall(long idleMs, boolean wasStopped) {
+            this.idleMs = idleMs;
+            this.wasStopped = wasStopped;
+        }
+    }
+
+    // Waits for the execution to complete. If it goes for the stall timeout without any activity,
+    // it's cancelled, and this returns the stall. Otherwise, returns null.
+    @WorkerThread
+    @Nullable
+    private Stall awaitExecution(long executionId, @NonNull Semaphore blocker) throws InterruptedException {
+        while (!blocker.tryAcquire(WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+            final Long lastActivityTimeMs = executionActivityTimesMs.get(executionId);
+            final long idleMs = lastActivityTimeMs == null ? 0 : SystemClock.elapsedRealtime() - lastActivityTimeMs;
+            if (idleMs >= stallTimeoutMs) {
+                Logger.w("FFMPEG execution " + executionId + " made no progress for " + idleMs + " ms; cancelling it");
+                stalledExecutionIds.add(executionId);
+                FFmpeg.cancel(executionId);
+                if (!blocker.tryAcquire(STALLED_EXECUTION_GRACE_PERIOD_MS, TimeUnit.MILLISECONDS)) {
+                    Logger.w("FFMPEG execution " + executionId + " didn't stop after being cancelled; abandoning it");
+                    return new Stall(idleMs, false);
+                }
+                return new Stall(idleMs, true);
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private static String buildStallDiagnostic(long executionId, @NonNull Stall stall, @NonNull String[] cmd,
+                                               @NonNull LogHelper log) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("FFMPEG execution ").append(executionId).append(" failed: no progress for ")
+                .append(stall.idleMs / 1000).append(" seconds, so it was cancelled");
+        builder.append(stall.wasStopped ? ".\n" : ", but it didn't stop, so it was abandoned.\n");
+        builder.append("Command: ").append(Arrays.toString(cmd)).append('\n');
+        builder.append("Last output:\n");
+        for (String line : log.getLastLines(MAX_RECENT_LOG_LINES)) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString();
     }
 
     @AnyThread
-    private void handleLogFragment(@NonNull String text) {
-        logHelper.processLogFragment(text);
+    private void handleLogFragment(long executionId, @NonNull String text) {
+        markActivity(executionId);
+        final LogHelper log = executionLogs.get(executionId);
+        if (log != null) {
+            log.processLogFragment(text);
+        }
+    }
+
+    // Only executions that are still being waited on are tracked.
+    @AnyThread
+    private void markActivity(long executionId) {
+        if (executionActivityTimesMs.containsKey(executionId)) {
+            executionActivityTimesMs.put(executionId, SystemClock.elapsedRealtime());
+        }
     }
 
     @AnyThread
@@ -171,8 +534,9 @@ class FFMpegTaskWrapper {
                 if (durationIdx > 0 && line.length() >= durationTimestampEndIdx) {
                     final String durationTimeStamp = line.substring(durationTimestampStartIdx,
                             durationTimestampEndIdx);
-                    durationMs.set(convertFFMpegTimeToMs(durationTimeStamp));
-                    progressMs.postValue(0L);
+                    final long duration = convertFFMpegTimeToMs(durationTimeStamp);
+                    durationMs.set(duration);
+                    progressMs.postValue(Math.max(0, duration) * passIndex.get());
                 }
             }
         } catch (Exception e) {
@@ -182,15 +546,27 @@ class FFMpegTaskWrapper {
 
     @AnyThread
     private void handleProgress(@NonNull Statistics statistics) {
+        markActivity(statistics.getExecutionId());
         try {
             long duration = durationMs.get();
             if (duration > 0) {
-                final int currentTime = statistics.getTime();
-                progressMs.postValue((long) currentTime);
+                executionTimesMs.put(statistics.getExecutionId(), statistics.getTime());
+                executionSpeeds.put(statistics.getExecutionId(), statistics.getSpeed());
+
+                long currentTime = 0;
+                for (int executionTimeMs : executionTimesMs.values()) {
+                    currentTime += executionTimeMs;
+                }
+                final int passIndex = this.passIndex.get();
+                progressMs.postValue(duration * passIndex + currentTime);
 
-                final double currentSpeed = statistics.getSpeed();
+                double currentSpeed = 0;
+                for (double executionSpeed : executionSpeeds.values()) {
+                    currentSpeed += Math.max(0, executionSpeed);
+                }
                 if (currentSpeed > 0) {
-                    final long msRemaining = Math.max(0, duration - currentTime);
+                    final int remainingPasses = passCount.get() - passIndex - 1;
+                    final long msRemaining = Math.max(0, duration - currentTime) + duration * remainingPasses;
                     final long adjustedMsRemaining = (long) ((double) msRemaining / currentSpeed);
                     estimatedTimeRemainingMs.set(adjustedMsRemaining);
                 }
@@ -200,6 +576,11 @@ class FFMpegTaskWrapper {
         }
     }
 
+    private void resetExecutionProgress() {
+        executionTimesMs.clear();
+        executionSpeeds.clear();
+    }
+
     private void checkCancellationState() throws RequestCancelledException {
         if (isCancelled.get()) {
             throw new RequestCancelledException("isCancelled is set to true");
@@ -213,13 +594,20 @@ class FFMpegTaskWrapper {
     void requestCancellation() {
         Logger.d("Requesting to cancel FFMpeg task...");
         isCancelled.set(true);
-        final Long executionId = this.executionId.get();
-        if (executionId != null && hasFFMPEGExecutionMatchingId(executionId)) {
-            Logger.d("Cancelling FFMPEG task with id " + executionId + "...");
-            FFmpeg.cancel(executionId);
-            this.executionId.set(null);
-        } else {
-            Logger.v("No ongoing FFMPEG task found for id " + executionId);
+        final List<Long> executionIds;
+        synchronized (this.executionIds) {
+            executionIds = new ArrayList<>(this.executionIds);
+        }
+        if (executionIds.isEmpty()) {
+            Logger.v("No ongoing FFMPEG task found");
+        }
+        for (long executionId : executionIds) {
+            if (hasFFMPEGExecutionMatchingId(executionId)) {
+                Logger.d("Cancelling FFMPEG task with id " + executionId + "...");
+                FFmpeg.cancel(executionId);
+            } else {
+                Logger.v("No ongoing FFMPEG task found for id " + executionId);
+            }
         }
     }
 
@@ -259,6 +647,44 @@ class FFMpegTaskWrapper {
         String getFullMessage() {
             return ObjectUtils.returnDefaultIfNull(getLocalizedMessage(), "");
         }
+
+        @NonNull
+        FFMpegFailureKind getFailureKind() {
+            return FFMpegFailureKind.of(getFullMessage());
+        }
+    }
+
+    // Thrown when the watchdog had to cancel an execution that stopped making progress, whether or
+    // not the caller asked for failures to be thrown, so that a hung input can't hold up the queue.
+    static class FFMpegStalledException extends FFMpegFailedException {
+        private final boolean wasStopped;
+
+        FFMpegStalledException(@NonNull String diagnostic, boolean wasStopped) {
+            super(diagnostic);
+            this.wasStopped = wasStopped;
+        }
+
+        // An execution that wasn't stopped might still be running, so it's not safe to run the
+        // same command again.
+        boolean wasStopped() {
+            return wasStopped;
+        }
+
+        // The diagnostic's first line says what happened; the log lines after it are from
+        // before the stall, so they're not the cause.
+        @NonNull
+        @Override
+        String getShortMessage() {
+            final String message = getFullMessage();
+            final int firstLineEnd = message.indexOf('\n');
+            return firstLineEnd >= 0 ? message.substring(0, firstLineEnd) : message;
+        }
+
+        @NonNull
+        @Override
+        FFMpegFailureKind getFailureKind() {
+            return FFMpegFailureKind.STALLED;
+        }
     }
 
     private static long convertFFMpegTimeToMs(@NonNull String time) {
@@ -296,12 +722,16 @@ class FFMpegTaskWrapper {
 
         private final LineHandler handler;
         private final StringBuilder builder = new StringBuilder();
+        private final StringBuilder output = new StringBuilder();
+        private long lastFragmentTimeMs = SystemClock.elapsedRealtime();
 
         LogHelper(@NonNull LineHandler handler) {
             this.handler = handler;
         }
 
-        void processLogFragment(@NonNull String text) {
+        synchronized void processLogFragment(@NonNull String text) {
+            output.append(text);
+            lastFragmentTimeMs = SystemClock.elapsedRealtime();
             builder.append(text);
             String line;
             while ((line = getNextLine()) != null) {
@@ -329,6 +759,21 @@ class FFMpegTaskWrapper {
             builder.delete(0, index + separatorSize);
             return line;
         }
+
+        @NonNull
+        synchronized String getOutput() {
+            return output.toString();
+        }
+
+        synchronized long getLastFragmentTimeMs() {
+            return lastFragmentTimeMs;
+        }
+
+        @NonNull
+        synchronized List<String> getLastLines(int count) {
+            final String[] lines = output.toString().split("\r?\n|\r");
+            return Arrays.asList(lines).subList(Math.max(0, lines.length - count), lines.length);
+        }
     }
 
     private static class TaskTracker {
@@ -336,14 +781,56 @@ class FFMpegTaskWrapper {
             void run(@NonNull FFMpegTaskWrapper task);
         }
 
+        // Fragments can be logged before executeAsync() has even returned the execution id, so
+        // the log of an execution that isn't tracked yet is held on to until it is. Executions
+        // that are never tracked, such as those of FFPROBE, are eventually dropped from here.
+        private static final int MAX_PENDING_LOGS = 8;
+        private static final int MAX_PENDING_LOG_LENGTH = 64 * 1024;
+
         private final HashMap<Long, WeakReference<FFMpegTaskWrapper>> ONGOING_TASKS = new HashMap<>();
+        private final LinkedHashMap<Long, StringBuilder> pendingLogs = new LinkedHashMap<Long, StringBuilder>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, StringBuilder> eldest) {
+                return size() > MAX_PENDING_LOGS;
+            }
+        };
 
         private void addTask(long id, @NonNull FFMpegTaskWrapper task) {
             synchronized (ONGOING_TASKS) {
                 ONGOING_TASKS.put(id, new WeakReference<>(task));
+                // Replayed while holding the lock, so that later fragments can't overtake it.
+                final StringBuilder pendingLog = pendingLogs.remove(id);
+                if (pendingLog != null) {
+                    task.handleLogFragment(id, pendingLog.toString());
+                }
             }
         }
 
+        private void discardPendingLog(long id) {
+            synchronized (ONGOING_TASKS) {
+                pendingLogs.remove(id);
+            }
+        }
+
+        private void handleLogFragment(long id, @NonNull String text) {
+            final FFMpegTaskWrapper task;
+            synchronized (ONGOING_TASKS) {
+                task = getTask(id);
+                if (task == null) {
+                    StringBuilder pendingLog = pendingLogs.get(id);
+                    if (pendingLog == null) {
+                        pendingLog = new StringBuilder();
+                        pendingLogs.put(id, pendingLog);
+                    }
+                    if (pendingLog.length() < MAX_PENDING_LOG_LENGTH) {
+                        pendingLog.append(text);
+                    }
+                    return;
+                }
+            }
+            task.handleLogFragment(id, text);
+        }
+
         private void removeTask(long id) {
             synchronized (ONGOING_TASKS) {
                 ONGOING_TASKS.remove(id);
@@ -351,20 +838,20 @@ class FFMpegTaskWrapper {
         }
 
         private void doForTask(long id, @NonNull TaskCommand cmd) {
-            FFMpegTaskWrapper task = null;
+            final FFMpegTaskWrapper task;
             synchronized (ONGOING_TASKS) {
-                final WeakReference<FFMpegTaskWrapper> taskRefForId = ONGOING_TASKS.get(id);
-                if (taskRefForId != null) {
-                    final FFMpegTaskWrapper taskForId = taskRefForId.get();
-                    if (taskForId != null) {
-                        task = taskForId;
-                    }
-                }
+                task = getTask(id);
             }
 
             if (task != null) {
                 cmd.run(task);
             }
         }
+
+        @Nullable
+        private FFMpegTaskWrapper getTask(long id) {
+            final WeakReference<FFMpegTaskWrapper> taskRefForId = ONGOING_TASKS.get(id);
+            return taskRefForId != null ? taskRefForId.get() : null;
+        }
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.arthenica.mobileffmpeg.Config;
+import com.arthenica.mobileffmpeg.FFprobe;
+import com.digipom.easymediaconverter.ffmpeg.FFMpegTaskWrapper.FFMpegFailedException;
+import com.digipom.easymediaconverter.utils.ObjectUtils;
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.arthenica.mobileffmpeg.Config.RETURN_CODE_SUCCESS;
+
+class FFProbeTaskWrapper {
+    // FFPROBE executions are synchronous and they all log under the same execution id, so only
+    // allow one at a time.
+    private static final Object LOCK = new Object();
+
+    @WorkerThread
+    @NonNull
+    static String runProbe(@NonNull List<String> commands) {
+        final String[] cmd = commands.toArray(new String[0]);
+        synchronized (LOCK) {
+            Logger.v("Starting FFPROBE with command line: " + Arrays.toString(cmd));
+            // FFMPEG executions, such as previews, can be running at the same time, so the output
+            // is taken from this execution's own log.
+            final FFMpegTaskWrapper logCollector = new FFMpegTaskWrapper(0);
+            logCollector.beginSyncExecution();
+            final int returnCode;
+            String output = "";
+            try {
+                returnCode = FFprobe.execute(cmd);
+            } finally {
+                try {
+                    output = logCollector.endSyncExecution();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (output.isEmpty()) {
+                Logger.w("No log received for FFPROBE; using the last command output instead");
+                output = ObjectUtils.returnDefaultIfNull(Config.getLastCommandOutput(), "");
+            }
+            if (returnCode != RETURN_CODE_SUCCESS) {
+                Logger.v("FFPROBE failed; code: " + returnCode);
+                throw new FFMpegFailedException(output);
+            }
+            return output;
+        }
+    }
+
+    // FFPROBE output can be preceded by warnings, so only return the part that looks like JSON.
+    @NonNull
+    static String extractJson(@NonNull String output) {
+        final int begin = output.indexOf('{');
+        final int end = output.lastIndexOf('}');
+        if (begin == -1 || end < begin) {
+            throw new FFMpegFailedException("No JSON found in FFPROBE output: " + output);
+        }
+        return output.substring(begin, end + 1);
+    }
+}
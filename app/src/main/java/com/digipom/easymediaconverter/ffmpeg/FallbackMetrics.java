@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Counts how often an action had to fall back from one stream plan to a more expensive one, and
+// why. A count that keeps going up for the same action and failure is a sign that the stream copy
+// planner is too optimistic about that case.
+public class FallbackMetrics {
+    private static final String PREFERENCES_NAME = "fallback_metrics";
+
+    private final SharedPreferences preferences;
+
+    public FallbackMetrics(@NonNull Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @AnyThread
+    synchronized void recordFallback(@NonNull String actionName,
+                                     @NonNull StreamCopyPlanner.Strategy from,
+                                     @NonNull StreamCopyPlanner.Strategy to,
+                                     @NonNull FFMpegFailureKind failureKind) {
+        final String key = actionName + '|' + from + "->" + to + '|' + failureKind;
+        final int count = preferences.getInt(key, 0) + 1;
+        preferences.edit().putInt(key, count).apply();
+        Logger.d("Fallback " + key + " has now happened " + count + " time(s)");
+    }
+
+    // Sorted by key, so that the fallbacks for the same action are listed together.
+    @AnyThread
+    @NonNull
+    public synchronized Map<String, Integer> getCounts() {
+        final Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getValue() instanceof Integer) {
+                counts.put(entry.getKey(), (Integer) entry.getValue());
+            }
+        }
+        return counts;
+    }
+}
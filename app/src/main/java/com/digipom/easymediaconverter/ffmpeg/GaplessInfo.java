@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Records the encoder delay and end padding of an MP3 or M4A whose packets were joined with a
+// stream copy. The muxer only learns these from the encoder, so a joined file would otherwise
+// play its priming samples and padding as part of the audio.
+//
+// For MP3, these go in the LAME tag of the Info frame that FFMPEG writes at the start of the file.
+// For M4A, the track gets an edit list that starts after the priming and ends with the audio.
+final class GaplessInfo {
+    // LAME's encoder delay. Decoders add their own 529 samples to it.
+    static final int LAME_ENCODER_DELAY = 576;
+    // FFMPEG's AAC encoder primes with one frame.
+    static final int AAC_PRIMING_SAMPLES = 1024;
+
+    private static final int MAX_MP3_HEADER_SEARCH = 64 * 1024;
+    // Enough for the longest Info frame, which is that of a 320 kbps, 32 kHz MPEG-1 frame.
+    private static final int MAX_MP3_FRAME_SIZE = 1441;
+    private static final int XING_FLAG_FRAMES = 0x1;
+    private static final int XING_FLAG_BYTES = 0x2;
+    private static final int XING_FLAG_TOC = 0x4;
+    private static final int XING_FLAG_QUALITY = 0x8;
+    private static final int LAME_TAG_SIZE = 36;
+    private static final int LAME_DELAY_PADDING_OFFSET = 21;
+    private static final int LAME_TAG_CRC_OFFSET = 34;
+    private static final int MAX_LAME_DELAY_OR_PADDING = (1 << 12) - 1;
+
+    private static final int MAX_MOOV_SIZE = 16 * 1024 * 1024;
+
+    // Sets the delay and padding of the LAME tag in the Info frame, from the number of audio
+    // samples that the file is meant to have.
+    @WorkerThread
+    static void writeMp3(@NonNull File file, long validSamples) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final long frameOffset = skipId3v2(raf);
+            raf.seek(frameOffset);
+            final byte[] frame = new byte[(int) Math.min(MAX_MP3_FRAME_SIZE, raf.length() - frameOffset)];
+            raf.readFully(frame);
+            if (frame.length < 4 || (frame[0] & 0xFF) != 0xFF || (frame[1] & 0xE0) != 0xE0) {
+                throw new IOException("No MPEG audio frame at " + frameOffset + " in " + file);
+            }
+
+            final boolean isMpeg1 = ((frame[1] >> 3) & 0x3) == 3;
+            final boolean isMono = ((frame[3] >> 6) & 0x3) == 3;
+            final int frameSamples = isMpeg1 ? 1152 : 576;
+            final int sideInfoSize = isMpeg1 ? (isMono ? 17 : 32) : (isMono ? 9 : 17);
+            int position = 4 + sideInfoSize;
+            final String tag = new String(frame, position, 4, "US-ASCII");
+            if (!tag.equals("Info") && !tag.equals("Xing")) {
+                throw new IOException("No Info frame in " + file);
+            }
+            final int flags = readInt(frame, position + 4);
+            position += 8;
+            if ((flags & XING_FLAG_FRAMES) == 0) {
+                throw new IOException("The Info frame of " + file + " doesn't have a frame count");
+            }
+            final long frameCount = readInt(frame, position) & 0xFFFFFFFFL;
+            position += 4;
+            if ((flags & XING_FLAG_BYTES) != 0) {
+                position += 4;
+            }
+            if ((flags & XING_FLAG_TOC) != 0) {
+                position += 100;
+            }
+            if ((flags & XING_FLAG_QUALITY) != 0) {
+                position += 4;
+            }
+            if (position + LAME_TAG_SIZE > frame.length) {
+                throw new IOException("No room for a LAME tag in the Info frame of " + file);
+            }
+
+            final long padding = frameCount * frameSamples - LAME_ENCODER_DELAY - validSamples;
+            if (padding < 0 || padding > MAX_LAME_DELAY_OR_PADDING) {
+                throw new IOException("Padding of " + padding + " samples doesn't fit " + frameCount
+                        + " frames and " + validSamples + " samples in " + file);
+            }
+            final int delayAndPadding = (LAME_ENCODER_DELAY << 12) | (int) padding;
+            frame[position + LAME_DELAY_PADDING_OFFSET] = (byte) (delayAndPadding >> 16);
+            frame[position + LAME_DELAY_PADDING_OFFSET + 1] = (byte) (delayAndPadding >> 8);
+            frame[position + LAME_DELAY_PADDING_OFFSET + 2] = (byte) delayAndPadding;
+            // The tag ends with a CRC of everything in the frame before it.
+            final int crcOffset = position + LAME_TAG_CRC_OFFSET;
+            final int crc = crc16(frame, crcOffset);
+            frame[crcOffset] = (byte) (crc >> 8);
+            frame[crcOffset + 1] = (byte) crc;
+
+            raf.seek(frameOffset);
+            raf.write(frame, 0, crcOffset + 2);
+            Logger.d("Wrote encoder delay " + LAME_ENCODER_DELAY + " and padding " + padding + " to " + file);
+        }
+    }
+
+    // Gives the audio track an edit list that skips the priming samples and ends after
+    // validSamples, and sets the durations to match. Only files with the moov box at the end, as
+    // FFMPEG writes them by default, are handled.
+    @WorkerThread
+    static void writeMp4(@NonNull File file, int sampleRate, int primingSamples, long validSamples) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final long length = raf.length();
+            long position = 0;
+            long moovOffset = -1;
+            long moovSize = 0;
+            while (position + 8 <= length) {
+                raf.seek(position);
+                long size = raf.readInt() & 0xFFFFFFFFL;
+                final String type = readType(raf);
+                if (size == 1) {
+                    size = raf.readLong();
+                } else if (size == 0) {
+                    size = length - position;
+                }
+                if (size < 8) {
+                    throw new IOException("Invalid size " + size + " of box " + type + " in " + file);
+                }
+                if (type.equals("moov")) {
+                    moovOffset = position;
+                    moovSize = size;
+                    break;
+                }
+                position += size;
+            }
+            if (moovOffset < 0 || moovSize > MAX_MOOV_SIZE) {
+                throw new IOException("No usable moov box in " + file);
+            }
+            if (moovOffset + moovSize != length) {
+                throw new IOException("The moov box isn't at the end of " + file);
+            }
+
+            final byte[] moov = new byte[(int) moovSize];
+            raf.seek(moovOffset);
+            raf.readFully(moov);
+            final byte[] newMoov = withEditList(moov, sampleRate, primingSamples, validSamples);
+            raf.seek(moovOffset);
+            raf.write(newMoov);
+            raf.setLength(moovOffset + newMoov.length);
+            Logger.d("Wrote an edit list skipping " + primingSamples + " samples and keeping "
+                    + validSamples + " to " + file);
+        }
+    }
+
+    @NonNull
+    private static byte[] withEditList(@NonNull byte[] moov, int sampleRate, int primingSamples,
+                                       long validSamples) throws IOException {
+        final int mvhd = findChildBox(moov, 8, moov.length, "mvhd");
+        final int trak = findChildBox(moov, 8, moov.length, "trak");
+        // Everything is edited in place up to the tkhd, so the header boxes have to come first.
+        if (mvhd < 0 || trak < 0 || mvhd > trak) {
+            throw new IOException("No mvhd box before the trak box");
+        }
+        final int trakEnd = trak + readInt(moov, trak);
+        final int tkhd = findChildBox(moov, trak + 8, trakEnd, "tkhd");
+        final int mdia = findChildBox(moov, trak + 8, trakEnd, "mdia");
+        final int mdhd = mdia < 0 ? -1 : findChildBox(moov, mdia + 8, mdia + readInt(moov, mdia), "mdhd");
+        if (tkhd < 0 || mdhd < 0) {
+            throw new IOException("No tkhd or mdhd box");
+        }
+
+        final long movieTimescale = readInt(moov, mvhd + (moov[mvhd + 8] == 1 ? 28 : 20)) & 0xFFFFFFFFL;
+        final long mediaTimescale = readInt(moov, mdhd + (moov[mdhd + 8] == 1 ? 28 : 20)) & 0xFFFFFFFFL;
+        if (movieTimescale == 0 || mediaTimescale == 0) {
+            throw new IOException("Invalid timescale");
+        }
+        final long segmentDuration = Math.round(validSamples * (double) movieTimescale / sampleRate);
+        final long mediaTime = Math.round(primingSamples * (double) mediaTimescale / sampleRate);
+        if (segmentDuration > 0xFFFFFFFFL || mediaTime > Integer.MAX_VALUE) {
+            throw new IOException("Edit doesn't fit a version 0 elst");
+        }
+
+        final byte[] edts = new byte[36];
+        writeInt(edts, 0, edts.length);
+        writeType(edts, 4, "edts");
+        writeInt(edts, 8, edts.length - 8);
+        writeType(edts, 12, "elst");
+        // Version 0, no flags, and a single entry.
+        writeInt(edts, 16, 0);
+        writeInt(edts, 20, 1);
+        writeInt(edts, 24, (int) segmentDuration);
+        writeInt(edts, 28, (int) mediaTime);
+        // A rate of 1.0.
+        writeInt(edts, 32, 0x10000);
+
+        // The new trak is its header, then its children with the edit list after the tkhd, in
+        // place of any that was there.
+        final int existingEdts = findChildBox(moov, trak + 8, trakEnd, "edts");
+        if (existingEdts >= 0 && existingEdts < tkhd) {
+            throw new IOException("Edit list before the tkhd box");
+        }
+        final int existingEdtsSize = existingEdts < 0 ? 0 : readInt(moov, existingEdts);
+        final int tkhdEnd = tkhd + readInt(moov, tkhd);
+        final byte[] newMoov = new byte[moov.length - existingEdtsSize + edts.length];
+        int out = 0;
+        System.arraycopy(moov, 0, newMoov, out, tkhdEnd);
+        out += tkhdEnd;
+        System.arraycopy(edts, 0, newMoov, out, edts.length);
+        out += edts.length;
+        for (int child = tkhdEnd; child < moov.length; ) {
+            final int childSize = child < trakEnd ? readInt(moov, child) : moov.length - child;
+            if (childSize < 8 && child < trakEnd) {
+                throw new IOException("Invalid box size " + childSize);
+            }
+            if (child != existingEdts) {
+                System.arraycopy(moov, child, newMoov, out, childSize);
+                out += childSize;
+            }
+            child += childSize;
+        }
+
+        final int delta = edts.length - existingEdtsSize;
+        writeInt(newMoov, 0, moov.length + delta);
+        writeInt(newMoov, trak, readInt(moov, trak) + delta);
+        writeDuration(newMoov, mvhd, 24, 32, segmentDuration);
+        writeDuration(newMoov, tkhd, 28, 36, segmentDuration);
+        return newMoov;
+    }
+
+    // The duration field of a full box is at a different offset, and wider, in version 1.
+    private static void writeDuration(@NonNull byte[] b, int box, int version0Offset, int version1Offset, long duration) {
+        if (b[box + 8] == 1) {
+            writeInt(b, box + version1Offset, (int) (duration >>> 32));
+            writeInt(b, box + version1Offset + 4, (int) duration);
+        } else {
+            writeInt(b, box + version0Offset, (int) duration);
+        }
+    }
+
+    private static int findChildBox(@NonNull byte[] b, int start, int end, @NonNull String type) {
+        int position = start;
+        while (position + 8 <= end) {
+            final int size = readInt(b, position);
+            if (size < 8 || position + size > end) {
+                return -1;
+            }
+            if (b[position + 4] == type.charAt(0) && b[position + 5] == type.charAt(1)
+                    && b[position + 6] == type.charAt(2) && b[position + 7] == type.charAt(3)) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static long skipId3v2(@NonNull RandomAccessFile raf) throws IOException {
+        final byte[] header = new byte[10];
+        long offset = 0;
+        // FFMPEG writes at most one tag, but be lenient.
+        while (offset < MAX_MP3_HEADER_SEARCH && offset + header.length <= raf.length()) {
+            raf.seek(offset);
+            raf.readFully(header);
+            if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+                break;
+            }
+            final int size = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14)
+                    | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+            final boolean hasFooter = (header[5] & 0x10) != 0;
+            offset += 10 + size + (hasFooter ? 10 : 0);
+        }
+        return offset;
+    }
+
+    // CRC-16 with the reflected 0x8005 polynomial, as the LAME tag uses.
+    static int crc16(@NonNull byte[] b, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= b[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    @NonNull
+    private static String readType(@NonNull RandomAccessFile raf) throws IOException {
+        final byte[] type = new byte[4];
+        raf.readFully(type);
+        return new String(type, "US-ASCII");
+    }
+
+    private static int readInt(@NonNull byte[] b, int position) {
+        return ((b[position] & 0xFF) << 24) | ((b[position + 1] & 0xFF) << 16)
+                | ((b[position + 2] & 0xFF) << 8) | (b[position + 3] & 0xFF);
+    }
+
+    private static void writeInt(@NonNull byte[] b, int position, int value) {
+        b[position] = (byte) (value >> 24);
+        b[position + 1] = (byte) (value >> 16);
+        b[position + 2] = (byte) (value >> 8);
+        b[position + 3] = (byte) value;
+    }
+
+    private static void writeType(@NonNull byte[] b, int position, @NonNull String type) {
+        for (int i = 0; i < 4; i++) {
+            b[position + i] = (byte) type.charAt(i);
+        }
+    }
+
+    private GaplessInfo() {
+    }
+}
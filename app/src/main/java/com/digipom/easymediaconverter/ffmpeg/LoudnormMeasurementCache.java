@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.digipom.easymediaconverter.media.LoudnessHistogram;
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Remembers the results of the loudnorm analysis pass, so that normalizing the same file again
+// (for example, to a different output format) can go straight to the second pass.
+//
+// Entries are keyed by the content fingerprint of the input together with the loudness targets,
+// since the offset that loudnorm reports depends on those. The fingerprint is a hash of the whole
+// staged input, not a sample of it, so an edit in the middle of a file is never missed. There are
+// only a few hundred bytes per entry, so the whole cache is kept in memory and rewritten as a
+// small JSON file on each change.
+public class LoudnormMeasurementCache {
+    private static final String FILE_NAME = "loudnorm-measurements.json";
+    private static final int MAX_ENTRIES = 200;
+
+    private static final String KEY = "key";
+    private static final String INPUT_I = "input_i";
+    private static final String INPUT_TP = "input_tp";
+    private static final String INPUT_LRA = "input_lra";
+    private static final String INPUT_THRESH = "input_thresh";
+    private static final String TARGET_OFFSET = "target_offset";
+
+    static final class Measurement {
+        @NonNull
+        final String inputI;
+        @NonNull
+        final String inputTp;
+        @NonNull
+        final String inputLra;
+        @NonNull
+        final String inputThresh;
+        @NonNull
+        final String targetOffset;
+
+        Measurement(@NonNull String inputI, @NonNull String inputTp, @NonNull String inputLra,
+                    @NonNull String inputThresh, @NonNull String targetOffset) {
+            this.inputI = inputI;
+            this.inputTp = inputTp;
+            this.inputLra = inputLra;
+            this.inputThresh = inputThresh;
+            this.targetOffset = targetOffset;
+        }
+
+        // loudnorm only accepts measurements within these ranges; silence would otherwise come out
+        // as negative infinity.
+        @NonNull
+        static Measurement fromHistogram(@NonNull LoudnessHistogram histogram) {
+            return new Measurement(
+                    format(histogram.integratedLoudness(), -99, 0),
+                    format(histogram.truePeakDb(), -99, 99),
+                    format(histogram.loudnessRange(), 0, 99),
+                    format(histogram.relativeThreshold(), -99, 0),
+                    // The gain follows from the measured and target loudness; there's nothing to
+                    // add to it.
+                    format(0, -99, 99));
+        }
+
+        @NonNull
+        private static String format(double value, double min, double max) {
+            return String.format(Locale.US, "%.2f", Math.max(min, Math.min(max, value)));
+        }
+
+        // Uses the same names as loudnorm=print_format=json.
+        @NonNull
+        static Measurement fromLoudnormJson(@NonNull JSONObject json) throws JSONException {
+            return new Measurement(json.getString(INPUT_I), json.getString(INPUT_TP),
+                    json.getString(INPUT_LRA), json.getString(INPUT_THRESH),
+                    json.getString(TARGET_OFFSET));
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Measurement{" +
+                    "inputI='" + inputI + '\'' +
+                    ", inputTp='" + inputTp + '\'' +
+                    ", inputLra='" + inputLra + '\'' +
+                    ", inputThresh='" + inputThresh + '\'' +
+                    ", targetOffset='" + targetOffset + '\'' +
+                    '}';
+        }
+    }
+
+    private final File file;
+    private final Map<String, Measurement> entries = new LinkedHashMap<String, Measurement>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Measurement> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean isLoaded;
+
+    public LoudnormMeasurementCache(@NonNull Context context) {
+        file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+    }
+
+    @WorkerThread
+    @Nullable
+    synchronized Measurement get(@NonNull String fingerprint, @NonNull String targets) {
+        loadIfNeeded();
+        return entries.get(toKey(fingerprint, targets));
+    }
+
+    @WorkerThread
+    synchronized void put(@NonNull String fingerprint, @NonNull String targets,
+                          @NonNull Measurement measurement) {
+        loadIfNeeded();
+        entries.put(toKey(fingerprint, targets), measurement);
+        save();
+    }
+
+    @NonNull
+    private static String toKey(@NonNull String fingerprint, @NonNull String targets) {
+        return fingerprint + '|' + targets;
+    }
+
+    private void loadIfNeeded() {
+        if (isLoaded) {
+            return;
+        }
+        isLoaded = true;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            final byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int read = in.read(bytes, offset, bytes.length - offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+            }
+
+            // Entries are saved from least to most recently used, so the order survives a reload.
+            final JSONArray array = new JSONArray(new String(bytes, 0, offset, StandardCharsets.UTF_8));
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject entry = array.getJSONObject(i);
+                entries.put(entry.getString(KEY), Measurement.fromLoudnormJson(entry));
+            }
+        } catch (IOException | JSONException e) {
+            Logger.w("Could not load the loudnorm measurements; starting over", e);
+            entries.clear();
+        }
+    }
+
+    private void save() {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final JSONArray array = new JSONArray();
+            for (Map.Entry<String, Measurement> entry : entries.entrySet()) {
+                final Measurement measurement = entry.getValue();
+                array.put(new JSONObject()
+                        .put(KEY, entry.getKey())
+                        .put(INPUT_I, measurement.inputI)
+                        .put(INPUT_TP, measurement.inputTp)
+                        .put(INPUT_LRA, measurement.inputLra)
+                        .put(INPUT_THRESH, measurement.inputThresh)
+                        .put(TARGET_OFFSET, measurement.targetOffset));
+            }
+
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(array.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        } catch (IOException | JSONException e) {
+            // Not fatal: the next normalize of this file will just measure it again.
+            Logger.w("Could not save the loudnorm measurements", e);
+            if (!tempFile.delete()) {
+                Logger.v("Could not delete " + tempFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Looks up the streams and format of a media file with a single FFPROBE call, and returns the
+// result as a typed model instead of having callers scrape the FFMPEG log. Results are memoised
+// per file, so all of the steps of an action can probe the same staged input for free.
+public class MediaProbe {
+    public static final long UNKNOWN = -1;
+
+    private static final int MAX_MEMOISED_RESULTS = 16;
+
+    private final Map<String, MediaInfo> memoisedResults = new LinkedHashMap<String, MediaInfo>(MAX_MEMOISED_RESULTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaInfo> eldest) {
+            return size() > MAX_MEMOISED_RESULTS;
+        }
+    };
+
+    @WorkerThread
+    @NonNull
+    public MediaInfo probe(@NonNull File file) throws JSONException {
+        // The cache dirs get reused, so also key on the size and the last modified time in case a
+        // different file was staged under the same name.
+        final String key = file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+        synchronized (memoisedResults) {
+            final MediaInfo memoised = memoisedResults.get(key);
+            if (memoised != null) {
+                return memoised;
+            }
+        }
+
+        final String output = FFProbeTaskWrapper.runProbe(Arrays.asList(
+                "-v", "error",
+                "-show_format",
+                "-show_streams",
+                "-of", "json",
+                file.getAbsolutePath()));
+        final MediaInfo mediaInfo = MediaInfo.fromJson(new JSONObject(FFProbeTaskWrapper.extractJson(output)));
+        Logger.v("Probed " + file + ": " + mediaInfo);
+
+        synchronized (memoisedResults) {
+            memoisedResults.put(key, mediaInfo);
+        }
+        return mediaInfo;
+    }
+
+    // Returns the presentation times of the keyframes of the first video stream, in microseconds
+    // and in ascending order. Only the packets between fromUs and toUs are read, so this is cheap
+    // even for a long file as long as the range is short.
+    @WorkerThread
+    @NonNull
+    public long[] keyframesUs(@NonNull File file, long fromUs, long toUs) {
+        final String output = FFProbeTaskWrapper.runProbe(Arrays.asList(
+                "-v", "error",
+                "-read_intervals", formatSeconds(fromUs) + "%" + formatSeconds(toUs),
+                "-select_streams", "v:0",
+                "-show_entries", "packet=pts_time,flags",
+                "-of", "csv=print_section=0",
+                file.getAbsolutePath()));
+
+        final List<Long> keyframes = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            final String[] fields = line.trim().split(",");
+            if (fields.length >= 2 && fields[1].startsWith("K")) {
+                final long ptsUs = parseSecondsToUs(fields[0]);
+                if (ptsUs != UNKNOWN) {
+                    keyframes.add(ptsUs);
+                }
+            }
+        }
+
+        final long[] result = new long[keyframes.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = keyframes.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    public static class MediaInfo {
+        @NonNull
+        public final String formatName;
+        public final long durationUs;
+        public final long bitRate;
+        @NonNull
+        public final List<StreamInfo> streams;
+
+        private MediaInfo(@NonNull String formatName, long durationUs, long bitRate,
+                          @NonNull List<StreamInfo> streams) {
+            this.formatName = formatName;
+            this.durationUs = durationUs;
+            this.bitRate = bitRate;
+            this.streams = Collections.unmodifiableList(streams);
+        }
+
+        @NonNull
+        static MediaInfo fromJson(@NonNull JSONObject root) throws JSONException {
+            final List<StreamInfo> streams = new ArrayList<>();
+            final JSONArray streamsArray = root.optJSONArray("streams");
+            if (streamsArray != null) {
+                for (int i = 0; i < streamsArray.length(); ++i) {
+                    streams.add(StreamInfo.fromJson(streamsArray.getJSONObject(i)));
+                }
+            }
+
+            final JSONObject format = root.optJSONObject("format");
+            if (format == null) {
+                return new MediaInfo("", UNKNOWN, UNKNOWN, streams);
+            }
+            return new MediaInfo(format.optString("format_name"),
+                    parseSecondsToUs(format.optString("duration")),
+                    parseLong(format.optString("bit_rate")),
+                    streams);
+        }
+
+        public boolean containsAudio() {
+            return getFirstAudioStream() != null;
+        }
+
+        public boolean containsVideo() {
+            return getFirstVideoStream() != null;
+        }
+
+        @Nullable
+        public StreamInfo getFirstAudioStream() {
+            return getFirstStreamOfType(StreamInfo.TYPE_AUDIO);
+        }
+
+        // Cover art is reported as a video stream too, but it's not something we can edit as
+        // video, so it's skipped here.
+        @Nullable
+        public StreamInfo getFirstVideoStream() {
+            for (StreamInfo stream : streams) {
+                if (stream.isVideo() && !stream.isAttachedPicture) {
+                    return stream;
+                }
+            }
+            return null;
+        }
+
+        @Nullable
+        private StreamInfo getFirstStreamOfType(@NonNull String codecType) {
+            for (StreamInfo stream : streams) {
+                if (stream.codecType.equals(codecType)) {
+                    return stream;
+                }
+            }
+            return null;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "MediaInfo{" +
+                    "formatName='" + formatName + '\'' +
+                    ", durationUs=" + durationUs +
+                    ", bitRate=" + bitRate +
+                    ", streams=" + streams +
+                    '}';
+        }
+    }
+
+    public static class StreamInfo {
+        static final String TYPE_AUDIO = "audio";
+        static final String TYPE_VIDEO = "video";
+
+        public final int index;
+        @NonNull
+        public final String codecType;
+        @NonNull
+        public final String codecName;
+        public final long durationUs;
+        public final long bitRate;
+
+        // Audio only
+        public final int sampleRate;
+        public final int channels;
+        @NonNull
+        public final String channelLayout;
+
+        // Video only
+        public final int width;
+        public final int height;
+        @NonNull
+        public final String pixelFormat;
+        public final int rotation;
+        public final boolean isAttachedPicture;
+        // As FFPROBE names them, e.g. "High" and 40 for H.264 High@4.0. The level is UNKNOWN when
+        // the codec doesn't have levels.
+        @NonNull
+        public final String profile;
+        public final int level;
+
+        private StreamInfo(int index, @NonNull String codecType, @NonNull String codecName,
+                           long durationUs, long bitRate,
+                           int sampleRate, int channels, @NonNull String channelLayout,
+                           int width, int height, @NonNull String pixelFormat, int rotation,
+                           boolean isAttachedPicture, @NonNull String profile, int level) {
+            this.index = index;
+            this.codecType = codecType;
+            this.codecName = codecName;
+            this.durationUs = durationUs;
+            this.bitRate = bitRate;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.channelLayout = channelLayout;
+            this.width = width;
+            this.height = height;
+            this.pixelFormat = pixelFormat;
+            this.rotation = rotation;
+            this.isAttachedPicture = isAttachedPicture;
+            this.profile = profile;
+            this.level = level;
+        }
+
+        @NonNull
+        static StreamInfo fromJson(@NonNull JSONObject stream) {
+            final JSONObject tags = stream.optJSONObject("tags");
+            final JSONObject disposition = stream.optJSONObject("disposition");
+            return new StreamInfo(
+                    stream.optInt("index"),
+                    stream.optString("codec_type"),
+                    stream.optString("codec_name"),
+                    parseSecondsToUs(stream.optString("duration")),
+                    parseLong(stream.optString("bit_rate")),
+                    (int) parseLong(stream.optString("sample_rate")),
+                    stream.optInt("channels"),
+                    stream.optString("channel_layout"),
+                    stream.optInt("width"),
+                    stream.optInt("height"),
+                    stream.optString("pix_fmt"),
+                    tags != null ? tags.optInt("rotate", 0) : 0,
+                    disposition != null && disposition.optInt("attached_pic") == 1,
+                    stream.optString("profile"),
+                    // Codecs without levels are reported as -99.
+                    stream.optInt("level") > 0 ? stream.optInt("level") : (int) UNKNOWN);
+        }
+
+        public boolean isAudio() {
+            return codecType.equals(TYPE_AUDIO);
+        }
+
+        public boolean isVideo() {
+            return codecType.equals(TYPE_VIDEO);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "StreamInfo{" +
+                    "index=" + index +
+                    ", codecType='" + codecType + '\'' +
+                    ", codecName='" + codecName + '\'' +
+                    ", durationUs=" + durationUs +
+                    ", bitRate=" + bitRate +
+                    ", sampleRate=" + sampleRate +
+                    ", channels=" + channels +
+                    ", channelLayout='" + channelLayout + '\'' +
+                    ", width=" + width +
+                    ", height=" + height +
+                    ", pixelFormat='" + pixelFormat + '\'' +
+                    ", rotation=" + rotation +
+                    ", isAttachedPicture=" + isAttachedPicture +
+                    ", profile='" + profile + '\'' +
+                    ", level=" + level +
+                    '}';
+        }
+    }
+
+    @NonNull
+    private static String formatSeconds(long us) {
+        return String.format(Locale.US, "%d.%06d", us / 1000000, us % 1000000);
+    }
+
+    // FFPROBE reports missing values as "N/A", or leaves them out.
+    private static long parseSecondsToUs(@Nullable String seconds) {
+        if (seconds == null || seconds.isEmpty() || seconds.equals("N/A")) {
+            return UNKNOWN;
+        }
+        try {
+            return Math.round(Double.parseDouble(seconds) * 1000000.0);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static long parseLong(@Nullable String value) {
+        if (value == null || value.isEmpty() || value.equals("N/A")) {
+            return UNKNOWN;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.digipom.easymediaconverter.utils.ExecutorUtils;
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Reads the raw interleaved float PCM (-f f32le) that an FFMPEG task writes to a named pipe, on a
+// separate thread while the task runs.
+//
+// Opening a pipe blocks until the other end is opened too. If FFMPEG fails before it gets to its
+// output, the reader would be stuck forever, so close() opens the write end itself when the reader
+// hasn't got past that point yet.
+final class PcmPipeReader {
+    interface SampleHandler {
+        @WorkerThread
+        void onSamples(@NonNull float[] samples, int frameCount);
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // A reader blocks until its task opens the pipe, so one that's waiting for a thread would hold
+    // up its task, and a segmented measurement runs several tasks at once.
+    private static final ExecutorService READERS = ExecutorUtils.newCachedThreadPoolWithTimeout();
+
+    @NonNull
+    private final String pipePath;
+    private final AtomicBoolean hasOpenedPipe = new AtomicBoolean(false);
+    @NonNull
+    private final Future<?> task;
+    @Nullable
+    private IOException failure;
+
+    @NonNull
+    static PcmPipeReader start(@NonNull String pipePath, int channels, @NonNull SampleHandler handler) {
+        return new PcmPipeReader(pipePath, channels, handler);
+    }
+
+    private PcmPipeReader(@NonNull final String pipePath, final int channels, @NonNull final SampleHandler handler) {
+        this.pipePath = pipePath;
+        this.task = READERS.submit(new Runnable() {
+            @Override
+            public void run() {
+                try (InputStream in = new FileInputStream(pipePath)) {
+                    hasOpenedPipe.set(true);
+                    read(in, channels, handler);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    private static void read(@NonNull InputStream in, int channels, @NonNull SampleHandler handler) throws IOException {
+        final int bytesPerFrame = 4 * channels;
+        final byte[] bytes = new byte[BUFFER_SIZE - BUFFER_SIZE % bytesPerFrame];
+        final float[] samples = new float[bytes.length / 4];
+        final FloatBuffer floats = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        int filled = 0;
+        int read;
+        while ((read = in.read(bytes, filled, bytes.length - filled)) != -1) {
+            filled += read;
+            final int frameCount = filled / bytesPerFrame;
+            if (frameCount == 0) {
+                continue;
+            }
+
+            final int sampleCount = frameCount * channels;
+            floats.clear();
+            floats.get(samples, 0, sampleCount);
+            handler.onSamples(samples, frameCount);
+
+            // Keep any partial frame for the next read.
+            final int used = frameCount * bytesPerFrame;
+            System.arraycopy(bytes, used, bytes, 0, filled - used);
+            filled -= used;
+        }
+    }
+
+    // Call once the FFMPEG task has finished, successfully or not. Waits for the reader to finish.
+    @WorkerThread
+    void close() {
+        if (!hasOpenedPipe.get()) {
+            // Either the reader is still waiting for a writer, or it has just opened the pipe; in
+            // both cases, this doesn't block. The reader will then see the end of the stream.
+            try {
+                new FileOutputStream(pipePath).close();
+            } catch (IOException e) {
+                Logger.w("Could not unblock reader of " + pipePath, e);
+            }
+        }
+
+        boolean wasInterrupted = false;
+        while (true) {
+            try {
+                task.get();
+                break;
+            } catch (InterruptedException e) {
+                // The reader finishes quickly once the pipe is closed, so wait it out.
+                wasInterrupted = true;
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                failure = cause != null && cause.getCause() instanceof IOException
+                        ? (IOException) cause.getCause()
+                        : new IOException(cause);
+                break;
+            }
+        }
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Rethrows anything that went wrong while reading, once closed.
+    void throwIfFailed() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
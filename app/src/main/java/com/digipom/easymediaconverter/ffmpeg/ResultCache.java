@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.arthenica.mobileffmpeg.Config;
+import com.digipom.easymediaconverter.BuildConfig;
+import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.UUID;
+
+// Keeps the outputs of recent requests, so that running the same action with the same parameters
+// on the same file again (for example, to export it to another folder after a failed share) only
+// has to copy the earlier output to the new target.
+//
+// Outputs are keyed by the content fingerprint of the input, the action and its parameters, and
+// the app and FFMPEG versions, since an update can change what the same command produces. The
+// cache dir is cleared before every request, so the outputs are kept in the no-backup dir instead
+// and the least recently used ones are deleted once they go over the disk budget.
+public class ResultCache {
+    private static final String DIR_NAME = "results";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAX_TOTAL_BYTES = 256 * 1024 * 1024;
+    // Bigger outputs would push out everything else, and are unlikely to be exported twice.
+    private static final long MAX_ENTRY_BYTES = MAX_TOTAL_BYTES / 4;
+
+    private final Context context;
+    private final File dir;
+
+    public ResultCache(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        dir = new File(context.getNoBackupFilesDir(), DIR_NAME);
+    }
+
+    @NonNull
+    static String toKey(@NonNull String fingerprint, @NonNull EditAction editAction,
+                        @NonNull String parameters, @NonNull String extension) {
+        return fingerprint + '|' + editAction + '|' + parameters + '|' + extension
+                + '|' + BuildConfig.VERSION_CODE + '|' + Config.getFFmpegVersion();
+    }
+
+    // The returned file stays valid until the next put().
+    @WorkerThread
+    @Nullable
+    synchronized File get(@NonNull String key) {
+        final File file = fileForKey(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            Logger.v("Could not update the last used time of " + file);
+        }
+        return file;
+    }
+
+    @WorkerThread
+    synchronized void put(@NonNull String key, @NonNull Uri output) {
+        final File file = fileForKey(key);
+        final File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            if (!dir.mkdirs()) {
+                Logger.v("Did not create " + dir);
+            }
+
+            long size = 0;
+            try (InputStream is = new BufferedInputStream(
+                    Objects.requireNonNull(context.getContentResolver().openInputStream(output)))) {
+                try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                    final byte[] buffer = new byte[8192];
+                    int len;
+                    while ((len = is.read(buffer)) > 0) {
+                        size += len;
+                        if (size > MAX_ENTRY_BYTES) {
+                            Logger.d("Not caching " + output + " as it's larger than " + MAX_ENTRY_BYTES + " bytes");
+                            break;
+                        }
+                        os.write(buffer, 0, len);
+                    }
+                }
+            }
+
+            if (size > MAX_ENTRY_BYTES) {
+                deleteFile(tempFile);
+                return;
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+            Logger.d("Cached " + size + " bytes of output from " + output + " as " + file);
+            trimToBudget();
+        } catch (IOException e) {
+            // Not fatal: the next identical request will just run again.
+            Logger.w("Could not cache the output " + output, e);
+            deleteFile(tempFile);
+        }
+    }
+
+    private void trimToBudget() {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Oldest first.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.compare(first.lastModified(), second.lastModified());
+            }
+        });
+
+        long totalBytes = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left over from a put() that didn't finish.
+                deleteFile(file);
+            } else {
+                totalBytes += file.length();
+            }
+        }
+
+        for (File file : files) {
+            if (totalBytes <= MAX_TOTAL_BYTES) {
+                break;
+            }
+            if (file.exists()) {
+                totalBytes -= file.length();
+                Logger.v("Evicting " + file + " from the result cache");
+                deleteFile(file);
+            }
+        }
+    }
+
+    @NonNull
+    private File fileForKey(@NonNull String key) {
+        return new File(dir, UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString());
+    }
+
+    private static void deleteFile(@NonNull File file) {
+        if (!file.delete()) {
+            Logger.v("Could not delete " + file);
+        }
+    }
+}
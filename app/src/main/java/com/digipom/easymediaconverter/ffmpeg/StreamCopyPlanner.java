@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.digipom.easymediaconverter.edit.OutputFormatType;
+import com.digipom.easymediaconverter.media.MediaMetadata;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Decides, for each stream of the input, the cheapest way to get it into the output: copy it as it
+// is, copy it into a different container, or decode and encode it again. The decision is made from
+// the probed codecs and container rather than from the file names, so for example the AAC track of
+// an MKV can be copied into an M4A.
+final class StreamCopyPlanner {
+    enum StreamHandling {
+        // The input doesn't have a stream of this type, or the output won't include it.
+        NONE,
+        // Same codec, same container: the packets are copied as they are.
+        COPY,
+        // Same codec, different container: the packets are copied but rewrapped.
+        REMUX,
+        // The output container can't hold the codec, or the caller asked for a different encoding.
+        REENCODE
+    }
+
+    // How much of the work a plan leaves to the encoders, from cheapest to most expensive.
+    enum Strategy {
+        // Every stream is copied or remuxed.
+        STREAM_COPY,
+        // Some streams are copied and the rest are encoded again.
+        PARTIAL_REENCODE,
+        // Every stream is encoded again.
+        FULL_REENCODE
+    }
+
+    // FFPROBE names the demuxer that handled the input, and some demuxers cover a family of
+    // containers.
+    private static final String FORMAT_MOV_FAMILY = "mov,mp4,m4a,3gp,3g2,mj2";
+    private static final String FORMAT_MATROSKA_FAMILY = "matroska,webm";
+    private static final String FORMAT_ADTS = "aac";
+
+    private static final Set<String> MP4_AUDIO_CODECS = setOf("aac", "mp3", "alac", "ac3", "eac3");
+    private static final Set<String> MP4_VIDEO_CODECS = setOf("h264", "hevc", "mpeg4", "av1");
+    private static final Set<String> MOV_AUDIO_CODECS = setOf("aac", "mp3", "alac", "ac3", "eac3", "pcm_s16le", "pcm_s24le");
+    private static final Set<String> MOV_VIDEO_CODECS = setOf("h264", "hevc", "mpeg4", "prores", "mjpeg");
+    private static final Set<String> WEBM_AUDIO_CODECS = setOf("vorbis", "opus");
+    private static final Set<String> WEBM_VIDEO_CODECS = setOf("vp8", "vp9", "av1");
+    private static final Set<String> WAVE_AUDIO_CODECS = setOf("pcm_u8", "pcm_s16le", "pcm_s24le", "pcm_s32le",
+            "pcm_f32le", "pcm_alaw", "pcm_mulaw");
+
+    static final class Plan {
+        @NonNull
+        final StreamHandling audio;
+        @NonNull
+        final StreamHandling video;
+        // ADTS streams need their headers converted before they can go into an MP4-style container.
+        private final boolean needsAdtsToAsc;
+
+        Plan(@NonNull StreamHandling audio, @NonNull StreamHandling video, boolean needsAdtsToAsc) {
+            this.audio = audio;
+            this.video = video;
+            this.needsAdtsToAsc = needsAdtsToAsc;
+        }
+
+        boolean canCopyAllStreams() {
+            return audio != StreamHandling.REENCODE && video != StreamHandling.REENCODE;
+        }
+
+        boolean canCopyAudio() {
+            return audio == StreamHandling.COPY || audio == StreamHandling.REMUX;
+        }
+
+        boolean canCopyVideo() {
+            return video == StreamHandling.COPY || video == StreamHandling.REMUX;
+        }
+
+        @NonNull
+        Strategy getStrategy() {
+            final boolean copiesAny = canCopyAudio() || canCopyVideo();
+            final boolean encodesAny = audio == StreamHandling.REENCODE || video == StreamHandling.REENCODE;
+            if (!encodesAny) {
+                return Strategy.STREAM_COPY;
+            } else if (copiesAny) {
+                return Strategy.PARTIAL_REENCODE;
+            } else {
+                return Strategy.FULL_REENCODE;
+            }
+        }
+
+        // The next plan to try if this one fails, or null if everything is already encoded again.
+        // When both streams are copied, the audio is encoded first, since it's far cheaper than
+        // the video and is the more common cause of a copy failing (ADTS headers, odd timestamps).
+        @Nullable
+        Plan getFallback() {
+            if (canCopyAudio() && canCopyVideo()) {
+                return new Plan(StreamHandling.REENCODE, video, false);
+            }
+            return getFullReencodeFallback();
+        }
+
+        // For callers that can't mix copied and encoded streams, such as input seeking, where a
+        // copied stream would start at the keyframe before the seek point and an encoded one at
+        // the seek point itself.
+        @Nullable
+        Plan getFullReencodeFallback() {
+            if (!canCopyAudio() && !canCopyVideo()) {
+                return null;
+            }
+            return new Plan(audio == StreamHandling.NONE ? StreamHandling.NONE : StreamHandling.REENCODE,
+                    video == StreamHandling.NONE ? StreamHandling.NONE : StreamHandling.REENCODE,
+                    false);
+        }
+
+        // Adds the codec options for every stream that can be copied. Anything else is left to
+        // FFMPEG's defaults for the output container, or to options added by the caller.
+        void addCodecCommands(@NonNull List<String> commands) {
+            addAudioCodecCommands(commands);
+            addVideoCodecCommands(commands);
+        }
+
+        void addAudioCodecCommands(@NonNull List<String> commands) {
+            if (canCopyAudio()) {
+                commands.add("-codec:a");
+                commands.add("copy");
+                if (needsAdtsToAsc) {
+                    commands.add("-bsf:a");
+                    commands.add("aac_adtstoasc");
+                }
+            }
+        }
+
+        void addVideoCodecCommands(@NonNull List<String> commands) {
+            if (canCopyVideo()) {
+                commands.add("-codec:v");
+                commands.add("copy");
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Plan{" +
+                    "audio=" + audio +
+                    ", video=" + video +
+                    ", needsAdtsToAsc=" + needsAdtsToAsc +
+                    '}';
+        }
+    }
+
+    private StreamCopyPlanner() {
+    }
+
+    @NonNull
+    static Plan plan(@NonNull MediaMetadata input, @NonNull String outputExtension) {
+        return plan(input, outputExtension, false);
+    }
+
+    // Pass true for forceAudioReencode when the caller asked for specific audio encoder settings,
+    // such as a bitrate, which a copy wouldn't honour.
+    @NonNull
+    static Plan plan(@NonNull MediaMetadata input, @NonNull String outputExtension, boolean forceAudioReencode) {
+        final OutputFormatType outputType = OutputFormatType.getMatchingOutputType(outputExtension);
+        if (outputType == null || !input.isProbed) {
+            // We don't know enough to copy safely.
+            return new Plan(input.containsAudio() ? StreamHandling.REENCODE : StreamHandling.NONE,
+                    input.containsVideo() ? StreamHandling.REENCODE : StreamHandling.NONE,
+                    false);
+        }
+
+        final boolean sameContainer = input.formatName.equals(getFormatName(outputType));
+        final StreamHandling audio;
+        if (!input.containsAudio()) {
+            audio = StreamHandling.NONE;
+        } else if (forceAudioReencode || !accepts(getAudioCodecs(outputType), input.audioCodec)) {
+            audio = StreamHandling.REENCODE;
+        } else {
+            audio = sameContainer ? StreamHandling.COPY : StreamHandling.REMUX;
+        }
+
+        final StreamHandling video;
+        if (!input.containsVideo() || !outputType.isVideoOutputType()) {
+            video = StreamHandling.NONE;
+        } else if (!accepts(getVideoCodecs(outputType), input.videoCodec)) {
+            video = StreamHandling.REENCODE;
+        } else {
+            video = sameContainer ? StreamHandling.COPY : StreamHandling.REMUX;
+        }
+
+        final boolean needsAdtsToAsc = audio == StreamHandling.REMUX
+                && input.formatName.equals(FORMAT_ADTS)
+                && FORMAT_MOV_FAMILY.equals(getFormatName(outputType));
+        return new Plan(audio, video, needsAdtsToAsc);
+    }
+
+    @NonNull
+    private static String getFormatName(@NonNull OutputFormatType outputType) {
+        switch (outputType) {
+            case M4A:
+            case MP4:
+            case MOV:
+                return FORMAT_MOV_FAMILY;
+            case MKV:
+            case WEBM:
+                return FORMAT_MATROSKA_FAMILY;
+            case AAC:
+                return FORMAT_ADTS;
+            case OGG:
+            case OPUS:
+                return "ogg";
+            case WAVE_PCM:
+                return "wav";
+            default:
+                // mp3 and flac are named after themselves.
+                return outputType.getExtensionForOutputType();
+        }
+    }
+
+    // Returns null when the container can hold any codec.
+    @Nullable
+    private static Set<String> getAudioCodecs(@NonNull OutputFormatType outputType) {
+        switch (outputType) {
+            case MP3:
+                return setOf("mp3");
+            case M4A:
+                return setOf("aac", "alac");
+            case AAC:
+                return setOf("aac");
+            case OGG:
+                return setOf("vorbis", "opus", "flac", "speex");
+            case OPUS:
+                return setOf("opus");
+            case FLAC:
+                return setOf("flac");
+            case WAVE_PCM:
+                return WAVE_AUDIO_CODECS;
+            case MP4:
+                return MP4_AUDIO_CODECS;
+            case MOV:
+                return MOV_AUDIO_CODECS;
+            case WEBM:
+                return WEBM_AUDIO_CODECS;
+            default:
+                return null;
+        }
+    }
+
+    // Returns null when the container can hold any codec.
+    @Nullable
+    private static Set<String> getVideoCodecs(@NonNull OutputFormatType outputType) {
+        switch (outputType) {
+            case MP4:
+                return MP4_VIDEO_CODECS;
+            case MOV:
+                return MOV_VIDEO_CODECS;
+            case WEBM:
+                return WEBM_VIDEO_CODECS;
+            case MKV:
+                return null;
+            default:
+                return Collections.emptySet();
+        }
+    }
+
+    private static boolean accepts(@Nullable Set<String> codecs, @NonNull String codec) {
+        return codecs == null || codecs.contains(codec);
+    }
+
+    @NonNull
+    private static Set<String> setOf(@NonNull String... codecs) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(codecs)));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+
+import com.digipom.easymediaconverter.edit.OutputFormatType;
+
+// Works out the bitrates that make a conversion land at a requested file size, for the TARGET_SIZE
+// bitrate type.
+//
+// The size budget is the target minus an estimate of the container's own overhead, spread over
+// the duration of the input. When there's video, the audio gets a modest share and the video
+// encoder gets the rest, which it can only hit reliably with two passes. If the output still comes
+// out too large, the action can rescale the budget by how far it was off and encode again.
+final class TargetSizeEncoding {
+    // Aim a little under the target, since the encoders only hit an average bitrate approximately.
+    private static final double TARGET_FILL = 0.96;
+    private static final int MIN_AUDIO_KBPS = 8;
+    private static final int MAX_AUDIO_KBPS = 320;
+    private static final int MIN_VIDEO_AUDIO_KBPS = 32;
+    private static final int MAX_VIDEO_AUDIO_KBPS = 128;
+    private static final int MIN_VIDEO_KBPS = 50;
+    // LAME only supports a fixed set of bitrates, and rounds anything else to the closest one,
+    // which could be above the budget.
+    private static final int[] MP3_KBPS = {8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+
+    static final class Budget {
+        final int audioKbps;
+        // 0 when the output has no video.
+        final int videoKbps;
+
+        private Budget(int audioKbps, int videoKbps) {
+            this.audioKbps = audioKbps;
+            this.videoKbps = videoKbps;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Budget{" +
+                    "audioKbps=" + audioKbps +
+                    ", videoKbps=" + videoKbps +
+                    '}';
+        }
+    }
+
+    static long targetBytes(int megabytes) {
+        return megabytes * 1000L * 1000L;
+    }
+
+    @NonNull
+    static Budget forTarget(@NonNull OutputFormatType outputFormatType, long targetBytes, long durationMs,
+                            boolean hasVideo, boolean hasAudio) {
+        final long availableBytes = (long) (targetBytes * TARGET_FILL) - overheadBytes(outputFormatType, durationMs);
+        final int totalKbps = (int) Math.max(1, availableBytes * 8 / Math.max(1, durationMs));
+        return forTotalKbps(outputFormatType, totalKbps, hasVideo, hasAudio);
+    }
+
+    // For when an output came out at actualBytes instead. Only ever scales down.
+    @NonNull
+    static Budget rescale(@NonNull OutputFormatType outputFormatType, @NonNull Budget budget,
+                          long targetBytes, long actualBytes, boolean hasVideo, boolean hasAudio) {
+        final double scale = Math.min(1, (double) targetBytes * TARGET_FILL / Math.max(1, actualBytes));
+        final int totalKbps = (int) ((budget.audioKbps + budget.videoKbps) * scale);
+        return forTotalKbps(outputFormatType, totalKbps, hasVideo, hasAudio);
+    }
+
+    @NonNull
+    private static Budget forTotalKbps(@NonNull OutputFormatType outputFormatType, int totalKbps,
+                                       boolean hasVideo, boolean hasAudio) {
+        if (!hasVideo) {
+            final int audioKbps = clamp(totalKbps, MIN_AUDIO_KBPS, MAX_AUDIO_KBPS);
+            return new Budget(outputFormatType == OutputFormatType.MP3 ? mp3KbpsAtOrBelow(audioKbps) : audioKbps, 0);
+        }
+
+        final int audioKbps = hasAudio ? clamp(totalKbps / 8, MIN_VIDEO_AUDIO_KBPS, MAX_VIDEO_AUDIO_KBPS) : 0;
+        return new Budget(audioKbps, Math.max(MIN_VIDEO_KBPS, totalKbps - audioKbps));
+    }
+
+    // A rough estimate of the headers, indexes and framing that each container adds on top of the
+    // encoded streams.
+    private static long overheadBytes(@NonNull OutputFormatType outputFormatType, long durationMs) {
+        final long fixedBytes;
+        final long bytesPerSecond;
+        switch (outputFormatType) {
+            case MP3:
+                // ID3 and Xing headers; the frame headers are part of the bitrate.
+                fixedBytes = 4096;
+                bytesPerSecond = 0;
+                break;
+            case AAC:
+                // An ADTS header on every frame.
+                fixedBytes = 0;
+                bytesPerSecond = 350;
+                break;
+            case M4A:
+                fixedBytes = 4096;
+                bytesPerSecond = 450;
+                break;
+            case OGG:
+            case OPUS:
+                fixedBytes = 4096;
+                bytesPerSecond = 200;
+                break;
+            case MKV:
+            case WEBM:
+                fixedBytes = 8192;
+                bytesPerSecond = 1200;
+                break;
+            case MP4:
+            case MOV:
+            default:
+                fixedBytes = 8192;
+                bytesPerSecond = 1000;
+                break;
+        }
+        return fixedBytes + bytesPerSecond * durationMs / 1000;
+    }
+
+    private static int mp3KbpsAtOrBelow(int kbps) {
+        int result = MP3_KBPS[0];
+        for (int candidate : MP3_KBPS) {
+            if (candidate <= kbps) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private TargetSizeEncoding() {
+    }
+}
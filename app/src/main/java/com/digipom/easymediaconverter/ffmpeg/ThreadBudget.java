@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import androidx.annotation.NonNull;
+
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Splits the CPU cores between the FFMPEG executions that are running at the same time, so that
+// each one doesn't size its thread pools as if it had the whole device to itself.
+//
+// An execution can't change its thread count once started, so the split is worked out as each one
+// starts: it gets an equal share with the ones already running. A group of executions that start
+// together, such as parallel segments, is reserved up front so that each gets the same share,
+// instead of the first one taking the whole device. As executions finish, the ones started
+// afterwards get larger shares again. Actions that run several commands in a row are rebalanced on
+// every command.
+final class ThreadBudget {
+    static final class Lease {
+        final int threads;
+
+        private Lease(int threads) {
+            this.threads = threads;
+        }
+    }
+
+    // Options that actions use after their inputs which don't take a value. Anything else that
+    // starts with "-" is followed by its value.
+    private static final Set<String> OPTIONS_WITHOUT_VALUE = new HashSet<>(Arrays.asList(
+            "-y", "-n", "-vn", "-an", "-sn", "-dn", "-shortest", "-noautorotate"));
+
+    private final int cores;
+    private int activeLeases;
+
+    ThreadBudget(int cores) {
+        this.cores = Math.max(1, cores);
+    }
+
+    @NonNull
+    Lease acquire() {
+        return acquire(1).get(0);
+    }
+
+    // Each of the count leases gets the same share. Every lease must be released on its own.
+    @NonNull
+    synchronized List<Lease> acquire(int count) {
+        activeLeases += count;
+        final int threads = Math.max(1, cores / Math.max(1, activeLeases));
+        final List<Lease> leases = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            leases.add(new Lease(threads));
+        }
+        Logger.v("Thread budget: " + threads + " of " + cores + " cores for each of " + count
+                + " execution(s), " + activeLeases + " execution(s) running");
+        return leases;
+    }
+
+    synchronized void release(@NonNull Lease lease) {
+        activeLeases = Math.max(0, activeLeases - 1);
+    }
+
+    // Limits the decoders, the filter graphs and the encoder. Commands that already choose their
+    // own thread count are left alone.
+    static void addThreadCommands(@NonNull Lease lease, @NonNull List<String> commands) {
+        if (commands.isEmpty() || commands.contains("-threads")) {
+            return;
+        }
+
+        final String threads = String.valueOf(lease.threads);
+        // Encoders, as an output option for each output.
+        final List<Integer> outputIndices = findOutputIndices(commands);
+        for (int i = outputIndices.size() - 1; i >= 0; i--) {
+            commands.add(outputIndices.get(i), threads);
+            commands.add(outputIndices.get(i), "-threads");
+        }
+        // Decoders, as an input option for each input.
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            if (commands.get(i).equals("-i")) {
+                commands.add(i, threads);
+                commands.add(i, "-threads");
+            }
+        }
+        // Filter graphs; these are global options.
+        commands.add(0, threads);
+        commands.add(0, "-filter_complex_threads");
+        commands.add(0, threads);
+        commands.add(0, "-filter_threads");
+    }
+
+    // The outputs are the arguments after the last input that are neither options nor their values.
+    @NonNull
+    static List<Integer> findOutputIndices(@NonNull List<String> commands) {
+        final List<Integer> outputIndices = new ArrayList<>();
+        final int lastInput = commands.lastIndexOf("-i");
+        for (int i = lastInput < 0 ? 0 : lastInput + 2; i < commands.size(); i++) {
+            final String argument = commands.get(i);
+            if (argument.length() > 1 && argument.startsWith("-")) {
+                if (!OPTIONS_WITHOUT_VALUE.contains(argument)) {
+                    // Skip over the value.
+                    i++;
+                }
+            } else {
+                outputIndices.add(i);
+            }
+        }
+        if (outputIndices.isEmpty()) {
+            outputIndices.add(commands.size() - 1);
+        }
+        return outputIndices;
+    }
+}
@@ -44,6 +44,9 @@ import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.FragmentManager;
 
 import com.digipom.easymediaconverter.R;
+import com.digipom.easymediaconverter.application.BaseApplication;
+import com.digipom.easymediaconverter.edit.EncodingSpeedProfile;
+import com.digipom.easymediaconverter.prefs.AppPreferences;
 import com.digipom.easymediaconverter.utils.ContactUsUtils;
 import com.digipom.easymediaconverter.utils.IntentLauncher;
 import com.digipom.easymediaconverter.utils.ResourceUtils;
@@ -95,6 +98,9 @@ public class BottomNavDrawerFragment extends BottomSheetDialogFragment {
                     return true;
                 } else if (item.getItemId() == R.id.nav_about) {
                     AboutDialogFragment.showDialog(getChildFragmentManager());
+                } else if (item.getItemId() == R.id.nav_encoding_speed) {
+                    EncodingSpeedDialogFragment.showDialog(getChildFragmentManager());
+                    return true;
                 }
 
                 return false;
@@ -147,4 +153,51 @@ public class BottomNavDrawerFragment extends BottomSheetDialogFragment {
         }
 
     }
+
+    public static class EncodingSpeedDialogFragment extends DialogFragment {
+        private static final String TAG = EncodingSpeedDialogFragment.class.getName();
+
+        public static void showDialog(@NonNull FragmentManager fragmentManager) {
+            final EncodingSpeedDialogFragment fragment = new EncodingSpeedDialogFragment();
+            fragment.show(fragmentManager, TAG);
+        }
+
+        @NonNull
+        @Override
+        public Dialog onCreateDialog(@Nullable Bundle savedInstanceState) {
+            final AppPreferences appPreferences = ((BaseApplication) requireContext().getApplicationContext())
+                    .getServiceLocator().getAppPreferences();
+            final EncodingSpeedProfile[] profiles = EncodingSpeedProfile.values();
+            final String[] labels = new String[profiles.length];
+            for (int i = 0; i < profiles.length; i++) {
+                labels[i] = getString(getLabel(profiles[i]));
+            }
+
+            final AlertDialog.Builder builder = new AlertDialog.Builder(
+                    new ContextThemeWrapper(
+                            Objects.requireNonNull(getActivity()), R.style.AppTheme_MaterialAlertDialog));
+            builder.setTitle(R.string.encoding_speed);
+            builder.setSingleChoiceItems(labels, appPreferences.getEncodingSpeedProfile().ordinal(),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            appPreferences.setEncodingSpeedProfile(profiles[which]);
+                            dialog.dismiss();
+                        }
+                    });
+            return builder.create();
+        }
+
+        private static int getLabel(@NonNull EncodingSpeedProfile profile) {
+            switch (profile) {
+                case FASTEST:
+                    return R.string.encoding_speed_fastest;
+                case SMALLEST:
+                    return R.string.encoding_speed_smallest;
+                case BALANCED:
+                default:
+                    return R.string.encoding_speed_balanced;
+            }
+        }
+    }
 }
@@ -537,6 +537,8 @@ public class RecentsListFragment extends Fragment {
                     return R.drawable.ic_combine_black_24dp;
                 case SET_AS_RINGTONE:
                     return R.drawable.ic_set_as_ringtone_black_24dp;
+                case CHAINED_EDIT:
+                    return R.drawable.ic_convert_black_24dp;
                 default:
                     throw new UnsupportedOperationException();
             }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import android.content.ClipData;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Observer;
+
+import com.digipom.easymediaconverter.utils.ExecutorUtils;
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+// Resolves a large selection of documents into media items without blocking the caller. The
+// provider queries run on a small pool, and the items are published in the order they were
+// selected as soon as each one and all of the ones before it have resolved, so that the UI can
+// show the start of the list while the rest are still loading.
+public class BulkMediaItemResolver {
+    // Enough to overlap the provider round trips without flooding the provider.
+    private static final int MAX_PARALLEL_QUERIES = 4;
+
+    private final Context context;
+    private final ExecutorService executor = ExecutorUtils.newFixedThreadPoolWithTimeout(MAX_PARALLEL_QUERIES);
+
+    public static class Progress {
+        // The items resolved so far, in the original order. Failed items are left out.
+        @NonNull
+        public final List<MediaItem> items;
+        public final int failedCount;
+        public final int totalCount;
+        public final boolean isFinished;
+
+        Progress(@NonNull List<MediaItem> items, int failedCount, int totalCount, boolean isFinished) {
+            this.items = items;
+            this.failedCount = failedCount;
+            this.totalCount = totalCount;
+            this.isFinished = isFinished;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Progress{" +
+                    "items=" + items.size() +
+                    ", failedCount=" + failedCount +
+                    ", totalCount=" + totalCount +
+                    ", isFinished=" + isFinished +
+                    '}';
+        }
+    }
+
+    // Receives the items of a resolution in batches, in the order they were selected.
+    public interface Listener {
+        void onItemsResolved(@NonNull List<MediaItem> items);
+
+        void onFinished(int failedCount);
+    }
+
+    // A resolution followed by something that outlives any one view, such as a view model, so that
+    // the items keep arriving while the view is recreated.
+    public static final class Observation {
+        private final LiveData<Progress> progress;
+        private final Observer<Progress> observer;
+
+        private Observation(@NonNull LiveData<Progress> progress, @NonNull Observer<Progress> observer) {
+            this.progress = progress;
+            this.observer = observer;
+        }
+
+        // Stops delivering to the listener. Does nothing if the resolution has already finished.
+        @MainThread
+        public void stop() {
+            progress.removeObserver(observer);
+        }
+    }
+
+    public BulkMediaItemResolver(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @NonNull
+    public static List<Uri> getUrisFromGetContentResponse(@NonNull Intent data) {
+        final List<Uri> uris = new ArrayList<>();
+        final ClipData clipData = data.getClipData();
+        if (clipData != null && clipData.getItemCount() > 0) {
+            for (int i = 0; i < clipData.getItemCount(); ++i) {
+                uris.add(clipData.getItemAt(i).getUri());
+            }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
+        }
+        return uris;
+    }
+
+    @MainThread
+    @NonNull
+    public LiveData<Progress> resolve(@NonNull List<Uri> uris) {
+        final MutableLiveData<Progress> progress = new MutableLiveData<>();
+        final Resolution resolution = new Resolution(uris, progress);
+        progress.setValue(resolution.snapshot());
+        if (uris.isEmpty()) {
+            return progress;
+        }
+
+        for (int i = 0; i < uris.size(); ++i) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    MediaItem item = null;
+                    try {
+                        item = MediaItem.constructFromUri(context, uris.get(index));
+                    } catch (Exception e) {
+                        Logger.w("Couldn't resolve " + uris.get(index), e);
+                    }
+                    resolution.onResolved(index, item);
+                }
+            });
+        }
+        return progress;
+    }
+
+    // Like resolve(), but hands each batch of newly resolved items to the listener, until the
+    // resolution finishes or the observation is stopped.
+    @MainThread
+    @NonNull
+    public Observation resolve(@NonNull List<Uri> uris, @NonNull final Listener listener) {
+        final LiveData<Progress> progress = resolve(uris);
+        final Observer<Progress> observer = new Observer<Progress>() {
+            private int deliveredCount;
+
+            @Override
+            public void onChanged(Progress newProgress) {
+                if (deliveredCount < newProgress.items.size()) {
+                    listener.onItemsResolved(newProgress.items.subList(deliveredCount, newProgress.items.size()));
+                    deliveredCount = newProgress.items.size();
+                }
+                if (newProgress.isFinished) {
+                    progress.removeObserver(this);
+                    listener.onFinished(newProgress.failedCount);
+                }
+            }
+        };
+        progress.observeForever(observer);
+        return new Observation(progress, observer);
+    }
+
+    private static class Resolution {
+        private final List<Uri> uris;
+        private final MutableLiveData<Progress> progress;
+        private final MediaItem[] resolvedItems;
+        private final boolean[] isDone;
+        private final List<MediaItem> publishedItems = new ArrayList<>();
+        private int nextToPublish;
+        private int failedCount;
+
+        Resolution(@NonNull List<Uri> uris, @NonNull MutableLiveData<Progress> progress) {
+            this.uris = uris;
+            this.progress = progress;
+            this.resolvedItems = new MediaItem[uris.size()];
+            this.isDone = new boolean[uris.size()];
+        }
+
+        synchronized void onResolved(int index, MediaItem item) {
+            resolvedItems[index] = item;
+            isDone[index] = true;
+
+            // Only publish once everything before this item is done too, to keep the order.
+            final int previouslyPublished = nextToPublish;
+            while (nextToPublish < uris.size() && isDone[nextToPublish]) {
+                final MediaItem next = resolvedItems[nextToPublish];
+                if (next != null) {
+                    publishedItems.add(next);
+                } else {
+                    ++failedCount;
+                }
+                resolvedItems[nextToPublish] = null;
+                ++nextToPublish;
+            }
+
+            if (nextToPublish != previouslyPublished) {
+                progress.postValue(snapshot());
+            }
+        }
+
+        @NonNull
+        synchronized Progress snapshot() {
+            return new Progress(Collections.unmodifiableList(new ArrayList<>(publishedItems)),
+                    failedCount, uris.size(), nextToPublish == uris.size());
+        }
+    }
+}
@@ -0,0 +1,1094 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+// Reads the codecs, duration and audio format of a media file straight from its container headers,
+// without staging the file or starting FFMPEG. Only a bounded prefix of the file is read, plus the
+// MP4 moov box or the last Ogg page when those are needed. Anything that isn't fully understood
+// returns null, so that the caller can fall back to FFPROBE; the names used for the container and
+// codecs are the ones that FFPROBE would report.
+public final class ContainerHeaderParser {
+    private static final int PREFIX_SIZE = 64 * 1024;
+    private static final int SUFFIX_SIZE = 64 * 1024;
+    private static final int MAX_MOOV_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_MATROSKA_ELEMENT_SIZE = 1024 * 1024;
+    private static final int MAX_TOP_LEVEL_ELEMENTS = 64;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String FORMAT_MOV_FAMILY = "mov,mp4,m4a,3gp,3g2,mj2";
+    private static final String FORMAT_MATROSKA_FAMILY = "matroska,webm";
+
+    private ContainerHeaderParser() {
+    }
+
+    @WorkerThread
+    @Nullable
+    public static MediaMetadata parse(@NonNull Context context, @NonNull Uri uri) {
+        try {
+            final ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                return null;
+            }
+            try (FileInputStream is = new FileInputStream(pfd.getFileDescriptor())) {
+                return parse(is.getChannel());
+            } finally {
+                pfd.close();
+            }
+        } catch (Exception e) {
+            Logger.w("Couldn't parse the headers of " + uri, e);
+            return null;
+        }
+    }
+
+    @WorkerThread
+    @Nullable
+    public static MediaMetadata parse(@NonNull File file) {
+        try (FileInputStream is = new FileInputStream(file)) {
+            return parse(is.getChannel());
+        } catch (Exception e) {
+            Logger.w("Couldn't parse the headers of " + file, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static MediaMetadata parse(@NonNull FileChannel channel) throws IOException {
+        final Source source = new Source(channel);
+        final byte[] prefix = source.read(0, PREFIX_SIZE);
+        if (prefix.length < 12) {
+            return null;
+        }
+
+        final MediaMetadata metadata;
+        if (matches(prefix, 4, "ftyp")) {
+            metadata = parseMp4(source);
+        } else if (matches(prefix, 0, "RIFF") && matches(prefix, 8, "WAVE")) {
+            metadata = parseWave(source, prefix);
+        } else if (matches(prefix, 0, "OggS")) {
+            metadata = parseOgg(source, prefix);
+        } else if (readUInt32BE(prefix, 0) == 0x1A45DFA3L) {
+            metadata = parseMatroska(source);
+        } else {
+            // FLAC and MP3 can both start with an ID3 tag, which can be larger than the prefix
+            // when it holds cover art.
+            final int id3Size = skipId3v2(prefix);
+            final byte[] window = id3Size == 0 ? prefix : source.read(id3Size, PREFIX_SIZE);
+            if (matches(window, 0, "fLaC")) {
+                metadata = parseFlac(source, window, 0);
+            } else {
+                metadata = parseMpegAudio(source, window, id3Size);
+            }
+        }
+
+        Logger.v("Parsed container headers: " + metadata);
+        return metadata;
+    }
+
+    // MP4, M4A and MOV
+
+    @Nullable
+    private static MediaMetadata parseMp4(@NonNull Source source) throws IOException {
+        long position = 0;
+        for (int i = 0; i < MAX_TOP_LEVEL_ELEMENTS && position + 8 <= source.size; ++i) {
+            final byte[] header = source.read(position, 16);
+            if (header.length < 8) {
+                return null;
+            }
+            long boxSize = readUInt32BE(header, 0);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.length < 16) {
+                    return null;
+                }
+                boxSize = readInt64BE(header, 8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = source.size - position;
+            }
+            if (boxSize < headerSize) {
+                return null;
+            }
+
+            if (matches(header, 4, "moov")) {
+                if (boxSize > MAX_MOOV_SIZE) {
+                    return null;
+                }
+                final byte[] moov = source.read(position + headerSize, (int) boxSize - headerSize);
+                if (moov.length != boxSize - headerSize) {
+                    return null;
+                }
+                return parseMoov(moov, source.size);
+            }
+            position += boxSize;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static MediaMetadata parseMoov(@NonNull byte[] moov, long fileSize) {
+        final StreamSummary summary = new StreamSummary(FORMAT_MOV_FAMILY);
+        long timescale = 0;
+        long duration = 0;
+
+        int position = 0;
+        while (position + 8 <= moov.length) {
+            final int boxSize = (int) readUInt32BE(moov, position);
+            if (boxSize < 8 || position + boxSize > moov.length) {
+                return null;
+            }
+            final int payload = position + 8;
+            if (matches(moov, position + 4, "mvhd") && boxSize >= 40) {
+                if (moov[payload] == 1) {
+                    timescale = readUInt32BE(moov, payload + 20);
+                    duration = readInt64BE(moov, payload + 24);
+                } else {
+                    timescale = readUInt32BE(moov, payload + 12);
+                    duration = readUInt32BE(moov, payload + 16);
+                }
+            } else if (matches(moov, position + 4, "trak")) {
+                if (!parseTrak(moov, payload, position + boxSize, summary)) {
+                    return null;
+                }
+            }
+            position += boxSize;
+        }
+
+        // Fragmented files don't have the duration up front.
+        if (timescale <= 0 || duration <= 0) {
+            return null;
+        }
+        summary.durationMs = duration * 1000 / timescale;
+        return summary.toMetadata(fileSize);
+    }
+
+    // Returns false if the track holds a codec that we don't recognise.
+    private static boolean parseTrak(@NonNull byte[] b, int start, int end, @NonNull StreamSummary summary) {
+        final int mdia = findChildBox(b, start, end, "mdia");
+        if (mdia == -1) {
+            return true;
+        }
+        final int mdiaEnd = mdia + (int) readUInt32BE(b, mdia);
+        final int hdlr = findChildBox(b, mdia + 8, mdiaEnd, "hdlr");
+        final int minf = findChildBox(b, mdia + 8, mdiaEnd, "minf");
+        if (hdlr == -1 || minf == -1) {
+            return true;
+        }
+
+        final boolean isAudio = matches(b, hdlr + 16, "soun");
+        final boolean isVideo = matches(b, hdlr + 16, "vide");
+        if ((!isAudio || summary.audioCodec != null) && (!isVideo || summary.videoCodec != null)) {
+            // Not a stream we report on, or we already have the first one of its type.
+            return true;
+        }
+
+        final int stbl = findChildBox(b, minf + 8, minf + (int) readUInt32BE(b, minf), "stbl");
+        if (stbl == -1) {
+            return false;
+        }
+        final int stsd = findChildBox(b, stbl + 8, stbl + (int) readUInt32BE(b, stbl), "stsd");
+        if (stsd == -1 || readUInt32BE(b, stsd + 12) < 1) {
+            return false;
+        }
+
+        // The first sample entry follows the version, flags and entry count.
+        final int entry = stsd + 16;
+        if (entry + 8 > b.length) {
+            return false;
+        }
+        final int entryEnd = entry + (int) readUInt32BE(b, entry);
+        final String fourcc = new String(b, entry + 4, 4, ASCII);
+
+        if (isVideo) {
+            summary.videoCodec = getVideoCodecForFourcc(fourcc);
+            return summary.videoCodec != null;
+        }
+
+        if (entry + 36 > b.length || entryEnd > b.length) {
+            return false;
+        }
+        final int soundVersion = readUInt16BE(b, entry + 16);
+        if (soundVersion == 2) {
+            // QuickTime version 2 moves the rate and channel count into extended fields.
+            if (entry + 52 > b.length) {
+                return false;
+            }
+            summary.sampleRate = (int) Double.longBitsToDouble(readInt64BE(b, entry + 40));
+            summary.channels = (int) readUInt32BE(b, entry + 48);
+        } else {
+            summary.channels = readUInt16BE(b, entry + 24);
+            // The rate is a 16.16 fixed point number.
+            summary.sampleRate = readUInt16BE(b, entry + 32);
+        }
+
+        if (fourcc.equals("mp4a")) {
+            final int childrenStart = entry + (soundVersion == 1 ? 52 : soundVersion == 2 ? 72 : 36);
+            final int esds = findChildBox(b, childrenStart, entryEnd, "esds");
+            summary.audioCodec = esds != -1 ? getAudioCodecForEsds(b, esds + 12, esds + (int) readUInt32BE(b, esds)) : null;
+        } else {
+            summary.audioCodec = getAudioCodecForFourcc(fourcc);
+        }
+        return summary.audioCodec != null;
+    }
+
+    @Nullable
+    private static String getVideoCodecForFourcc(@NonNull String fourcc) {
+        switch (fourcc) {
+            case "avc1":
+            case "avc3":
+                return "h264";
+            case "hvc1":
+            case "hev1":
+                return "hevc";
+            case "mp4v":
+                return "mpeg4";
+            case "av01":
+                return "av1";
+            case "vp09":
+                return "vp9";
+            case "jpeg":
+            case "mjpa":
+                return "mjpeg";
+            case "apch":
+            case "apcn":
+            case "apcs":
+            case "apco":
+            case "ap4h":
+                return "prores";
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static String getAudioCodecForFourcc(@NonNull String fourcc) {
+        switch (fourcc) {
+            case "alac":
+                return "alac";
+            case "ac-3":
+                return "ac3";
+            case "ec-3":
+                return "eac3";
+            case "Opus":
+                return "opus";
+            case "fLaC":
+                return "flac";
+            case ".mp3":
+                return "mp3";
+            default:
+                return null;
+        }
+    }
+
+    // Walks the ES_Descriptor down to the DecoderConfigDescriptor, whose object type says which
+    // codec an mp4a entry really holds.
+    @Nullable
+    private static String getAudioCodecForEsds(@NonNull byte[] b, int position, int end) {
+        if (position >= end || b[position] != 0x03) {
+            return null;
+        }
+        position = skipDescriptorLength(b, position + 1, end);
+        if (position == -1 || position + 3 > end) {
+            return null;
+        }
+        final int flags = b[position + 2] & 0xFF;
+        position += 3;
+        if ((flags & 0x80) != 0) {
+            position += 2;
+        }
+        if ((flags & 0x40) != 0 && position < end) {
+            position += 1 + (b[position] & 0xFF);
+        }
+        if ((flags & 0x20) != 0) {
+            position += 2;
+        }
+        if (position >= end || b[position] != 0x04) {
+            return null;
+        }
+        position = skipDescriptorLength(b, position + 1, end);
+        if (position == -1 || position >= end) {
+            return null;
+        }
+
+        switch (b[position] & 0xFF) {
+            case 0x40:
+            case 0x66:
+            case 0x67:
+            case 0x68:
+                return "aac";
+            case 0x69:
+            case 0x6B:
+                return "mp3";
+            case 0xA5:
+                return "ac3";
+            case 0xA6:
+                return "eac3";
+            default:
+                return null;
+        }
+    }
+
+    private static int skipDescriptorLength(@NonNull byte[] b, int position, int end) {
+        for (int i = 0; i < 4 && position < end; ++i) {
+            if ((b[position++] & 0x80) == 0) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static int findChildBox(@NonNull byte[] b, int start, int end, @NonNull String type) {
+        int position = start;
+        while (position + 8 <= end && position + 8 <= b.length) {
+            final int boxSize = (int) readUInt32BE(b, position);
+            if (boxSize < 8 || position + boxSize > end) {
+                return -1;
+            }
+            if (matches(b, position + 4, type)) {
+                return position;
+            }
+            position += boxSize;
+        }
+        return -1;
+    }
+
+    // WAVE
+
+    @Nullable
+    private static MediaMetadata parseWave(@NonNull Source source, @NonNull byte[] prefix) {
+        final StreamSummary summary = new StreamSummary("wav");
+        long byteRate = 0;
+        int position = 12;
+        while (position + 8 <= prefix.length) {
+            final long chunkSize = readUInt32LE(prefix, position + 4);
+            final int payload = position + 8;
+            if (matches(prefix, position, "fmt ")) {
+                if (payload + 16 > prefix.length) {
+                    return null;
+                }
+                int formatTag = readUInt16LE(prefix, payload);
+                summary.channels = readUInt16LE(prefix, payload + 2);
+                summary.sampleRate = (int) readUInt32LE(prefix, payload + 4);
+                byteRate = readUInt32LE(prefix, payload + 8);
+                final int bitsPerSample = readUInt16LE(prefix, payload + 14);
+                if (formatTag == 0xFFFE && payload + 26 <= prefix.length) {
+                    // WAVE_FORMAT_EXTENSIBLE: the real tag starts the sub-format GUID.
+                    formatTag = readUInt16LE(prefix, payload + 24);
+                }
+                summary.audioCodec = getWaveCodec(formatTag, bitsPerSample);
+                if (summary.audioCodec == null) {
+                    return null;
+                }
+            } else if (matches(prefix, position, "data")) {
+                if (summary.audioCodec == null || byteRate <= 0) {
+                    return null;
+                }
+                // Streamed files might not have had their sizes filled in.
+                final long dataSize = chunkSize == 0 || chunkSize == 0xFFFFFFFFL
+                        ? source.size - payload : Math.min(chunkSize, source.size - payload);
+                summary.durationMs = dataSize * 1000 / byteRate;
+                summary.bitRate = byteRate * 8;
+                return summary.toMetadata(source.size);
+            }
+            // Chunks are padded to an even size.
+            final long nextChunk = payload + chunkSize + (chunkSize & 1);
+            if (nextChunk > prefix.length) {
+                return null;
+            }
+            position = (int) nextChunk;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String getWaveCodec(int formatTag, int bitsPerSample) {
+        switch (formatTag) {
+            case 1:
+                switch (bitsPerSample) {
+                    case 8:
+                        return "pcm_u8";
+                    case 16:
+                        return "pcm_s16le";
+                    case 24:
+                        return "pcm_s24le";
+                    case 32:
+                        return "pcm_s32le";
+                    default:
+                        return null;
+                }
+            case 3:
+                return bitsPerSample == 64 ? "pcm_f64le" : bitsPerSample == 32 ? "pcm_f32le" : null;
+            case 6:
+                return "pcm_alaw";
+            case 7:
+                return "pcm_mulaw";
+            default:
+                return null;
+        }
+    }
+
+    // FLAC
+
+    @Nullable
+    private static MediaMetadata parseFlac(@NonNull Source source, @NonNull byte[] prefix, int start) {
+        // STREAMINFO is always the first metadata block.
+        final int streamInfo = start + 8;
+        if (streamInfo + 18 > prefix.length || (prefix[start + 4] & 0x7F) != 0) {
+            return null;
+        }
+        final StreamSummary summary = new StreamSummary("flac");
+        summary.audioCodec = "flac";
+        summary.sampleRate = ((prefix[streamInfo + 10] & 0xFF) << 12)
+                | ((prefix[streamInfo + 11] & 0xFF) << 4)
+                | ((prefix[streamInfo + 12] & 0xFF) >> 4);
+        summary.channels = ((prefix[streamInfo + 12] >> 1) & 0x07) + 1;
+        final long totalSamples = ((long) (prefix[streamInfo + 13] & 0x0F) << 32)
+                | readUInt32BE(prefix, streamInfo + 14);
+        if (summary.sampleRate <= 0 || totalSamples <= 0) {
+            return null;
+        }
+        summary.durationMs = totalSamples * 1000 / summary.sampleRate;
+        return summary.toMetadata(source.size);
+    }
+
+    // MP3 and the other MPEG audio layers
+
+    private static final int[][] MPEG_BITRATES_KBPS = {
+            // MPEG-1 layers I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG-2 and 2.5 layer I, then layers II and III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+    private static final int MAX_MPEG_AUDIO_SYNC_SEARCH = 4096;
+
+    // The window starts at windowStart in the file, just after any ID3 tag.
+    @Nullable
+    private static MediaMetadata parseMpegAudio(@NonNull Source source, @NonNull byte[] window,
+                                                long windowStart) throws IOException {
+        // Only look for the first frame near the start, so that other formats aren't mistaken for
+        // MP3 because of a stray sync pattern somewhere in their data.
+        final int searchEnd = Math.min(window.length, MAX_MPEG_AUDIO_SYNC_SEARCH);
+        for (int position = 0; position + 4 <= searchEnd; ++position) {
+            final MpegAudioHeader header = MpegAudioHeader.parse(window, position);
+            if (header == null) {
+                continue;
+            }
+            // Make sure that the next frame follows, too.
+            final int next = position + header.frameLength;
+            if (next + 4 > window.length || MpegAudioHeader.parse(window, next) == null) {
+                continue;
+            }
+            return parseMpegAudioFrom(source, window, position, windowStart + position, header);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static MediaMetadata parseMpegAudioFrom(@NonNull Source source, @NonNull byte[] prefix,
+                                                    int position, long filePosition,
+                                                    @NonNull MpegAudioHeader header) throws IOException {
+        final StreamSummary summary = new StreamSummary("mp3");
+        summary.audioCodec = header.layer == 3 ? "mp3" : header.layer == 2 ? "mp2" : "mp1";
+        summary.sampleRate = header.sampleRate;
+        summary.channels = header.isMono ? 1 : 2;
+
+        // A VBR file says how many frames it has in a Xing (or Info) or VBRI header.
+        long frameCount = -1;
+        final int xing = position + 4 + (header.isMpeg1 ? (header.isMono ? 17 : 32) : (header.isMono ? 9 : 17));
+        final int vbri = position + 4 + 32;
+        if (xing + 12 <= prefix.length && (matches(prefix, xing, "Xing") || matches(prefix, xing, "Info"))) {
+            if ((readUInt32BE(prefix, xing + 4) & 0x1) != 0) {
+                frameCount = readUInt32BE(prefix, xing + 8);
+            }
+        } else if (vbri + 18 <= prefix.length && matches(prefix, vbri, "VBRI")) {
+            frameCount = readUInt32BE(prefix, vbri + 14);
+        }
+
+        if (frameCount > 0) {
+            summary.durationMs = frameCount * header.samplesPerFrame * 1000 / header.sampleRate;
+        } else {
+            // Assume a constant bitrate. An ID3v1 tag at the end isn't audio.
+            long audioEnd = source.size;
+            final byte[] tail = source.read(source.size - 128, 3);
+            if (tail.length == 3 && matches(tail, 0, "TAG")) {
+                audioEnd -= 128;
+            }
+            summary.durationMs = (audioEnd - filePosition) * 8 / header.bitrateKbps;
+            summary.bitRate = header.bitrateKbps * 1000L;
+        }
+        return summary.toMetadata(source.size);
+    }
+
+    private static final class MpegAudioHeader {
+        final boolean isMpeg1;
+        final int layer;
+        final int bitrateKbps;
+        final int sampleRate;
+        final boolean isMono;
+        final int samplesPerFrame;
+        final int frameLength;
+
+        private MpegAudioHeader(boolean isMpeg1, int layer, int bitrateKbps, int sampleRate,
+                                boolean isMono, int samplesPerFrame, int frameLength) {
+            this.isMpeg1 = isMpeg1;
+            this.layer = layer;
+            this.bitrateKbps = bitrateKbps;
+            this.sampleRate = sampleRate;
+            this.isMono = isMono;
+            this.samplesPerFrame = samplesPerFrame;
+            this.frameLength = frameLength;
+        }
+
+        @Nullable
+        static MpegAudioHeader parse(@NonNull byte[] b, int position) {
+            final int b1 = b[position + 1] & 0xFF;
+            final int b2 = b[position + 2] & 0xFF;
+            final int b3 = b[position + 3] & 0xFF;
+            if ((b[position] & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0) {
+                return null;
+            }
+
+            final int versionBits = (b1 >> 3) & 0x03;
+            final int layerBits = (b1 >> 1) & 0x03;
+            final int bitrateIndex = b2 >> 4;
+            final int sampleRateIndex = (b2 >> 2) & 0x03;
+            // Layer bits of zero would make this an ADTS AAC header, which we leave to FFPROBE.
+            if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                return null;
+            }
+
+            final boolean isMpeg1 = versionBits == 3;
+            final int layer = 4 - layerBits;
+            final int bitrateKbps = isMpeg1
+                    ? MPEG_BITRATES_KBPS[layer - 1][bitrateIndex]
+                    : MPEG_BITRATES_KBPS[layer == 1 ? 3 : 4][bitrateIndex];
+            final int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex] / (isMpeg1 ? 1 : versionBits == 2 ? 2 : 4);
+            final int padding = (b2 >> 1) & 0x01;
+
+            final int samplesPerFrame;
+            final int frameLength;
+            if (layer == 1) {
+                samplesPerFrame = 384;
+                frameLength = (12 * bitrateKbps * 1000 / sampleRate + padding) * 4;
+            } else {
+                samplesPerFrame = layer == 3 && !isMpeg1 ? 576 : 1152;
+                frameLength = samplesPerFrame / 8 * bitrateKbps * 1000 / sampleRate + padding;
+            }
+            return new MpegAudioHeader(isMpeg1, layer, bitrateKbps, sampleRate, (b3 >> 6) == 3,
+                    samplesPerFrame, frameLength);
+        }
+    }
+
+    private static int skipId3v2(@NonNull byte[] prefix) {
+        if (!matches(prefix, 0, "ID3") || prefix.length < 10) {
+            return 0;
+        }
+        // The size is syncsafe: seven bits per byte.
+        final int size = ((prefix[6] & 0x7F) << 21) | ((prefix[7] & 0x7F) << 14)
+                | ((prefix[8] & 0x7F) << 7) | (prefix[9] & 0x7F);
+        final boolean hasFooter = (prefix[5] & 0x10) != 0;
+        return 10 + size + (hasFooter ? 10 : 0);
+    }
+
+    // Ogg
+
+    @Nullable
+    private static MediaMetadata parseOgg(@NonNull Source source, @NonNull byte[] prefix) throws IOException {
+        if (prefix.length < 27) {
+            return null;
+        }
+        final int segmentCount = prefix[26] & 0xFF;
+        final int packet = 27 + segmentCount;
+        final long serial = readUInt32LE(prefix, 14);
+        if (packet + 19 > prefix.length) {
+            return null;
+        }
+
+        final StreamSummary summary = new StreamSummary("ogg");
+        long preSkip = 0;
+        if (matches(prefix, packet + 1, "vorbis") && prefix[packet] == 0x01) {
+            summary.audioCodec = "vorbis";
+            summary.channels = prefix[packet + 11] & 0xFF;
+            summary.sampleRate = (int) readUInt32LE(prefix, packet + 12);
+        } else if (matches(prefix, packet, "OpusHead")) {
+            summary.audioCodec = "opus";
+            summary.channels = prefix[packet + 9] & 0xFF;
+            preSkip = readUInt16LE(prefix, packet + 10);
+            // Opus always decodes at 48 kHz, whatever the original rate was.
+            summary.sampleRate = 48000;
+        } else if (matches(prefix, packet + 1, "FLAC") && (prefix[packet] & 0xFF) == 0x7F
+                && packet + 13 + 8 + 18 <= prefix.length) {
+            // The mapping header is followed by the native "fLaC" signature and STREAMINFO.
+            final MediaMetadata streamInfo = parseFlac(source, prefix, packet + 9);
+            if (streamInfo == null) {
+                return null;
+            }
+            summary.audioCodec = "flac";
+            summary.channels = streamInfo.channels;
+            summary.sampleRate = streamInfo.sampleRate;
+        } else if (matches(prefix, packet, "Speex   ") && packet + 52 <= prefix.length) {
+            summary.audioCodec = "speex";
+            summary.sampleRate = (int) readUInt32LE(prefix, packet + 36);
+            summary.channels = (int) readUInt32LE(prefix, packet + 48);
+        } else {
+            // Theora and the rest are left to FFPROBE.
+            return null;
+        }
+        if (summary.sampleRate <= 0) {
+            return null;
+        }
+
+        // The granule position of the last page of the stream is its length in samples.
+        final long tailStart = Math.max(0, source.size - SUFFIX_SIZE);
+        final byte[] tail = source.read(tailStart, (int) (source.size - tailStart));
+        for (int position = tail.length - 27; position >= 0; --position) {
+            if (matches(tail, position, "OggS") && readUInt32LE(tail, position + 14) == serial) {
+                final long granule = readInt64LE(tail, position + 6);
+                if (granule <= preSkip) {
+                    return null;
+                }
+                summary.durationMs = (granule - preSkip) * 1000 / summary.sampleRate;
+                return summary.toMetadata(source.size);
+            }
+        }
+        return null;
+    }
+
+    // Matroska and WebM
+
+    private static final long EBML_DOC_TYPE = 0x4282;
+    private static final long MKV_SEGMENT = 0x18538067;
+    private static final long MKV_INFO = 0x1549A966;
+    private static final long MKV_TRACKS = 0x1654AE6B;
+    private static final long MKV_CLUSTER = 0x1F43B675;
+    private static final long MKV_TIMECODE_SCALE = 0x2AD7B1;
+    private static final long MKV_DURATION = 0x4489;
+    private static final long MKV_TRACK_ENTRY = 0xAE;
+    private static final long MKV_TRACK_TYPE = 0x83;
+    private static final long MKV_CODEC_ID = 0x86;
+    private static final long MKV_AUDIO = 0xE1;
+    private static final long MKV_SAMPLING_FREQUENCY = 0xB5;
+    private static final long MKV_CHANNELS = 0x9F;
+    private static final long EBML_UNKNOWN_SIZE = -1;
+
+    @Nullable
+    private static MediaMetadata parseMatroska(@NonNull Source source) throws IOException {
+        // The EBML header says whether this is Matroska or WebM.
+        final EbmlElement ebml = EbmlElement.read(source, 0);
+        if (ebml == null || ebml.size == EBML_UNKNOWN_SIZE || ebml.size > MAX_MATROSKA_ELEMENT_SIZE) {
+            return null;
+        }
+        final byte[] ebmlPayload = source.read(ebml.dataStart, (int) ebml.size);
+        final EbmlElement docType = EbmlElement.findChild(ebmlPayload, 0, ebmlPayload.length, EBML_DOC_TYPE);
+        if (docType == null) {
+            return null;
+        }
+        final String docTypeName = new String(ebmlPayload, (int) docType.dataStart, (int) docType.size, ASCII).trim();
+        if (!docTypeName.equals("matroska") && !docTypeName.equals("webm")) {
+            return null;
+        }
+
+        final EbmlElement segment = EbmlElement.read(source, ebml.dataStart + ebml.size);
+        if (segment == null || segment.id != MKV_SEGMENT) {
+            return null;
+        }
+        final long segmentEnd = segment.size == EBML_UNKNOWN_SIZE ? source.size : segment.dataStart + segment.size;
+
+        final StreamSummary summary = new StreamSummary(FORMAT_MATROSKA_FAMILY);
+        boolean foundInfo = false;
+        boolean foundTracks = false;
+        long position = segment.dataStart;
+        for (int i = 0; i < MAX_TOP_LEVEL_ELEMENTS && position < segmentEnd && !(foundInfo && foundTracks); ++i) {
+            final EbmlElement element = EbmlElement.read(source, position);
+            if (element == null || element.size == EBML_UNKNOWN_SIZE || element.id == MKV_CLUSTER) {
+                // The media data has started, so the headers we need aren't up front.
+                return null;
+            }
+
+            if (element.id == MKV_INFO || element.id == MKV_TRACKS) {
+                if (element.size > MAX_MATROSKA_ELEMENT_SIZE) {
+                    return null;
+                }
+                final byte[] payload = source.read(element.dataStart, (int) element.size);
+                if (element.id == MKV_INFO) {
+                    foundInfo = parseMatroskaInfo(payload, summary);
+                } else {
+                    foundTracks = parseMatroskaTracks(payload, summary);
+                    if (!foundTracks) {
+                        return null;
+                    }
+                }
+            }
+            position = element.dataStart + element.size;
+        }
+
+        if (!foundInfo || !foundTracks || summary.durationMs <= 0) {
+            return null;
+        }
+        return summary.toMetadata(source.size);
+    }
+
+    private static boolean parseMatroskaInfo(@NonNull byte[] payload, @NonNull StreamSummary summary) {
+        long timecodeScale = 1000000;
+        double duration = -1;
+        int position = 0;
+        while (position < payload.length) {
+            final EbmlElement element = EbmlElement.parse(payload, position);
+            if (element == null) {
+                return false;
+            }
+            if (element.id == MKV_TIMECODE_SCALE) {
+                timecodeScale = readUnsigned(payload, element);
+            } else if (element.id == MKV_DURATION) {
+                duration = readFloat(payload, element);
+            }
+            position = (int) (element.dataStart + element.size);
+        }
+        if (duration > 0) {
+            summary.durationMs = (long) (duration * timecodeScale / 1000000);
+        }
+        return true;
+    }
+
+    // Returns false if a track holds a codec that we don't recognise.
+    private static boolean parseMatroskaTracks(@NonNull byte[] payload, @NonNull StreamSummary summary) {
+        int position = 0;
+        while (position < payload.length) {
+            final EbmlElement entry = EbmlElement.parse(payload, position);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.id == MKV_TRACK_ENTRY) {
+                final int entryStart = (int) entry.dataStart;
+                final int entryEnd = (int) (entry.dataStart + entry.size);
+                final EbmlElement type = EbmlElement.findChild(payload, entryStart, entryEnd, MKV_TRACK_TYPE);
+                final EbmlElement codecId = EbmlElement.findChild(payload, entryStart, entryEnd, MKV_CODEC_ID);
+                final long trackType = type != null ? readUnsigned(payload, type) : 0;
+
+                if (trackType == 1 && summary.videoCodec == null) {
+                    summary.videoCodec = codecId != null ? getMatroskaVideoCodec(readString(payload, codecId)) : null;
+                    if (summary.videoCodec == null) {
+                        return false;
+                    }
+                } else if (trackType == 2 && summary.audioCodec == null) {
+                    summary.audioCodec = codecId != null ? getMatroskaAudioCodec(readString(payload, codecId)) : null;
+                    if (summary.audioCodec == null) {
+                        return false;
+                    }
+                    summary.sampleRate = 8000;
+                    summary.channels = 1;
+                    final EbmlElement audio = EbmlElement.findChild(payload, entryStart, entryEnd, MKV_AUDIO);
+                    if (audio != null) {
+                        final int audioStart = (int) audio.dataStart;
+                        final int audioEnd = (int) (audio.dataStart + audio.size);
+                        final EbmlElement frequency = EbmlElement.findChild(payload, audioStart, audioEnd, MKV_SAMPLING_FREQUENCY);
+                        final EbmlElement channels = EbmlElement.findChild(payload, audioStart, audioEnd, MKV_CHANNELS);
+                        if (frequency != null) {
+                            summary.sampleRate = (int) readFloat(payload, frequency);
+                        }
+                        if (channels != null) {
+                            summary.channels = (int) readUnsigned(payload, channels);
+                        }
+                    }
+                }
+            }
+            position = (int) (entry.dataStart + entry.size);
+        }
+        return true;
+    }
+
+    @Nullable
+    private static String getMatroskaVideoCodec(@NonNull String codecId) {
+        switch (codecId) {
+            case "V_MPEG4/ISO/AVC":
+                return "h264";
+            case "V_MPEGH/ISO/HEVC":
+                return "hevc";
+            case "V_VP8":
+                return "vp8";
+            case "V_VP9":
+                return "vp9";
+            case "V_AV1":
+                return "av1";
+            case "V_MPEG4/ISO/SP":
+            case "V_MPEG4/ISO/ASP":
+            case "V_MPEG4/ISO/AP":
+                return "mpeg4";
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private static String getMatroskaAudioCodec(@NonNull String codecId) {
+        if (codecId.startsWith("A_AAC")) {
+            return "aac";
+        }
+        switch (codecId) {
+            case "A_OPUS":
+                return "opus";
+            case "A_VORBIS":
+                return "vorbis";
+            case "A_FLAC":
+                return "flac";
+            case "A_MPEG/L3":
+                return "mp3";
+            case "A_MPEG/L2":
+                return "mp2";
+            case "A_AC3":
+                return "ac3";
+            case "A_EAC3":
+                return "eac3";
+            default:
+                return null;
+        }
+    }
+
+    private static long readUnsigned(@NonNull byte[] b, @NonNull EbmlElement element) {
+        long value = 0;
+        for (int i = 0; i < element.size; ++i) {
+            value = (value << 8) | (b[(int) element.dataStart + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static double readFloat(@NonNull byte[] b, @NonNull EbmlElement element) {
+        final long bits = readUnsigned(b, element);
+        return element.size == 4 ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+    }
+
+    @NonNull
+    private static String readString(@NonNull byte[] b, @NonNull EbmlElement element) {
+        return new String(b, (int) element.dataStart, (int) element.size, ASCII).trim();
+    }
+
+    private static final class EbmlElement {
+        final long id;
+        final long dataStart;
+        // EBML_UNKNOWN_SIZE if the element runs until its parent ends.
+        final long size;
+
+        private EbmlElement(long id, long dataStart, long size) {
+            this.id = id;
+            this.dataStart = dataStart;
+            this.size = size;
+        }
+
+        @Nullable
+        static EbmlElement read(@NonNull Source source, long position) throws IOException {
+            final byte[] header = source.read(position, 12);
+            final EbmlElement element = parse(header, 0);
+            if (element == null) {
+                return null;
+            }
+            return new EbmlElement(element.id, position + element.dataStart, element.size);
+        }
+
+        // Positions in the returned element are relative to the start of the array.
+        @Nullable
+        static EbmlElement parse(@NonNull byte[] b, int position) {
+            final int idLength = getVintLength(b, position);
+            if (idLength == -1 || idLength > 4 || position + idLength >= b.length) {
+                return null;
+            }
+            long id = 0;
+            for (int i = 0; i < idLength; ++i) {
+                id = (id << 8) | (b[position + i] & 0xFF);
+            }
+
+            final int sizeStart = position + idLength;
+            final int sizeLength = getVintLength(b, sizeStart);
+            if (sizeLength == -1 || sizeStart + sizeLength > b.length) {
+                return null;
+            }
+            long size = b[sizeStart] & (0xFF >> sizeLength);
+            boolean allOnes = size == (0xFF >> sizeLength);
+            for (int i = 1; i < sizeLength; ++i) {
+                final int next = b[sizeStart + i] & 0xFF;
+                size = (size << 8) | next;
+                allOnes &= next == 0xFF;
+            }
+
+            final long dataStart = sizeStart + sizeLength;
+            if (allOnes) {
+                return new EbmlElement(id, dataStart, EBML_UNKNOWN_SIZE);
+            }
+            if (size < 0 || dataStart + size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return new EbmlElement(id, dataStart, size);
+        }
+
+        @Nullable
+        static EbmlElement findChild(@NonNull byte[] b, int start, int end, long id) {
+            int position = start;
+            while (position < end) {
+                final EbmlElement element = parse(b, position);
+                if (element == null || element.size == EBML_UNKNOWN_SIZE || element.dataStart + element.size > end) {
+                    return null;
+                }
+                if (element.id == id) {
+                    return element;
+                }
+                position = (int) (element.dataStart + element.size);
+            }
+            return null;
+        }
+
+        private static int getVintLength(@NonNull byte[] b, int position) {
+            if (position >= b.length) {
+                return -1;
+            }
+            final int first = b[position] & 0xFF;
+            for (int length = 1; length <= 8; ++length) {
+                if ((first & (0x80 >> (length - 1))) != 0) {
+                    return length;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Common
+
+    // Collects what we found out about the first audio and video streams.
+    private static final class StreamSummary {
+        @NonNull
+        final String formatName;
+        @Nullable
+        String audioCodec;
+        @Nullable
+        String videoCodec;
+        int sampleRate = (int) MediaMetadata.UNKNOWN;
+        int channels = (int) MediaMetadata.UNKNOWN;
+        long bitRate = MediaMetadata.UNKNOWN;
+        long durationMs = MediaMetadata.UNKNOWN;
+
+        StreamSummary(@NonNull String formatName) {
+            this.formatName = formatName;
+        }
+
+        @Nullable
+        MediaMetadata toMetadata(long fileSize) {
+            if (durationMs <= 0 || (audioCodec == null && videoCodec == null)) {
+                return null;
+            }
+            // Like FFPROBE, fall back to the overall bitrate of the file.
+            final long overallBitRate = bitRate != MediaMetadata.UNKNOWN ? bitRate : fileSize * 8 * 1000 / durationMs;
+            return new MediaMetadata(durationMs, formatName,
+                    audioCodec != null ? audioCodec : "",
+                    videoCodec != null ? videoCodec : "",
+                    audioCodec != null ? sampleRate : (int) MediaMetadata.UNKNOWN,
+                    audioCodec != null ? channels : (int) MediaMetadata.UNKNOWN,
+                    overallBitRate, true);
+        }
+    }
+
+    // Positional reads, so that a provider's file descriptor can be read without staging it.
+    private static final class Source {
+        @NonNull
+        final FileChannel channel;
+        final long size;
+
+        Source(@NonNull FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // Returns fewer bytes than asked for if the end of the file comes first.
+        @NonNull
+        byte[] read(long position, int length) throws IOException {
+            if (position < 0 || position >= size) {
+                return new byte[0];
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, size - position));
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position + buffer.position());
+                if (read == -1) {
+                    break;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                final byte[] partial = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, partial, 0, partial.length);
+                return partial;
+            }
+            return buffer.array();
+        }
+    }
+
+    private static boolean matches(@NonNull byte[] b, int position, @NonNull String ascii) {
+        if (position < 0 || position + ascii.length() > b.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); ++i) {
+            if (b[position + i] != (byte) ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUInt16BE(@NonNull byte[] b, int position) {
+        return ((b[position] & 0xFF) << 8) | (b[position + 1] & 0xFF);
+    }
+
+    private static int readUInt16LE(@NonNull byte[] b, int position) {
+        return (b[position] & 0xFF) | ((b[position + 1] & 0xFF) << 8);
+    }
+
+    private static long readUInt32BE(@NonNull byte[] b, int position) {
+        return ((long) readUInt16BE(b, position) << 16) | readUInt16BE(b, position + 2);
+    }
+
+    private static long readUInt32LE(@NonNull byte[] b, int position) {
+        return readUInt16LE(b, position) | ((long) readUInt16LE(b, position + 2) << 16);
+    }
+
+    private static long readInt64BE(@NonNull byte[] b, int position) {
+        return (readUInt32BE(b, position) << 32) | readUInt32BE(b, position + 4);
+    }
+
+    private static long readInt64LE(@NonNull byte[] b, int position) {
+        return readUInt32LE(b, position) | (readUInt32LE(b, position + 4) << 32);
+    }
+}
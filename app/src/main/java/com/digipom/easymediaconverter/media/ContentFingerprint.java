@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Identifies a media file by its content rather than by its URI, so that the same file picked
+// through a different provider, or copied somewhere else, is still recognised.
+//
+// Hashing whole files would take about as long as some of the edits themselves, so when the
+// provider tells us when a document was last modified, only that, the size, and the start and the
+// end of the file are hashed. The start and the end alone aren't enough: a WAV, or an MP3 without
+// an index, can be edited in the middle without changing its length or its headers. Otherwise,
+// the whole file is hashed.
+public final class ContentFingerprint {
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int WHOLE_FILE_BUFFER_SIZE = 256 * 1024;
+
+    // Hashes the whole file. Staged copies get a new modification time each time, so there's
+    // nothing cheaper that we can trust; callers that decode the whole file anyway can afford it.
+    @WorkerThread
+    @NonNull
+    public static String of(@NonNull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return ofWholeFile(raf.getChannel(), raf.length());
+        }
+    }
+
+    // Fingerprints a document without staging it first. Returns null if the provider can't give
+    // us a seekable file, as with providers that stream the content through a pipe.
+    @WorkerThread
+    @Nullable
+    public static String of(@NonNull Context context, @NonNull Uri uri) throws IOException {
+        final ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            return null;
+        }
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+            final long size = pfd.getStatSize();
+            if (size < 0) {
+                return null;
+            }
+            final long lastModifiedDate = MediaItem.queryCurrentLastModifiedDate(context, uri);
+            return lastModifiedDate > 0
+                    ? ofSamples(in.getChannel(), size, lastModifiedDate)
+                    : ofWholeFile(in.getChannel(), size);
+        }
+    }
+
+    @NonNull
+    private static String ofSamples(@NonNull FileChannel channel, long size, long lastModifiedDate) throws IOException {
+        final MessageDigest digest = newDigest();
+        digest.update(toBytes(size));
+        digest.update(toBytes(lastModifiedDate));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+        if (size <= SAMPLE_SIZE * 2) {
+            update(digest, channel, 0, (int) size, buffer);
+        } else {
+            update(digest, channel, 0, SAMPLE_SIZE, buffer);
+            update(digest, channel, size - SAMPLE_SIZE, SAMPLE_SIZE, buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    @NonNull
+    private static String ofWholeFile(@NonNull FileChannel channel, long size) throws IOException {
+        final MessageDigest digest = newDigest();
+        digest.update(toBytes(size));
+
+        final ByteBuffer buffer = ByteBuffer.allocate(WHOLE_FILE_BUFFER_SIZE);
+        for (long position = 0; position < size; position += buffer.capacity()) {
+            update(digest, channel, position, (int) Math.min(buffer.capacity(), size - position), buffer);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(@NonNull MessageDigest digest, @NonNull FileChannel channel,
+                               long position, int length, @NonNull ByteBuffer buffer) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), remaining));
+            final int read = channel.read(buffer, position + length - remaining);
+            if (read == -1) {
+                throw new IOException("Unexpected end of file at " + (position + length - remaining));
+            }
+            digest.update(buffer.array(), 0, read);
+            remaining -= read;
+        }
+    }
+
+    @NonNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to provide SHA-1.
+            throw new RuntimeException(e);
+        }
+    }
+
+    @NonNull
+    private static byte[] toBytes(long value) {
+        final byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    @NonNull
+    private static String toHex(@NonNull byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private ContentFingerprint() {
+    }
+}
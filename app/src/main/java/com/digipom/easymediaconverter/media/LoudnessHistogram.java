@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import androidx.annotation.NonNull;
+
+// The gated loudness statistics of some audio, as defined by ITU-R BS.1770 and EBU R128 / Tech 3342.
+//
+// Rather than keeping every block, the 400 ms (momentary) and 3 s (short-term) block loudnesses are
+// binned in 0.1 LU steps. Each bin also keeps the exact sum of the energies that fell in it, so the
+// gating only rounds at the relative threshold itself. Two histograms can be merged by adding them
+// up, which gives the same result as measuring all of the blocks in one go. That's what
+// allows a long file to be measured in segments, and an album to be measured from its tracks.
+public final class LoudnessHistogram {
+    // Blocks below the absolute gate are never recorded.
+    static final double ABSOLUTE_GATE_LUFS = -70.0;
+    private static final double MAX_LUFS = 10.0;
+    private static final double BIN_WIDTH_LU = 0.1;
+    private static final int BIN_COUNT = (int) Math.round((MAX_LUFS - ABSOLUTE_GATE_LUFS) / BIN_WIDTH_LU);
+
+    private static final double INTEGRATED_RELATIVE_GATE_LU = -10.0;
+    private static final double RANGE_RELATIVE_GATE_LU = -20.0;
+    private static final double RANGE_LOW_PERCENTILE = 0.10;
+    private static final double RANGE_HIGH_PERCENTILE = 0.95;
+
+    private final long[] momentaryCounts = new long[BIN_COUNT];
+    private final double[] momentaryEnergies = new double[BIN_COUNT];
+    private final long[] shortTermCounts = new long[BIN_COUNT];
+    private final double[] shortTermEnergies = new double[BIN_COUNT];
+    // Linear, relative to full scale.
+    private double samplePeak;
+    private double truePeak;
+
+    public LoudnessHistogram() {
+    }
+
+    // Merges the blocks and peaks of the other histogram into this one.
+    public void add(@NonNull LoudnessHistogram other) {
+        for (int i = 0; i < BIN_COUNT; i++) {
+            momentaryCounts[i] += other.momentaryCounts[i];
+            momentaryEnergies[i] += other.momentaryEnergies[i];
+            shortTermCounts[i] += other.shortTermCounts[i];
+            shortTermEnergies[i] += other.shortTermEnergies[i];
+        }
+        samplePeak = Math.max(samplePeak, other.samplePeak);
+        truePeak = Math.max(truePeak, other.truePeak);
+    }
+
+    void addMomentaryBlock(double energy) {
+        addBlock(energy, momentaryCounts, momentaryEnergies);
+    }
+
+    void addShortTermBlock(double energy) {
+        addBlock(energy, shortTermCounts, shortTermEnergies);
+    }
+
+    void updatePeaks(double samplePeak, double truePeak) {
+        this.samplePeak = Math.max(this.samplePeak, samplePeak);
+        this.truePeak = Math.max(this.truePeak, truePeak);
+    }
+
+    private static void addBlock(double energy, @NonNull long[] counts, @NonNull double[] energies) {
+        final double loudness = energyToLoudness(energy);
+        if (!(loudness > ABSOLUTE_GATE_LUFS)) {
+            return;
+        }
+        final int bin = Math.min(BIN_COUNT - 1, (int) ((loudness - ABSOLUTE_GATE_LUFS) / BIN_WIDTH_LU));
+        counts[bin]++;
+        energies[bin] += energy;
+    }
+
+    public boolean isEmpty() {
+        for (long count : momentaryCounts) {
+            if (count > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The gated integrated loudness in LUFS, or negative infinity if everything was below the
+    // absolute gate.
+    public double integratedLoudness() {
+        final double threshold = relativeThreshold();
+        if (Double.isInfinite(threshold)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return gatedLoudness(momentaryCounts, momentaryEnergies, firstBinAtOrAbove(threshold));
+    }
+
+    // The relative gate used for the integrated loudness, in LUFS. This is what FFMPEG's loudnorm
+    // calls the input threshold.
+    public double relativeThreshold() {
+        final double absoluteGatedLoudness = gatedLoudness(momentaryCounts, momentaryEnergies, 0);
+        return absoluteGatedLoudness + INTEGRATED_RELATIVE_GATE_LU;
+    }
+
+    // The loudness range in LU, as defined by EBU Tech 3342.
+    public double loudnessRange() {
+        final double absoluteGatedLoudness = gatedLoudness(shortTermCounts, shortTermEnergies, 0);
+        if (Double.isInfinite(absoluteGatedLoudness)) {
+            return 0;
+        }
+
+        final int firstBin = firstBinAtOrAbove(absoluteGatedLoudness + RANGE_RELATIVE_GATE_LU);
+        long total = 0;
+        for (int i = firstBin; i < BIN_COUNT; i++) {
+            total += shortTermCounts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long lowIndex = (long) ((total - 1) * RANGE_LOW_PERCENTILE + 0.5);
+        final long highIndex = (long) ((total - 1) * RANGE_HIGH_PERCENTILE + 0.5);
+        int lowBin = -1;
+        int highBin = -1;
+        long seen = 0;
+        for (int i = firstBin; i < BIN_COUNT && highBin == -1; i++) {
+            seen += shortTermCounts[i];
+            if (lowBin == -1 && seen > lowIndex) {
+                lowBin = i;
+            }
+            if (seen > highIndex) {
+                highBin = i;
+            }
+        }
+        return (highBin - lowBin) * BIN_WIDTH_LU;
+    }
+
+    // In dBFS.
+    public double samplePeakDb() {
+        return linearToDb(samplePeak);
+    }
+
+    // In dBTP.
+    public double truePeakDb() {
+        return linearToDb(truePeak);
+    }
+
+    private static double gatedLoudness(@NonNull long[] counts, @NonNull double[] energies, int firstBin) {
+        long count = 0;
+        double energy = 0;
+        for (int i = firstBin; i < BIN_COUNT; i++) {
+            count += counts[i];
+            energy += energies[i];
+        }
+        if (count == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return energyToLoudness(energy / count);
+    }
+
+    // Blocks are gated by bin: a bin is kept if it starts at or above the threshold.
+    private static int firstBinAtOrAbove(double loudness) {
+        final double position = (loudness - ABSOLUTE_GATE_LUFS) / BIN_WIDTH_LU;
+        if (position <= 0) {
+            return 0;
+        }
+        return (int) Math.min(BIN_COUNT, Math.ceil(position));
+    }
+
+    static double energyToLoudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    private static double linearToDb(double value) {
+        return 20 * Math.log10(value);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "LoudnessHistogram{" +
+                "integrated=" + integratedLoudness() +
+                ", threshold=" + relativeThreshold() +
+                ", range=" + loudnessRange() +
+                ", samplePeakDb=" + samplePeakDb() +
+                ", truePeakDb=" + truePeakDb() +
+                '}';
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import androidx.annotation.NonNull;
+
+// A streaming loudness meter, following ITU-R BS.1770-4 and EBU Tech 3341/3342.
+//
+// Feed it interleaved float PCM in blocks of any size, then read the result from the histogram.
+// Audio is K-weighted per channel, summed into 100 ms hops, and every hop completes a 400 ms
+// momentary block; every tenth hop after the first three seconds completes a 3 s short-term block.
+//
+// To measure a long file in parallel, split it at multiples of 100 ms and give each segment its own
+// meter, started a few seconds early with startFrame and measuring from the segment start. Blocks
+// are numbered from the start of the file, so the segments record exactly the blocks that a single
+// meter would have, and their histograms can be merged. The lead-in lets the filters settle and
+// fills the windows of the blocks that straddle the boundary.
+public final class LoudnessMeter {
+    // Enough for the short-term window, plus a little for the filters to settle.
+    public static final double SEGMENT_LEAD_IN_SECONDS = 3.5;
+
+    private static final int HOPS_PER_SECOND = 10;
+    private static final int HOPS_PER_MOMENTARY_BLOCK = 4;
+    private static final int HOPS_PER_SHORT_TERM_BLOCK = 30;
+    private static final int HOPS_BETWEEN_SHORT_TERM_BLOCKS = 10;
+
+    // The 48 taps of a 4x oversampling windowed-sinc interpolator, as 4 phases of 12.
+    private static final int TRUE_PEAK_TAPS_PER_PHASE = 12;
+    private static final double[][] TRUE_PEAK_4X_PHASES = createInterpolatorPhases(4);
+    private static final double[][] TRUE_PEAK_2X_PHASES = createInterpolatorPhases(2);
+
+    private final int channels;
+    private final int framesPerHop;
+    @NonNull
+    private final double[] channelWeights;
+    private final KWeightingFilter[] filters;
+    private final double[][] truePeakPhases;
+    private final double[][] truePeakHistory;
+    private int truePeakHistoryPosition;
+
+    // The energies of the most recent hops, as a ring indexed by the absolute hop number.
+    private final double[] hopEnergies = new double[HOPS_PER_SHORT_TERM_BLOCK];
+    private double currentHopEnergy;
+    private int framesInCurrentHop;
+    private long hopIndex;
+    private final long firstMeasuredHop;
+
+    @NonNull
+    private final LoudnessHistogram histogram = new LoudnessHistogram();
+
+    public LoudnessMeter(int sampleRate, int channels) {
+        this(sampleRate, channels, 0, 0);
+    }
+
+    // startFrame is where in the file the first frame fed to the meter comes from, and blocks that
+    // end before measureFromFrame are left out. Both need to be at a 100 ms boundary.
+    public LoudnessMeter(int sampleRate, int channels, long startFrame, long measureFromFrame) {
+        if (sampleRate % HOPS_PER_SECOND != 0) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " isn't a multiple of " + HOPS_PER_SECOND);
+        }
+        if (channels <= 0) {
+            throw new IllegalArgumentException("Channel count must be positive: " + channels);
+        }
+        this.channels = channels;
+        this.framesPerHop = sampleRate / HOPS_PER_SECOND;
+        if (startFrame % framesPerHop != 0 || measureFromFrame % framesPerHop != 0 || measureFromFrame < startFrame) {
+            throw new IllegalArgumentException("Start " + startFrame + " and measure from " + measureFromFrame
+                    + " must be at 100 ms boundaries, in order");
+        }
+
+        this.channelWeights = channelWeights(channels);
+        this.filters = new KWeightingFilter[channels];
+        for (int i = 0; i < channels; i++) {
+            filters[i] = new KWeightingFilter(sampleRate);
+        }
+
+        // Oversample to at least 192 kHz for the true peak.
+        if (sampleRate < 96000) {
+            truePeakPhases = TRUE_PEAK_4X_PHASES;
+        } else if (sampleRate < 192000) {
+            truePeakPhases = TRUE_PEAK_2X_PHASES;
+        } else {
+            truePeakPhases = null;
+        }
+        truePeakHistory = new double[channels][TRUE_PEAK_TAPS_PER_PHASE];
+
+        this.hopIndex = startFrame / framesPerHop;
+        this.firstMeasuredHop = measureFromFrame / framesPerHop;
+    }
+
+    // Processes frameCount frames of interleaved samples, starting at offset (in samples).
+    public void process(@NonNull float[] samples, int offset, int frameCount) {
+        double samplePeak = 0;
+        double truePeak = 0;
+        int position = offset;
+        for (int frame = 0; frame < frameCount; frame++) {
+            double frameEnergy = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                final double sample = samples[position++];
+                final double weighted = filters[channel].filter(sample);
+                frameEnergy += channelWeights[channel] * weighted * weighted;
+
+                final double magnitude = Math.abs(sample);
+                if (magnitude > samplePeak) {
+                    samplePeak = magnitude;
+                }
+                if (truePeakPhases != null) {
+                    final double interpolated = interpolatedPeak(channel, sample);
+                    if (interpolated > truePeak) {
+                        truePeak = interpolated;
+                    }
+                }
+            }
+            if (truePeakPhases != null) {
+                truePeakHistoryPosition = (truePeakHistoryPosition + 1) % TRUE_PEAK_TAPS_PER_PHASE;
+            }
+
+            currentHopEnergy += frameEnergy;
+            if (++framesInCurrentHop == framesPerHop) {
+                completeHop();
+            }
+        }
+
+        if (hopIndex >= firstMeasuredHop) {
+            histogram.updatePeaks(samplePeak, truePeakPhases != null ? Math.max(samplePeak, truePeak) : samplePeak);
+        }
+    }
+
+    private void completeHop() {
+        hopEnergies[(int) (hopIndex % HOPS_PER_SHORT_TERM_BLOCK)] = currentHopEnergy;
+        currentHopEnergy = 0;
+        framesInCurrentHop = 0;
+
+        // Blocks are named after the hop that completes them.
+        final long completedHop = hopIndex++;
+        if (completedHop < firstMeasuredHop) {
+            return;
+        }
+        if (completedHop >= HOPS_PER_MOMENTARY_BLOCK - 1) {
+            histogram.addMomentaryBlock(sumOfLastHops(completedHop, HOPS_PER_MOMENTARY_BLOCK));
+        }
+        if (completedHop >= HOPS_PER_SHORT_TERM_BLOCK - 1
+                && (completedHop - (HOPS_PER_SHORT_TERM_BLOCK - 1)) % HOPS_BETWEEN_SHORT_TERM_BLOCKS == 0) {
+            histogram.addShortTermBlock(sumOfLastHops(completedHop, HOPS_PER_SHORT_TERM_BLOCK));
+        }
+    }
+
+    // The mean energy of the block made up of the hopCount hops up to and including lastHop.
+    private double sumOfLastHops(long lastHop, int hopCount) {
+        double sum = 0;
+        for (long hop = lastHop - hopCount + 1; hop <= lastHop; hop++) {
+            sum += hopEnergies[(int) (hop % HOPS_PER_SHORT_TERM_BLOCK)];
+        }
+        return sum / ((double) hopCount * framesPerHop);
+    }
+
+    private double interpolatedPeak(int channel, double sample) {
+        final double[] history = truePeakHistory[channel];
+        history[truePeakHistoryPosition] = sample;
+
+        double peak = 0;
+        for (double[] phase : truePeakPhases) {
+            double value = 0;
+            int index = truePeakHistoryPosition;
+            for (double coefficient : phase) {
+                value += coefficient * history[index];
+                index = index == 0 ? TRUE_PEAK_TAPS_PER_PHASE - 1 : index - 1;
+            }
+            final double magnitude = Math.abs(value);
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        return peak;
+    }
+
+    // The result so far. The meter keeps updating the same instance.
+    @NonNull
+    public LoudnessHistogram getHistogram() {
+        return histogram;
+    }
+
+    // BS.1770 weights the surround channels up and leaves out the LFE. Other layouts are weighted
+    // equally.
+    @NonNull
+    private static double[] channelWeights(int channels) {
+        final double[] weights = new double[channels];
+        for (int i = 0; i < channels; i++) {
+            weights[i] = 1.0;
+        }
+        if (channels == 6) {
+            // FFMPEG's 5.1 order: FL, FR, FC, LFE, BL, BR.
+            weights[3] = 0.0;
+            weights[4] = 1.41;
+            weights[5] = 1.41;
+        } else if (channels == 5) {
+            // FL, FR, FC, BL, BR.
+            weights[3] = 1.41;
+            weights[4] = 1.41;
+        }
+        return weights;
+    }
+
+    // Splits a Kaiser-windowed sinc low-pass, cut off at the original Nyquist, into the phases of a
+    // polyphase interpolator.
+    @NonNull
+    private static double[][] createInterpolatorPhases(int factor) {
+        final int taps = TRUE_PEAK_TAPS_PER_PHASE * factor;
+        final double beta = 6.0;
+        final double center = (taps - 1) / 2.0;
+        final double[][] phases = new double[factor][TRUE_PEAK_TAPS_PER_PHASE];
+        for (int i = 0; i < taps; i++) {
+            final double t = (i - center) / factor;
+            final double sinc = t == 0 ? 1.0 : Math.sin(Math.PI * t) / (Math.PI * t);
+            final double ratio = (i - center) / center;
+            final double window = besselI0(beta * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / besselI0(beta);
+            phases[i % factor][i / factor] = sinc * window;
+        }
+        return phases;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 32; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    // The two biquads of the BS.1770 K-weighting: a high shelf for the effect of the head, then a
+    // high-pass. The coefficients are derived for the sample rate, so that rates other than 48 kHz
+    // don't need to be resampled first.
+    private static final class KWeightingFilter {
+        // Shelf
+        private final double b0, b1, b2, a1, a2;
+        // High-pass; the numerator is always 1, -2, 1.
+        private final double d1, d2;
+        private double x1, x2, y1, y2;
+        private double z1, z2;
+
+        KWeightingFilter(int sampleRate) {
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            final double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+            final double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1.0 + k / q + k * k;
+            b0 = (vh + vb * k / q + k * k) / a0;
+            b1 = 2.0 * (k * k - vh) / a0;
+            b2 = (vh - vb * k / q + k * k) / a0;
+            a1 = 2.0 * (k * k - 1.0) / a0;
+            a2 = (1.0 - k / q + k * k) / a0;
+
+            k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            q = 0.5003270373238773;
+            a0 = 1.0 + k / q + k * k;
+            d1 = 2.0 * (k * k - 1.0) / a0;
+            d2 = (1.0 - k / q + k * k) / a0;
+        }
+
+        double filter(double x) {
+            final double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+            final double z = y - 2.0 * y1 + y2 - d1 * z1 - d2 * z2;
+            x2 = x1;
+            x1 = x;
+            y2 = y1;
+            y1 = y;
+            z2 = z1;
+            z1 = z;
+            return z;
+        }
+    }
+}
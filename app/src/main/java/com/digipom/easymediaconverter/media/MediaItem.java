@@ -27,22 +27,33 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
+import com.digipom.easymediaconverter.application.BaseApplication;
 import com.digipom.easymediaconverter.utils.FilenameUtils;
 import com.digipom.easymediaconverter.utils.logger.Logger;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import static com.digipom.easymediaconverter.utils.FilenameUtils.getCanonicalExtension;
 import static com.digipom.easymediaconverter.utils.FileTypeExtensions.FILETYPE_AAC;
@@ -61,6 +72,17 @@ import static com.digipom.easymediaconverter.config.StaticConfig.LOGCAT_LOGGING_
 public final class MediaItem implements Parcelable {
     private static final String TAG = MediaItem.class.getName();
 
+    // Queries are memoised briefly, as the same document tends to be looked up several times in a
+    // row when it's opened.
+    private static final int MAX_MEMOISED_ROWS = 64;
+    private static final long MEMOISED_ROW_LIFETIME_MS = 30 * 1000;
+    private static final Map<Uri, ProviderRow> memoisedRows = new LinkedHashMap<Uri, ProviderRow>(MAX_MEMOISED_ROWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Uri, ProviderRow> eldest) {
+            return size() > MAX_MEMOISED_ROWS;
+        }
+    };
+
     @NonNull private final Uri uri;
     @NonNull private final String displayName;
     @NonNull private final String mimeType;
@@ -68,112 +90,272 @@ public final class MediaItem implements Parcelable {
     private final long optionalLastModifiedDate;
     private final long optionalDurationMs;
 
+    @WorkerThread
     @NonNull
     public static MediaItem[] constructMediaItemsFromGetContentResponse(@NonNull Context context,
                                                                         @NonNull Intent data) throws IOException {
+        // For large selections, prefer BulkMediaItemResolver, which doesn't block the caller.
         final List<MediaItem> list = new ArrayList<>();
-        if (data.getClipData() != null && data.getClipData().getItemCount() > 0) {
-            for (int i = 0; i < data.getClipData().getItemCount(); ++i) {
-                final Uri itemUri = data.getClipData().getItemAt(i).getUri();
-                Logger.v("Constructing media item from get content response: " + itemUri);
-                final MediaItem item = constructFromUri(context, itemUri);
-                Logger.v("Item: " + item);
-                list.add(item);
-            }
-            return list.toArray(new MediaItem[0]);
-        } else {
-            return new MediaItem[]{constructFromGetContentResponse(context, data)};
+        for (Uri itemUri : BulkMediaItemResolver.getUrisFromGetContentResponse(data)) {
+            Logger.v("Constructing media item from get content response: " + itemUri);
+            final MediaItem item = constructFromUri(context, itemUri);
+            Logger.v("Item: " + item);
+            list.add(item);
         }
+        return list.toArray(new MediaItem[0]);
     }
 
+    @MainThread
     @NonNull
     public static MediaItem constructFromGetContentResponse(@NonNull Context context,
                                                             @NonNull Intent data) throws IOException {
         Logger.v("Constructing media item from get content response: " + data.getData());
-        final MediaItem item = constructFromUri(context, Objects.requireNonNull(data.getData()));
+        final MediaItem item = constructFromProviderQuery(context, Objects.requireNonNull(data.getData()));
         Logger.v("Item: " + item);
         return item;
     }
 
+    @WorkerThread
     @NonNull
     public static MediaItem constructFromUri(@NonNull Context context, @NonNull Uri uri) throws IOException {
+        return construct(context, uri, true);
+    }
+
+    // Only queries the provider, without reading the metadata cache or the file's headers, so that
+    // it can be called from the main thread. Unless the provider knows the duration, it's left
+    // unknown, and LoadableDurationCache loads it later if something needs it.
+    @MainThread
+    @NonNull
+    public static MediaItem constructFromProviderQuery(@NonNull Context context, @NonNull Uri uri) throws IOException {
+        return construct(context, uri, false);
+    }
+
+    @NonNull
+    private static MediaItem construct(@NonNull Context context, @NonNull Uri uri,
+                                       boolean canReadMetadata) throws IOException {
         if (LOGCAT_LOGGING_ON) {
             Log.v(TAG, "Constructing media item from uri " + uri);
         }
 
-        final String mimeType = context.getContentResolver().getType(uri);
+        // Everything comes from one query, since each query is a round trip to the provider.
+        final ProviderRow row = queryProviderRow(context, uri);
+        final String mimeType = row.mimeType;
         if (mimeType == null) {
             throw new IOException("Couldn't obtain mime type for " + uri);
         }
-
-        // Pretty much just DISPLAY_NAME and SIZE are guaranteed to be there. For the others, we do
-        // an optional query.
-        String displayName = Objects.requireNonNull(uri.getLastPathSegment());
-        long size = -1;
-        final Cursor cursor = context.getContentResolver().query(uri,
-                new String[]{
-                        OpenableColumns.DISPLAY_NAME,
-                        OpenableColumns.SIZE},
-                null, null, null);
-
-        if (cursor != null) {
-            try {
-                cursor.moveToFirst();
-                if (!cursor.isAfterLast()) {
-                    int displayNameColumnIdx = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                    int sizeColumnIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-
-                    if (!cursor.isNull(displayNameColumnIdx)) {
-                        displayName = cursor.getString(displayNameColumnIdx);
-                    }
-                    if (!cursor.isNull(sizeColumnIndex)) {
-                        size = cursor.getLong(sizeColumnIndex);
-                    }
-                }
-            } finally {
-                cursor.close();
+        final String displayName = row.displayName;
+        final long size = row.size;
+        final long lastModifiedDate = row.lastModifiedDate;
+
+        final long durationMs;
+        final MediaMetadataCache mediaMetadataCache = getMediaMetadataCache(context);
+        final MediaMetadata cachedMetadata = canReadMetadata ? mediaMetadataCache.get(uri, size, lastModifiedDate) : null;
+        if (cachedMetadata != null && cachedMetadata.durationMs >= 0) {
+            durationMs = cachedMetadata.durationMs;
+        } else if (row.durationMs >= 0) {
+            durationMs = row.durationMs;
+        } else if (!canReadMetadata) {
+            durationMs = -1;
+        } else {
+            // Opening the file costs another round trip, so only read the headers when the
+            // provider doesn't know the duration. They tell us the codecs too.
+            final MediaMetadata parsedMetadata = ContainerHeaderParser.parse(context, uri);
+            if (parsedMetadata != null) {
+                mediaMetadataCache.put(uri, size, lastModifiedDate, parsedMetadata);
+                durationMs = parsedMetadata.durationMs;
+            } else {
+                durationMs = -1;
             }
         }
 
-
-        final long lastModifiedDate = optionalQueryForLong(context, uri,
-                DocumentsContract.Document.COLUMN_LAST_MODIFIED, -1);
-        @SuppressLint("InlinedApi")
-        final long durationMs = optionalQueryForLong(context, uri,
-                MediaStore.MediaColumns.DURATION, -1);
-
         Logger.d("Obtained media item with uri " + uri + ", display name: " + displayName
                + ", mime type: " + mimeType + ", size: " + size + ", last modified: " + lastModifiedDate
                + ", duration in ms: " + durationMs);
         return new MediaItem(uri, displayName, mimeType, size, lastModifiedDate, durationMs);
     }
 
-    private static long optionalQueryForLong(@NonNull Context context, @NonNull Uri uri,
-                                             @NonNull String columnName,
-                                             @SuppressWarnings("SameParameterValue") long defaultValue) {
-        try {
-            // Last modified and duration might not be available
-            final Cursor cursor = context.getContentResolver().query(uri,
-                    new String[]{columnName},
-                    null, null, null);
+    public static long queryLastModifiedDate(@NonNull Context context, @NonNull Uri uri) {
+        return queryProviderRow(context, uri).lastModifiedDate;
+    }
+
+    // Skips the memoised rows, for when a change made a moment ago must not be missed.
+    static long queryCurrentLastModifiedDate(@NonNull Context context, @NonNull Uri uri) {
+        final ProviderRow row = ProviderRow.query(context, uri);
+        synchronized (memoisedRows) {
+            memoisedRows.put(uri, row);
+        }
+        return row.lastModifiedDate;
+    }
 
-            if (cursor != null) {
+    @NonNull
+    private static MediaMetadataCache getMediaMetadataCache(@NonNull Context context) {
+        return ((BaseApplication) context.getApplicationContext()).getServiceLocator().getMediaMetadataCache();
+    }
+
+    @NonNull
+    private static ProviderRow queryProviderRow(@NonNull Context context, @NonNull Uri uri) {
+        synchronized (memoisedRows) {
+            final ProviderRow memoised = memoisedRows.get(uri);
+            if (memoised != null
+                    && SystemClock.elapsedRealtime() - memoised.queriedAtMs < MEMOISED_ROW_LIFETIME_MS) {
+                return memoised;
+            }
+        }
+
+        final ProviderRow row = ProviderRow.query(context, uri);
+        synchronized (memoisedRows) {
+            memoisedRows.put(uri, row);
+        }
+        return row;
+    }
+
+    // The provider's columns for a single document. Pretty much just DISPLAY_NAME and SIZE are
+    // guaranteed to be there, so every other column falls back to a default when it's missing.
+    private static final class ProviderRow {
+        private static final String[] REQUIRED_COLUMNS = {
+                OpenableColumns.DISPLAY_NAME,
+                OpenableColumns.SIZE};
+        @SuppressLint("InlinedApi")
+        private static final String[] OPTIONAL_COLUMNS = {
+                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+                MediaStore.MediaColumns.DURATION};
+        // The optional columns that each provider has rejected, by authority, so that later
+        // queries leave them out instead of failing first.
+        private static final Map<String, Set<String>> rejectedColumnsByAuthority = new HashMap<>();
+
+        @NonNull
+        final String displayName;
+        @Nullable
+        final String mimeType;
+        final long size;
+        final long lastModifiedDate;
+        final long durationMs;
+        final long queriedAtMs;
+
+        private ProviderRow(@NonNull String displayName, @Nullable String mimeType, long size,
+                            long lastModifiedDate, long durationMs, long queriedAtMs) {
+            this.displayName = displayName;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.lastModifiedDate = lastModifiedDate;
+            this.durationMs = durationMs;
+            this.queriedAtMs = queriedAtMs;
+        }
+
+        @SuppressLint("InlinedApi")
+        @NonNull
+        static ProviderRow query(@NonNull Context context, @NonNull Uri uri) {
+            final Builder builder = new Builder(Objects.requireNonNull(uri.getLastPathSegment()));
+            final String authority = String.valueOf(uri.getAuthority());
+            final List<String> optionalColumns = new ArrayList<>();
+            for (String column : OPTIONAL_COLUMNS) {
+                if (!isRejectedColumn(authority, column)) {
+                    optionalColumns.add(column);
+                }
+            }
+
+            final List<String> projection = new ArrayList<>(Arrays.asList(REQUIRED_COLUMNS));
+            projection.addAll(optionalColumns);
+            try {
+                builder.readFrom(context.getContentResolver().query(uri,
+                        projection.toArray(new String[0]), null, null, null));
+            } catch (Exception e) {
+                // Some providers reject columns that they don't know about, such as MediaStore
+                // with the last modified date on newer versions of Android. Every provider has to
+                // support the required columns, so query those on their own and then each of the
+                // optional ones, so that one rejected column doesn't cost us the others.
+                Logger.w("Couldn't query all columns for uri " + uri + "; querying them one at a time", e);
+                builder.readFrom(context.getContentResolver().query(uri, REQUIRED_COLUMNS, null, null, null));
+                for (String column : optionalColumns) {
+                    try {
+                        builder.readFrom(context.getContentResolver().query(uri,
+                                new String[]{column}, null, null, null));
+                    } catch (Exception columnException) {
+                        Logger.d("Provider " + authority + " rejected column " + column + ": " + columnException);
+                        addRejectedColumn(authority, column);
+                    }
+                }
+            }
+
+            if (builder.mimeType == null) {
+                // Not every provider returns the mime type as a column.
+                builder.mimeType = context.getContentResolver().getType(uri);
+            }
+
+            return new ProviderRow(builder.displayName, builder.mimeType, builder.size,
+                    builder.lastModifiedDate, builder.durationMs, SystemClock.elapsedRealtime());
+        }
+
+        private static boolean isRejectedColumn(@NonNull String authority, @NonNull String column) {
+            synchronized (rejectedColumnsByAuthority) {
+                final Set<String> rejectedColumns = rejectedColumnsByAuthority.get(authority);
+                return rejectedColumns != null && rejectedColumns.contains(column);
+            }
+        }
+
+        private static void addRejectedColumn(@NonNull String authority, @NonNull String column) {
+            synchronized (rejectedColumnsByAuthority) {
+                Set<String> rejectedColumns = rejectedColumnsByAuthority.get(authority);
+                if (rejectedColumns == null) {
+                    rejectedColumns = new HashSet<>();
+                    rejectedColumnsByAuthority.put(authority, rejectedColumns);
+                }
+                rejectedColumns.add(column);
+            }
+        }
+
+        // Collects the columns across one or more queries. Columns missing from a query keep what
+        // they already had.
+        private static final class Builder {
+            @NonNull
+            String displayName;
+            @Nullable
+            String mimeType;
+            long size = -1;
+            long lastModifiedDate = -1;
+            long durationMs = -1;
+
+            Builder(@NonNull String displayName) {
+                this.displayName = displayName;
+            }
+
+            void readFrom(@Nullable Cursor cursor) {
+                if (cursor == null) {
+                    return;
+                }
                 try {
                     cursor.moveToFirst();
                     if (!cursor.isAfterLast()) {
-                        return cursor.getLong(cursor.getColumnIndex(columnName));
+                        displayName = Objects.requireNonNull(getOptionalString(cursor, OpenableColumns.DISPLAY_NAME, displayName));
+                        mimeType = getOptionalString(cursor, DocumentsContract.Document.COLUMN_MIME_TYPE, mimeType);
+                        size = getOptionalLong(cursor, OpenableColumns.SIZE, size);
+                        lastModifiedDate = getOptionalLong(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED, lastModifiedDate);
+                        durationMs = getOptionalLong(cursor, MediaStore.MediaColumns.DURATION, durationMs);
                     }
                 } finally {
                     cursor.close();
                 }
             }
-        } catch (Exception e) {
-            Logger.w("Couldn't read " + columnName + " for uri " + uri, e);
-            return defaultValue;
         }
 
-        Logger.d("Couldn't obtain " + columnName + " for uri " + uri);
-        return defaultValue;
+        private static String getOptionalString(@NonNull Cursor cursor, @NonNull String columnName,
+                                                @Nullable String defaultValue) {
+            final int columnIndex = cursor.getColumnIndex(columnName);
+            if (columnIndex == -1 || cursor.isNull(columnIndex)) {
+                return defaultValue;
+            }
+            return cursor.getString(columnIndex);
+        }
+
+        private static long getOptionalLong(@NonNull Cursor cursor, @NonNull String columnName,
+                                            long defaultValue) {
+            final int columnIndex = cursor.getColumnIndex(columnName);
+            if (columnIndex == -1 || cursor.isNull(columnIndex)) {
+                return defaultValue;
+            }
+            return cursor.getLong(columnIndex);
+        }
     }
 
     private MediaItem(@NonNull Uri uri, @NonNull String displayName, @NonNull String mimeType,
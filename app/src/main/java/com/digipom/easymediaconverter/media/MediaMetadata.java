@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// A summary of the format details of a media file: enough for the lists and for most of the edit
+// actions, and small enough to keep around for thousands of files.
+public final class MediaMetadata {
+    public static final long UNKNOWN = -1;
+
+    public final long durationMs;
+    // The container, as named by FFPROBE, e.g. "mov,mp4,m4a,3gp,3g2,mj2" or "matroska,webm".
+    @NonNull
+    public final String formatName;
+    @NonNull
+    public final String audioCodec;
+    @NonNull
+    public final String videoCodec;
+    public final int sampleRate;
+    public final int channels;
+    public final long bitRate;
+    // False when only the duration is known, for example when it was read with the platform's
+    // MediaMetadataRetriever rather than from the container headers or with FFPROBE.
+    public final boolean isProbed;
+
+    @NonNull
+    public static MediaMetadata forDurationOnly(long durationMs) {
+        return new MediaMetadata(durationMs, "", "", "", (int) UNKNOWN, (int) UNKNOWN, UNKNOWN, false);
+    }
+
+    public MediaMetadata(long durationMs, @NonNull String formatName, @NonNull String audioCodec, @NonNull String videoCodec,
+                         int sampleRate, int channels, long bitRate, boolean isProbed) {
+        this.durationMs = durationMs;
+        this.formatName = formatName;
+        this.audioCodec = audioCodec;
+        this.videoCodec = videoCodec;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitRate = bitRate;
+        this.isProbed = isProbed;
+    }
+
+    public boolean containsAudio() {
+        return !audioCodec.isEmpty();
+    }
+
+    public boolean containsVideo() {
+        return !videoCodec.isEmpty();
+    }
+
+    void writeTo(@NonNull DataOutput out) throws IOException {
+        out.writeLong(durationMs);
+        out.writeUTF(formatName);
+        out.writeUTF(audioCodec);
+        out.writeUTF(videoCodec);
+        out.writeInt(sampleRate);
+        out.writeInt(channels);
+        out.writeLong(bitRate);
+        out.writeBoolean(isProbed);
+    }
+
+    @NonNull
+    static MediaMetadata readFrom(@NonNull DataInput in) throws IOException {
+        return new MediaMetadata(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(),
+                in.readInt(), in.readLong(), in.readBoolean());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        MediaMetadata that = (MediaMetadata) o;
+
+        if (durationMs != that.durationMs) return false;
+        if (sampleRate != that.sampleRate) return false;
+        if (channels != that.channels) return false;
+        if (bitRate != that.bitRate) return false;
+        if (isProbed != that.isProbed) return false;
+        if (!formatName.equals(that.formatName)) return false;
+        if (!audioCodec.equals(that.audioCodec)) return false;
+        return videoCodec.equals(that.videoCodec);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (durationMs ^ (durationMs >>> 32));
+        result = 31 * result + formatName.hashCode();
+        result = 31 * result + audioCodec.hashCode();
+        result = 31 * result + videoCodec.hashCode();
+        result = 31 * result + sampleRate;
+        result = 31 * result + channels;
+        result = 31 * result + (int) (bitRate ^ (bitRate >>> 32));
+        result = 31 * result + (isProbed ? 1 : 0);
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "MediaMetadata{" +
+                "durationMs=" + durationMs +
+                ", formatName='" + formatName + '\'' +
+                ", audioCodec='" + audioCodec + '\'' +
+                ", videoCodec='" + videoCodec + '\'' +
+                ", sampleRate=" + sampleRate +
+                ", channels=" + channels +
+                ", bitRate=" + bitRate +
+                ", isProbed=" + isProbed +
+                '}';
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.digipom.easymediaconverter.utils.logger.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the metadata of media files across restarts, so that reopening a library doesn't
+// need to query or probe every file again.
+//
+// Entries are keyed by URI, and are only returned if the size and last modified date still match.
+// Files without a last modified date aren't cached at all, since an edit that keeps the size the
+// same would go unnoticed.
+//
+// They're stored in an append-only index file: each record is a length-prefixed blob, and a newer
+// record for the same URI supersedes the older one. Only the offsets of the records are kept in
+// memory, with a small LRU of decoded entries in front. Past MAX_ENTRIES, the least recently used
+// entries are dropped, and the file is compacted once it's mostly made up of superseded or dropped
+// records, so it can't keep growing.
+public class MediaMetadataCache {
+    private static final String INDEX_FILE_NAME = "media-metadata.idx";
+    private static final int MAGIC = 0x4d4d4332; // "MMC2"
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_DECODED_ENTRIES = 256;
+    private static final int MAX_ENTRIES = 10000;
+    private static final int MIN_DEAD_RECORDS_BEFORE_COMPACTION = 256;
+
+    private final File indexFile;
+    // In access order, so that the eldest is the least recently used entry.
+    private final Map<String, Long> recordOffsets = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry> decodedEntries = new LinkedHashMap<String, Entry>(MAX_DECODED_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_DECODED_ENTRIES;
+        }
+    };
+
+    @Nullable
+    private RandomAccessFile file;
+    // Superseded or dropped records that are still in the file.
+    private int deadRecordCount;
+
+    public MediaMetadataCache(@NonNull Context context) {
+        indexFile = new File(context.getNoBackupFilesDir(), INDEX_FILE_NAME);
+    }
+
+    @WorkerThread
+    @Nullable
+    public synchronized MediaMetadata get(@NonNull Uri uri, long size, long lastModifiedDate) {
+        if (!isCacheable(size, lastModifiedDate)) {
+            return null;
+        }
+
+        final String key = uri.toString();
+        Entry entry = decodedEntries.get(key);
+        if (entry == null) {
+            entry = readEntry(key);
+            if (entry == null) {
+                return null;
+            }
+            decodedEntries.put(key, entry);
+        } else {
+            // Only to mark the entry as recently used.
+            recordOffsets.get(key);
+        }
+
+        if (entry.size != size || entry.lastModifiedDate != lastModifiedDate) {
+            // The file has changed since we last saw it.
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    @WorkerThread
+    @Nullable
+    public MediaMetadata get(@NonNull MediaItem item) {
+        return get(item.getUri(), item.getSize(), item.getOptionalLastModifiedDate());
+    }
+
+    @WorkerThread
+    public synchronized void put(@NonNull Uri uri, long size, long lastModifiedDate,
+                                 @NonNull MediaMetadata metadata) {
+        if (!isCacheable(size, lastModifiedDate)) {
+            return;
+        }
+
+        final String key = uri.toString();
+        final Entry entry = new Entry(size, lastModifiedDate, metadata);
+        final Entry existing = decodedEntries.get(key);
+        if (existing != null && existing.equals(entry)) {
+            return;
+        }
+        decodedEntries.put(key, entry);
+
+        try {
+            final RandomAccessFile file = openIndex();
+            final long offset = file.length();
+            file.seek(offset);
+            file.write(encodeRecord(key, entry));
+            if (recordOffsets.put(key, offset) != null) {
+                ++deadRecordCount;
+            }
+            dropLeastRecentlyUsedEntries();
+            compactIfNeeded();
+        } catch (IOException e) {
+            Logger.w("Couldn't write metadata for " + uri + " to the index", e);
+        }
+    }
+
+    @WorkerThread
+    public void put(@NonNull MediaItem item, @NonNull MediaMetadata metadata) {
+        put(item.getUri(), item.getSize(), item.getOptionalLastModifiedDate(), metadata);
+    }
+
+    // Without both a size and a last modified date, there's no good way to tell whether the file
+    // was changed.
+    private static boolean isCacheable(long size, long lastModifiedDate) {
+        return size >= 0 && lastModifiedDate > 0;
+    }
+
+    @Nullable
+    private Entry readEntry(@NonNull String key) {
+        try {
+            final RandomAccessFile file = openIndex();
+            final Long offset = recordOffsets.get(key);
+            if (offset == null) {
+                return null;
+            }
+
+            file.seek(offset);
+            final byte[] record = new byte[file.readInt()];
+            file.readFully(record);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            if (!in.readUTF().equals(key)) {
+                Logger.w("Metadata index is inconsistent for " + key);
+                return null;
+            }
+            return Entry.readFrom(in);
+        } catch (IOException e) {
+            Logger.w("Couldn't read metadata for " + key + " from the index", e);
+            return null;
+        }
+    }
+
+    @NonNull
+    private RandomAccessFile openIndex() throws IOException {
+        if (file == null) {
+            loadOffsets();
+            file = new RandomAccessFile(indexFile, "rw");
+            if (file.length() < HEADER_SIZE) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+            }
+        }
+        return file;
+    }
+
+    // Scans the index once to find where the newest record for each URI is. A partially written
+    // record at the end, for example from the app being killed mid-write, is dropped.
+    private void loadOffsets() {
+        recordOffsets.clear();
+        deadRecordCount = 0;
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                Logger.w("Unrecognized metadata index; starting over.");
+                deleteIndex();
+                return;
+            }
+            offset = HEADER_SIZE;
+
+            while (true) {
+                final int length = in.readInt();
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                final String key = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+                if (recordOffsets.put(key, offset) != null) {
+                    ++deadRecordCount;
+                }
+                offset += 4 + length;
+            }
+        } catch (EOFException e) {
+            // End of the index.
+        } catch (IOException e) {
+            Logger.w("Couldn't load the metadata index", e);
+        }
+
+        if (indexFile.length() > offset) {
+            Logger.w("Dropping a partial record at the end of the metadata index");
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                file.setLength(offset);
+            } catch (IOException e) {
+                Logger.w(e);
+                deleteIndex();
+            }
+        }
+        Logger.v("Loaded metadata index with " + recordOffsets.size() + " entries");
+        dropLeastRecentlyUsedEntries();
+    }
+
+    // The records of dropped entries stay in the file until the next compaction.
+    private void dropLeastRecentlyUsedEntries() {
+        final Iterator<String> keys = recordOffsets.keySet().iterator();
+        while (recordOffsets.size() > MAX_ENTRIES && keys.hasNext()) {
+            decodedEntries.remove(keys.next());
+            keys.remove();
+            ++deadRecordCount;
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (deadRecordCount < MIN_DEAD_RECORDS_BEFORE_COMPACTION
+                || deadRecordCount < recordOffsets.size()) {
+            return;
+        }
+
+        Logger.v("Compacting metadata index; live: " + recordOffsets.size() + ", dead: " + deadRecordCount);
+        final RandomAccessFile file = openIndex();
+        final File compactedFile = new File(indexFile.getPath() + ".tmp");
+        // Written in the same order, so that it's kept when the index is loaded again.
+        final Map<String, Long> compactedOffsets = new LinkedHashMap<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compactedFile)))) {
+            out.writeInt(MAGIC);
+            long offset = HEADER_SIZE;
+            for (Map.Entry<String, Long> recordOffset : recordOffsets.entrySet()) {
+                file.seek(recordOffset.getValue());
+                final byte[] record = new byte[file.readInt()];
+                file.readFully(record);
+                out.writeInt(record.length);
+                out.write(record);
+                compactedOffsets.put(recordOffset.getKey(), offset);
+                offset += 4 + record.length;
+            }
+        }
+
+        file.close();
+        this.file = null;
+        if (!compactedFile.renameTo(indexFile)) {
+            throw new IOException("Couldn't replace " + indexFile + " with " + compactedFile);
+        }
+        this.file = new RandomAccessFile(indexFile, "rw");
+        recordOffsets.clear();
+        recordOffsets.putAll(compactedOffsets);
+        deadRecordCount = 0;
+    }
+
+    private void deleteIndex() {
+        if (indexFile.exists() && !indexFile.delete()) {
+            Logger.w("Couldn't delete " + indexFile);
+        }
+    }
+
+    @NonNull
+    private static byte[] encodeRecord(@NonNull String key, @NonNull Entry entry) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeUTF(key);
+        entry.writeTo(payloadOut);
+        payloadOut.flush();
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(4 + payload.size());
+        final DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(payload.size());
+        payload.writeTo(recordOut);
+        recordOut.flush();
+        return record.toByteArray();
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModifiedDate;
+        @NonNull
+        final MediaMetadata metadata;
+
+        Entry(long size, long lastModifiedDate, @NonNull MediaMetadata metadata) {
+            this.size = size;
+            this.lastModifiedDate = lastModifiedDate;
+            this.metadata = metadata;
+        }
+
+        void writeTo(@NonNull DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(lastModifiedDate);
+            metadata.writeTo(out);
+        }
+
+        @NonNull
+        static Entry readFrom(@NonNull DataInputStream in) throws IOException {
+            return new Entry(in.readLong(), in.readLong(), MediaMetadata.readFrom(in));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Entry entry = (Entry) o;
+
+            if (size != entry.size) return false;
+            if (lastModifiedDate != entry.lastModifiedDate) return false;
+            return metadata.equals(entry.metadata);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (size ^ (size >>> 32));
+            result = 31 * result + (int) (lastModifiedDate ^ (lastModifiedDate >>> 32));
+            result = 31 * result + metadata.hashCode();
+            return result;
+        }
+    }
+}
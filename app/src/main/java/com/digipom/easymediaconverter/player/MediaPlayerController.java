@@ -81,6 +81,8 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
     private final BecomingNoisyReceiver becomingNoisyReceiver = new BecomingNoisyReceiver();
     private final AudioFocusHelper audioFocusHelper;
     private MediaPlayer mediaPlayer;
+    // Plays rendered previews, separately from the media item itself.
+    private MediaPlayer previewPlayer;
 
     private final MutableLiveData<Boolean> isPlaying = new MutableLiveData<>();
     private final MutableLiveData<Boolean> isLooping = new MutableLiveData<>();
@@ -104,15 +106,7 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
         if (mediaPlayer == null) {
             Logger.v("Initializing media player for uri " + uri);
             mediaPlayer = new MediaPlayer();
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            } else {
-                final AudioAttributes.Builder builder = new AudioAttributes.Builder();
-                builder.setLegacyStreamType(AudioManager.STREAM_MUSIC)
-                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                        .setUsage(AudioAttributes.USAGE_MEDIA);
-                mediaPlayer.setAudioAttributes(builder.build());
-            }
+            setAudioAttributes(mediaPlayer);
             mediaPlayer.setDataSource(context, uri);
             mediaPlayer.setOnPreparedListener(this);
             mediaPlayer.setOnInfoListener(this);
@@ -124,6 +118,45 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
         }
     }
 
+    // Plays the preview once from the start. It gets a player of its own, so that the position
+    // and state of the main player are kept; the main player is paused while the preview plays.
+    void playPreview(@NonNull Uri previewUri) throws IOException {
+        // Also stops an earlier preview.
+        pause();
+
+        Logger.v("Playing preview " + previewUri);
+        previewPlayer = new MediaPlayer();
+        setAudioAttributes(previewPlayer);
+        previewPlayer.setDataSource(context, previewUri);
+        previewPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                audioFocusHelper.requestAudioFocus();
+                mp.start();
+            }
+        });
+        previewPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                releasePreviewPlayer();
+            }
+        });
+        previewPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                Logger.w("Preview onError: what: " + mediaPlayerErrorWhatLogString(what)
+                        + ", extra: " + mediaPlayerErrorExtraLogString(extra));
+                releasePreviewPlayer();
+                return true;
+            }
+        });
+        previewPlayer.prepareAsync();
+    }
+
+    void stopPreview() {
+        releasePreviewPlayer();
+    }
+
     // Observable data
 
     @NonNull
@@ -206,6 +239,7 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
     }
 
     void togglePlayPause() {
+        releasePreviewPlayer();
         if (mediaPlayer != null) {
             if (mediaPlayer.isPlaying()) {
                 Logger.v("Pausing");
@@ -220,6 +254,7 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
     }
 
     void pause() {
+        releasePreviewPlayer();
         if (mediaPlayer != null && mediaPlayer.isPlaying()) {
             Logger.v("Pausing");
             mediaPlayer.pause();
@@ -255,6 +290,7 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
     }
 
     void release() {
+        releasePreviewPlayer();
         if (mediaPlayer != null) {
             Logger.v("Releasing media player");
             mediaPlayer.release();
@@ -273,6 +309,29 @@ class MediaPlayerController implements MediaPlayer.OnPreparedListener, MediaPlay
 
     // Helpers
 
+    private static void setAudioAttributes(@NonNull MediaPlayer player) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        } else {
+            final AudioAttributes.Builder builder = new AudioAttributes.Builder();
+            builder.setLegacyStreamType(AudioManager.STREAM_MUSIC)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                    .setUsage(AudioAttributes.USAGE_MEDIA);
+            player.setAudioAttributes(builder.build());
+        }
+    }
+
+    private void releasePreviewPlayer() {
+        if (previewPlayer != null) {
+            Logger.v("Releasing preview player");
+            previewPlayer.release();
+            previewPlayer = null;
+            if (mediaPlayer == null || !mediaPlayer.isPlaying()) {
+                audioFocusHelper.abandonAudioFocus();
+            }
+        }
+    }
+
     private void updateIsPlayingAndElapsedTime() {
         updateElapsedTimeMs();
         isPlaying.setValue(mediaPlayer.isPlaying());
@@ -51,6 +51,8 @@ import com.digipom.easymediaconverter.edit.Bitrates.BitrateWithValue;
 import com.digipom.easymediaconverter.edit.EditAction;
 import com.digipom.easymediaconverter.edit.OutputFormatType;
 import com.digipom.easymediaconverter.edit.RingtoneType;
+import com.digipom.easymediaconverter.edit.NormalizeMode;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
 import com.digipom.easymediaconverter.media.MediaItem;
 import com.digipom.easymediaconverter.player.MainButtonInterfaces.HandleMainButtonTapListener;
 import com.digipom.easymediaconverter.player.MainButtonInterfaces.HandleSecondaryFABTapListener;
@@ -208,7 +210,7 @@ public class PlayerActivity extends AppCompatActivity implements
                 try {
                     final Uri mediaUri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
                     if (mediaUri != null) {
-                        item = MediaItem.constructFromUri(this, mediaUri);
+                        item = MediaItem.constructFromProviderQuery(this, mediaUri);
                     } else {
                         Logger.w("EXTRA_STREAM was null");
                     }
@@ -219,7 +221,7 @@ public class PlayerActivity extends AppCompatActivity implements
                 final Uri data = intent.getData();
                 if (data != null) {
                     try {
-                        item = MediaItem.constructFromUri(this, data);
+                        item = MediaItem.constructFromProviderQuery(this, data);
                     } catch (Exception e) {
                         Logger.w(e);
                     }
@@ -448,6 +450,17 @@ public class PlayerActivity extends AppCompatActivity implements
         finish();
     }
 
+    @Override
+    public void onBatchMakeVideoSelected(@NonNull MediaItem[] episodes,
+                                         @NonNull Uri[] targetUris,
+                                         @NonNull String[] targetFileNames,
+                                         @Nullable Uri customCoverImageUri,
+                                         @Nullable String customCoverImageFileName) {
+        viewModel.onBatchMakeVideoActionClicked(episodes, targetUris, targetFileNames,
+                customCoverImageUri, customCoverImageFileName);
+        finish();
+    }
+
     // ExtractAudioActionFragment.OnExtractAudioActionFragmentInteractionListener
 
     @Override
@@ -476,8 +489,9 @@ public class PlayerActivity extends AppCompatActivity implements
     // AdjustSpeedActionFragment.OnAdjustSpeedActionFragmentInteractionListener,
 
     @Override
-    public void onAdjustSpeedSelected(@NonNull Uri targetUri, @NonNull String targetFileName, float speed) {
-        viewModel.onAdjustSpeedActionClicked(targetUri, targetFileName, speed);
+    public void onAdjustSpeedSelected(@NonNull Uri targetUri, @NonNull String targetFileName, float speed,
+                                      @NonNull SpeedAdjustmentMode mode) {
+        viewModel.onAdjustSpeedActionClicked(targetUri, targetFileName, speed, mode);
         finish();
     }
 
@@ -500,8 +514,9 @@ public class PlayerActivity extends AppCompatActivity implements
     // NormalizeActionFragment.OnNormalizeActionFragmentInteractionListener
 
     @Override
-    public void onNormalizeSelected(@NonNull Uri targetUri, @NonNull String targetFileName) {
-        viewModel.onNormalizeActionClicked(targetUri, targetFileName);
+    public void onNormalizeSelected(@NonNull Uri targetUri, @NonNull String targetFileName,
+                                    @NonNull NormalizeMode mode) {
+        viewModel.onNormalizeActionClicked(targetUri, targetFileName, mode);
         finish();
     }
 
@@ -604,6 +619,10 @@ public class PlayerActivity extends AppCompatActivity implements
             return R.drawable.ic_insert_photo_black_24dp;
         } else if (handler instanceof CombineActionFragment) {
             return R.drawable.ic_add_black_24dp;
+        } else if (handler instanceof AdjustSpeedActionFragment
+                || handler instanceof AdjustVolumeActionFragment
+                || handler instanceof NormalizeActionFragment) {
+            return R.drawable.ic_hearing_black_24dp;
         }
 
         throw new IllegalArgumentException();
@@ -25,6 +25,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.util.Size;
 import android.view.SurfaceHolder;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -33,19 +34,41 @@ import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Transformations;
 
+import com.digipom.easymediaconverter.R;
 import com.digipom.easymediaconverter.application.BaseApplication;
 import com.digipom.easymediaconverter.edit.Bitrates.BitrateWithValue;
 import com.digipom.easymediaconverter.edit.OutputFormatType;
 import com.digipom.easymediaconverter.edit.RingtoneType;
+import com.digipom.easymediaconverter.edit.NormalizeMode;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
+import com.digipom.easymediaconverter.ffmpeg.EditStep;
 import com.digipom.easymediaconverter.ffmpeg.FFMpegController;
 import com.digipom.easymediaconverter.media.MediaItem;
+import com.digipom.easymediaconverter.utils.logger.Logger;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Objects;
 
 public final class PlayerViewModel extends AndroidViewModel {
     private final MediaPlayerController mediaPlayerController;
     private final FFMpegController ffMpegController;
+    private final FFMpegController.PreviewListener previewListener = new FFMpegController.PreviewListener() {
+        @Override
+        public void onPreviewReady(@NonNull Uri previewUri) {
+            try {
+                mediaPlayerController.playPreview(previewUri);
+            } catch (IOException e) {
+                Logger.w("Couldn't play preview " + previewUri, e);
+                showPreviewFailed();
+            }
+        }
+
+        @Override
+        public void onPreviewFailed(@NonNull Exception e) {
+            showPreviewFailed();
+        }
+    };
     private LiveData<Long> durationMsLiveData;
     private MediaItem item;
     private long defaultDurationMs;
@@ -60,6 +83,7 @@ public final class PlayerViewModel extends AndroidViewModel {
     @Override
     protected void onCleared() {
         super.onCleared();
+        ffMpegController.cancelPreviewRequest();
         mediaPlayerController.release();
     }
 
@@ -196,6 +220,20 @@ public final class PlayerViewModel extends AndroidViewModel {
 
     // Actions which result in a call to FFMPEG
 
+    // Renders a few seconds around the playhead with the step applied, and plays them.
+    public void onPreviewClicked(@NonNull EditStep step) {
+        mediaPlayerController.updateCurrentPlaybackPosition();
+        final long positionMs = Objects.requireNonNull(getObservableElapsedTimeMs().getValue());
+        // Zero until the player is prepared, in which case the window isn't clamped to the end.
+        final long durationMs = Objects.requireNonNull(mediaPlayerController.getObservableDurationMs().getValue());
+        ffMpegController.submitPreviewRequest(item, positionMs, durationMs,
+                Collections.singletonList(step), previewListener);
+    }
+
+    private void showPreviewFailed() {
+        Toast.makeText(getApplication(), R.string.preview_failed, Toast.LENGTH_LONG).show();
+    }
+
     void onConvertActionClicked(@NonNull Uri targetUri,
                                 @NonNull String targetFileName,
                                 @NonNull OutputFormatType outputFormatType,
@@ -212,6 +250,15 @@ public final class PlayerViewModel extends AndroidViewModel {
                 customCoverImageFileName);
     }
 
+    void onBatchMakeVideoActionClicked(@NonNull MediaItem[] episodes,
+                                       @NonNull Uri[] targetUris,
+                                       @NonNull String[] targetFileNames,
+                                       @Nullable Uri customCoverImageUri,
+                                       @Nullable String customCoverImageFileName) {
+        ffMpegController.submitBatchMakeVideoRequest(episodes, targetUris, targetFileNames,
+                customCoverImageUri, customCoverImageFileName);
+    }
+
     void onExtractAudioActionClicked(@NonNull Uri targetUri,
                                      @NonNull String targetFileName,
                                      @NonNull OutputFormatType outputFormatType) {
@@ -236,8 +283,9 @@ public final class PlayerViewModel extends AndroidViewModel {
                 cutStartMs, cutEndMs, durationMs);
     }
 
-    void onAdjustSpeedActionClicked(@NonNull Uri targetUri, @NonNull String targetFileName, float speed) {
-        ffMpegController.submitSpeedAdjustmentRequest(item, targetUri, targetFileName, speed);
+    void onAdjustSpeedActionClicked(@NonNull Uri targetUri, @NonNull String targetFileName, float speed,
+                                    @NonNull SpeedAdjustmentMode mode) {
+        ffMpegController.submitSpeedAdjustmentRequest(item, targetUri, targetFileName, speed, mode);
     }
 
     void onAdjustVolumeActionClicked(@NonNull Uri targetUri, @NonNull String targetFileName, float db) {
@@ -250,8 +298,9 @@ public final class PlayerViewModel extends AndroidViewModel {
         ffMpegController.submitAddSilenceRequest(item, targetUri, targetFileName, silenceInsertionPointMs, silenceDurationMs);
     }
 
-    void onNormalizeActionClicked(@NonNull Uri targetUri, @NonNull String targetFileName) {
-        ffMpegController.submitNormalizeRequest(item, targetUri, targetFileName);
+    void onNormalizeActionClicked(@NonNull Uri targetUri, @NonNull String targetFileName,
+                                  @NonNull NormalizeMode mode) {
+        ffMpegController.submitNormalizeRequest(item, targetUri, targetFileName, mode);
     }
 
     void onSplitActionClicked(@NonNull Uri firstTargetUri, @NonNull String firstTargetFileName,
@@ -26,9 +26,11 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -37,16 +39,21 @@ import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.ViewModelProvider;
 
 import com.digipom.easymediaconverter.R;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
+import com.digipom.easymediaconverter.ffmpeg.EditStep;
 import com.digipom.easymediaconverter.player.MainButtonInterfaces;
 import com.digipom.easymediaconverter.player.PlayerViewModel;
 import com.digipom.easymediaconverter.utils.IntentUtils;
+import com.google.android.material.chip.Chip;
 
 import java.util.Locale;
 import java.util.Objects;
 
-public class AdjustSpeedActionFragment extends Fragment implements MainButtonInterfaces.HandleMainButtonTapListener {
+public class AdjustSpeedActionFragment extends Fragment implements MainButtonInterfaces.HandleMainButtonTapListener,
+        MainButtonInterfaces.HandleSecondaryFABTapListener {
     public interface OnAdjustSpeedActionFragmentInteractionListener {
-        void onAdjustSpeedSelected(@NonNull Uri targetUri, @NonNull String targetFileName, float speed);
+        void onAdjustSpeedSelected(@NonNull Uri targetUri, @NonNull String targetFileName, float speed,
+                                   @NonNull SpeedAdjustmentMode mode);
     }
 
     private static final int CREATE_DOCUMENT_REQUEST_CODE = 1;
@@ -63,6 +70,7 @@ public class AdjustSpeedActionFragment extends Fragment implements MainButtonInt
     }
 
     private AdjustSpeedActionViewModel viewModel;
+    private PlayerViewModel sharedViewModel;
     private TextView relativeSpeedTextView;
     private SeekBar seekBar;
 
@@ -70,7 +78,7 @@ public class AdjustSpeedActionFragment extends Fragment implements MainButtonInt
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         viewModel = new ViewModelProvider(this).get(AdjustSpeedActionViewModel.class);
-        final PlayerViewModel sharedViewModel = new ViewModelProvider(Objects.requireNonNull(getActivity())).get(PlayerViewModel.class);
+        sharedViewModel = new ViewModelProvider(Objects.requireNonNull(getActivity())).get(PlayerViewModel.class);
         viewModel.setMediaItem(sharedViewModel.getMediaItem());
 
         final View view = Objects.requireNonNull(getView());
@@ -114,6 +122,40 @@ public class AdjustSpeedActionFragment extends Fragment implements MainButtonInt
             }
         });
 
+        final View modeHeading = view.findViewById(R.id.mode_heading_textview);
+        final View modeChipGroup = view.findViewById(R.id.mode_chipgroup);
+        final int modeVisibility = viewModel.shouldShowModeSelection() ? View.VISIBLE : View.GONE;
+        modeHeading.setVisibility(modeVisibility);
+        modeChipGroup.setVisibility(modeVisibility);
+
+        final Chip blendModeChip = view.findViewById(R.id.blend_mode_chip);
+        final Chip fastModeChip = view.findViewById(R.id.fast_mode_chip);
+        final Chip retimeOnlyModeChip = view.findViewById(R.id.retime_only_mode_chip);
+        blendModeChip.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked) {
+                    viewModel.onBlendModeChecked();
+                }
+            }
+        });
+        fastModeChip.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked) {
+                    viewModel.onFastModeChecked();
+                }
+            }
+        });
+        retimeOnlyModeChip.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked) {
+                    viewModel.onRetimeOnlyModeChecked();
+                }
+            }
+        });
+
         // Set initial state
         updateSpeedText();
         ((MainButtonInterfaces.MainButtonController) getActivity()).onButtonStateUpdated();
@@ -135,6 +177,17 @@ public class AdjustSpeedActionFragment extends Fragment implements MainButtonInt
         startActivityForResult(createDocumentIntent, CREATE_DOCUMENT_REQUEST_CODE);
     }
 
+    @Override
+    public boolean shouldShowSecondaryFAB() {
+        return shouldShowMainButton();
+    }
+
+    @Override
+    public void onSecondaryFABTapped() {
+        Toast.makeText(getContext(), R.string.preparing_preview, Toast.LENGTH_SHORT).show();
+        sharedViewModel.onPreviewClicked(EditStep.adjustSpeed(seekBarPositionToRelativeSpeed(), viewModel.getMode()));
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -146,7 +199,8 @@ public class AdjustSpeedActionFragment extends Fragment implements MainButtonInt
                         public void onReceivedUriForNewDocument(@NonNull Uri target) {
                             final float speed = seekBarPositionToRelativeSpeed();
                             final String outputFilename = viewModel.getDefaultOutputFilename();
-                            ((OnAdjustSpeedActionFragmentInteractionListener) activity).onAdjustSpeedSelected(target, outputFilename, speed);
+                            final SpeedAdjustmentMode mode = viewModel.getMode();
+                            ((OnAdjustSpeedActionFragmentInteractionListener) activity).onAdjustSpeedSelected(target, outputFilename, speed, mode);
                         }
                     });
         }
@@ -26,6 +26,7 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 
 import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.edit.SpeedAdjustmentMode;
 import com.digipom.easymediaconverter.media.MediaItem;
 import com.digipom.easymediaconverter.utils.FilenameUtils;
 
@@ -33,6 +34,7 @@ import static com.digipom.easymediaconverter.player.FilenamingUtils.getAppendNam
 
 public class AdjustSpeedActionViewModel extends AndroidViewModel {
     private MediaItem mediaItem;
+    private SpeedAdjustmentMode selectedMode = SpeedAdjustmentMode.BLEND;
 
     public AdjustSpeedActionViewModel(@NonNull Application application) {
         super(application);
@@ -52,4 +54,26 @@ public class AdjustSpeedActionViewModel extends AndroidViewModel {
         return FilenameUtils.appendToFilename(mediaItem.getFilename(),
                 getAppendNamingForOutput(getApplication(), EditAction.ADJUST_SPEED));
     }
+
+    boolean shouldShowModeSelection() {
+        // The mode only affects how the video stream is handled.
+        return mediaItem.getMimeType().startsWith("video/");
+    }
+
+    @NonNull
+    SpeedAdjustmentMode getMode() {
+        return selectedMode;
+    }
+
+    void onBlendModeChecked() {
+        selectedMode = SpeedAdjustmentMode.BLEND;
+    }
+
+    void onFastModeChecked() {
+        selectedMode = SpeedAdjustmentMode.FAST;
+    }
+
+    void onRetimeOnlyModeChecked() {
+        selectedMode = SpeedAdjustmentMode.RETIME_ONLY;
+    }
 }
\ No newline at end of file
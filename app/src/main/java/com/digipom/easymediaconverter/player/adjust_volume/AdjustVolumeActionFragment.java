@@ -29,6 +29,7 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -37,6 +38,7 @@ import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.ViewModelProvider;
 
 import com.digipom.easymediaconverter.R;
+import com.digipom.easymediaconverter.ffmpeg.EditStep;
 import com.digipom.easymediaconverter.player.MainButtonInterfaces;
 import com.digipom.easymediaconverter.player.PlayerViewModel;
 import com.digipom.easymediaconverter.utils.IntentUtils;
@@ -44,7 +46,8 @@ import com.digipom.easymediaconverter.utils.IntentUtils;
 import java.util.Locale;
 import java.util.Objects;
 
-public class AdjustVolumeActionFragment extends Fragment implements MainButtonInterfaces.HandleMainButtonTapListener {
+public class AdjustVolumeActionFragment extends Fragment implements MainButtonInterfaces.HandleMainButtonTapListener,
+        MainButtonInterfaces.HandleSecondaryFABTapListener {
     public interface OnAdjustVolumeActionFragmentInteractionListener {
         void onAdjustVolumeSelected(@NonNull Uri targetUri, @NonNull String targetFileName, float db);
     }
@@ -63,6 +66,7 @@ public class AdjustVolumeActionFragment extends Fragment implements MainButtonIn
     }
 
     private AdjustVolumeActionViewModel viewModel;
+    private PlayerViewModel sharedViewModel;
     private TextView relativeVolumeTextView;
     private TextView dbVolumeTextView;
     private SeekBar seekBar;
@@ -71,7 +75,7 @@ public class AdjustVolumeActionFragment extends Fragment implements MainButtonIn
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         viewModel = new ViewModelProvider(this).get(AdjustVolumeActionViewModel.class);
-        final PlayerViewModel sharedViewModel = new ViewModelProvider(Objects.requireNonNull(getActivity())).get(PlayerViewModel.class);
+        sharedViewModel = new ViewModelProvider(Objects.requireNonNull(getActivity())).get(PlayerViewModel.class);
         viewModel.setMediaItem(sharedViewModel.getMediaItem());
 
         final View view = Objects.requireNonNull(getView());
@@ -139,6 +143,17 @@ public class AdjustVolumeActionFragment extends Fragment implements MainButtonIn
         startActivityForResult(createDocumentIntent, CREATE_DOCUMENT_REQUEST_CODE);
     }
 
+    @Override
+    public boolean shouldShowSecondaryFAB() {
+        return shouldShowMainButton();
+    }
+
+    @Override
+    public void onSecondaryFABTapped() {
+        Toast.makeText(getContext(), R.string.preparing_preview, Toast.LENGTH_SHORT).show();
+        sharedViewModel.onPreviewClicked(EditStep.adjustVolume(seekBarPositionToDb()));
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -51,8 +51,8 @@ import com.digipom.easymediaconverter.player.combine.CombineActionViewModel.Dura
 import com.digipom.easymediaconverter.player.combine.CombineActionViewModel.ListItem;
 import com.digipom.easymediaconverter.utils.IntentUtils;
 import com.digipom.easymediaconverter.utils.ListUtils.FadingItemTouchHelperCallback;
-import com.digipom.easymediaconverter.utils.logger.Logger;
 
+import java.util.List;
 import java.util.Objects;
 
 import static android.app.Activity.RESULT_OK;
@@ -126,6 +126,12 @@ public class CombineActionFragment extends Fragment implements MainButtonInterfa
                 }
             }
         });
+        viewModel.resolvedItems().observe(getViewLifecycleOwner(), new Observer<List<ListItem>>() {
+            @Override
+            public void onChanged(List<ListItem> listItems) {
+                adapter.onItemsResolved();
+            }
+        });
     }
 
     @Override
@@ -144,16 +150,7 @@ public class CombineActionFragment extends Fragment implements MainButtonInterfa
                     });
         } else if (requestCode == GET_CONTENT_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
-                try {
-                    final MediaItem[] items = MediaItem.constructMediaItemsFromGetContentResponse(
-                            Objects.requireNonNull(getContext()), data);
-                    for (MediaItem item : items) {
-                        adapter.addItem(item);
-                    }
-                } catch (Exception e) {
-                    Logger.w(e);
-                    // TODO report to user and log
-                }
+                viewModel.resolveItems(Objects.requireNonNull(data));
             } else {
                 // TODO log and distinguish between cancel and error
             }
@@ -194,6 +191,10 @@ public class CombineActionFragment extends Fragment implements MainButtonInterfa
     // Adapter
 
     public class CombineAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        // How many of the view model's items the adapter has reported, so that items added by a
+        // resolution can be inserted after them.
+        private int shownItemCount = viewModel.getItemCount();
+
         @SuppressLint("ClickableViewAccessibility")
         @NonNull
         @Override
@@ -283,6 +284,7 @@ public class CombineActionFragment extends Fragment implements MainButtonInterfa
 
         private void removeItem(int position) {
             viewModel.onItemRemoved(position);
+            shownItemCount = viewModel.getItemCount();
             notifyItemRemoved(position);
             // If we only have one item left, also remove the drag handle
             if (viewModel.getItemCount() == 1) {
@@ -292,6 +294,7 @@ public class CombineActionFragment extends Fragment implements MainButtonInterfa
 
         void addItem(@NonNull MediaItem mediaItem) {
             int position = viewModel.onItemAdded(mediaItem);
+            shownItemCount = viewModel.getItemCount();
             if (position >= 0) {
                 notifyItemInserted(position);
             }
@@ -300,6 +303,18 @@ public class CombineActionFragment extends Fragment implements MainButtonInterfa
                 notifyItemChanged(0);
             }
         }
+
+        void onItemsResolved() {
+            final int itemCount = viewModel.getItemCount();
+            if (itemCount > shownItemCount) {
+                notifyItemRangeInserted(shownItemCount, itemCount - shownItemCount);
+                if (shownItemCount == 1) {
+                    // Add a drag handle
+                    notifyItemChanged(0);
+                }
+                shownItemCount = itemCount;
+            }
+        }
     }
 
     private static class AudioItemWithDurationViewHolder extends RecyclerView.ViewHolder {
@@ -21,6 +21,7 @@
 package com.digipom.easymediaconverter.player.combine;
 
 import android.app.Application;
+import android.content.Intent;
 import android.widget.AdapterView;
 import android.widget.TextView;
 
@@ -32,15 +33,17 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Observer;
 
+import com.digipom.easymediaconverter.application.BaseApplication;
 import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.media.BulkMediaItemResolver;
 import com.digipom.easymediaconverter.media.MediaItem;
-import com.digipom.easymediaconverter.utils.DurationLoader;
 import com.digipom.easymediaconverter.utils.FilenameUtils;
+import com.digipom.easymediaconverter.utils.LoadableDurationCache;
+import com.digipom.easymediaconverter.utils.logger.Logger;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 
 import static com.digipom.easymediaconverter.player.FilenamingUtils.getAppendNamingForOutput;
@@ -51,19 +54,36 @@ public class CombineActionViewModel extends AndroidViewModel {
     private final LoadableDurationCache loadableDurationCache;
     private final MutableLiveData<Boolean> showMergeFab = new MutableLiveData<>();
     private final List<ListItem> items = new ArrayList<>();
+    // Updated when a resolution adds items. Changes that the view makes itself aren't published,
+    // since it's already up to date with those.
+    private final MutableLiveData<List<ListItem>> resolvedItems = new MutableLiveData<>();
+    private final List<BulkMediaItemResolver.Observation> resolutions = new ArrayList<>();
     private MediaItem firstMediaItem;
 
     public CombineActionViewModel(@NonNull Application application) {
         super(application);
-        loadableDurationCache = new LoadableDurationCache(new DurationLoader(application));
+        loadableDurationCache = ((BaseApplication) application).getServiceLocator().getLoadableDurationCache();
         showMergeFab.setValue(false);
     }
 
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        for (BulkMediaItemResolver.Observation resolution : resolutions) {
+            resolution.stop();
+        }
+    }
+
     @NonNull
     LiveData<Boolean> showMergeFab() {
         return showMergeFab;
     }
 
+    @NonNull
+    LiveData<List<ListItem>> resolvedItems() {
+        return resolvedItems;
+    }
+
     void setFirstMediaItem(@NonNull MediaItem firstMediaItem) {
         this.firstMediaItem = firstMediaItem;
     }
@@ -79,6 +99,30 @@ public class CombineActionViewModel extends AndroidViewModel {
                 getAppendNamingForOutput(getApplication(), EditAction.COMBINE));
     }
 
+    // Resolves the selected documents in the background, so that a large selection doesn't block
+    // the UI. The items are added here rather than by the view, so that none are lost if the view
+    // is recreated before the resolution finishes.
+    void resolveItems(@NonNull Intent data) {
+        resolutions.add(((BaseApplication) getApplication()).getServiceLocator().getBulkMediaItemResolver()
+                .resolve(BulkMediaItemResolver.getUrisFromGetContentResponse(data), new BulkMediaItemResolver.Listener() {
+                    @Override
+                    public void onItemsResolved(@NonNull List<MediaItem> mediaItems) {
+                        for (MediaItem mediaItem : mediaItems) {
+                            onItemAdded(mediaItem);
+                        }
+                        resolvedItems.setValue(Collections.unmodifiableList(new ArrayList<>(items)));
+                    }
+
+                    @Override
+                    public void onFinished(int failedCount) {
+                        if (failedCount > 0) {
+                            Logger.w("Couldn't resolve " + failedCount + " of the selected items");
+                            // TODO report to user and log
+                        }
+                    }
+                }));
+    }
+
     // List handling
 
     @NonNull
@@ -143,37 +187,6 @@ public class CombineActionViewModel extends AndroidViewModel {
         }
     }
 
-    static class LoadableDurationCache {
-        private final DurationLoader durationLoader;
-        private final Map<MediaItem, LiveData<Long>> loadableDurationMap = new HashMap<>();
-
-        LoadableDurationCache(@NonNull DurationLoader durationLoader) {
-            this.durationLoader = durationLoader;
-        }
-
-        @NonNull
-        LiveData<Long> getLoadableDuration(@NonNull MediaItem item) {
-            LiveData<Long> loadableDuration = loadableDurationMap.get(item);
-            if (loadableDuration != null) {
-                return loadableDuration;
-            }
-            loadableDuration = createLoadableDuration(item);
-            loadableDurationMap.put(item, loadableDuration);
-            return loadableDuration;
-        }
-
-        private LiveData<Long> createLoadableDuration(@NonNull MediaItem item) {
-            if (item.getOptionalDurationMs() >= 0) {
-                // We already have a duration, so no need to load one.
-                final MutableLiveData<Long> durationMs = new MutableLiveData<>();
-                durationMs.setValue(item.getOptionalDurationMs());
-                return durationMs;
-            } else {
-                return durationLoader.loadDuration(item.getUri());
-            }
-        }
-    }
-
     static class DurationViewHolderHelper {
         public interface OnDurationLoadedListener {
             void onDurationLoadedForItemAndViewHolderHasChanged();
@@ -185,6 +198,8 @@ public class CombineActionViewModel extends AndroidViewModel {
         private final LoadableDurationCache loadableDurationCache;
         private final OnDurationLoadedListener listener;
         private MediaItem boundItem;
+        private LiveData<Long> boundLoadableDuration;
+        private Observer<Long> boundObserver;
 
         DurationViewHolderHelper(@NonNull TextView durationView,
                                  @NonNull LifecycleOwner owner,
@@ -197,13 +212,26 @@ public class CombineActionViewModel extends AndroidViewModel {
         }
 
         void bindWithMediaItem(@NonNull final MediaItem item) {
+            if (boundItem != null && !boundItem.equals(item) && boundLoadableDuration != null) {
+                // The previous item isn't on screen anymore, so unless another row is showing it,
+                // don't let its lookup hold up the ones that are.
+                if (boundObserver != null) {
+                    boundLoadableDuration.removeObserver(boundObserver);
+                }
+                if (!boundLoadableDuration.hasObservers()) {
+                    loadableDurationCache.cancelIfPending(boundItem);
+                }
+            }
             boundItem = item;
+            boundLoadableDuration = null;
+            boundObserver = null;
 
             if (item.getOptionalDurationMs() >= 0) {
                 // We already have a duration -- no need to go through loading a duration.
                 formatDuration(builder, durationView, item.getOptionalDurationMs());
             } else {
                 final LiveData<Long> loadableDuration = loadableDurationCache.getLoadableDuration(item);
+                boundLoadableDuration = loadableDuration;
                 final long durationMs = Objects.requireNonNull(loadableDuration.getValue());
                 if (durationMs > 0) {
                     formatDuration(builder, durationView, durationMs);
@@ -211,7 +239,7 @@ public class CombineActionViewModel extends AndroidViewModel {
                     durationView.setText("");
                     // Observe the value, taking care to remove any current observers for this value.
                     loadableDuration.removeObservers(owner);
-                    loadableDuration.observe(owner, new Observer<Long>() {
+                    boundObserver = new Observer<Long>() {
                         @Override
                         public void onChanged(@Nullable Long newValue) {
                             if (Objects.requireNonNull(newValue) != DURATION_NOT_LOADED) {
@@ -233,7 +261,8 @@ public class CombineActionViewModel extends AndroidViewModel {
                                 loadableDuration.removeObservers(owner);
                             }
                         }
-                    });
+                    };
+                    loadableDuration.observe(owner, boundObserver);
                 } else {
                     durationView.setText("--:--");
                 }
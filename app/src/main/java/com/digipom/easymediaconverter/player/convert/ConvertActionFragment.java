@@ -55,6 +55,7 @@ import java.util.Set;
 
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.ABR;
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.CBR;
+import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.TARGET_SIZE;
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.VBR;
 import static com.digipom.easymediaconverter.edit.OutputFormatType.MP3;
 import static com.digipom.easymediaconverter.edit.OutputFormatType.MP4;
@@ -89,6 +90,7 @@ public class ConvertActionFragment extends Fragment implements MainButtonInterfa
     private Chip bitrateCbr;
     private Chip bitrateAbr;
     private Chip bitrateVbr;
+    private Chip bitrateTargetSize;
     private TextView bitrateTextView;
     private SeekBar bitrateSeekBar;
     private TextView bitrateQualityExplainer;
@@ -123,6 +125,7 @@ public class ConvertActionFragment extends Fragment implements MainButtonInterfa
         bitrateCbr = view.findViewById(R.id.chip_button_cbr);
         bitrateAbr = view.findViewById(R.id.chip_button_abr);
         bitrateVbr = view.findViewById(R.id.chip_button_vbr);
+        bitrateTargetSize = view.findViewById(R.id.chip_button_target_size);
         bitrateTextView = view.findViewById(R.id.bitrate_textview);
         bitrateSeekBar = view.findViewById(R.id.bitrate_seekbar);
         final View decreaseBitrate = view.findViewById(R.id.bitrate_left_adjust_arrow);
@@ -258,6 +261,9 @@ public class ConvertActionFragment extends Fragment implements MainButtonInterfa
                     case R.id.chip_button_abr:
                         viewModel.updateSelectedBitrateType(ABR);
                         break;
+                    case R.id.chip_button_target_size:
+                        viewModel.updateSelectedBitrateType(TARGET_SIZE);
+                        break;
                 }
 
                 syncBitrateSectionWithViewModel();
@@ -321,6 +327,7 @@ public class ConvertActionFragment extends Fragment implements MainButtonInterfa
             bitrateCbr.setVisibility(availableBitrateOptions.contains(CBR) ? View.VISIBLE : View.GONE);
             bitrateAbr.setVisibility(availableBitrateOptions.contains(ABR) ? View.VISIBLE : View.GONE);
             bitrateVbr.setVisibility(availableBitrateOptions.contains(VBR) ? View.VISIBLE : View.GONE);
+            bitrateTargetSize.setVisibility(availableBitrateOptions.contains(TARGET_SIZE) ? View.VISIBLE : View.GONE);
 
             final BitrateState state = viewModel.getCurrentBitrateState();
             if (state != null) {
@@ -337,6 +344,9 @@ public class ConvertActionFragment extends Fragment implements MainButtonInterfa
                     case ABR:
                         bitrateChipGroup.check(R.id.chip_button_abr);
                         break;
+                    case TARGET_SIZE:
+                        bitrateChipGroup.check(R.id.chip_button_target_size);
+                        break;
                 }
 
                 updateBitrateText(state);
@@ -365,6 +375,10 @@ public class ConvertActionFragment extends Fragment implements MainButtonInterfa
                 bitrateTextView.setText(requireContext().getString(R.string.bitrate_quality,
                         state.bitrateSpec.bitrateValueForStep(step)));
                 break;
+            case TARGET_SIZE:
+                bitrateTextView.setText(requireContext().getString(R.string.target_size_megabytes,
+                        state.bitrateSpec.bitrateValueForStep(step)));
+                break;
         }
     }
 
@@ -40,6 +40,7 @@ import java.util.Set;
 
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.ABR;
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.CBR;
+import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.TARGET_SIZE;
 import static com.digipom.easymediaconverter.edit.Bitrates.BitrateType.VBR;
 import static com.digipom.easymediaconverter.edit.OutputFormatType.AAC;
 import static com.digipom.easymediaconverter.edit.OutputFormatType.FLAC;
@@ -76,6 +77,12 @@ public class ConvertActionViewModel extends AndroidViewModel {
         bitrateSpecs.put(MP3, Bitrates.getMp3BitrateSpecs());
         bitrateSpecs.put(M4A, Bitrates.getAacBitrateSpecs());
         bitrateSpecs.put(AAC, Bitrates.getAacBitrateSpecs());
+        bitrateSpecs.put(OGG, Bitrates.getTargetSizeOnlySpecs());
+        bitrateSpecs.put(OPUS, Bitrates.getTargetSizeOnlySpecs());
+        bitrateSpecs.put(MP4, Bitrates.getTargetSizeOnlySpecs());
+        bitrateSpecs.put(MKV, Bitrates.getTargetSizeOnlySpecs());
+        bitrateSpecs.put(MOV, Bitrates.getTargetSizeOnlySpecs());
+        bitrateSpecs.put(WEBM, Bitrates.getTargetSizeOnlySpecs());
     }
 
     void setMediaItem(@NonNull MediaItem mediaItem) {
@@ -192,11 +199,13 @@ public class ConvertActionViewModel extends AndroidViewModel {
                 final BitrateRange cbrBitrateSpec = specs.get(CBR);
                 final BitrateRange abrBitrateSpec = specs.get(ABR);
                 final BitrateRange vbrBitrateSpec = specs.get(VBR);
+                final BitrateRange targetSizeSpec = specs.get(TARGET_SIZE);
 
                 switch (type) {
                     case CBR:
                         if (cbrBitrateSpec != null) {
-                            if (existingState == null || existingState.forBitrateType == VBR) {
+                            if (existingState == null || existingState.forBitrateType == VBR
+                                    || existingState.forBitrateType == TARGET_SIZE) {
                                 bitrateStates.put(selectedType, new BitrateState(
                                         CBR, cbrBitrateSpec, cbrBitrateSpec.defaultStep()));
                             } else if (existingState.forBitrateType == ABR) {
@@ -209,7 +218,8 @@ public class ConvertActionViewModel extends AndroidViewModel {
                         break;
                     case ABR:
                         if (abrBitrateSpec != null) {
-                            if (existingState == null || existingState.forBitrateType == VBR) {
+                            if (existingState == null || existingState.forBitrateType == VBR
+                                    || existingState.forBitrateType == TARGET_SIZE) {
                                 bitrateStates.put(selectedType, new BitrateState(
                                         ABR, abrBitrateSpec, abrBitrateSpec.defaultStep()));
                             } else if (existingState.forBitrateType == CBR) {
@@ -228,6 +238,14 @@ public class ConvertActionViewModel extends AndroidViewModel {
                             }
                         }
                         break;
+                    case TARGET_SIZE:
+                        if (targetSizeSpec != null) {
+                            if (existingState == null || existingState.forBitrateType != TARGET_SIZE) {
+                                bitrateStates.put(selectedType, new BitrateState(
+                                        TARGET_SIZE, targetSizeSpec, targetSizeSpec.defaultStep()));
+                            }
+                        }
+                        break;
                 }
             }
         }
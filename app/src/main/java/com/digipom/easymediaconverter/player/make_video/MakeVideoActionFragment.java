@@ -29,6 +29,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -39,6 +40,8 @@ import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 
 import com.digipom.easymediaconverter.R;
+import com.digipom.easymediaconverter.errors.ErrorDialogFragment;
+import com.digipom.easymediaconverter.media.MediaItem;
 import com.digipom.easymediaconverter.player.MainButtonInterfaces;
 import com.digipom.easymediaconverter.player.PlayerViewModel;
 import com.digipom.easymediaconverter.utils.IntentUtils;
@@ -56,10 +59,18 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
                                  @NonNull String targetFileName,
                                  @Nullable Uri optionalImageCoverUri,
                                  @Nullable String optionalImageCoverFileName);
+
+        void onBatchMakeVideoSelected(@NonNull MediaItem[] episodes,
+                                      @NonNull Uri[] targetUris,
+                                      @NonNull String[] targetFileNames,
+                                      @Nullable Uri optionalImageCoverUri,
+                                      @Nullable String optionalImageCoverFileName);
     }
 
     private static final int CREATE_DOCUMENT_REQUEST_CODE = 1;
     private static final int GET_CONTENT_REQUEST_CODE = 2;
+    private static final int GET_EPISODES_REQUEST_CODE = 3;
+    private static final int OPEN_DOCUMENT_TREE_REQUEST_CODE = 4;
 
     @NonNull
     public static MakeVideoActionFragment create() {
@@ -69,6 +80,8 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
     private MakeVideoActionViewModel viewModel;
     private ImageView coverImage;
     private ImageButton resetCoverImageToDefault;
+    private TextView episodesTextView;
+    private View addEpisodesButton;
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
@@ -76,6 +89,8 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
         final View view = inflater.inflate(R.layout.fragment_make_video_action, container, false);
         coverImage = view.findViewById(R.id.cover_image);
         resetCoverImageToDefault = view.findViewById(R.id.reset_cover_image_to_default);
+        episodesTextView = view.findViewById(R.id.episodes_textview);
+        addEpisodesButton = view.findViewById(R.id.add_episodes_button);
         return view;
     }
 
@@ -103,6 +118,19 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
             }
         });
 
+        viewModel.episodeCount().observe(getViewLifecycleOwner(), new Observer<Integer>() {
+            @Override
+            public void onChanged(Integer count) {
+                final int episodeCount = ObjectUtils.returnDefaultIfNull(count, 1);
+                if (episodeCount > 1) {
+                    episodesTextView.setText(getResources().getQuantityString(
+                            R.plurals.will_make_videos_for_episodes, episodeCount, episodeCount));
+                } else {
+                    episodesTextView.setText(R.string.will_make_mp4_video);
+                }
+            }
+        });
+
         resetCoverImageToDefault.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -111,6 +139,15 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
                 }
             }
         });
+
+        addEpisodesButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                final Intent intent = IntentUtils.getMultipleMediaContentRequest();
+                startActivityForResult(Intent.createChooser(intent, null),
+                        GET_EPISODES_REQUEST_CODE);
+            }
+        });
     }
 
     @Override
@@ -120,6 +157,12 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
 
     @Override
     public void onMainButtonTapped() {
+        if (viewModel.isBatch()) {
+            // Each episode gets its own video, so ask for a folder to put them all in.
+            startActivityForResult(IntentUtils.getOpenDocumentTreeRequest(), OPEN_DOCUMENT_TREE_REQUEST_CODE);
+            return;
+        }
+
         final String mimeType = viewModel.getMimeTypeForOutputSelection();
         final String outputFilename = viewModel.getDefaultOutputFilename();
 
@@ -156,6 +199,30 @@ public class MakeVideoActionFragment extends Fragment implements MainButtonInter
                                     target, outputFilename, customCoverImageUri, customCoverImageFilename);
                         }
                     });
+        } else if (requestCode == OPEN_DOCUMENT_TREE_REQUEST_CODE) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                final FragmentActivity activity = Objects.requireNonNull(getActivity());
+                try {
+                    final Uri[] targets = viewModel.createTargetsInTree(data.getData());
+                    for (Uri target : targets) {
+                        // See IntentUtils.handleNewlyCreatedDocumentFromActivityResult.
+                        activity.grantUriPermission(activity.getPackageName(), target,
+                                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+                    }
+                    ((OnMakeVideoActionFragmentInteractionListener) activity).onBatchMakeVideoSelected(
+                            viewModel.getEpisodes(), targets, viewModel.getDefaultOutputFilenamesForEpisodes(),
+                            viewModel.getCustomCoverImageUri(), viewModel.getCustomCoverImageFilename());
+                } catch (Exception e) {
+                    Logger.w(e);
+                    ErrorDialogFragment.showCouldNotCreateDocumentError(activity, activity.getSupportFragmentManager());
+                }
+            } else {
+                Logger.d("User cancelled folder selection");
+            }
+        } else if (requestCode == GET_EPISODES_REQUEST_CODE) {
+            if (resultCode == RESULT_OK && data != null) {
+                viewModel.resolveEpisodes(data);
+            }
         } else if (requestCode == GET_CONTENT_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
                 try {
@@ -21,8 +21,11 @@
 package com.digipom.easymediaconverter.player.make_video;
 
 import android.app.Application;
+import android.content.ContentResolver;
+import android.content.Intent;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.provider.DocumentsContract;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -30,11 +33,16 @@ import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import com.digipom.easymediaconverter.application.BaseApplication;
 import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.media.BulkMediaItemResolver;
 import com.digipom.easymediaconverter.media.MediaItem;
 import com.digipom.easymediaconverter.utils.logger.Logger;
 
+import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import static com.digipom.easymediaconverter.player.FilenamingUtils.getAppendNamingForOutput;
@@ -46,6 +54,9 @@ import static com.digipom.easymediaconverter.utils.StreamUtils.silentlyClose;
 public class MakeVideoActionViewModel extends AndroidViewModel {
     private final MutableLiveData<Drawable> coverImage = new MutableLiveData<>();
     private final MutableLiveData<Boolean> isCoverImageDefault = new MutableLiveData<>();
+    private final MutableLiveData<Integer> episodeCount = new MutableLiveData<>(1);
+    private final List<MediaItem> additionalEpisodes = new ArrayList<>();
+    private final List<BulkMediaItemResolver.Observation> resolutions = new ArrayList<>();
     private Uri customCoverImageUri;
     private MediaItem mediaItem;
 
@@ -54,6 +65,14 @@ public class MakeVideoActionViewModel extends AndroidViewModel {
         setCoverImageToDefault();
     }
 
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        for (BulkMediaItemResolver.Observation resolution : resolutions) {
+            resolution.stop();
+        }
+    }
+
     @NonNull
     LiveData<Drawable> coverImage() {
         return coverImage;
@@ -64,10 +83,60 @@ public class MakeVideoActionViewModel extends AndroidViewModel {
         return isCoverImageDefault;
     }
 
+    // Includes the media item being played.
+    @NonNull
+    LiveData<Integer> episodeCount() {
+        return episodeCount;
+    }
+
     void setMediaItem(@NonNull MediaItem mediaItem) {
         this.mediaItem = mediaItem;
     }
 
+    // Resolves the selected episodes in the background, so that a large selection doesn't block
+    // the UI. The episodes are added here rather than by the view, so that none are lost if the
+    // view is recreated before the resolution finishes.
+    void resolveEpisodes(@NonNull Intent data) {
+        resolutions.add(((BaseApplication) getApplication()).getServiceLocator().getBulkMediaItemResolver()
+                .resolve(BulkMediaItemResolver.getUrisFromGetContentResponse(data), new BulkMediaItemResolver.Listener() {
+                    @Override
+                    public void onItemsResolved(@NonNull List<MediaItem> items) {
+                        addEpisodes(items);
+                    }
+
+                    @Override
+                    public void onFinished(int failedCount) {
+                        if (failedCount > 0) {
+                            Logger.w("Couldn't resolve " + failedCount + " of the selected episodes");
+                            // TODO report to user and log
+                        }
+                    }
+                }));
+    }
+
+    private void addEpisodes(@NonNull List<MediaItem> items) {
+        for (MediaItem item : items) {
+            if (!item.equals(mediaItem) && !additionalEpisodes.contains(item)) {
+                additionalEpisodes.add(item);
+            }
+        }
+        episodeCount.setValue(1 + additionalEpisodes.size());
+    }
+
+    boolean isBatch() {
+        return !additionalEpisodes.isEmpty();
+    }
+
+    @NonNull
+    MediaItem[] getEpisodes() {
+        final MediaItem[] episodes = new MediaItem[1 + additionalEpisodes.size()];
+        episodes[0] = mediaItem;
+        for (int i = 0; i < additionalEpisodes.size(); ++i) {
+            episodes[i + 1] = additionalEpisodes.get(i);
+        }
+        return episodes;
+    }
+
     void setCoverImage(@NonNull Uri imageUri) {
         try {
             setCoverImageFromStream(Objects.requireNonNull(getApplication().getContentResolver().openInputStream(imageUri)));
@@ -103,12 +172,47 @@ public class MakeVideoActionViewModel extends AndroidViewModel {
 
     @NonNull
     String getDefaultOutputFilename() {
-        final String filename = mediaItem.getFilename();
+        return getDefaultOutputFilename(mediaItem);
+    }
+
+    @NonNull
+    String[] getDefaultOutputFilenamesForEpisodes() {
+        final MediaItem[] episodes = getEpisodes();
+        final String[] filenames = new String[episodes.length];
+        for (int i = 0; i < episodes.length; ++i) {
+            filenames[i] = getDefaultOutputFilename(episodes[i]);
+        }
+        return filenames;
+    }
+
+    @NonNull
+    private String getDefaultOutputFilename(@NonNull MediaItem item) {
+        final String filename = item.getFilename();
         final String targetExtension = getExtensionForSelectedOutputType();
         return replaceExtension(appendToFilename(filename,
                 getAppendNamingForOutput(getApplication(), EditAction.CONVERT_TO_VIDEO)), targetExtension);
     }
 
+    // Creates one target document per episode inside the folder that the user picked.
+    @NonNull
+    Uri[] createTargetsInTree(@NonNull Uri treeUri) throws FileNotFoundException {
+        final ContentResolver contentResolver = getApplication().getContentResolver();
+        final Uri parentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                DocumentsContract.getTreeDocumentId(treeUri));
+        final String mimeType = getMimeTypeForOutputSelection();
+        final String[] filenames = getDefaultOutputFilenamesForEpisodes();
+        final Uri[] targets = new Uri[filenames.length];
+        for (int i = 0; i < filenames.length; ++i) {
+            final Uri target = DocumentsContract.createDocument(contentResolver, parentUri, mimeType, filenames[i]);
+            if (target == null) {
+                throw new FileNotFoundException("Couldn't create " + filenames[i] + " in " + treeUri);
+            }
+            Logger.v("Created batch target: " + target);
+            targets[i] = target;
+        }
+        return targets;
+    }
+
     @Nullable
     Uri getCustomCoverImageUri() {
         return customCoverImageUri;
@@ -118,7 +222,7 @@ public class MakeVideoActionViewModel extends AndroidViewModel {
     String getCustomCoverImageFilename() {
         if (customCoverImageUri != null) {
             try {
-                final MediaItem item = MediaItem.constructFromUri(getApplication(), customCoverImageUri);
+                final MediaItem item = MediaItem.constructFromProviderQuery(getApplication(), customCoverImageUri);
                 return item.getFilename();
             } catch (Exception e) {
                 Logger.w(e);
@@ -26,6 +26,8 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CompoundButton;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -34,15 +36,20 @@ import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.ViewModelProvider;
 
 import com.digipom.easymediaconverter.R;
+import com.digipom.easymediaconverter.edit.NormalizeMode;
+import com.digipom.easymediaconverter.ffmpeg.EditStep;
 import com.digipom.easymediaconverter.player.MainButtonInterfaces;
 import com.digipom.easymediaconverter.player.PlayerViewModel;
 import com.digipom.easymediaconverter.utils.IntentUtils;
+import com.google.android.material.chip.Chip;
 
 import java.util.Objects;
 
-public class NormalizeActionFragment extends Fragment implements MainButtonInterfaces.HandleMainButtonTapListener {
+public class NormalizeActionFragment extends Fragment implements MainButtonInterfaces.HandleMainButtonTapListener,
+        MainButtonInterfaces.HandleSecondaryFABTapListener {
     public interface OnNormalizeActionFragmentInteractionListener {
-        void onNormalizeSelected(@NonNull Uri targetUri, @NonNull String targetFileName);
+        void onNormalizeSelected(@NonNull Uri targetUri, @NonNull String targetFileName,
+                                 @NonNull NormalizeMode mode);
     }
 
     private static final int CREATE_DOCUMENT_REQUEST_CODE = 1;
@@ -59,13 +66,34 @@ public class NormalizeActionFragment extends Fragment implements MainButtonInter
     }
 
     private NormalizeActionViewModel viewModel;
+    private PlayerViewModel sharedViewModel;
 
     @Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         viewModel = new ViewModelProvider(this).get(NormalizeActionViewModel.class);
-        final PlayerViewModel sharedViewModel = new ViewModelProvider(Objects.requireNonNull(getActivity())).get(PlayerViewModel.class);
+        sharedViewModel = new ViewModelProvider(Objects.requireNonNull(getActivity())).get(PlayerViewModel.class);
         viewModel.setMediaItem(sharedViewModel.getMediaItem());
+
+        final View view = Objects.requireNonNull(getView());
+        final Chip linearModeChip = view.findViewById(R.id.linear_mode_chip);
+        final Chip dynamicModeChip = view.findViewById(R.id.dynamic_mode_chip);
+        linearModeChip.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked) {
+                    viewModel.onLinearModeChecked();
+                }
+            }
+        });
+        dynamicModeChip.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked) {
+                    viewModel.onDynamicModeChecked();
+                }
+            }
+        });
     }
 
     @Override
@@ -83,6 +111,19 @@ public class NormalizeActionFragment extends Fragment implements MainButtonInter
         startActivityForResult(createDocumentIntent, CREATE_DOCUMENT_REQUEST_CODE);
     }
 
+    @Override
+    public boolean shouldShowSecondaryFAB() {
+        return true;
+    }
+
+    @Override
+    public void onSecondaryFABTapped() {
+        Toast.makeText(getContext(), R.string.preparing_preview, Toast.LENGTH_SHORT).show();
+        // Linear mode needs a measuring pass over the whole input, so the preview always uses the
+        // single-pass dynamic mode as an approximation.
+        sharedViewModel.onPreviewClicked(EditStep.normalize());
+    }
+
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -93,7 +134,8 @@ public class NormalizeActionFragment extends Fragment implements MainButtonInter
                         @Override
                         public void onReceivedUriForNewDocument(@NonNull Uri target) {
                             final String outputFilename = viewModel.getDefaultOutputFilename();
-                            ((OnNormalizeActionFragmentInteractionListener) activity).onNormalizeSelected(target, outputFilename);
+                            final NormalizeMode mode = viewModel.getMode();
+                            ((OnNormalizeActionFragmentInteractionListener) activity).onNormalizeSelected(target, outputFilename, mode);
                         }
                     });
         }
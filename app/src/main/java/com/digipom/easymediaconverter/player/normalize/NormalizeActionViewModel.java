@@ -26,6 +26,7 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 
 import com.digipom.easymediaconverter.edit.EditAction;
+import com.digipom.easymediaconverter.edit.NormalizeMode;
 import com.digipom.easymediaconverter.media.MediaItem;
 import com.digipom.easymediaconverter.utils.FilenameUtils;
 
@@ -33,6 +34,7 @@ import static com.digipom.easymediaconverter.player.FilenamingUtils.getAppendNam
 
 public class NormalizeActionViewModel extends AndroidViewModel {
     private MediaItem mediaItem;
+    private NormalizeMode selectedMode = NormalizeMode.LINEAR_TWO_PASS;
 
     public NormalizeActionViewModel(@NonNull Application application) {
         super(application);
@@ -52,4 +54,17 @@ public class NormalizeActionViewModel extends AndroidViewModel {
         return FilenameUtils.appendToFilename(mediaItem.getFilename(),
                 getAppendNamingForOutput(getApplication(), EditAction.NORMALIZE));
     }
+
+    @NonNull
+    NormalizeMode getMode() {
+        return selectedMode;
+    }
+
+    void onLinearModeChecked() {
+        selectedMode = NormalizeMode.LINEAR_TWO_PASS;
+    }
+
+    void onDynamicModeChecked() {
+        selectedMode = NormalizeMode.DYNAMIC_SINGLE_PASS;
+    }
 }
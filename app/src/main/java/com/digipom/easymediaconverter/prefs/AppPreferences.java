@@ -32,12 +32,15 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.digipom.easymediaconverter.R;
+import com.digipom.easymediaconverter.edit.EncodingSpeedProfile;
 import com.digipom.easymediaconverter.utils.logger.Logger;
 
 @MainThread
 public class AppPreferences {
     private static final long ONE_DAY_MS = 1000 * 60 * 60 * 24;
     private static final long DELAY_BEFORE_SHOWING_RATE_REQUEST = 7 * ONE_DAY_MS;
+    private static final int DEFAULT_STALL_TIMEOUT_SECONDS = 120;
+    private static final int MIN_STALL_TIMEOUT_SECONDS = 15;
     private final Context context;
     private final SharedPreferences preferences;
     private final MutableLiveData<Boolean> shouldShowRateRequestLiveData = new MutableLiveData<>();
@@ -142,6 +145,41 @@ public class AppPreferences {
         updateShouldShowRateRequestLiveData();
     }
 
+    @NonNull
+    public EncodingSpeedProfile getEncodingSpeedProfile() {
+        final String name = preferences.getString(
+                context.getString(R.string.encoding_speed_profile_key), null);
+        if (name != null) {
+            try {
+                return EncodingSpeedProfile.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Logger.w(e);
+            }
+        }
+        return EncodingSpeedProfile.BALANCED;
+    }
+
+    public void setEncodingSpeedProfile(@NonNull EncodingSpeedProfile profile) {
+        preferences.edit()
+                .putString(context.getString(R.string.encoding_speed_profile_key), profile.name())
+                .apply();
+    }
+
+    // How long an FFMPEG execution can go without any output or progress before it's treated as
+    // hung. Some steps don't report anything while they run, such as moving the index of a large
+    // MP4 to the front with +faststart, so this shouldn't be set too low.
+    public long getStallTimeoutMs() {
+        final int seconds = preferences.getInt(
+                context.getString(R.string.stall_timeout_seconds_key), DEFAULT_STALL_TIMEOUT_SECONDS);
+        return Math.max(MIN_STALL_TIMEOUT_SECONDS, seconds) * 1000L;
+    }
+
+    public void setStallTimeoutSeconds(int seconds) {
+        preferences.edit()
+                .putInt(context.getString(R.string.stall_timeout_seconds_key), seconds)
+                .apply();
+    }
+
     private void updateShouldShowRateRequestLiveData() {
         shouldShowRateRequestLiveData.setValue(shouldShowRateRequest());
     }
@@ -25,35 +25,104 @@ import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import com.digipom.easymediaconverter.media.ContainerHeaderParser;
+import com.digipom.easymediaconverter.media.MediaItem;
+import com.digipom.easymediaconverter.media.MediaMetadata;
+import com.digipom.easymediaconverter.media.MediaMetadataCache;
 import com.digipom.easymediaconverter.utils.logger.Logger;
 
-import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class DurationLoader {
     public static final long DURATION_NOT_LOADED = -1;
     private static final long DURATION_COULD_NOT_BE_LOADED = -2;
+    // Lookups are mostly waiting on the provider, so a couple of them can overlap.
+    private static final int THREAD_COUNT = 2;
     private final Context context;
-    private final Executor backgroundExecutor = ExecutorUtils.newSingleThreadExecutorWithTimeout();
+    private final MediaMetadataCache mediaMetadataCache;
+    // LIFO, so that the rows that just scrolled into view are looked up before the ones that were
+    // requested earlier and are probably off-screen by now.
+    private final ThreadPoolExecutor backgroundExecutor = ExecutorUtils.newLifoThreadPoolWithTimeout(THREAD_COUNT);
 
-    public DurationLoader(@NonNull Context context) {
+    public static class Request {
+        @NonNull
+        private final LiveData<Long> duration;
+        @Nullable
+        private final Runnable task;
+
+        Request(@NonNull LiveData<Long> duration, @Nullable Runnable task) {
+            this.duration = duration;
+            this.task = task;
+        }
+
+        @NonNull
+        public LiveData<Long> getDuration() {
+            return duration;
+        }
+    }
+
+    public DurationLoader(@NonNull Context context, @NonNull MediaMetadataCache mediaMetadataCache) {
         this.context = context;
+        this.mediaMetadataCache = mediaMetadataCache;
     }
 
     @NonNull
-    public LiveData<Long> loadDuration(@NonNull final Uri uri) {
+    public Request loadDuration(@NonNull final MediaItem item) {
         final MutableLiveData<Long> duration = new MutableLiveData<>();
         duration.setValue(DURATION_NOT_LOADED);
-        backgroundExecutor.execute(new Runnable() {
+        final Runnable task = new Runnable() {
             @Override
             public void run() {
-                duration.postValue(getDurationMs(uri));
+                duration.postValue(getDurationMs(item));
             }
-        });
-        return duration;
+        };
+        backgroundExecutor.execute(task);
+        return new Request(duration, task);
+    }
+
+    @NonNull
+    public static Request completedRequest(long durationMs) {
+        final MutableLiveData<Long> duration = new MutableLiveData<>();
+        duration.setValue(durationMs);
+        return new Request(duration, null);
+    }
+
+    // Returns true if the lookup hadn't started yet and won't run now. Its duration then stays at
+    // DURATION_NOT_LOADED.
+    public boolean cancel(@NonNull Request request) {
+        return request.task != null && backgroundExecutor.remove(request.task);
+    }
+
+    // Moves a lookup that hasn't started yet to the front of the queue.
+    public void prioritise(@NonNull Request request) {
+        if (request.task != null && backgroundExecutor.remove(request.task)) {
+            backgroundExecutor.execute(request.task);
+        }
+    }
+
+    @WorkerThread
+    private long getDurationMs(@NonNull MediaItem item) {
+        final MediaMetadata cachedMetadata = mediaMetadataCache.get(item);
+        if (cachedMetadata != null && cachedMetadata.durationMs >= 0) {
+            return cachedMetadata.durationMs;
+        }
+
+        final MediaMetadata parsedMetadata = ContainerHeaderParser.parse(context, item.getUri());
+        if (parsedMetadata != null) {
+            mediaMetadataCache.put(item, parsedMetadata);
+            return parsedMetadata.durationMs;
+        }
+
+        final long durationMs = getDurationMs(item.getUri());
+        if (durationMs >= 0) {
+            mediaMetadataCache.put(item, MediaMetadata.forDurationOnly(durationMs));
+        }
+        return durationMs;
     }
 
     @WorkerThread
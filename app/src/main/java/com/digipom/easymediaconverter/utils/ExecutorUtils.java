@@ -22,9 +22,12 @@ package com.digipom.easymediaconverter.utils;
 
 import androidx.annotation.NonNull;
 
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -37,9 +40,48 @@ public class ExecutorUtils {
 
     @NonNull
     public static ExecutorService newSingleThreadExecutorWithTimeoutAndCapacity(int capacity) {
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+        return newFixedThreadPoolWithTimeoutAndCapacity(1, capacity);
+    }
+
+    @NonNull
+    public static ExecutorService newFixedThreadPoolWithTimeout(int threadCount) {
+        return newFixedThreadPoolWithTimeoutAndCapacity(threadCount, Integer.MAX_VALUE);
+    }
+
+    // The most recently submitted task runs first. Tasks that haven't started yet can be taken back
+    // with ThreadPoolExecutor.remove().
+    @NonNull
+    public static ThreadPoolExecutor newLifoThreadPoolWithTimeout(int threadCount) {
+        return newThreadPoolWithTimeout(threadCount, new LinkedBlockingDeque<Runnable>() {
+            @Override
+            public boolean offer(@NonNull Runnable runnable) {
+                return offerFirst(runnable);
+            }
+        });
+    }
+
+    // Every task gets a thread straight away, for tasks that can block until another one starts.
+    @NonNull
+    public static ExecutorService newCachedThreadPoolWithTimeout() {
+        return newThreadPoolWithTimeout(0, Integer.MAX_VALUE, new SynchronousQueue<Runnable>());
+    }
+
+    @NonNull
+    private static ExecutorService newFixedThreadPoolWithTimeoutAndCapacity(int threadCount, int capacity) {
+        return newThreadPoolWithTimeout(threadCount, new LinkedBlockingQueue<Runnable>(capacity));
+    }
+
+    @NonNull
+    private static ThreadPoolExecutor newThreadPoolWithTimeout(int threadCount, @NonNull BlockingQueue<Runnable> workQueue) {
+        return newThreadPoolWithTimeout(threadCount, threadCount, workQueue);
+    }
+
+    @NonNull
+    private static ThreadPoolExecutor newThreadPoolWithTimeout(int coreThreadCount, int maxThreadCount,
+                                                               @NonNull BlockingQueue<Runnable> workQueue) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(coreThreadCount, maxThreadCount,
                 15L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(capacity),
+                workQueue,
                 new ThreadFactory() {
                     final ThreadFactory defaultThreadFactory = Executors.defaultThreadFactory();
 
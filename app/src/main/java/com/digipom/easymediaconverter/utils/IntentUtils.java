@@ -82,6 +82,14 @@ public class IntentUtils {
         return intent;
     }
 
+    @NonNull
+    public static Intent getOpenDocumentTreeRequest() {
+        final Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        // Undocumented -- should allow auto-enabling the internal storage picker.
+        intent.putExtra("android.content.extra.SHOW_ADVANCED", true);
+        return intent;
+    }
+
     @NonNull
     public static Intent getCreateDocumentRequest(@NonNull String mimeType,
                                                   @NonNull String selectedName) {
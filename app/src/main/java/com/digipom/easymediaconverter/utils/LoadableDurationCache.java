@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.utils;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.LiveData;
+
+import com.digipom.easymediaconverter.media.MediaItem;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the loadable durations of media items around, so that every screen listing the same items
+// shares the lookups and their results. Only used from the main thread.
+public class LoadableDurationCache {
+    private static final int MAX_CACHED_DURATIONS = 512;
+
+    private final DurationLoader durationLoader;
+    private final Map<MediaItem, DurationLoader.Request> requests = new LinkedHashMap<MediaItem, DurationLoader.Request>(MAX_CACHED_DURATIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MediaItem, DurationLoader.Request> eldest) {
+            return size() > MAX_CACHED_DURATIONS;
+        }
+    };
+
+    public LoadableDurationCache(@NonNull DurationLoader durationLoader) {
+        this.durationLoader = durationLoader;
+    }
+
+    @MainThread
+    @NonNull
+    public LiveData<Long> getLoadableDuration(@NonNull MediaItem item) {
+        DurationLoader.Request request = requests.get(item);
+        if (request != null) {
+            // It's wanted again, so put it ahead of the lookups that are still waiting.
+            durationLoader.prioritise(request);
+            return request.getDuration();
+        }
+        request = createRequest(item);
+        requests.put(item, request);
+        return request.getDuration();
+    }
+
+    // Called when a view stops showing the item, so that its lookup doesn't hold up the items that
+    // are on screen. A lookup that has already started is left to finish.
+    @MainThread
+    public void cancelIfPending(@NonNull MediaItem item) {
+        final DurationLoader.Request request = requests.get(item);
+        if (request != null && durationLoader.cancel(request)) {
+            requests.remove(item);
+        }
+    }
+
+    @NonNull
+    private DurationLoader.Request createRequest(@NonNull MediaItem item) {
+        if (item.getOptionalDurationMs() >= 0) {
+            // We already have a duration, so no need to load one.
+            return DurationLoader.completedRequest(item.getOptionalDurationMs());
+        } else {
+            return durationLoader.loadDuration(item);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.ffmpeg;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// Builds the smallest files that look like what FFMPEG's MP3 and MP4 muxers write, and checks
+// what ends up in their headers.
+public class GaplessInfoTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // MPEG-1 Layer III, 128 kbps, 44.1 kHz, stereo.
+    private static final byte[] MP3_FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int MP3_FRAME_SIZE = 417;
+    private static final int ID3_SIZE = 32;
+    // Frame header, side info, "Info", flags, frames, bytes, TOC and quality.
+    private static final int LAME_TAG_OFFSET = 4 + 32 + 8 + 4 + 4 + 100 + 4;
+
+    @Test
+    public void crc16MatchesTheLameTagCrc() {
+        assertEquals(0xBB3D, GaplessInfo.crc16("123456789".getBytes(ASCII), 9));
+    }
+
+    @Test
+    public void mp3GetsDelayAndPaddingAndTagCrc() throws IOException {
+        final File file = writeMp3(100);
+        GaplessInfo.writeMp3(file, 100 * 1152 - GaplessInfo.LAME_ENCODER_DELAY - 1000);
+
+        final byte[] frame = readFrom(file, ID3_SIZE, MP3_FRAME_SIZE);
+        final int delayAndPadding = ((frame[LAME_TAG_OFFSET + 21] & 0xFF) << 16)
+                | ((frame[LAME_TAG_OFFSET + 22] & 0xFF) << 8) | (frame[LAME_TAG_OFFSET + 23] & 0xFF);
+        assertEquals(GaplessInfo.LAME_ENCODER_DELAY, delayAndPadding >> 12);
+        assertEquals(1000, delayAndPadding & 0xFFF);
+        final int crc = ((frame[LAME_TAG_OFFSET + 34] & 0xFF) << 8) | (frame[LAME_TAG_OFFSET + 35] & 0xFF);
+        assertEquals(GaplessInfo.crc16(frame, LAME_TAG_OFFSET + 34), crc);
+        assertEquals(ID3_SIZE + MP3_FRAME_SIZE, file.length());
+        file.delete();
+    }
+
+    @Test
+    public void mp3WithMorePaddingThanTheTagHoldsIsRejected() throws IOException {
+        final File file = writeMp3(100);
+        try {
+            GaplessInfo.writeMp3(file, 1000);
+            fail("Expected the padding to be rejected");
+        } catch (IOException expected) {
+            // Expected.
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void mp4GetsEditListSkippingPriming() throws IOException {
+        final File file = writeMp4(false);
+        final long lengthBefore = file.length();
+        GaplessInfo.writeMp4(file, 44100, GaplessInfo.AAC_PRIMING_SAMPLES, 441000);
+
+        assertEquals(lengthBefore + 36, file.length());
+        final byte[] moov = readFrom(file, MOOV_OFFSET, (int) (file.length() - MOOV_OFFSET));
+        assertEquals(moov.length, readInt(moov, 0));
+        final int trak = indexOf(moov, "trak") - 4;
+        final int elst = indexOf(moov, "elst") - 4;
+        assertEquals(TRAK_SIZE + 36, readInt(moov, trak));
+        // The edit list comes straight after the tkhd.
+        assertEquals(trak + 8 + TKHD_SIZE + 8, elst);
+        assertEquals(1, readInt(moov, elst + 12));
+        // Ten seconds in the movie timescale of 1000, starting after the priming in the media
+        // timescale of 44100.
+        assertEquals(10000, readInt(moov, elst + 16));
+        assertEquals(1024, readInt(moov, elst + 20));
+        assertEquals(0x10000, readInt(moov, elst + 24));
+        // The mvhd and tkhd durations match the edit.
+        assertEquals(10000, readInt(moov, 8 + 24));
+        assertEquals(10000, readInt(moov, trak + 8 + 28));
+        file.delete();
+    }
+
+    @Test
+    public void mp4EditListReplacesTheExistingOne() throws IOException {
+        final File file = writeMp4(true);
+        final long lengthBefore = file.length();
+        GaplessInfo.writeMp4(file, 44100, GaplessInfo.AAC_PRIMING_SAMPLES, 441000);
+
+        assertEquals(lengthBefore, file.length());
+        final byte[] moov = readFrom(file, MOOV_OFFSET, (int) (file.length() - MOOV_OFFSET));
+        final int elst = indexOf(moov, "elst") - 4;
+        assertEquals(1024, readInt(moov, elst + 20));
+        assertEquals(-1, indexOf(moov, elst + 8, "elst"));
+        file.delete();
+    }
+
+    @Test
+    public void mp4WithMoovBeforeMdatIsRejected() throws IOException {
+        final File file = File.createTempFile("gapless", ".m4a");
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(box("ftyp", new byte[8]));
+            os.write(buildMoov(false));
+            os.write(box("mdat", new byte[64]));
+        }
+        try {
+            GaplessInfo.writeMp4(file, 44100, GaplessInfo.AAC_PRIMING_SAMPLES, 441000);
+            fail("Expected the moov box before the mdat to be rejected");
+        } catch (IOException expected) {
+            // Expected.
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File writeMp3(int frameCount) throws IOException {
+        final byte[] id3 = new byte[ID3_SIZE];
+        id3[0] = 'I';
+        id3[1] = 'D';
+        id3[2] = '3';
+        id3[3] = 4;
+        id3[9] = ID3_SIZE - 10;
+
+        final byte[] frame = new byte[MP3_FRAME_SIZE];
+        System.arraycopy(MP3_FRAME_HEADER, 0, frame, 0, 4);
+        System.arraycopy("Info".getBytes(ASCII), 0, frame, 36, 4);
+        writeInt(frame, 40, 0xF);
+        writeInt(frame, 44, frameCount);
+        System.arraycopy("Lavf58.76".getBytes(ASCII), 0, frame, LAME_TAG_OFFSET, 9);
+
+        final File file = File.createTempFile("gapless", ".mp3");
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(id3);
+            os.write(frame);
+        }
+        return file;
+    }
+
+    private static final int MOOV_OFFSET = 16 + 72;
+    private static final int TKHD_SIZE = 84;
+    private static final int TRAK_SIZE = 8 + TKHD_SIZE + 8 + 32;
+
+    private static File writeMp4(boolean withEditList) throws IOException {
+        final File file = File.createTempFile("gapless", ".m4a");
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(box("ftyp", new byte[8]));
+            os.write(box("mdat", new byte[64]));
+            os.write(buildMoov(withEditList));
+        }
+        return file;
+    }
+
+    private static byte[] buildMoov(boolean withEditList) throws IOException {
+        final byte[] mvhd = new byte[100];
+        writeInt(mvhd, 12, 1000);
+        writeInt(mvhd, 16, 10500);
+        final byte[] tkhd = new byte[TKHD_SIZE - 8];
+        writeInt(tkhd, 20, 10500);
+        final byte[] mdhd = new byte[24];
+        writeInt(mdhd, 12, 44100);
+        writeInt(mdhd, 16, 463050);
+
+        final ByteArrayOutputStream trak = new ByteArrayOutputStream();
+        trak.write(box("tkhd", tkhd));
+        if (withEditList) {
+            final byte[] elst = new byte[20];
+            writeInt(elst, 4, 1);
+            writeInt(elst, 8, 10500);
+            writeInt(elst, 16, 0x10000);
+            trak.write(box("edts", box("elst", elst)));
+        }
+        trak.write(box("mdia", box("mdhd", mdhd)));
+
+        final ByteArrayOutputStream moov = new ByteArrayOutputStream();
+        moov.write(box("mvhd", mvhd));
+        moov.write(box("trak", trak.toByteArray()));
+        return box("moov", moov.toByteArray());
+    }
+
+    private static byte[] box(String type, byte[] content) {
+        final byte[] box = new byte[8 + content.length];
+        writeInt(box, 0, box.length);
+        System.arraycopy(type.getBytes(ASCII), 0, box, 4, 4);
+        System.arraycopy(content, 0, box, 8, content.length);
+        return box;
+    }
+
+    private static byte[] readFrom(File file, long offset, int length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final byte[] b = new byte[length];
+            raf.seek(offset);
+            raf.readFully(b);
+            return b;
+        }
+    }
+
+    private static int indexOf(byte[] b, String type) {
+        return indexOf(b, 0, type);
+    }
+
+    private static int indexOf(byte[] b, int from, String type) {
+        final byte[] pattern = type.getBytes(ASCII);
+        for (int i = from; i + pattern.length <= b.length; i++) {
+            if (b[i] == pattern[0] && b[i + 1] == pattern[1] && b[i + 2] == pattern[2] && b[i + 3] == pattern[3]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] b, int position) {
+        return ((b[position] & 0xFF) << 24) | ((b[position + 1] & 0xFF) << 16)
+                | ((b[position + 2] & 0xFF) << 8) | (b[position + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int position, int value) {
+        b[position] = (byte) (value >> 24);
+        b[position + 1] = (byte) (value >> 16);
+        b[position + 2] = (byte) (value >> 8);
+        b[position + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 Kevin Brothaler. All rights reserved.
+ *
+ * https://github.com/Digipom/easy-media-converter
+ *
+ * This file is part of Easy Media Converter.
+ *
+ * Easy Media Converter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Easy Media Converter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Easy Media Converter.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.digipom.easymediaconverter.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Reference signals from EBU Tech 3341 and Tech 3342, generated on the fly.
+public class LoudnessMeterTest {
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAMES_PER_BLOCK = 4800;
+
+    // Tech 3341 allows +/- 0.1 LU for the integrated loudness, and Tech 3342 +/- 1 LU for the range.
+    private static final double LOUDNESS_TOLERANCE_LU = 0.1;
+    private static final double RANGE_TOLERANCE_LU = 1.0;
+
+    @Test
+    public void stereoSineAtMinus23DbfsReadsMinus23Lufs() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(1000);
+        generator.feed(meter, -23, 20);
+
+        assertEquals(-23.0, meter.getHistogram().integratedLoudness(), LOUDNESS_TOLERANCE_LU);
+    }
+
+    @Test
+    public void relativeGateLeavesOutQuietSections() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(1000);
+        generator.feed(meter, -36, 10);
+        generator.feed(meter, -23, 60);
+        generator.feed(meter, -36, 10);
+
+        assertEquals(-23.0, meter.getHistogram().integratedLoudness(), LOUDNESS_TOLERANCE_LU);
+    }
+
+    @Test
+    public void absoluteGateLeavesOutNearSilence() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(1000);
+        generator.feed(meter, -72, 10);
+        generator.feed(meter, -36, 10);
+        generator.feed(meter, -23, 60);
+        generator.feed(meter, -36, 10);
+        generator.feed(meter, -72, 10);
+
+        assertEquals(-23.0, meter.getHistogram().integratedLoudness(), LOUDNESS_TOLERANCE_LU);
+    }
+
+    @Test
+    public void gatedSectionsAverageByEnergy() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(1000);
+        generator.feed(meter, -26, 20);
+        generator.feed(meter, -20, 20.1);
+        generator.feed(meter, -26, 20);
+
+        assertEquals(-23.0, meter.getHistogram().integratedLoudness(), LOUDNESS_TOLERANCE_LU);
+    }
+
+    @Test
+    public void silenceIsBelowTheAbsoluteGate() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        meter.process(new float[FRAMES_PER_BLOCK * CHANNELS * 50], 0, FRAMES_PER_BLOCK * 50);
+
+        assertTrue(meter.getHistogram().isEmpty());
+        assertEquals(Double.NEGATIVE_INFINITY, meter.getHistogram().integratedLoudness(), 0);
+    }
+
+    @Test
+    public void loudnessRangeOfA10DbStepIs10Lu() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(1000);
+        generator.feed(meter, -20, 20);
+        generator.feed(meter, -30, 20);
+
+        assertEquals(10.0, meter.getHistogram().loudnessRange(), RANGE_TOLERANCE_LU);
+    }
+
+    @Test
+    public void loudnessRangeOfASteadyToneIsZero() {
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(1000);
+        generator.feed(meter, -20, 20);
+
+        assertEquals(0.0, meter.getHistogram().loudnessRange(), RANGE_TOLERANCE_LU);
+    }
+
+    @Test
+    public void truePeakFindsInterSamplePeaks() {
+        // A quarter of the sample rate, sampled 45 degrees off its peaks: every sample is at 1/sqrt(2)
+        // of the amplitude, so the true peak is 3 dB above the sample peak. Tech 3341 allows
+        // +0.2 / -0.4 dB for the true peak.
+        final LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        final SineGenerator generator = new SineGenerator(SAMPLE_RATE / 4.0, Math.PI / 4);
+        generator.feed(meter, -6, 2);
+
+        final LoudnessHistogram histogram = meter.getHistogram();
+        assertEquals(-9.01, histogram.samplePeakDb(), 0.01);
+        assertTrue(histogram.truePeakDb() <= -6 + 0.2);
+        assertTrue(histogram.truePeakDb() >= -6 - 0.4);
+    }
+
+    @Test
+    public void mergedSegmentsMatchASinglePass() {
+        final double[] levelsDb = {-30, -18, -40, -23, -12, -27};
+        final double secondsPerLevel = 5;
+        final long totalFrames = (long) (levelsDb.length * secondsPerLevel * SAMPLE_RATE);
+
+        final LoudnessMeter singlePass = new LoudnessMeter(SAMPLE_RATE, CHANNELS);
+        feedSteps(singlePass, levelsDb, secondsPerLevel, 0, totalFrames);
+
+        // Split at 13 s and 21.3 s, which are 100 ms boundaries that don't line up with the steps
+        // or with the short-term blocks.
+        final long[] boundaries = {0, 13 * SAMPLE_RATE, 213 * SAMPLE_RATE / 10, totalFrames};
+        final long leadInFrames = (long) (LoudnessMeter.SEGMENT_LEAD_IN_SECONDS * SAMPLE_RATE);
+        final LoudnessHistogram merged = new LoudnessHistogram();
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            final long startFrame = Math.max(0, boundaries[i] - leadInFrames);
+            final LoudnessMeter segment = new LoudnessMeter(SAMPLE_RATE, CHANNELS, startFrame, boundaries[i]);
+            feedSteps(segment, levelsDb, secondsPerLevel, startFrame, boundaries[i + 1]);
+            merged.add(segment.getHistogram());
+        }
+
+        final LoudnessHistogram expected = singlePass.getHistogram();
+        assertEquals(expected.integratedLoudness(), merged.integratedLoudness(), 0.01);
+        assertEquals(expected.relativeThreshold(), merged.relativeThreshold(), 0.01);
+        assertEquals(expected.loudnessRange(), merged.loudnessRange(), 0.01);
+        assertEquals(expected.samplePeakDb(), merged.samplePeakDb(), 0.01);
+    }
+
+    // Feeds frames from startFrame up to endFrame of a 1 kHz tone that steps through levelsDb.
+    private static void feedSteps(LoudnessMeter meter, double[] levelsDb, double secondsPerLevel,
+                                  long startFrame, long endFrame) {
+        final long framesPerLevel = (long) (secondsPerLevel * SAMPLE_RATE);
+        final float[] block = new float[FRAMES_PER_BLOCK * CHANNELS];
+        for (long frame = startFrame; frame < endFrame; ) {
+            final int frameCount = (int) Math.min(FRAMES_PER_BLOCK, endFrame - frame);
+            for (int i = 0; i < frameCount; i++, frame++) {
+                final double amplitude = Math.pow(10, levelsDb[(int) (frame / framesPerLevel)] / 20);
+                final float sample = (float) (amplitude * Math.sin(2 * Math.PI * 1000 * frame / SAMPLE_RATE));
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    block[i * CHANNELS + channel] = sample;
+                }
+            }
+            meter.process(block, 0, frameCount);
+        }
+    }
+
+    // The same sine on both channels, continuous from one call to the next.
+    private static final class SineGenerator {
+        private final double frequency;
+        private final double phase;
+        private long frame;
+
+        SineGenerator(double frequency) {
+            this(frequency, 0);
+        }
+
+        SineGenerator(double frequency, double phase) {
+            this.frequency = frequency;
+            this.phase = phase;
+        }
+
+        void feed(LoudnessMeter meter, double levelDb, double seconds) {
+            final double amplitude = Math.pow(10, levelDb / 20);
+            final long endFrame = frame + Math.round(seconds * SAMPLE_RATE);
+            final float[] block = new float[FRAMES_PER_BLOCK * CHANNELS];
+            while (frame < endFrame) {
+                final int frameCount = (int) Math.min(FRAMES_PER_BLOCK, endFrame - frame);
+                for (int i = 0; i < frameCount; i++, frame++) {
+                    final float sample = (float) (amplitude * Math.sin(2 * Math.PI * frequency * frame / SAMPLE_RATE + phase));
+                    for (int channel = 0; channel < CHANNELS; channel++) {
+                        block[i * CHANNELS + channel] = sample;
+                    }
+                }
+                meter.process(block, 0, frameCount);
+            }
+        }
+    }
+}